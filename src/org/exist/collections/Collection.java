@@ -137,7 +137,7 @@ public class Collection extends Observable implements Comparable<Collection>, Ca
         permissions = PermissionFactory.getDefaultCollectionPermission(broker.getBrokerPool().getSecurityManager());
 
         setPath(path);
-        lock = new ReentrantReadWriteLock(path);
+        lock = new CollectionLock(broker.getBrokerPool().getCollectionLocks(), this);
     }
 
     public boolean isTriggersEnabled() {
@@ -261,23 +261,33 @@ public class DefaultDocumentSet extends Int2ObjectHashMap implements MutableDocu
         return true;
     }
 
+    /**
+     * Locks the documents in ascending order of their document id, like the
+     * node set implementations do. If a lock can not be acquired, the locks
+     * acquired so far are released again.
+     */
     @Override
     public void lock(final DBBroker broker, final boolean exclusive, final boolean checkExisting) throws LockException {
-        DocumentImpl d;
-        Lock dlock;
-        //final Thread thread = Thread.currentThread();
+        final DocumentImpl[] docs = new DocumentImpl[size()];
+        int count = 0;
         for(int idx = 0; idx < tabSize; idx++) {
             if(values[idx] == null || values[idx] == REMOVED) {
                 continue;
             }
-            d = (DocumentImpl) values[idx];
-            dlock = d.getUpdateLock();
-            //if (checkExisting && dlock.hasLock(thread))
-            //continue;
-            if(exclusive) {
-                dlock.acquire(Lock.WRITE_LOCK);
-            } else {
-                dlock.acquire(Lock.READ_LOCK);
+            docs[count++] = (DocumentImpl) values[idx];
+        }
+        Arrays.sort(docs, 0, count, (d1, d2) -> Integer.compare(d1.getDocId(), d2.getDocId()));
+        final int mode = exclusive ? Lock.WRITE_LOCK : Lock.READ_LOCK;
+        int locked = 0;
+        try {
+            for(; locked < count; locked++) {
+                docs[locked].getUpdateLock().acquire(mode);
+            }
+        } finally {
+            if(locked < count) {
+                for(int i = 0; i < locked; i++) {
+                    docs[i].getUpdateLock().release(mode);
+                }
             }
         }
     }
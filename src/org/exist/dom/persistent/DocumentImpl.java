@@ -41,7 +41,7 @@ import org.exist.storage.StorageAddress;
 import org.exist.storage.io.VariableByteInput;
 import org.exist.storage.io.VariableByteOutputStream;
 import org.exist.storage.lock.Lock;
-import org.exist.storage.lock.MultiReadReentrantLock;
+import org.exist.storage.lock.QueuedReadWriteLock;
 import org.exist.storage.txn.Txn;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.Constants;
@@ -379,7 +379,7 @@ public class DocumentImpl extends NodeImpl<DocumentImpl> implements Document {
      */
     public final synchronized Lock getUpdateLock() {
         if(updateLock == null) {
-            updateLock = new MultiReadReentrantLock(fileURI);
+            updateLock = new QueuedReadWriteLock(fileURI);
         }
         return updateLock;
     }
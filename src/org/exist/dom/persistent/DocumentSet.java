@@ -51,6 +51,16 @@ public interface DocumentSet {
 
     public NodeSet docsToNodeSet();
 
+    /**
+     * Acquire a lock on every document in the set. Documents are locked in
+     * ascending order of their document id, so two threads locking overlapping
+     * sets can not deadlock each other.
+     *
+     * @param broker the broker
+     * @param exclusive acquire write locks if true, read locks otherwise
+     * @param checkExisting not used
+     * @throws LockException if a lock could not be acquired
+     */
     public void lock(DBBroker broker, boolean exclusive, boolean checkExisting) throws LockException;
 
     public void unlock(boolean exclusive);
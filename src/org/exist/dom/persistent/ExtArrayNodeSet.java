@@ -457,10 +457,23 @@ public class ExtArrayNodeSet extends AbstractArrayNodeSet implements DocumentSet
 
     @Override
     public void lock(final DBBroker broker, final boolean exclusive, final boolean checkExisting) throws LockException {
+        final DocumentImpl[] docs = new DocumentImpl[partCount];
         for (int i = 0; i < partCount; i++) {
-            final DocumentImpl doc = parts[i].getOwnerDocument();
-            final Lock docLock = doc.getUpdateLock();
-            docLock.acquire(exclusive ? Lock.WRITE_LOCK : Lock.READ_LOCK);
+            docs[i] = parts[i].getOwnerDocument();
+        }
+        Arrays.sort(docs, (d1, d2) -> Integer.compare(d1.getDocId(), d2.getDocId()));
+        final int mode = exclusive ? Lock.WRITE_LOCK : Lock.READ_LOCK;
+        int locked = 0;
+        try {
+            for (; locked < docs.length; locked++) {
+                docs[locked].getUpdateLock().acquire(mode);
+            }
+        } finally {
+            if (locked < docs.length) {
+                for (int i = 0; i < locked; i++) {
+                    docs[i].getUpdateLock().release(mode);
+                }
+            }
         }
     }
 
@@ -1028,10 +1028,23 @@ public class NewArrayNodeSet extends AbstractArrayNodeSet implements ExtNodeSet,
     @Override
     public void lock(final DBBroker broker, final boolean exclusive, final boolean checkExisting) throws LockException {
         sort();
+        final DocumentImpl[] docs = new DocumentImpl[documentCount];
         for(int idx = 0; idx < documentCount; idx++) {
-            final DocumentImpl doc = nodes[documentOffsets[idx]].getOwnerDocument();
-            final Lock docLock = doc.getUpdateLock();
-            docLock.acquire(exclusive ? Lock.WRITE_LOCK : Lock.READ_LOCK);
+            docs[idx] = nodes[documentOffsets[idx]].getOwnerDocument();
+        }
+        Arrays.sort(docs, (d1, d2) -> Integer.compare(d1.getDocId(), d2.getDocId()));
+        final int mode = exclusive ? Lock.WRITE_LOCK : Lock.READ_LOCK;
+        int locked = 0;
+        try {
+            for(; locked < docs.length; locked++) {
+                docs[locked].getUpdateLock().acquire(mode);
+            }
+        } finally {
+            if(locked < docs.length) {
+                for(int i = 0; i < locked; i++) {
+                    docs[i].getUpdateLock().release(mode);
+                }
+            }
         }
     }
 
@@ -33,7 +33,6 @@ import org.exist.storage.io.VariableByteInputStream;
 import org.exist.storage.io.VariableByteOutputStream;
 import org.exist.util.Configuration;
 import org.exist.util.FileUtils;
-import org.exist.util.hashtable.Object2IntHashMap;
 import org.w3c.dom.Attr;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -45,7 +44,8 @@ import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Maintains a global symbol table shared by a database instance. The symbol
@@ -55,6 +55,9 @@ import java.util.Iterator;
  * <p/>
  * The global SymbolTable singleton can be retrieved from {@link org.exist.storage.BrokerPool#getSymbols()}.
  * It is saved into the database file "symbols.dbx".
+ * <p/>
+ * Lookups of known symbols, in either direction, do not lock. Only the registration
+ * of a new symbol, which appends it to "symbols.dbx", is serialized on the symbol table.
  *
  * @author wolf
  * @author Adam Retter <adam@exist-db.org>
@@ -109,7 +112,7 @@ public class SymbolTable {
     /**
      * set to true if the symbol table needs to be saved
      */
-    private boolean changed = false;
+    private volatile boolean changed = false;
 
     /**
      * the underlying symbols.dbx file
@@ -144,13 +147,15 @@ public class SymbolTable {
      * @param localName
      * @param prefix
      */
-    public synchronized QName getQName(final short type, final String namespaceURI, final String localName, final String prefix) {
+    public QName getQName(final short type, final String namespaceURI, final String localName, final String prefix) {
         final byte itype = type == Node.ATTRIBUTE_NODE ? ElementValue.ATTRIBUTE : ElementValue.ELEMENT;
-        QName qn = namePool.get(itype, namespaceURI, localName, prefix);
-        if(qn == null) {
-            qn = namePool.add(itype, namespaceURI, localName, prefix);
+        synchronized(namePool) {
+            QName qn = namePool.get(itype, namespaceURI, localName, prefix);
+            if(qn == null) {
+                qn = namePool.add(itype, namespaceURI, localName, prefix);
+            }
+            return qn;
         }
-        return qn;
     }
 
     /**
@@ -159,7 +164,7 @@ public class SymbolTable {
      * @param element
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getSymbol(final Element element) {
+    public short getSymbol(final Element element) {
         return (short) localNameSymbols.getId(element.getLocalName());
     }
 
@@ -169,7 +174,7 @@ public class SymbolTable {
      * @param attr
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getSymbol(final Attr attr) {
+    public short getSymbol(final Attr attr) {
         final String key = ATTR_NAME_PREFIX + attr.getLocalName();
         return (short) localNameSymbols.getId(key);
     }
@@ -181,7 +186,7 @@ public class SymbolTable {
      * @param name
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getSymbol(final String name) {
+    public short getSymbol(final String name) {
         if(name.length() == 0) {
             throw new IllegalArgumentException("name is empty");
         }
@@ -194,14 +199,14 @@ public class SymbolTable {
      * @param ns
      */
     //TODO the (short) cast is nasty - should consider using either short or int end to end
-    public synchronized short getNSSymbol(final String ns) {
+    public short getNSSymbol(final String ns) {
         if(ns == null || ns.length() == 0) {
             return 0;
         }
         return (short) namespaceSymbols.getId(ns);
     }
 
-    public synchronized int getMimeTypeId(final String mimeType) {
+    public int getMimeTypeId(final String mimeType) {
         return mimeTypeSymbols.getId(mimeType);
     }
 
@@ -209,7 +214,7 @@ public class SymbolTable {
      * Returns true if the symbol table needs to be saved
      * to persistent storage.
      */
-    public synchronized boolean hasChanged() {
+    public boolean hasChanged() {
         return changed;
     }
 
@@ -219,11 +224,11 @@ public class SymbolTable {
      *
      * @param id
      */
-    public synchronized String getName(final short id) {
+    public String getName(final short id) {
         return localNameSymbols.getSymbol(id);
     }
 
-    public synchronized String getMimeType(final int id) {
+    public String getMimeType(final int id) {
         return mimeTypeSymbols.getSymbol(id);
     }
 
@@ -234,7 +239,7 @@ public class SymbolTable {
      *
      * @param id
      */
-    public synchronized String getNamespace(final short id) {
+    public String getNamespace(final short id) {
         return namespaceSymbols.getSymbol(id);
     }
 
@@ -423,21 +428,24 @@ public class SymbolTable {
         /**
          * Maps mimetype names to an integer id (persisted to disk)
          */
-        private final Object2IntHashMap<String> symbolsByName;
+        private final Map<String, Integer> symbolsByName;
 
         /**
-         * Maps int ids to mimetype names (transient map for fast reverse lookup of symbolsByName)
+         * Maps int ids to mimetype names (transient map for fast reverse lookup of symbolsByName).
+         * Replaced by a larger copy when it is full.
          */
-        private String[] symbolsById;
+        private volatile String[] symbolsById;
 
         /**
-         * contains the offset of the last symbol
+         * contains the offset of the last symbol. A symbol is stored in symbolsById
+         * before the offset is moved past it, and added to symbolsByName last, so
+         * an id obtained from either map can always be resolved without locking.
          */
-        protected short offset = 0;
+        protected volatile int offset = 0;
 
         public SymbolCollection(final SymbolType symbolType, final int initialSize) {
             this.symbolType = symbolType;
-            symbolsByName = new Object2IntHashMap<>(initialSize);
+            symbolsByName = new ConcurrentHashMap<>(initialSize);
             symbolsById = new String[initialSize];
         }
 
@@ -448,10 +456,10 @@ public class SymbolTable {
         private int add(final int id, final String name) {
             symbolsById = ensureCapacity(symbolsById, id);
             addSymbolById(id, name);
-            addSymbolByName(name, id);
             if(id > offset) {
-                offset = (short) id;
+                offset = id;
             }
+            addSymbolByName(name, id);
             return id;
         }
 
@@ -476,25 +484,40 @@ public class SymbolTable {
             offset = 0;
         }
 
-        public synchronized String getSymbol(final int id) {
+        public String getSymbol(final int id) {
             if(id <= 0 || id > offset) {
                 return ""; //TODO : raise an exception ? -pb
             }
             return symbolsById[id];
         }
 
-        public synchronized int getId(final String name) {
-            int id = symbolsByName.get(name);
-            if(id != -1) {
+        public int getId(final String name) {
+            final Integer id = symbolsByName.get(name);
+            if(id != null) {
                 return id;
             }
+            synchronized(SymbolTable.this) {
+                return register(name);
+            }
+        }
+
+        /**
+         * Add a new symbol and append it to the .dbx file. Must be called while
+         * holding the lock on the symbol table.
+         */
+        private int register(final String name) {
+            final Integer registered = symbolsByName.get(name);
+            if(registered != null) {
+                // added by another thread in the meantime
+                return registered;
+            }
             // symbol space exceeded. return -1 to indicate.
             if(offset == Short.MAX_VALUE) {
                 return -1;
             }
 
-            id = add(++offset, name);
-            //we use "++offset" here instead of "offset++", 
+            final int id = add(offset + 1, name);
+            //we use "offset + 1" here,
             //because the system expects id's to start at 1, not 0
             write(id, name);
             changed = true;
@@ -502,9 +525,9 @@ public class SymbolTable {
         }
 
         protected final void write(final VariableByteOutputStream os) throws IOException {
-            for(final Iterator<String> i = symbolsByName.iterator(); i.hasNext(); ) {
-                final String symbol = i.next();
-                final int id = symbolsByName.get(symbol);
+            for(final Map.Entry<String, Integer> entry : symbolsByName.entrySet()) {
+                final String symbol = entry.getKey();
+                final int id = entry.getValue();
                 if(id < 0) {
                     LOG.error("Symbol Table: symbolTypeId=" + getSymbolType() +
                         ", symbol='" + symbol + "', id=" + id);
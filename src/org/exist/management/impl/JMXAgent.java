@@ -107,6 +107,9 @@ public class JMXAgent implements Agent {
             addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=DiskUsage",
                     new DiskUsage(instance));
 
+            addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=Journal",
+                    new JournalStatus(instance));
+
             addMBean(instance.getId(), "org.exist.management." + instance.getId() + ":type=ProcessReport",
                     new ProcessReport(instance));
                         
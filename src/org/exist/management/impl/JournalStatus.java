@@ -0,0 +1,87 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.management.impl;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.journal.GroupCommit;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.txn.TransactionManager;
+
+import java.util.Optional;
+
+/**
+ * Reports how many transaction commits shared a sync of the journal.
+ * All values are 0 if transactions are disabled.
+ */
+public class JournalStatus implements JournalStatusMBean {
+
+    private final BrokerPool pool;
+
+    public JournalStatus(final BrokerPool pool) {
+        this.pool = pool;
+    }
+
+    private Optional<GroupCommit> getGroupCommitStats() {
+        final TransactionManager transact = pool.getTransactionManager();
+        if (transact == null) {
+            return Optional.empty();
+        }
+        final Journal journal = transact.getJournal();
+        return journal == null ? Optional.empty() : Optional.of(journal.getGroupCommit());
+    }
+
+    @Override
+    public boolean isGroupCommit() {
+        final TransactionManager transact = pool.getTransactionManager();
+        return transact != null && transact.isGroupCommit();
+    }
+
+    @Override
+    public long getGroupCommitWindow() {
+        return getGroupCommitStats().map(GroupCommit::getWindow).orElse(0L);
+    }
+
+    @Override
+    public int getGroupCommitSize() {
+        return getGroupCommitStats().map(GroupCommit::getMaxBytes).orElse(0);
+    }
+
+    @Override
+    public long getCommits() {
+        return getGroupCommitStats().map(GroupCommit::getCommitCount).orElse(0L);
+    }
+
+    @Override
+    public long getSyncs() {
+        return getGroupCommitStats().map(GroupCommit::getSyncCount).orElse(0L);
+    }
+
+    @Override
+    public double getCommitsPerSync() {
+        return getGroupCommitStats().map(GroupCommit::getCommitsPerSync).orElse(0.0);
+    }
+
+    @Override
+    public int getMaxCommitsPerSync() {
+        return getGroupCommitStats().map(GroupCommit::getMaxCommitsPerSync).orElse(0);
+    }
+}
@@ -273,8 +273,7 @@ public class DLN extends DLNBase implements NodeId {
         if(!startsWith(other)) {
             return false;
         }
-        final int levels = getLevelCount(other.bitIndex + 2);
-        return levels == 1;
+        return bitIndex > other.bitIndex && isSingleLevel(other.bitIndex + 2);
     }
 
     @Override
@@ -289,7 +288,7 @@ public class DLN extends DLNBase implements NodeId {
                 return IS_SELF;
             }
             if (bitIndex > other.bitIndex && isLevelSeparator(other.bitIndex + 1)) {
-                if (getLevelCount(other.bitIndex + 2) == 1) {
+                if (isSingleLevel(other.bitIndex + 2)) {
                     return IS_CHILD;
                 }
                 return IS_DESCENDANT;
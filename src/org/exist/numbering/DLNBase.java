@@ -325,6 +325,31 @@ public class DLNBase {
         return count;
     }
 
+    /**
+     * Checks if the id starting at startOffset consists of a single level,
+     * i.e. does not contain a level separator. Other than
+     * <code>getLevelCount(startOffset) == 1</code>, this stops at the
+     * first level separator instead of decoding the whole id.
+     *
+     * @param startOffset the bit to start at
+     * @return true if there is exactly one level
+     */
+    public boolean isSingleLevel(final int startOffset) {
+        int bit = startOffset;
+        while (bit > -1 && bit <= bitIndex) {
+            final int units = unitsUsed(bit, bits);
+            bit += units;
+            bit += bitWidth(units);
+            if (bit >= bitIndex) {
+                break;
+            }
+            if ((bits[bit >> UNIT_SHIFT] & (1 << ((7 - bit++) & 7))) == LEVEL_SEPARATOR) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Returns the number of sub-levels in the id starting at
      * startOffset. This is required to determine where a node
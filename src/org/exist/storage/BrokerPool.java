@@ -53,8 +53,7 @@ import org.exist.security.internal.SecurityManagerImpl;
 import org.exist.storage.btree.DBException;
 import org.exist.storage.lock.DeadlockDetection;
 import org.exist.storage.lock.FileLock;
-import org.exist.storage.lock.Lock;
-import org.exist.storage.lock.ReentrantReadWriteLock;
+import org.exist.storage.lock.HierarchicalLockTable;
 import org.exist.storage.sync.Sync;
 import org.exist.storage.sync.SyncTask;
 import org.exist.storage.txn.TransactionException;
@@ -66,6 +65,7 @@ import org.exist.xmldb.ShutdownListener;
 import org.exist.xmldb.XmldbURI;
 import org.exist.xquery.PerformanceStats;
 import org.exist.xquery.XQuery;
+import org.exist.xquery.XQueryContext;
 import org.expath.pkg.repo.PackageException;
 
 import java.io.IOException;
@@ -583,6 +583,11 @@ public class BrokerPool implements Database {
      */
     private ProcessMonitor processMonitor;
 
+    /**
+     * The worker threads evaluating queries in parallel.
+     */
+    private ParallelExecutor parallelExecutor;
+
     /**
      * Global performance stats to gather function execution statistics
      * from all queries running on this database instance.
@@ -600,6 +605,11 @@ public class BrokerPool implements Database {
     //TODO : rename as collectionsCache ?
     protected CollectionCache collectionCache;
 
+    /**
+     * Intention and subtree locks on the collection hierarchy.
+     */
+    private final HierarchicalLockTable collectionLocks = new HierarchicalLockTable();
+
     /**
      * The pool in which the database instance's readers are stored.
      */
@@ -607,10 +617,6 @@ public class BrokerPool implements Database {
 
     private NodeIdFactory nodeFactory = new DLNFactory();
 
-    //TODO : is another value possible ? If no, make it static
-    // WM: no, we need one lock per database instance. Otherwise we would lock another database.
-    private Lock globalXUpdateLock = new ReentrantReadWriteLock("xupdate");
-
     private Subject serviceModeUser = null;
     private boolean inServiceMode = false;
 
@@ -832,6 +838,9 @@ public class BrokerPool implements Database {
                     xQueryPool = new XQueryPool(conf);
                     //REFACTOR : construct then... configure
                     processMonitor = new ProcessMonitor(maxShutdownWait);
+                    final Integer parallelism = (Integer) conf.getProperty(XQueryContext.PROPERTY_PARALLELISM);
+                    parallelExecutor = new ParallelExecutor(instanceName,
+                        parallelism != null ? parallelism : Runtime.getRuntime().availableProcessors(), maxBrokers);
                     xqueryStats = new PerformanceStats(this);
 
                     //REFACTOR : construct then... configure
@@ -1369,6 +1378,16 @@ public class BrokerPool implements Database {
         return collectionCache;
     }
 
+    /**
+     * Returns the lock table of the collection hierarchy, which is used
+     * by the collection locks and to lock whole subtrees.
+     *
+     * @return The lock table
+     */
+    public HierarchicalLockTable getCollectionLocks() {
+        return collectionLocks;
+    }
+
     /**
      * Returns a cache in which the database instance's may store items.
      *
@@ -1421,6 +1440,15 @@ public class BrokerPool implements Database {
         return processMonitor;
     }
 
+    /**
+     * Returns the worker threads which evaluate queries in parallel.
+     *
+     * @return The executor
+     */
+    public ParallelExecutor getParallelExecutor() {
+        return parallelExecutor;
+    }
+
     /**
      * Returns the global profiler used to gather execution statistics
      * from all XQueries running on this db instance.
@@ -1440,19 +1468,6 @@ public class BrokerPool implements Database {
         return xmlReaderPool;
     }
 
-    /**
-     * Returns the global update lock for the database instance.
-     * This lock is used by XUpdate operations to avoid that
-     * concurrent XUpdate requests modify the database until all
-     * document locks have been correctly set.
-     *
-     * @return The global lock
-     */
-    //TODO : rename as getUpdateLock ?
-    public Lock getGlobalUpdateLock() {
-        return globalXUpdateLock;
-    }
-
     /**
      * Creates an inactive broker for the database instance.
      *
@@ -1782,7 +1797,12 @@ public class BrokerPool implements Database {
     // other brokers are active when it is called. That's why we don't need to synchronize here.
     //TODO : make it protected ?
     public void sync(final DBBroker broker, final int syncEvent) {
-        broker.sync(syncEvent);
+        // a checkpoint which switches the journal needs all pages on disk
+        if (syncEvent == Sync.MAJOR_SYNC && !checkpoint && transactionManager.isFuzzyCheckpoint()) {
+            broker.sync(Sync.FUZZY_SYNC);
+        } else {
+            broker.sync(syncEvent);
+        }
 
         //TODO : strange that it is set *after* the sunc method has been called.
         try {
@@ -1899,6 +1919,10 @@ public class BrokerPool implements Database {
 
         processMonitor.stopRunningJobs();
 
+        if(parallelExecutor != null) {
+            parallelExecutor.shutdown();
+        }
+
         //Shutdown the scheduler
         scheduler.shutdown(true);
 
@@ -2051,6 +2075,7 @@ public class BrokerPool implements Database {
             collectionCacheMgr = null;
             xQueryPool = null;
             processMonitor = null;
+            parallelExecutor = null;
             collectionConfigurationManager = null;
             notificationService = null;
             indexManager = null;
@@ -26,7 +26,17 @@ import org.apache.logging.log4j.Logger;
 
 import org.exist.management.Agent;
 import org.exist.management.AgentFactory;
+import org.exist.storage.cache.ARCCache;
+import org.exist.storage.cache.BackgroundPageWriter;
+import org.exist.storage.cache.BTreeCache;
 import org.exist.storage.cache.Cache;
+import org.exist.storage.cache.Cacheable;
+import org.exist.storage.cache.ConcurrentGClockCache;
+import org.exist.storage.cache.LRUCache;
+import org.exist.storage.cache.OffHeapPageCache;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.journal.Lsn;
+import org.exist.storage.lock.Lock;
 import org.exist.util.DatabaseConfigurationException;
 
 import java.text.NumberFormat;
@@ -75,6 +85,29 @@ public class DefaultCacheManager implements CacheManager
     public static final String  SHRINK_THRESHOLD_ATTRIBUTE     		 	= "cacheShrinkThreshold";
     public static final String  SHRINK_THRESHOLD_PROPERTY      			= "db-connection.cache-shrink-threshold";
 
+    public static final String  OFF_HEAP_CACHE_SIZE_ATTRIBUTE           = "offHeapCacheSize";
+    public static final String  PROPERTY_OFF_HEAP_CACHE_SIZE            = "db-connection.off-heap-cache-size";
+
+    public static final String  BTREE_CACHE_POLICY_ATTRIBUTE            = "btreeCachePolicy";
+    public static final String  PROPERTY_BTREE_CACHE_POLICY             = "db-connection.btree-cache-policy";
+    public static final String  DATA_CACHE_POLICY_ATTRIBUTE             = "dataCachePolicy";
+    public static final String  PROPERTY_DATA_CACHE_POLICY              = "db-connection.data-cache-policy";
+
+    public static final int     DEFAULT_BACKGROUND_WRITER_INTERVAL      = 1000;
+    public static final String  BACKGROUND_WRITER_INTERVAL_ATTRIBUTE    = "backgroundWriterInterval";
+    public static final String  PROPERTY_BACKGROUND_WRITER_INTERVAL     = "db-connection.background-writer-interval";
+
+    public static final double  DEFAULT_BACKGROUND_WRITER_DIRTY_RATIO   = 0.25;
+    public static final String  BACKGROUND_WRITER_DIRTY_RATIO_ATTRIBUTE = "backgroundWriterDirtyRatio";
+    public static final String  PROPERTY_BACKGROUND_WRITER_DIRTY_RATIO  = "db-connection.background-writer-dirty-ratio";
+
+    /** The built-in replacement policy of each cache type */
+    public static final String  CACHE_POLICY_DEFAULT                    = "default";
+    /** Scan-resistant adaptive replacement, see {@link org.exist.storage.cache.ARCCache} */
+    public static final String  CACHE_POLICY_ARC                        = "arc";
+    /** GClock with lock-free lookups, see {@link org.exist.storage.cache.ConcurrentGClockCache} */
+    public static final String  CACHE_POLICY_CONCURRENT                 = "concurrent";
+
     /** Caches maintained by this class. */
     private List<Cache>         caches                          = new ArrayList<Cache>();
 
@@ -106,6 +139,17 @@ public class DefaultCacheManager implements CacheManager
 
     private String              instanceName;
 
+    /** Second level page cache in direct memory, or null if disabled. */
+    private OffHeapPageCache    offHeapCache                    = null;
+
+    private String              btreeCachePolicy                = CACHE_POLICY_DEFAULT;
+    private String              dataCachePolicy                 = CACHE_POLICY_DEFAULT;
+
+    /** Time between two rounds of the background page writers in ms; 0 disables them. */
+    private int                 backgroundWriterInterval        = DEFAULT_BACKGROUND_WRITER_INTERVAL;
+
+    private double              backgroundWriterDirtyRatio      = DEFAULT_BACKGROUND_WRITER_DIRTY_RATIO;
+
     public DefaultCacheManager( BrokerPool pool )
     {
         this.instanceName = pool.getId();
@@ -154,9 +198,123 @@ public class DefaultCacheManager implements CacheManager
         	      "; cacheShrinkThreshold: " + nf.format( shrinkThreshold ) 
         );
         
+        final String btreePolicy = (String)pool.getConfiguration().getProperty( PROPERTY_BTREE_CACHE_POLICY );
+        if( btreePolicy != null ) {
+            btreeCachePolicy = btreePolicy;
+        }
+        final String dataPolicy = (String)pool.getConfiguration().getProperty( PROPERTY_DATA_CACHE_POLICY );
+        if( dataPolicy != null ) {
+            dataCachePolicy = dataPolicy;
+        }
+
+        final int writerInterval = pool.getConfiguration().getInteger( PROPERTY_BACKGROUND_WRITER_INTERVAL );
+        if( writerInterval >= 0 ) {
+            backgroundWriterInterval = writerInterval;
+        }
+        final Double dirtyRatio = (Double)pool.getConfiguration().getProperty( PROPERTY_BACKGROUND_WRITER_DIRTY_RATIO );
+        if( dirtyRatio != null ) {
+            backgroundWriterDirtyRatio = dirtyRatio;
+        }
+
+        final int offHeapSize = pool.getConfiguration().getInteger( PROPERTY_OFF_HEAP_CACHE_SIZE );
+        if( offHeapSize > 0 ) {
+            offHeapCache = new OffHeapPageCache( offHeapSize * 1024L * 1024L, pageSize );
+            LOG.info( "Off-heap page cache: " + nf.format( offHeapSize * 1024L ) + "k; totalPages: " + nf.format( offHeapCache.getBuffers() ) );
+        }
+        
         registerMBean();
     }
 
+    /**
+     * Create a new cache of the given type, using the replacement policy configured
+     * for that type. The cache is not registered with the cache manager.
+     *
+     * @param type one of {@link CacheManager#BTREE_CACHE} or {@link CacheManager#DATA_CACHE}
+     * @param size the initial size of the cache in pages
+     * @param growthFactor the factor by which the cache grows if more memory is requested
+     * @param growthThreshold the thrashing ratio above which the cache requests more memory
+     */
+    public Cache createCache( String type, int size, double growthFactor, double growthThreshold )
+    {
+        final String policy = BTREE_CACHE.equals( type ) ? btreeCachePolicy : dataCachePolicy;
+
+        if( CACHE_POLICY_ARC.equals( policy ) ) {
+            return( new ARCCache( size, growthFactor, growthThreshold, type ) );
+        } else if( CACHE_POLICY_CONCURRENT.equals( policy ) ) {
+            return( new ConcurrentGClockCache( size, growthFactor, growthThreshold, type ) );
+        } else if( BTREE_CACHE.equals( type ) ) {
+            return( new BTreeCache( size, growthFactor, growthThreshold, type ) );
+        } else {
+            return( new LRUCache( size, growthFactor, growthThreshold, type ) );
+        }
+    }
+
+    /**
+     * Returns true if the caches created by {@link #createCache(String, int, double, double)}
+     * for the given type can be accessed by several threads at the same time.
+     *
+     * @param type one of {@link CacheManager#BTREE_CACHE} or {@link CacheManager#DATA_CACHE}
+     */
+    public boolean isConcurrent( String type )
+    {
+        final String policy = BTREE_CACHE.equals( type ) ? btreeCachePolicy : dataCachePolicy;
+        return( CACHE_POLICY_CONCURRENT.equals( policy ) );
+    }
+
+    /**
+     * Returns the second level page cache kept in direct memory.
+     *
+     * @return the off-heap page cache or null if it is not enabled
+     */
+    public OffHeapPageCache getOffHeapPageCache()
+    {
+        return( offHeapCache );
+    }
+
+    /**
+     * Create a writer which flushes dirty pages of the given cache in the background.
+     * The writer is not started.
+     *
+     * @param cache the cache to write
+     * @param lock the lock of the file the cache belongs to
+     * @param journal the journal to flush before pages are written, or null if the file is not transactional
+     *
+     * @return the writer or null if background writing is disabled
+     */
+    public BackgroundPageWriter createPageWriter( Cache cache, Lock lock, Journal journal )
+    {
+        if( ( backgroundWriterInterval <= 0 ) || ( lock == null ) ) {
+            return( null );
+        }
+        return( new BackgroundPageWriter( cache, lock, journal, backgroundWriterInterval, backgroundWriterDirtyRatio ) );
+    }
+
+
+    /**
+     * Returns the smallest LSN of all changes which are held in dirty pages of
+     * the registered caches, i.e. the position in the journal from which recovery would
+     * have to start redoing if the database crashed now.
+     *
+     * @return the LSN or {@link Lsn#LSN_INVALID} if no cached page contains journalled changes
+     */
+    public long getOldestDirtyLsn()
+    {
+        long oldest = Lsn.LSN_INVALID;
+
+        for( final Cache cache : caches ) {
+
+            for( final Cacheable item : cache.getDirtyItems() ) {
+                final long lsn = item.getFirstDirtyLsn();
+
+                if( ( lsn != Lsn.LSN_INVALID ) && ( ( oldest == Lsn.LSN_INVALID ) || ( lsn < oldest ) ) ) {
+                    oldest = lsn;
+                }
+            }
+        }
+        return( oldest );
+    }
+
+
     @Override
     public void registerCache( Cache cache )
     {
@@ -0,0 +1,186 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.dom.persistent.DefaultDocumentSet;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.MutableDocumentSet;
+import org.exist.scheduler.JobException;
+import org.exist.scheduler.JobException.JobExceptionAction;
+import org.exist.scheduler.UserJavaJob;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.util.Configuration;
+
+/**
+ * Defragments the most fragmented documents in dom.dbx in the background.
+ *
+ * Without this job, a document is only defragmented by the update which pushes
+ * its split count past the allowed fragmentation (see the xupdate section in conf.xml),
+ * and that update has to pay for the copy. The job is meant to be scheduled
+ * periodically with a lower threshold, so documents are rewritten before an update
+ * needs to do it:
+ *
+ * <pre>
+ * &lt;job type="user" name="defrag" class="org.exist.storage.DefragmentationJob" period="60000"&gt;
+ *     &lt;parameter name="threshold" value="100"/&gt;
+ *     &lt;parameter name="time-slice" value="500"/&gt;
+ * &lt;/job&gt;
+ * </pre>
+ *
+ * Documents are processed in order of decreasing split count, one transaction per
+ * document, like any other update. Every run stops once its time slice is used up;
+ * the remaining documents are handled by the next run. A document which is currently
+ * locked by another thread is skipped.
+ */
+public class DefragmentationJob extends UserJavaJob {
+
+    private final static Logger LOG = LogManager.getLogger(DefragmentationJob.class);
+
+    public final static String THRESHOLD_PROP_NAME = "threshold";
+    public final static String TIME_SLICE_PROP_NAME = "time-slice";
+
+    /** default time in milliseconds a single run may take */
+    public final static long DEFAULT_TIME_SLICE = 500;
+
+    private String name = "Defragmentation";
+    private int threshold;
+    private long timeSlice = DEFAULT_TIME_SLICE;
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void execute(final BrokerPool pool, final Map<String, ?> params) throws JobException {
+        configure(pool.getConfiguration(), params);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            defragment(broker);
+        } catch (final EXistException e) {
+            throw new JobException(JobExceptionAction.JOB_ABORT, "Defragmentation failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read the threshold and the time slice from the job parameters.
+     */
+    void configure(final Configuration config, final Map<?, ?> params) throws JobException {
+        // by default, defragment documents long before an update would do it
+        final Integer allowed = (Integer) config.getProperty(DBBroker.PROPERTY_XUPDATE_FRAGMENTATION_FACTOR);
+        threshold = allowed == null ? 50 : Math.max(1, allowed.intValue() / 2);
+        timeSlice = DEFAULT_TIME_SLICE;
+        if (params == null) {
+            return;
+        }
+        try {
+            final Object thresholdOpt = params.get(THRESHOLD_PROP_NAME);
+            if (thresholdOpt != null) {
+                threshold = Integer.parseInt(thresholdOpt.toString());
+            }
+            final Object timeSliceOpt = params.get(TIME_SLICE_PROP_NAME);
+            if (timeSliceOpt != null) {
+                timeSlice = Long.parseLong(timeSliceOpt.toString());
+            }
+        } catch (final NumberFormatException e) {
+            throw new JobException(JobExceptionAction.JOB_ABORT_THIS, "Parameters '" + THRESHOLD_PROP_NAME +
+                    "' and '" + TIME_SLICE_PROP_NAME + "' have to be integers");
+        }
+    }
+
+    /**
+     * Defragment fragmented documents until all are done or the time slice is used up.
+     *
+     * @return the number of documents defragmented
+     */
+    int defragment(final DBBroker broker) throws EXistException {
+        final long start = System.currentTimeMillis();
+        final TransactionManager transact = broker.getBrokerPool().getTransactionManager();
+
+        final List<DocumentImpl> candidates = findFragmented(broker);
+        int count = 0;
+        for (final DocumentImpl doc : candidates) {
+            if (System.currentTimeMillis() - start > timeSlice) {
+                break;
+            }
+            final Lock lock = doc.getUpdateLock();
+            if (!lock.attempt(Lock.WRITE_LOCK)) {
+                continue;
+            }
+            try (final Txn transaction = transact.beginTransaction()) {
+                broker.defragXMLResource(transaction, doc);
+                transact.commit(transaction);
+                count++;
+            } catch (final Exception e) {
+                LOG.warn("Failed to defragment document " + doc.getURI() + ": " + e.getMessage(), e);
+            } finally {
+                lock.release(Lock.WRITE_LOCK);
+            }
+        }
+        if (count > 0 || !candidates.isEmpty()) {
+            LOG.info("Defragmented " + count + " out of " + candidates.size() + " fragmented documents in " +
+                    (System.currentTimeMillis() - start) + "ms.");
+        }
+        return count;
+    }
+
+    /**
+     * @return all XML documents whose split count exceeds the threshold, most fragmented first
+     */
+    List<DocumentImpl> findFragmented(final DBBroker broker) throws EXistException {
+        final MutableDocumentSet docs = new DefaultDocumentSet();
+        try {
+            broker.getAllXMLResources(docs);
+        } catch (final PermissionDeniedException e) {
+            throw new EXistException("Failed to read the list of documents: " + e.getMessage(), e);
+        }
+        final List<DocumentImpl> fragmented = new ArrayList<>();
+        for (final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext(); ) {
+            final DocumentImpl doc = i.next();
+            if (doc.getResourceType() == DocumentImpl.XML_FILE && doc.getMetadata().getSplitCount() > threshold) {
+                fragmented.add(doc);
+            }
+        }
+        fragmented.sort((d1, d2) -> Integer.compare(d2.getMetadata().getSplitCount(), d1.getMetadata().getSplitCount()));
+        return fragmented;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+}
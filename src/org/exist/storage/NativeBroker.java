@@ -45,6 +45,7 @@ import org.exist.collections.CollectionCache;
 import org.exist.collections.CollectionConfigurationException;
 import org.exist.collections.CollectionConfigurationManager;
 import org.exist.collections.triggers.*;
+import org.exist.indexing.Index;
 import org.exist.indexing.StreamListener;
 import org.exist.indexing.StructuralIndex;
 import org.exist.numbering.NodeId;
@@ -64,9 +65,11 @@ import org.exist.storage.io.VariableByteOutputStream;
 import org.exist.storage.journal.Journal;
 import org.exist.storage.journal.LogEntryTypes;
 import org.exist.storage.journal.Loggable;
+import org.exist.storage.lock.HierarchicalLockTable;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.serializers.NativeSerializer;
 import org.exist.storage.serializers.Serializer;
+import org.exist.storage.structural.NativeStructuralIndex;
 import org.exist.storage.sync.Sync;
 import org.exist.storage.txn.TransactionException;
 import org.exist.storage.txn.TransactionManager;
@@ -1428,6 +1431,17 @@ public class NativeBroker extends DBBroker {
             }
         }
 
+        // lock the whole subtree, so nobody opens a descendant while it is being removed
+        final HierarchicalLockTable hierarchy = pool.getCollectionLocks();
+        final XmldbURI subtree = collection.getURI();
+        boolean subtreeLocked = false;
+        try {
+            hierarchy.acquire(subtree, HierarchicalLockTable.WRITE);
+            subtreeLocked = true;
+        } catch(final LockException e) {
+            LOG.debug("Could not lock the subtree of '" + subtree + "', removing it collection by collection: " + e.getMessage());
+        }
+
         try {
 
             pool.getProcessMonitor().startJob(ProcessMonitor.ACTION_REMOVE_COLLECTION, collection.getURI());
@@ -1625,6 +1639,9 @@ public class NativeBroker extends DBBroker {
             }
         } finally {
             pool.getProcessMonitor().endJob();
+            if(subtreeLocked) {
+                hierarchy.release(subtree, HierarchicalLockTable.WRITE);
+            }
         }
     }
 
@@ -2746,7 +2763,7 @@ public class NativeBroker extends DBBroker {
         // remove document metadata
         final Lock lock = collectionsDb.getLock();
         try {
-            lock.acquire(Lock.READ_LOCK);
+            lock.acquire(Lock.WRITE_LOCK);
             if(LOG.isDebugEnabled()) {
                 LOG.debug("Removing resource metadata for " + document.getDocId());
             }
@@ -2757,7 +2774,7 @@ public class NativeBroker extends DBBroker {
         } catch(final LockException e) {
             LOG.warn("Failed to acquire lock on " + FileUtils.fileName(collectionsDb.getFile()));
         } finally {
-            lock.release(Lock.READ_LOCK);
+            lock.release(Lock.WRITE_LOCK);
         }
     }
 
@@ -3521,8 +3538,22 @@ public class NativeBroker extends DBBroker {
 
         initIndexModules();
         LOG.info("Reindexing database files ...");
-        //Reindex from root collection
-        reindexCollection(null, getCollection(XmldbURI.ROOT_COLLECTION_URI), NodeProcessor.MODE_REPAIR);
+        // the indexes are empty: collect their keys and load them sorted, bottom-up
+        final Index structuralIndex = pool.getIndexManager().getIndexByName(StructuralIndex.STRUCTURAL_INDEX_ID);
+        if(structuralIndex instanceof NativeStructuralIndex) {
+            ((NativeStructuralIndex) structuralIndex).startBulkLoad();
+        }
+        valueIndex.startBulkLoad();
+        try {
+            //Reindex from root collection
+            reindexCollection(null, getCollection(XmldbURI.ROOT_COLLECTION_URI), NodeProcessor.MODE_REPAIR);
+        } finally {
+            LOG.info("Loading index files ...");
+            valueIndex.finishBulkLoad();
+            if(structuralIndex instanceof NativeStructuralIndex) {
+                ((NativeStructuralIndex) structuralIndex).finishBulkLoad();
+            }
+        }
     }
 
     @Override
@@ -3566,23 +3597,35 @@ public class NativeBroker extends DBBroker {
         if(isReadOnly()) {
             return;
         }
+        final boolean fuzzy = syncEvent == Sync.FUZZY_SYNC;
         try {
-            new DOMTransaction(this, domDb, Lock.WRITE_LOCK) {
-                @Override
-                public Object start() {
-                    try {
-                        domDb.flush();
-                    } catch(final DBException e) {
-                        LOG.warn("error while flushing dom.dbx", e);
+            // dirty pages of dom.dbx are written by the background writer between major syncs
+            if(syncEvent != Sync.MINOR_SYNC || !domDb.hasPageWriter()) {
+                new DOMTransaction(this, domDb, Lock.WRITE_LOCK) {
+                    @Override
+                    public Object start() {
+                        try {
+                            if(fuzzy) {
+                                domDb.flushUnjournalled();
+                            } else {
+                                domDb.flush();
+                            }
+                        } catch(final DBException e) {
+                            LOG.warn("error while flushing dom.dbx", e);
+                        }
+                        return null;
                     }
-                    return null;
-                }
-            }.run();
-            if(syncEvent == Sync.MAJOR_SYNC) {
+                }.run();
+            }
+            if(syncEvent == Sync.MAJOR_SYNC || fuzzy) {
                 final Lock lock = collectionsDb.getLock();
                 try {
                     lock.acquire(Lock.WRITE_LOCK);
-                    collectionsDb.flush();
+                    if(fuzzy) {
+                        collectionsDb.flushUnjournalled();
+                    } else {
+                        collectionsDb.flush();
+                    }
                 } catch(final LockException e) {
                     LOG.warn("Failed to acquire lock on " + FileUtils.fileName(collectionsDb.getFile()), e);
                 } finally {
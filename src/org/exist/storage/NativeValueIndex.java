@@ -47,10 +47,12 @@ import org.exist.indexing.IndexUtils;
 import org.exist.indexing.IndexWorker;
 import org.exist.indexing.StreamListener;
 import org.exist.numbering.NodeId;
+import org.exist.storage.btree.BTree;
 import org.exist.storage.btree.BTreeCallback;
 import org.exist.storage.btree.BTreeException;
 import org.exist.storage.btree.DBException;
 import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.KeySorter;
 import org.exist.storage.btree.Value;
 import org.exist.storage.index.BFile;
 import org.exist.storage.io.VariableByteArrayInput;
@@ -143,6 +145,9 @@ public class NativeValueIndex implements ContentLoadingObserver {
     //TODO : reconsider this. Case sensitivity have nothing to do with atomic values -pb
     protected boolean caseSensitive = true;
 
+    /** The entries collected while the index is rebuilt from scratch, see {@link #startBulkLoad()}. */
+    private KeySorter bulkEntries = null;
+
     public NativeValueIndex(DBBroker broker, byte id, Path dataDir,
         Configuration config ) throws DBException {
         this.broker = broker;
@@ -445,7 +450,14 @@ public class NativeValueIndex implements ContentLoadingObserver {
                         v = new QNameValue( collectionId, qnk.qname, qnk.value, broker.getBrokerPool().getSymbols() );
                     }
 
-                    if( dbValues.append( v, os.data() ) == BFile.UNKNOWN_ADDRESS ) {
+                    if( bulkEntries != null ) {
+                        // the index is rebuilt from scratch: keys are sorted and loaded later
+                        if( v.getLength() > dbValues.getFileHeader().getMaxKeySize() ) {
+                            LOG.warn( "Key length exceeds page size! Skipping key ..." );
+                        } else {
+                            bulkEntries.add( v.getData(), os.toByteArray() );
+                        }
+                    } else if( dbValues.append( v, os.data() ) == BFile.UNKNOWN_ADDRESS ) {
                         LOG.warn( "Could not append index data for key '" + key + "'" );
                         //TODO : throw exception ?
                     }
@@ -476,6 +488,74 @@ public class NativeValueIndex implements ContentLoadingObserver {
         }
     }
 
+    /**
+     * Start rebuilding the empty index from scratch: until {@link #finishBulkLoad()} is called,
+     * {@link #flush()} collects and sorts the entries instead of appending them to the index
+     * one by one. They can not be found by queries before {@link #finishBulkLoad()}.
+     */
+    public void startBulkLoad()
+    {
+        bulkEntries = new KeySorter();
+    }
+
+    /**
+     * Fill the index bottom-up from the entries collected since {@link #startBulkLoad()}.
+     * The node ids of all documents with the same key are stored as one value, as if they
+     * had been appended. If the index is not empty, the entries are appended one by one.
+     */
+    public void finishBulkLoad()
+    {
+        final KeySorter entries = bulkEntries;
+        bulkEntries = null;
+        if( entries == null ) {
+            return;
+        }
+        final Lock lock = dbValues.getLock();
+        try {
+            lock.acquire( Lock.WRITE_LOCK );
+            LOG.info( "Loading " + entries.getCount() + " entries into '" + FileUtils.fileName( dbValues.getFile() ) + "'" );
+            BTree.BulkLoader loader = null;
+            try {
+                loader = dbValues.bulkLoad( BTree.DEFAULT_FILL_FACTOR );
+            }
+            catch( final BTreeException e ) {
+                LOG.warn( "Appending entries one by one: " + e.getMessage() );
+            }
+            final BTree.BulkLoader bulkLoader = loader;
+            entries.sort( ( key, values ) -> {
+                int len = 0;
+                for( final byte[] value : values ) {
+                    len += value.length;
+                }
+                final byte[] data = new byte[len];
+                int offset = 0;
+                for( final byte[] value : values ) {
+                    System.arraycopy( value, 0, data, offset, value.length );
+                    offset += value.length;
+                }
+                if( bulkLoader != null ) {
+                    dbValues.bulkPut( bulkLoader, key, new FixedByteArray( data ) );
+                } else {
+                    dbValues.append( null, key, new FixedByteArray( data ) );
+                }
+            } );
+            if( bulkLoader != null ) {
+                bulkLoader.finish();
+            }
+            dbValues.flush();
+        }
+        catch( final LockException e ) {
+            LOG.warn( "Failed to acquire lock for '" + FileUtils.fileName( dbValues.getFile() ) + "'", e );
+        }
+        catch( final IOException | DBException e ) {
+            LOG.error( "Failed to load value index: " + e.getMessage(), e );
+        }
+        finally {
+            entries.close();
+            lock.release( Lock.WRITE_LOCK );
+        }
+    }
+
 
     /* (non-Javadoc)
      * @see org.exist.storage.IndexGenerator#remove()
@@ -0,0 +1,107 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The worker threads of a database instance which evaluate parts of queries in
+ * parallel, see {@link org.exist.xquery.pragmas.ParallelPragma}.
+ *
+ * The number of threads is fixed and shared by all queries. Every worker holds at
+ * most one broker while it runs a task, so the threads are limited to half of the
+ * brokers of the instance: parallel evaluation never takes all brokers away from
+ * other requests. Tasks wait in a queue while all threads are busy.
+ */
+public class ParallelExecutor {
+
+    private final static Logger LOG = LogManager.getLogger(ParallelExecutor.class);
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    /**
+     * @param instanceName the name of the database instance
+     * @param parallelism the configured number of threads evaluating an expression
+     * @param maxBrokers the maximum number of brokers of the database instance
+     */
+    public ParallelExecutor(final String instanceName, final int parallelism, final int maxBrokers) {
+        this.threads = Math.max(1, Math.min(parallelism, maxBrokers / 2));
+        // threads are started on demand and stay until the database shuts down
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), new WorkerThreadFactory(instanceName));
+        LOG.info("database instance '" + instanceName + "' will use " + threads + " threads for parallel evaluation");
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Run the task in a worker thread.
+     *
+     * @param task the task
+     * @return false if the task was not accepted, because the database is shutting down
+     */
+    public boolean submit(final Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (final RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop the worker threads. Tasks which did not start yet are discarded.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+
+        private final String instanceName;
+        private final AtomicInteger id = new AtomicInteger(0);
+
+        WorkerThreadFactory(final String instanceName) {
+            this.instanceName = instanceName;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(r, "exist-xquery-parallel-" + instanceName + "-" + id.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -44,6 +44,11 @@ public abstract class BTAbstractLoggable extends AbstractLoggable {
         this.broker = (NativeBroker) broker;
     }
 
+    @Override
+    public byte getFileId() {
+        return fileId;
+    }
+
     protected BTree getStorage() {
         return broker.getStorage(fileId);
     }
@@ -86,6 +86,7 @@ import org.exist.storage.journal.LogException;
 import org.exist.storage.journal.Loggable;
 import org.exist.storage.journal.Lsn;
 import org.exist.storage.lock.Lock;
+import org.exist.util.LockException;
 import org.exist.storage.txn.TransactionException;
 import org.exist.storage.txn.Txn;
 import org.exist.util.ByteConversion;
@@ -97,6 +98,7 @@ import java.io.*;
 import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.util.*;
+import java.util.concurrent.locks.StampedLock;
 import java.util.stream.Collectors;
 
 /**
@@ -110,6 +112,16 @@ import java.util.stream.Collectors;
  *  
  *  Both, branch and leaf nodes are represented by the inner class 
  *  {@link org.exist.storage.btree.BTree.BTreeNode}.
+ *
+ *  If the node cache supports concurrent lookups ({@link ConcurrentGClockCache}),
+ *  {@link #findValue(Value)} and {@link #query(IndexQuery, BTreeCallback)} use
+ *  optimistic latch coupling: every node carries a version latch, which writers
+ *  hold while they modify the node. Readers walk down the tree without taking any
+ *  lock and validate the version of each node after reading from it. If a node
+ *  changed in between, is not in the cache, or validation fails repeatedly, the
+ *  read falls back to the normal path under the file lock ({@link #getLock()}).
+ *  Writers still have to hold the file lock, so there is at most one writer
+ *  at a time.
  */
 public class BTree extends Paged implements Lockable {
 
@@ -124,6 +136,16 @@ public class BTree extends Paged implements Lockable {
 
     protected final static int MIN_SPACE_PER_KEY = 32;
 
+    /** The maximum number of leading bytes a key can share with its predecessor in a page */
+    private final static int MAX_PREFIX_LEN = 0xFF;
+
+    /**
+     * Flag set in the prefix size of branch pages which store their keys front-compressed,
+     * like leaf pages. Branch pages written by older versions store their keys in full
+     * and are converted when they are written next.
+     */
+    private final static int COMPRESSED_KEYS = 0x8000;
+
     /** Log entry type for an insert value operation */
     public final static byte LOG_INSERT_VALUE = 0x20;
     /** Log entry type for creation of a new BTree node */
@@ -166,11 +188,42 @@ public class BTree extends Paged implements Lockable {
 
     private double splitFactor = -1;
 
+    /** default fraction of a page filled by {@link #bulkLoad(double)} and {@link #rebuild()} */
+    public final static double DEFAULT_FILL_FACTOR = 0.9;
+
+    /** number of optimistic attempts before a read falls back to the file lock */
+    private final static int OPTIMISTIC_READ_ATTEMPTS = 3;
+
+    /** set if the node cache allows optimistic reads, null otherwise */
+    private ConcurrentGClockCache concurrentCache = null;
+
+    /**
+     * Guards changes to the tree as a whole (see {@link #rebuild()}),
+     * which are not covered by the latches of the single nodes
+     */
+    private final StampedLock treeLatch = new StampedLock();
+
+    /** number of stripes in {@link #loadLatches}, a power of 2 */
+    private final static int LOAD_LATCH_STRIPES = 64;
+
+    /**
+     * Serialize loading a page into the cache, striped by page number, so that
+     * readers sharing the file lock don't load the same page twice, while pages
+     * on different stripes are read in parallel. See {@link #getLoadLatch(long)}.
+     */
+    private final Object[] loadLatches = new Object[LOAD_LATCH_STRIPES];
+
+    /** writers flushing the caches of this file in the background */
+    private final List<BackgroundPageWriter> pageWriters = new ArrayList<>();
+
     protected BTree(BrokerPool pool, byte fileId, boolean transactional,
             DefaultCacheManager cacheManager) throws DBException {
         super(pool);
         this.cacheManager = cacheManager;
         this.fileId = fileId;
+        for (int i = 0; i < LOAD_LATCH_STRIPES; i++) {
+            loadLatches[i] = new Object();
+        }
         fileHeader = (BTreeFileHeader) getFileHeader();
         fileHeader.setPageCount(0);
         fileHeader.setTotalCount(0);
@@ -209,8 +262,9 @@ public class BTree extends Paged implements Lockable {
         return true;
     }
 
-    public boolean open(short expectedVersion) throws DBException {
-        if (super.open(expectedVersion)) {
+    @Override
+    public boolean open(short expectedVersion, short legacyVersion) throws DBException {
+        if (super.open(expectedVersion, legacyVersion)) {
             initCache();
             return true;
         } else {
@@ -219,6 +273,7 @@ public class BTree extends Paged implements Lockable {
     }
 
     public void closeAndRemove() {
+        stopPageWriters();
         super.closeAndRemove();
         cacheManager.deregisterCache(cache);
     }
@@ -233,10 +288,65 @@ public class BTree extends Paged implements Lockable {
     }
 
     protected void initCache() {
-        cache = new BTreeCache(cacheManager.getDefaultInitialSize(), 1.5,
-            0, CacheManager.BTREE_CACHE);
+        cache = cacheManager.createCache(CacheManager.BTREE_CACHE,
+            cacheManager.getDefaultInitialSize(), 1.5, 0);
+        concurrentCache = cache instanceof ConcurrentGClockCache ? (ConcurrentGClockCache) cache : null;
         cache.setFileName(FileUtils.fileName(getFile()));
         cacheManager.registerCache(cache);
+        startPageWriter(cache);
+    }
+
+    /**
+     * Start writing dirty pages of the given cache in the background,
+     * unless this is disabled or the file has no lock.
+     *
+     * @param pageCache a cache holding pages of this file
+     */
+    protected void startPageWriter(Cache pageCache) {
+        final BackgroundPageWriter writer = cacheManager.createPageWriter(pageCache, getLock(),
+            isTransactional ? logManager : null);
+        if (writer != null) {
+            pageWriters.add(writer);
+            writer.start();
+        }
+    }
+
+    protected void stopPageWriters() {
+        for (final BackgroundPageWriter writer : pageWriters) {
+            writer.stop();
+        }
+        pageWriters.clear();
+    }
+
+    /**
+     * @return true if dirty pages of this file are written by background writers
+     */
+    public boolean hasPageWriter() {
+        return !pageWriters.isEmpty();
+    }
+
+    /**
+     * Write all dirty pages which contain changes not recorded in the journal,
+     * and the file header. Pages changed only by journalled operations stay in
+     * the cache: they are covered by the redo LSN of a fuzzy checkpoint.
+     *
+     * @return true if anything was written
+     * @throws DBException
+     */
+    public boolean flushUnjournalled() throws DBException {
+        boolean flushed = flushUnjournalled(cache);
+        flushed = flushed | super.flush();
+        return flushed;
+    }
+
+    protected boolean flushUnjournalled(Cache pageCache) {
+        boolean flushed = false;
+        for (final Cacheable item : pageCache.getDirtyItems()) {
+            if (!isTransactional || item.getFirstDirtyLsn() == Lsn.LSN_INVALID) {
+                flushed = flushed | item.sync(false);
+            }
+        }
+        return flushed;
     }
 
     protected void setSplitFactor(double factor) {
@@ -317,23 +427,28 @@ public class BTree extends Paged implements Lockable {
         long next = page.pageHeader.getNextPage();
         while (next != Page.NO_PAGE) {
             final BTreeNode nextPage = getBTreeNode(next);
-            for (int i = 0; i < nextPage.nKeys; i++) {
-                boolean test = query.testValue(nextPage.keys[i]);
-                if (query.getOperator() != IndexQuery.NEQ && !test)
-                    {return;}
-                if (test) {
-                    if (isTransactional && transaction != null && nextPage.pageHeader.getStatus() == LEAF) {
-                        final RemoveValueLoggable log = new RemoveValueLoggable(transaction, 
-                            fileId, nextPage.page.getPageNum(), i, nextPage.keys[i], nextPage.ptrs[i]);
-                        writeToLog(log, nextPage);
+            final long stamp = nextPage.latch.writeLock();
+            try {
+                for (int i = 0; i < nextPage.nKeys; i++) {
+                    boolean test = query.testValue(nextPage.keys[i]);
+                    if (query.getOperator() != IndexQuery.NEQ && !test)
+                        {return;}
+                    if (test) {
+                        if (isTransactional && transaction != null && nextPage.pageHeader.getStatus() == LEAF) {
+                            final RemoveValueLoggable log = new RemoveValueLoggable(transaction, 
+                                fileId, nextPage.page.getPageNum(), i, nextPage.keys[i], nextPage.ptrs[i]);
+                            writeToLog(log, nextPage);
+                        }
+                        if (callback != null)
+                            {callback.indexInfo(nextPage.keys[i], nextPage.ptrs[i]);}
+                        nextPage.removeKey(i);
+                        nextPage.removePointer(i);
+                        nextPage.recalculateDataLen();
+                        --i;
                     }
-                    if (callback != null)
-                        {callback.indexInfo(nextPage.keys[i], nextPage.ptrs[i]);}
-                    nextPage.removeKey(i);
-                    nextPage.removePointer(i);
-                    nextPage.recalculateDataLen();
-                    --i;
                 }
+            } finally {
+                nextPage.latch.unlockWrite(stamp);
             }
             next = nextPage.pageHeader.getNextPage();
         }
@@ -349,6 +464,20 @@ public class BTree extends Paged implements Lockable {
      *@exception  BTreeException  Description of the Exception
      */
     public long findValue(Value value) throws IOException, BTreeException {
+        if (concurrentCache != null) {
+            final long[] result = new long[1];
+            for (int i = 0; i < OPTIMISTIC_READ_ATTEMPTS; i++) {
+                if (findValueOptimistic(value, result)) {
+                    return result[0];
+                }
+            }
+            final Lock lock = acquireReadLock();
+            try {
+                return getRootNode().findValue(value);
+            } finally {
+                releaseReadLock(lock);
+            }
+        }
         return getRootNode().findValue(value);
     }
 
@@ -371,6 +500,19 @@ public class BTree extends Paged implements Lockable {
             data2[data2.length - 1] += 1;
             query = new IndexQuery(query.getOperator(), val1, new Value(data2));
         }
+        if (concurrentCache != null) {
+            if (query != null && canQueryOptimistic(query.getOperator())) {
+                queryOptimistic(query, callback);
+                return;
+            }
+            final Lock lock = acquireReadLock();
+            try {
+                getRootNode().query(query, callback);
+            } finally {
+                releaseReadLock(lock);
+            }
+            return;
+        }
         getRootNode().query(query, callback);
     }
 
@@ -411,6 +553,282 @@ public class BTree extends Paged implements Lockable {
         }
     }
 
+    /* -------------------------------------------------------------------------
+     * Optimistic reads
+     * ---------------------------------------------------------------------- */
+
+    /**
+     * Acquire the file lock for the fallback of an optimistic read.
+     * The lock is reentrant, so this is a no-op if the caller holds it already.
+     *
+     * @return the lock to release or null if there's no lock
+     */
+    private Lock acquireReadLock() throws BTreeException {
+        final Lock lock = getLock();
+        if (lock == null) {
+            return null;
+        }
+        try {
+            lock.acquire(Lock.READ_LOCK);
+        } catch (final LockException e) {
+            throw new BTreeException("Failed to acquire lock on " + FileUtils.fileName(getFile()) + ": " + e.getMessage());
+        }
+        return lock;
+    }
+
+    private void releaseReadLock(Lock lock) {
+        if (lock != null) {
+            lock.release(Lock.READ_LOCK);
+        }
+    }
+
+    /**
+     * Get a node from the cache without loading it. Returns null if
+     * the node is not cached.
+     */
+    private BTreeNode getCachedNode(long pageNum) {
+        return (BTreeNode) concurrentCache.getAndReference(pageNum, 1);
+    }
+
+    /**
+     * Walk down from the root to the leaf which would contain the given key,
+     * validating each step. Returns the leaf and stores the stamp to validate the
+     * leaf against into <code>stamp[0]</code>, or returns null if the optimistic
+     * read failed.
+     */
+    private BTreeNode findLeafOptimistic(Value key, long[] stamp) {
+        final long rootPage = fileHeader.getRootPage();
+        BTreeNode node = getCachedNode(rootPage);
+        if (node == null) {
+            return null;
+        }
+        long nodeStamp = node.latch.tryOptimisticRead();
+        // the root could have been split before we read its version
+        if (nodeStamp == 0 || fileHeader.getRootPage() != rootPage) {
+            return null;
+        }
+        while (node.pageHeader.getStatus() == BRANCH) {
+            int idx = node.searchKey(key);
+            idx = idx < 0 ? - (idx + 1) : idx + 1;
+            final long childPage = node.ptrs[idx];
+            if (!node.validate(nodeStamp)) {
+                return null;
+            }
+            final BTreeNode child = getCachedNode(childPage);
+            if (child == null) {
+                return null;
+            }
+            final long childStamp = child.latch.tryOptimisticRead();
+            // make sure the parent did not change before we got the version of the child
+            if (childStamp == 0 || !node.validate(nodeStamp)) {
+                return null;
+            }
+            node = child;
+            nodeStamp = childStamp;
+        }
+        stamp[0] = nodeStamp;
+        return node;
+    }
+
+    /**
+     * Optimistic variant of {@link BTreeNode#findValue(Value)}.
+     *
+     * @return false if the read failed and needs to be repeated
+     */
+    private boolean findValueOptimistic(Value value, long[] result) {
+        final long treeStamp = treeLatch.tryOptimisticRead();
+        if (treeStamp == 0) {
+            return false;
+        }
+        try {
+            final long[] stamp = new long[1];
+            final BTreeNode leaf = findLeafOptimistic(value, stamp);
+            if (leaf == null) {
+                return false;
+            }
+            final int idx = leaf.searchKey(value);
+            final long pointer = idx < 0 ? KEY_NOT_FOUND : leaf.ptrs[idx];
+            if (!leaf.validate(stamp[0]) || !treeLatch.validate(treeStamp)) {
+                return false;
+            }
+            result[0] = pointer;
+            return true;
+        } catch (final RuntimeException e) {
+            // we've seen a node while it was modified
+            return false;
+        }
+    }
+
+    /**
+     * Returns true for the query operators which locate a single leaf and
+     * continue along the chain of leaves, which are the operators handled by
+     * {@link #queryOptimistic(IndexQuery, BTreeCallback)}.
+     */
+    private static boolean canQueryOptimistic(int op) {
+        return op == IndexQuery.EQ || op == IndexQuery.GT || op == IndexQuery.GEQ
+            || op == IndexQuery.RANGE || op == IndexQuery.TRUNC_RIGHT;
+    }
+
+    /**
+     * Optimistic variant of {@link BTreeNode#query(IndexQuery, BTreeCallback)}.
+     * The keys matching in a leaf are copied and only reported to the callback
+     * once the leaf has been validated, so a retry never reports a key twice.
+     * If validation fails after some leaves have been reported, the scan
+     * continues at the next leaf under the file lock. Leaves are never merged
+     * and a split always moves keys into a new right sibling, so the next page
+     * recorded in a validated leaf remains the correct place to continue.
+     */
+    private void queryOptimistic(IndexQuery query, BTreeCallback callback)
+            throws IOException, BTreeException, TerminatedException {
+        final int op = query.getOperator();
+        final Value[] qvals = query.getValues();
+        final List<Value> matchingKeys = new ArrayList<>();
+        final long[] matchingPtrs = new long[1];
+        final long[] stamp = new long[1];
+        for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS; attempt++) {
+            final long treeStamp = treeLatch.tryOptimisticRead();
+            if (treeStamp == 0) {
+                continue;
+            }
+            long[] ptrs = matchingPtrs;
+            final long next;
+            boolean scanNext;
+            matchingKeys.clear();
+            try {
+                final BTreeNode leaf = findLeafOptimistic(qvals[0], stamp);
+                if (leaf == null) {
+                    continue;
+                }
+                if (ptrs.length < leaf.nPtrs) {
+                    ptrs = new long[leaf.nPtrs];
+                }
+                // same logic as BTreeNode.query for a leaf node
+                int leftIdx = leaf.searchKey(qvals[0]);
+                switch (op) {
+                    case IndexQuery.EQ:
+                        if (leftIdx >= 0) {
+                            ptrs[0] = leaf.ptrs[leftIdx];
+                            matchingKeys.add(leaf.keys[leftIdx]);
+                        }
+                        scanNext = false;
+                        break;
+                    case IndexQuery.GT:
+                    case IndexQuery.GEQ:
+                        if (leftIdx < 0) {
+                            leftIdx = - (leftIdx + 1);
+                        }
+                        for (int i = leftIdx; i < leaf.nPtrs; i++) {
+                            if (query.testValue(leaf.keys[i])) {
+                                ptrs[matchingKeys.size()] = leaf.ptrs[i];
+                                matchingKeys.add(leaf.keys[i]);
+                            }
+                        }
+                        scanNext = true;
+                        break;
+                    default:
+                        int rightIdx = leaf.searchKey(qvals[qvals.length - 1]);
+                        if (leftIdx < 0) {
+                            leftIdx = - (leftIdx + 1);
+                        }
+                        if (rightIdx < 0) {
+                            rightIdx = - (rightIdx + 1);
+                        }
+                        for (int i = leftIdx; i < rightIdx && i < leaf.nPtrs; i++) {
+                            if (query.testValue(leaf.keys[i])) {
+                                ptrs[matchingKeys.size()] = leaf.ptrs[i];
+                                matchingKeys.add(leaf.keys[i]);
+                            }
+                        }
+                        scanNext = rightIdx >= leaf.nPtrs;
+                        break;
+                }
+                next = leaf.pageHeader.getNextPage();
+                if (!leaf.validate(stamp[0]) || !treeLatch.validate(treeStamp)) {
+                    continue;
+                }
+            } catch (final RuntimeException e) {
+                // we've seen a node while it was modified
+                continue;
+            }
+            for (int i = 0; i < matchingKeys.size(); i++) {
+                callback.indexInfo(matchingKeys.get(i), ptrs[i]);
+            }
+            if (scanNext && next != Page.NO_PAGE) {
+                scanSequentialOptimistic(next, query, callback);
+            }
+            return;
+        }
+        final Lock lock = acquireReadLock();
+        try {
+            getRootNode().query(query, callback);
+        } finally {
+            releaseReadLock(lock);
+        }
+    }
+
+    /**
+     * Optimistic variant of {@link #scanSequential(BTreeNode, IndexQuery, Value, BTreeCallback)},
+     * starting at the given page.
+     */
+    private void scanSequentialOptimistic(long pageNum, IndexQuery query, BTreeCallback callback)
+            throws BTreeException, TerminatedException {
+        final List<Value> matchingKeys = new ArrayList<>();
+        long[] ptrs = new long[16];
+        while (pageNum != Page.NO_PAGE) {
+            boolean done = false;
+            long next = Page.NO_PAGE;
+            boolean valid = false;
+            matchingKeys.clear();
+            for (int attempt = 0; attempt < OPTIMISTIC_READ_ATTEMPTS && !valid; attempt++) {
+                final long treeStamp = treeLatch.tryOptimisticRead();
+                final BTreeNode page = getCachedNode(pageNum);
+                if (treeStamp == 0 || page == null) {
+                    break;
+                }
+                final long stamp = page.latch.tryOptimisticRead();
+                if (stamp == 0) {
+                    continue;
+                }
+                matchingKeys.clear();
+                done = false;
+                try {
+                    if (ptrs.length < page.nKeys) {
+                        ptrs = new long[page.nKeys];
+                    }
+                    for (int i = 0; i < page.nKeys; i++) {
+                        if (!query.testValue(page.keys[i])) {
+                            done = true;
+                            break;
+                        }
+                        ptrs[matchingKeys.size()] = page.ptrs[i];
+                        matchingKeys.add(page.keys[i]);
+                    }
+                    next = page.pageHeader.getNextPage();
+                    valid = page.validate(stamp) && treeLatch.validate(treeStamp);
+                } catch (final RuntimeException e) {
+                    // we've seen a node while it was modified
+                }
+            }
+            if (!valid) {
+                // continue at this page under the file lock
+                final Lock lock = acquireReadLock();
+                try {
+                    scanSequential(getBTreeNode(pageNum), query, null, callback);
+                } finally {
+                    releaseReadLock(lock);
+                }
+                return;
+            }
+            for (int i = 0; i < matchingKeys.size(); i++) {
+                callback.indexInfo(matchingKeys.get(i), ptrs[i]);
+            }
+            if (done) {
+                return;
+            }
+            pageNum = next;
+        }
+    }
+
     /**
      * Create a new node with the given status and parent.
      * 
@@ -450,9 +868,7 @@ public class BTree extends Paged implements Lockable {
         try {
             BTreeNode node = (BTreeNode) cache.get(pageNum);
             if (node == null) {
-                final Page page = getPage(pageNum);
-                node = new BTreeNode(page, false);
-                node.read();
+                return loadBTreeNode(pageNum, 0);
             }
             final int increment = node.pageHeader.getStatus() == BRANCH ? 2 : 1;
             cache.add(node, increment);
@@ -463,6 +879,41 @@ public class BTree extends Paged implements Lockable {
         }
     }
 
+    /**
+     * Read a node which was not found in the cache and add it to the cache,
+     * unless another thread did so in the meantime.
+     *
+     * @param pageNum the page of the node
+     * @param increment the reference count to add to the node, 0 to use the default for its type
+     */
+    private BTreeNode loadBTreeNode(long pageNum, int increment) throws IOException {
+        synchronized (getLoadLatch(pageNum)) {
+            BTreeNode node = (BTreeNode) cache.get(pageNum);
+            if (node == null) {
+                final Page page = getPage(pageNum);
+                node = new BTreeNode(page, false);
+                node.read();
+            }
+            if (increment == 0) {
+                increment = node.pageHeader.getStatus() == BRANCH ? 2 : 1;
+            }
+            cache.add(node, increment);
+            return node;
+        }
+    }
+
+    /**
+     * Returns the monitor to hold while loading the given page into one of the
+     * caches of this file. Needed by readers which share the file lock, which is
+     * the case for {@link org.exist.storage.index.BFile} if its caches are concurrent.
+     *
+     * @param pageNum the page number
+     * @return the monitor of the stripe the page belongs to
+     */
+    protected final Object getLoadLatch(long pageNum) {
+        return loadLatches[(int) (pageNum & (LOAD_LATCH_STRIPES - 1))];
+    }
+
     /**
      * Set the root node of the tree.
      * 
@@ -493,11 +944,10 @@ public class BTree extends Paged implements Lockable {
      */
     protected BTreeNode getRootNode() {
         try {
-            BTreeNode node = (BTreeNode) cache.get(fileHeader.getRootPage());
+            final long rootPage = fileHeader.getRootPage();
+            final BTreeNode node = (BTreeNode) cache.get(rootPage);
             if (node == null) {
-                final Page page = getPage(fileHeader.getRootPage());
-                node = new BTreeNode(page, false);
-                node.read();
+                return loadBTreeNode(rootPage, 2);
             }
             cache.add(node, 2);
             return node;
@@ -522,7 +972,7 @@ public class BTree extends Paged implements Lockable {
     public TreeMetrics treeStatistics() throws IOException {
         final TreeMetrics metrics = new TreeMetrics(FileUtils.fileName(getFile()));
         final BTreeNode root = getRootNode();
-        root.treeStatistics(metrics);
+        root.treeStatistics(metrics, 1);
         return metrics;
     }
 
@@ -540,6 +990,7 @@ public class BTree extends Paged implements Lockable {
      * @see org.exist.storage.btree.Paged#close()
      */
 	public boolean close() throws DBException {
+        stopPageWriters();
         if (!isReadOnly()) {
             flush();
         }
@@ -672,73 +1123,207 @@ public class BTree extends Paged implements Lockable {
      * @throws DBException
      */
     public void rebuild() throws TerminatedException, IOException, DBException {
+        final long stamp = treeLatch.writeLock();
+        try {
+            rebuildTree();
+        } finally {
+            treeLatch.unlockWrite(stamp);
+        }
+    }
+
+    private void rebuildTree() throws TerminatedException, IOException, DBException {
         TreeInfo info  = scanTree(true);
         if (info.leafPages == 1) {
             BTreeNode root = getBTreeNode(info.firstPage);
             setRootNode(root);
             cache.add(root);
         } else {
-            // create a new root node
-            final BTreeNode root = createBTreeNode(null, BRANCH, null, false);
-            setRootNode(root);
-            // insert a pointer to the first page into the root
-            BTreeNode node = getBTreeNode(info.firstPage);
-            root.insertPointer(info.firstPage, 0);
-            cache.add(root);
-            node.setParent(root);
-            node.saved = false;
-            cache.add(node);
-
-            // scan through chain of pages and add them to the tree
-            long rightPageNum = node.pageHeader.getNextPage();
-            while (rightPageNum != Page.NO_PAGE) {
-
-                node = getBTreeNode(rightPageNum);
-
-                rightPageNum = node.pageHeader.getNextPage();
-
-                // promote first key of page to parent
-                if (node.nKeys < 1) {
-    //                throw new IOException("No keys found in page " + node.page.getPageNum());
-                    continue;
-                }
-                final Value key = node.keys[0];
-                final BTreeNode parent = findParent(key);
-                if (parent == null) {
-                    throw new IOException("Parent is null for page " + node.page.getPageNum());
-                }
-                if (parent.pageHeader.getStatus() != BRANCH) {
-                    throw new IOException("Not a branch page: " + parent.page.getPageNum());
+            // build the branch levels bottom-up from the chain of leaf pages
+            final BulkLoader loader = new BulkLoader(DEFAULT_FILL_FACTOR, false);
+            long pageNum = info.firstPage;
+            Value lastKey = null;
+            boolean first = true;
+            while (pageNum != Page.NO_PAGE) {
+                final BTreeNode node = getBTreeNode(pageNum);
+                pageNum = node.pageHeader.getNextPage();
+                if (first || node.nKeys > 0) {
+                    final Value lowKey;
+                    if (node.nKeys == 0) {
+                        lowKey = null;
+                    } else if (lastKey == null) {
+                        lowKey = node.keys[0];
+                    } else {
+                        lowKey = lastKey.getSeparator(node.keys[0]);
+                    }
+                    loader.addChild(1, node, lowKey);
+                    if (node.nKeys > 0) {
+                        lastKey = node.keys[node.nKeys - 1];
+                    }
+                    first = false;
                 }
-
-                parent.promoteValue(null, key, node);
             }
+            loader.finish();
         }
     }
 
     /**
-     * Walk the tree to find the parent page to which key should
-     * be promoted.
+     * Returns a {@link BulkLoader} to fill the tree from a sorted stream of keys.
+     * The tree has to be empty.
      *
-     * @param key
-     * @return
-     * @throws IOException
+     * @param fillFactor the fraction of each page to fill, between 0.5 and 1.0.
+     * Use values below 1.0 if further keys will be inserted between the loaded keys.
+     * @return the bulk loader
+     * @throws BTreeException if the tree is not empty
      */
-    private BTreeNode findParent(Value key) throws IOException {
-        BTreeNode node = getRootNode();
-        BTreeNode last = node;
-        while (node.pageHeader.getStatus() != LEAF) {
-            last = node;
-            try {
-                int idx = node.searchKey(key);
-                idx = idx < 0 ? - (idx + 1) : idx + 1;
-                node = node.getChildNode(idx);
-            } catch (Exception e) {
-                e.printStackTrace();
-                throw new IOException("Error while scanning page " + node.page.getPageNum());
+    public BulkLoader bulkLoad(double fillFactor) throws BTreeException {
+        if (fillFactor < 0.5 || fillFactor > 1.0) {
+            throw new IllegalArgumentException("fill factor must be between 0.5 and 1.0: " + fillFactor);
+        }
+        return new BulkLoader(fillFactor, true);
+    }
+
+    /**
+     * Builds a tree bottom-up from keys passed in ascending order: leaf pages are
+     * filled sequentially up to the fill factor and linked to each other, and whenever
+     * a page is full, its lowest key is added to the node on the level above, which
+     * is filled in the same way. Every page is written once and no page is ever split,
+     * compared to a random descent and lots of splits if the keys are inserted
+     * one by one with {@link #addValue(Value, long)}.
+     *
+     * Bulk loading is not journalled. It is meant to be used to create an index from
+     * scratch, with the caller holding the write lock on the file, and the file being
+     * flushed after {@link #finish()}.
+     */
+    public class BulkLoader {
+
+        /** the node currently filled on each level; level 0 are the leaves */
+        private final List<BTreeNode> nodes = new ArrayList<>();
+        /** the lowest key in the subtree of each node in {@link #nodes} */
+        private final List<Value> lowKeys = new ArrayList<>();
+
+        private final int maxDataLen;
+        private Value lastKey = null;
+
+        /** stamp of the tree latch, held until {@link #finish()} when loading leaves */
+        private long stamp = 0;
+
+        private BulkLoader(double fillFactor, boolean loadLeaves) throws BTreeException {
+            this.maxDataLen = (int) (fileHeader.getWorkSize() * fillFactor);
+            if (loadLeaves) {
+                // nodes are filled without taking their latches: keep optimistic readers away
+                stamp = treeLatch.writeLock();
+                // start with the empty root page
+                final BTreeNode root = getRootNode();
+                if (root.pageHeader.getStatus() != LEAF || root.nKeys > 0) {
+                    treeLatch.unlockWrite(stamp);
+                    throw new BTreeException("Bulk load requires an empty tree: " + FileUtils.fileName(getFile()));
+                }
+                root.allowUnload = false;
+                nodes.add(root);
+            } else {
+                nodes.add(null);
+            }
+            lowKeys.add(null);
+        }
+
+        /**
+         * Add the next key. Keys have to be passed in strictly ascending order.
+         *
+         * @param key the key
+         * @param pointer the pointer to associate with the key
+         */
+        public void add(Value key, long pointer) throws IOException, BTreeException {
+            if (lastKey != null && key.compareTo(lastKey) <= 0) {
+                throw new BTreeException("Keys must be bulk loaded in ascending order: " + key + " after " + lastKey);
+            }
+            BTreeNode leaf = nodes.get(0);
+            if (leaf.nKeys == 0) {
+                lowKeys.set(0, key);
+            }
+            appendKey(leaf, key, pointer);
+            if (leaf.nKeys > 1 && leaf.getDataLen() > maxDataLen) {
+                // the page is full: move the key into a new page
+                removeLastKey(leaf);
+                final BTreeNode next = createBTreeNode(null, LEAF, null, false);
+                leaf.pageHeader.setNextPage(next.page.getPageNum());
+                addChild(1, leaf, lowKeys.get(0));
+                next.allowUnload = false;
+                nodes.set(0, next);
+                lowKeys.set(0, lastKey.getSeparator(key));
+                appendKey(next, key, pointer);
+            }
+            lastKey = key;
+        }
+
+        /**
+         * Complete the nodes on all levels and make the top-most node the new root.
+         */
+        public void finish() throws IOException, BTreeException {
+            int level = nodes.get(0) == null ? 1 : 0;
+            // adding a node to the level above may create another level
+            while (level < nodes.size() - 1) {
+                addChild(level + 1, nodes.get(level), lowKeys.get(level));
+                level++;
+            }
+            final BTreeNode root = nodes.get(level);
+            root.allowUnload = true;
+            root.setParent(null);
+            cache.add(root);
+            setRootNode(root);
+            if (stamp != 0) {
+                treeLatch.unlockWrite(stamp);
+                stamp = 0;
+            }
+        }
+
+        /**
+         * Add a completed node as child to the node currently filled on the given level.
+         */
+        private void addChild(int level, BTreeNode child, Value lowKey) throws IOException, BTreeException {
+            if (level == nodes.size()) {
+                nodes.add(null);
+                lowKeys.add(null);
+            }
+            BTreeNode parent = nodes.get(level);
+            if (parent == null) {
+                parent = newBranch(level, lowKey);
+            } else {
+                parent.insertKey(lowKey, parent.nKeys);
+                parent.insertPointer(child.page.getPageNum(), parent.nPtrs);
+                if (parent.nKeys > 1 && parent.recalculateDataLen() > maxDataLen) {
+                    // the node is full: complete it and add the child to a new node
+                    removeLastKey(parent);
+                    addChild(level + 1, parent, lowKeys.get(level));
+                    parent = newBranch(level, lowKey);
+                }
             }
+            if (parent.nPtrs == 0) {
+                parent.insertPointer(child.page.getPageNum(), 0);
+            }
+            child.allowUnload = true;
+            child.setParent(parent);
+            cache.add(child);
+        }
+
+        private BTreeNode newBranch(int level, Value lowKey) {
+            final BTreeNode branch = createBTreeNode(null, BRANCH, null, false);
+            branch.allowUnload = false;
+            nodes.set(level, branch);
+            lowKeys.set(level, lowKey);
+            return branch;
+        }
+
+        private void appendKey(BTreeNode node, Value key, long pointer) {
+            node.insertKey(key, node.nKeys);
+            node.insertPointer(pointer, node.nPtrs);
+            node.adjustDataLen(node.nKeys - 1);
+        }
+
+        private void removeLastKey(BTreeNode node) {
+            node.removeKey(node.nKeys - 1);
+            node.removePointer(node.nPtrs - 1);
+            node.recalculateDataLen();
         }
-        return last;
     }
 
     /* -------------------------------------------------------------------------
@@ -941,8 +1526,17 @@ public class BTree extends Paged implements Lockable {
         /** the computed raw data size required by this node */
         private int currentDataLen = -1;
 
+        /** true if this is a branch page read from disk with uncompressed keys */
+        private boolean legacyFormat = false;
+
         private boolean allowUnload = true;
 
+        /**
+         * Version latch for optimistic readers. Writers hold the write lock
+         * while they modify the keys, pointers or page links of the node.
+         */
+        private final StampedLock latch = new StampedLock();
+
         public BTreeNode(Page page, boolean newPage) {
             this.page = page;
             pageHeader = (BTreePageHeader) page.getPageHeader();
@@ -1027,6 +1621,16 @@ public class BTree extends Paged implements Lockable {
             return pageHeader.getStatus() == BRANCH;
         }
 
+        /**
+         * Check if the node has not been modified since the given stamp was
+         * obtained from {@link #latch}, and if it is still the cached instance of
+         * the page. If the node has been evicted, changes might have been applied
+         * to another instance loaded later.
+         */
+        private boolean validate(long stamp) {
+            return latch.validate(stamp) && concurrentCache.isCached(this);
+        }
+
         /**
          * @see org.exist.storage.cache.Cacheable#sync(boolean syncJournal)
          */
@@ -1065,6 +1669,11 @@ public class BTree extends Paged implements Lockable {
             return !saved;
         }
 
+        @Override
+        public long getFirstDirtyLsn() {
+            return page.getPageHeader().getFirstDirtyLsn();
+        }
+
         /**
          * Set the keys of this node.
          * 
@@ -1110,18 +1719,11 @@ public class BTree extends Paged implements Lockable {
             }
             if (pageHeader.getStatus() == BRANCH)
                 {currentDataLen += prefix.getLength() + 2;}
-            if (pageHeader.getStatus() == LEAF)
+            // one byte for the prefix length of every key but the first
+            if (nKeys > 0)
                 {currentDataLen += nKeys - 1;}
             for (int i = 0; i < nKeys; i++) {
-                if (pageHeader.getStatus() == LEAF && i > 0) {
-                    // if this is a leaf page, we use prefix compression to store the keys,
-                    // so subtract the size of the prefix
-                    int prefix = keys[i].commonPrefix(keys[i - 1]);
-                    if (prefix < 0 || prefix > Byte.MAX_VALUE)
-                        {prefix = 0;}
-                    currentDataLen += keys[i].getLength() - prefix;
-                } else
-                    {currentDataLen += keys[i].getLength();}
+                currentDataLen += getStoredKeyLen(i);
             }
             return currentDataLen;
         }
@@ -1136,9 +1738,8 @@ public class BTree extends Paged implements Lockable {
                 recalculateDataLen();
                 return;
             }
-            if (pageHeader.getStatus() == LEAF && idx > 0) {
-                // if this is a leaf page, we use prefix compression to store the keys,
-                // so subtract the size of the prefix
+            if (idx > 0) {
+                // keys are stored with prefix compression, so subtract the size of the prefix
                 int prefix;
                 if (idx + 1< nKeys) {
                     // recalculate the prefix length for the following value
@@ -1153,7 +1754,8 @@ public class BTree extends Paged implements Lockable {
                 currentDataLen++; // add one byte for the prefix length
             } else {
                 currentDataLen += keys[idx].getLength();
-                if (pageHeader.getStatus() == LEAF) {
+                if (nKeys > 1) {
+                    // the previous first key is now compressed and needs a prefix length
                     currentDataLen++;
                 }
             }
@@ -1164,11 +1766,16 @@ public class BTree extends Paged implements Lockable {
         }
 
         private int calculatePrefixLen(int idx0, int idx1) {
-            int prefix;
-            prefix = keys[idx0].commonPrefix(keys[idx1]);
-            if (prefix < 0 || prefix > Byte.MAX_VALUE)
-                {prefix = 0;}
-            return prefix;
+            return Math.min(keys[idx0].commonPrefix(keys[idx1]), MAX_PREFIX_LEN);
+        }
+
+        /**
+         * Returns the number of bytes needed to store the key at the given index,
+         * not counting the prefix length: all keys but the first are stored without
+         * the leading bytes they share with the previous key.
+         */
+        private int getStoredKeyLen(int idx) {
+            return idx == 0 ? keys[0].getLength() : keys[idx].getLength() - calculatePrefixLen(idx, idx - 1);
         }
 
         /**
@@ -1184,15 +1791,7 @@ public class BTree extends Paged implements Lockable {
             int currentLen = 0;
             int pivot = nKeys - 1;
             for (int i = 0; i < nKeys - 1; i++) {
-                if (pageHeader.getStatus() == LEAF && i > 0) {
-                    // if this is a leaf page, we use prefix compression to store the keys,
-                    // so subtract the size of the prefix
-                    int prefix = keys[i].commonPrefix(keys[i - 1]);
-                    if (prefix < 0 || prefix > Byte.MAX_VALUE)
-                        prefix = 0;
-                    currentLen += keys[i].getLength() - prefix;
-                } else
-                    currentLen += keys[i].getLength();
+                currentLen += getStoredKeyLen(i);
                 if (currentLen > totalLen / 2 || i + 1 == preferred) {
                     pivot = currentLen > fileHeader.getWorkSize() ? i : i + 1;
                     break;
@@ -1204,16 +1803,7 @@ public class BTree extends Paged implements Lockable {
         private int getKeyDataLen() {
             int totalLen = 0;
             for (int i = 0; i < nKeys; i++) {
-                if (pageHeader.getStatus() == LEAF && i > 0) {
-                    // if this is a leaf page, we use prefix compression to store the keys,
-                    // so subtract the size of the prefix
-                    int prefix = keys[i].commonPrefix(keys[i - 1]);
-                    if (prefix < 0 || prefix > Byte.MAX_VALUE)
-                        prefix = 0;
-                    totalLen += keys[i].getLength() - prefix;
-                } else {
-                    totalLen += keys[i].getLength();
-                }
+                totalLen += getStoredKeyLen(i);
             }
             return totalLen;
         }
@@ -1234,10 +1824,14 @@ public class BTree extends Paged implements Lockable {
             final short keyLen = fileHeader.getFixedKeyLen();
             short valSize = keyLen;
             int p = 0;
+            boolean compressed = pageHeader.getStatus() == LEAF;
             // it this is a branch node, read the common prefix
             if (pageHeader.getStatus() == BRANCH) {
-                short prefixSize = ByteConversion.byteToShort(data, p);
+                int prefixSize = ByteConversion.byteToShort(data, p) & 0xFFFF;
                 p += 2;
+                compressed = (prefixSize & COMPRESSED_KEYS) != 0;
+                prefixSize &= ~COMPRESSED_KEYS;
+                legacyFormat = !compressed;
                 if (prefixSize == 0) {
                     prefix = Value.EMPTY_VALUE;
                 } else {
@@ -1252,8 +1846,8 @@ public class BTree extends Paged implements Lockable {
                     valSize = ByteConversion.byteToShort(data, p);
                     p += 2;
                 }
-                if (pageHeader.getStatus() == LEAF && i > 0) {
-                    // for leaf pages, we use prefix compression to increase the number of
+                if (compressed && i > 0) {
+                    // we use prefix compression to increase the number of
                     // keys that can be stored on one page. Each key is stored as follows:
                     // [valSize, prefixLen, value], where prefixLen specifies the number of
                     // leading bytes the key has in common with the previous key.
@@ -1299,7 +1893,7 @@ public class BTree extends Paged implements Lockable {
                 {throw new RuntimeException("nkeys: " + nKeys + " valueCount: " + pageHeader.getValueCount());}
             // if this is a branch node, write out the common prefix
             if (pageHeader.getStatus() == BRANCH) {
-                ByteConversion.shortToByte((short) prefix.getLength(), temp, p);
+                ByteConversion.shortToByte((short) (prefix.getLength() | COMPRESSED_KEYS), temp, p);
                 p += 2;
                 if (prefix.getLength() > 0) {
                     System.arraycopy(prefix.data(), prefix.start(), temp, p, prefix.getLength());
@@ -1312,14 +1906,12 @@ public class BTree extends Paged implements Lockable {
                     ByteConversion.shortToByte((short) keys[i].getLength(), temp, p);
                     p += 2;
                 }
-                if (pageHeader.getStatus() == LEAF && i > 0) {
-                    // for leaf pages, we use prefix compression to increase the number of
+                if (i > 0) {
+                    // we use prefix compression to increase the number of
                     // keys that can be stored on one page. Each key is stored as follows:
                     // [valSize, prefixLen, value], where prefixLen specifies the number of
                     // leading bytes the key has in common with the previous key.
-                    int prefixLen = keys[i].commonPrefix(keys[i - 1]); // determine the common prefix
-                    if (prefixLen < 0 || prefixLen > Byte.MAX_VALUE)
-                        {prefixLen = 0;}
+                    final int prefixLen = calculatePrefixLen(i, i - 1);
                     // store the length of the prefix
                     temp[p++] = (byte) prefixLen;
                     // copy the remaining bytes, starting at prefixLen
@@ -1341,6 +1933,7 @@ public class BTree extends Paged implements Lockable {
             }
             writeValue(page, new Value(temp));
             saved = true;
+            legacyFormat = false;
         }
 
         /**
@@ -1370,6 +1963,7 @@ public class BTree extends Paged implements Lockable {
                 if (idx < 0)
                     {return KEY_NOT_FOUND;}
                 else {
+                    final long stamp = latch.writeLock();
                     try {
                         allowUnload = false;
                         if (transaction != null && isTransactional) {
@@ -1384,6 +1978,7 @@ public class BTree extends Paged implements Lockable {
                         return oldPtr;
                     } finally {
                         allowUnload = true;
+                        latch.unlockWrite(stamp);
                     }
                 }
             default :
@@ -1404,6 +1999,7 @@ public class BTree extends Paged implements Lockable {
                 idx = idx < 0 ? - (idx + 1) : idx + 1;
                 return getChildNode(idx).addValue(transaction, value, pointer);
             case LEAF :
+                final long stamp = latch.writeLock();
                 try {
                     allowUnload = false;
                     if (idx >= 0) {
@@ -1442,6 +2038,7 @@ public class BTree extends Paged implements Lockable {
                     }
                 } finally {
                     allowUnload = true;
+                    latch.unlockWrite(stamp);
                 }
                 return -1;
             default :
@@ -1455,24 +2052,42 @@ public class BTree extends Paged implements Lockable {
          */
         private void promoteValue(Txn transaction, Value value, BTreeNode rightNode)
                 throws IOException, BTreeException {
-            int idx = searchKey(value);
-            idx = idx < 0 ? -( idx + 1) : idx + 1;
-            insertKey(value, idx);
-            insertPointer(rightNode.page.getPageNum(), idx + 1);
-            rightNode.setParent(this);
-            rightNode.saved = false;
-            cache.add(rightNode);
-            this.saved = false;
-            cache.add(this);
-            final boolean split = recalculateDataLen() > fileHeader.getWorkSize();
-            if (split)
-                {split(transaction);}
+            final long stamp = latch.writeLock();
+            try {
+                int idx = searchKey(value);
+                idx = idx < 0 ? -( idx + 1) : idx + 1;
+                insertKey(value, idx);
+                insertPointer(rightNode.page.getPageNum(), idx + 1);
+                rightNode.setParent(this);
+                rightNode.saved = false;
+                cache.add(rightNode);
+                this.saved = false;
+                cache.add(this);
+                final boolean split = recalculateDataLen() > fileHeader.getWorkSize();
+                if (split)
+                    {split(transaction);}
+            } finally {
+                latch.unlockWrite(stamp);
+            }
         }
 
         private void split(Txn transaction) throws IOException, BTreeException {
             split(transaction, -1);
         }
 
+        /**
+         * Latch the node and split it. Used for the right node created by
+         * {@link #split(Txn, int)}, which may already be reachable by readers.
+         */
+        private void splitLatched(Txn transaction) throws IOException, BTreeException {
+            final long stamp = latch.writeLock();
+            try {
+                split(transaction);
+            } finally {
+                latch.unlockWrite(stamp);
+            }
+        }
+
         /**
          * Split the node.
          *
@@ -1515,7 +2130,9 @@ public class BTree extends Paged implements Lockable {
                     System.arraycopy(ptrs, 0, leftPtrs, 0, leftPtrs.length);
                     System.arraycopy(keys, leftVals.length, rightVals, 0, rightVals.length);
                     System.arraycopy(ptrs, leftPtrs.length, rightPtrs, 0, rightPtrs.length);
-                    separator = keys[leftVals.length];
+                    // suffix truncation: promote the shortest prefix of the first key on the right
+                    // which is still greater than the last key on the left
+                    separator = keys[leftVals.length - 1].getSeparator(keys[leftVals.length]);
                     break;
                 default :
                     throw new BTreeException("Invalid Page Type In split");
@@ -1571,7 +2188,7 @@ public class BTree extends Paged implements Lockable {
                 setRootNode(parent);
                 if(rNode.mustSplit()) {
                     LOG.debug(FileUtils.fileName(getFile()) + " right node requires second split: " + rNode.getDataLen());
-                    rNode.split(transaction);
+                    rNode.splitLatched(transaction);
                 }
                 cache.add(rNode);
             } else {
@@ -1604,7 +2221,7 @@ public class BTree extends Paged implements Lockable {
                 rNode.recalculateDataLen();
                 if(rNode.mustSplit()) {
                     LOG.debug(FileUtils.fileName(getFile()) + " right node requires second split: " + rNode.getDataLen());
-                    rNode.split(transaction);
+                    rNode.splitLatched(transaction);
                 }
                 cache.add(rNode);
                 parent.promoteValue(transaction, separator, rNode);
@@ -1662,14 +2279,31 @@ public class BTree extends Paged implements Lockable {
             return writer.toString();
         }
 
-        private void treeStatistics(TreeMetrics metrics) throws IOException {
-            metrics.addPage(pageHeader.getStatus());
+        private void treeStatistics(TreeMetrics metrics, int depth) throws IOException {
+            metrics.addPage(pageHeader.getStatus(), depth, nKeys, getDataLen(), getUncompressedDataLen(), legacyFormat);
             if (pageHeader.getStatus() == BRANCH) {
                 for (int i = 0; i < nPtrs; i++) {
                     final BTreeNode child = getChildNode(i);
-                    child.treeStatistics(metrics);
+                    child.treeStatistics(metrics, depth + 1);
+                }
+            }
+        }
+
+        /**
+         * Returns the size this node would need if every key was stored in full.
+         */
+        private int getUncompressedDataLen() {
+            int len = ptrs == null ? 0 : nPtrs * 8;
+            if (fileHeader.getFixedKeyLen() < 0) {
+                len += 2 * nKeys;
+            }
+            for (int i = 0; i < nKeys; i++) {
+                len += keys[i].getLength();
+                if (pageHeader.getStatus() == BRANCH) {
+                    len += prefix.getLength();
                 }
             }
+            return len;
         }
 
         /**
@@ -2103,6 +2737,7 @@ public class BTree extends Paged implements Lockable {
                     }
                     break;
                 case LEAF :
+                    final long stamp = latch.writeLock();
                     try {
                         allowUnload = false;
                         switch (query.getOperator()) {
@@ -2277,6 +2912,7 @@ public class BTree extends Paged implements Lockable {
                         }
                     } finally {
                         allowUnload = true;
+                        latch.unlockWrite(stamp);
                     }
                     break;
                 default :
@@ -2284,30 +2920,15 @@ public class BTree extends Paged implements Lockable {
                 }
             } else {
                 // No Query - Just Walk The Tree
-                switch (pageHeader.getStatus()) {
-                case BRANCH :
-                    for (int i = 0; i < nPtrs; i++) {
-                        if (isTransactional && transaction != null) {
-                            final RemoveValueLoggable log = 
-                                new RemoveValueLoggable(transaction, 
-                                    fileId, page.getPageNum(), i, keys[i], ptrs[i]);
-                            writeToLog(log, this);
-                        }
-                        if (callback != null)
-                            {callback.indexInfo(keys[i], ptrs[i]);}
-                        removeKey(i);
-                        removePointer(i);
-                        recalculateDataLen();
-                        --i;
-                    }
-                    break;
-                case LEAF :
-                    for (int i = 0; i < nKeys; i++) {
-                        if (query.getOperator() != IndexQuery.TRUNC_LEFT
-                                || query.testValue(keys[i])) {
+                final long stamp = latch.writeLock();
+                try {
+                    switch (pageHeader.getStatus()) {
+                    case BRANCH :
+                        for (int i = 0; i < nPtrs; i++) {
                             if (isTransactional && transaction != null) {
-                                final RemoveValueLoggable log = new RemoveValueLoggable(transaction, 
-                                    fileId, page.getPageNum(), i, keys[i], ptrs[i]);
+                                final RemoveValueLoggable log = 
+                                    new RemoveValueLoggable(transaction, 
+                                        fileId, page.getPageNum(), i, keys[i], ptrs[i]);
                                 writeToLog(log, this);
                             }
                             if (callback != null)
@@ -2317,10 +2938,30 @@ public class BTree extends Paged implements Lockable {
                             recalculateDataLen();
                             --i;
                         }
+                        break;
+                    case LEAF :
+                        for (int i = 0; i < nKeys; i++) {
+                            if (query.getOperator() != IndexQuery.TRUNC_LEFT
+                                    || query.testValue(keys[i])) {
+                                if (isTransactional && transaction != null) {
+                                    final RemoveValueLoggable log = new RemoveValueLoggable(transaction, 
+                                        fileId, page.getPageNum(), i, keys[i], ptrs[i]);
+                                    writeToLog(log, this);
+                                }
+                                if (callback != null)
+                                    {callback.indexInfo(keys[i], ptrs[i]);}
+                                removeKey(i);
+                                removePointer(i);
+                                recalculateDataLen();
+                                --i;
+                            }
+                        }
+                        break;
+                    default :
+                        throw new BTreeException("Invalid Page Type In query");
                     }
-                    break;
-                default :
-                    throw new BTreeException("Invalid Page Type In query");
+                } finally {
+                    latch.unlockWrite(stamp);
                 }
             }
         }
@@ -2542,7 +3183,7 @@ public class BTree extends Paged implements Lockable {
 
     protected class BTreeFileHeader extends FileHeader {
 
-        private long rootPage = 0;
+        private volatile long rootPage = 0;
         private short fixedLen = -1;
 
         public BTreeFileHeader() {
@@ -0,0 +1,257 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.storage.btree;
+
+import org.exist.util.io.TemporaryFileManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects key/value entries in any order and returns them sorted by key, to
+ * fill an empty index with a {@link BTree.BulkLoader} when it is rebuilt from scratch.
+ *
+ * Entries are kept in memory up to a limit. Whenever the limit is reached, they are
+ * sorted and written to a temporary file as a sorted run. {@link #sort(Receiver)} merges
+ * the runs. Entries with equal keys are passed together, in the order they were added.
+ */
+public class KeySorter {
+
+    /** default number of bytes of entries kept in memory before a run is written */
+    public final static int DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
+
+    /** estimated memory used by an entry in addition to its key and value */
+    private final static int ENTRY_OVERHEAD = 64;
+
+    private final static Comparator<Entry> COMPARATOR = (e1, e2) -> compareKeys(e1.key, e2.key);
+
+    /**
+     * Receives the sorted entries.
+     */
+    public interface Receiver {
+
+        /**
+         * @param key the key
+         * @param values the values added for the key, in the order they were added
+         */
+        void entry(Value key, List<byte[]> values) throws IOException, BTreeException;
+    }
+
+    private final int memoryLimit;
+    private List<Entry> entries = new ArrayList<>();
+    private long memory = 0;
+    private final List<Path> runs = new ArrayList<>();
+    private long count = 0;
+
+    public KeySorter() {
+        this(DEFAULT_MEMORY_LIMIT);
+    }
+
+    /**
+     * @param memoryLimit the number of bytes of entries kept in memory before
+     * they are written to a temporary file
+     */
+    public KeySorter(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    /**
+     * Add an entry.
+     *
+     * @param key the key, compared like a {@link Value}
+     * @param value the value
+     * @throws IOException if a run could not be written
+     */
+    public void add(byte[] key, byte[] value) throws IOException {
+        entries.add(new Entry(key, value));
+        count++;
+        memory += key.length + value.length + ENTRY_OVERHEAD;
+        if (memory > memoryLimit) {
+            writeRun();
+        }
+    }
+
+    /**
+     * @return the number of entries added
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Pass all entries to the receiver, in ascending order of their keys, and
+     * delete the temporary files.
+     *
+     * @param receiver the receiver
+     */
+    public void sort(Receiver receiver) throws IOException, BTreeException {
+        try {
+            if (runs.isEmpty()) {
+                Collections.sort(entries, COMPARATOR);
+                final List<byte[]> values = new ArrayList<>();
+                for (int i = 0; i < entries.size(); ) {
+                    final byte[] key = entries.get(i).key;
+                    values.clear();
+                    for (; i < entries.size() && compareKeys(key, entries.get(i).key) == 0; i++) {
+                        values.add(entries.get(i).value);
+                    }
+                    receiver.entry(new Value(key), values);
+                }
+            } else {
+                writeRun();
+                merge(receiver);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Discard all entries and delete the temporary files.
+     */
+    public void close() {
+        entries = new ArrayList<>();
+        memory = 0;
+        for (final Path run : runs) {
+            TemporaryFileManager.getInstance().returnTemporaryFile(run);
+        }
+        runs.clear();
+    }
+
+    private void writeRun() throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        // the sort is stable: entries with equal keys stay in the order they were added
+        Collections.sort(entries, COMPARATOR);
+        final Path run = TemporaryFileManager.getInstance().getTemporaryFile();
+        runs.add(run);
+        try (final DataOutputStream os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (final Entry entry : entries) {
+                os.writeInt(entry.key.length);
+                os.write(entry.key);
+                os.writeInt(entry.value.length);
+                os.write(entry.value);
+            }
+        }
+        entries = new ArrayList<>();
+        memory = 0;
+    }
+
+    private void merge(Receiver receiver) throws IOException, BTreeException {
+        // runs were written in the order the entries were added: take equal keys from earlier runs first
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size(), (r1, r2) -> {
+            final int cmp = compareKeys(r1.entry.key, r2.entry.key);
+            return cmp != 0 ? cmp : Integer.compare(r1.run, r2.run);
+        });
+        final List<RunReader> readers = new ArrayList<>(runs.size());
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                final RunReader reader = new RunReader(runs.get(i), i);
+                readers.add(reader);
+                if (reader.next()) {
+                    queue.add(reader);
+                }
+            }
+            final List<byte[]> values = new ArrayList<>();
+            while (!queue.isEmpty()) {
+                final byte[] key = queue.peek().entry.key;
+                values.clear();
+                while (!queue.isEmpty() && compareKeys(key, queue.peek().entry.key) == 0) {
+                    final RunReader reader = queue.poll();
+                    values.add(reader.entry.value);
+                    if (reader.next()) {
+                        queue.add(reader);
+                    }
+                }
+                receiver.entry(new Value(key), values);
+            }
+        } finally {
+            for (final RunReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Compare two keys in the same way as {@link Value#compareTo(Value)}.
+     */
+    private static int compareKeys(byte[] k1, byte[] k2) {
+        final int stop = Math.min(k1.length, k2.length);
+        for (int i = 0; i < stop; i++) {
+            if (k1[i] != k2[i]) {
+                return (k1[i] & 0xFF) - (k2[i] & 0xFF);
+            }
+        }
+        return k1.length - k2.length;
+    }
+
+    private final static class Entry {
+        final byte[] key;
+        final byte[] value;
+
+        Entry(byte[] key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    private final static class RunReader {
+        final int run;
+        final DataInputStream is;
+        Entry entry = null;
+
+        RunReader(Path path, int run) throws IOException {
+            this.run = run;
+            this.is = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+        }
+
+        boolean next() throws IOException {
+            final int keyLen;
+            try {
+                keyLen = is.readInt();
+            } catch (final EOFException e) {
+                entry = null;
+                return false;
+            }
+            final byte[] key = new byte[keyLen];
+            is.readFully(key);
+            final byte[] value = new byte[is.readInt()];
+            is.readFully(value);
+            entry = new Entry(key, value);
+            return true;
+        }
+
+        void close() throws IOException {
+            is.close();
+        }
+    }
+}
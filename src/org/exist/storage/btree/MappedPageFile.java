@@ -0,0 +1,199 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.btree;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped access to the pages of a {@link Paged} file.
+ *
+ * The file is mapped in fixed-size segments, which are created lazily
+ * once the file has grown past the end of a segment. Segment sizes are a
+ * multiple of the page size, so a page never straddles two segments.
+ * Accesses which fall outside the mapped area (e.g. pages appended at the
+ * end of the file) are served through positional channel I/O, which
+ * grows the file as usual. The file is never extended just for the sake of
+ * mapping it.
+ *
+ * Reads and writes go to the same OS page cache as {@link java.io.RandomAccessFile}
+ * based I/O, so both can be mixed on the same file.
+ */
+public final class MappedPageFile {
+
+    private final static Logger LOG = LogManager.getLogger(MappedPageFile.class);
+
+    public final static int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final long segmentSize;
+
+    private MappedByteBuffer[] segments = new MappedByteBuffer[16];
+    private long length;
+
+    public MappedPageFile(final FileChannel channel, final boolean readOnly, final int pageSize) throws IOException {
+        this(channel, readOnly, pageSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public MappedPageFile(final FileChannel channel, final boolean readOnly, final int pageSize, final int segmentSize) throws IOException {
+        this.channel = channel;
+        this.mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+        this.segmentSize = Math.max(1, segmentSize / pageSize) * (long) pageSize;
+        this.length = channel.size();
+    }
+
+    /**
+     * Read <code>len</code> bytes at the given file offset into <code>buf</code>.
+     * Bytes beyond the end of the file are left untouched.
+     *
+     * @return the number of bytes read or -1 if offset is beyond the end of the file
+     */
+    public int read(final long offset, final byte[] buf, final int off, final int len) throws IOException {
+        final ByteBuffer segment = segmentFor(offset, len);
+        if (segment != null) {
+            segment.position((int) (offset % segmentSize));
+            segment.get(buf, off, len);
+            return len;
+        }
+        final ByteBuffer dst = ByteBuffer.wrap(buf, off, len);
+        long pos = offset;
+        int read = 0;
+        while (dst.hasRemaining()) {
+            final int n = channel.read(dst, pos);
+            if (n < 0) {
+                return read == 0 ? -1 : read;
+            }
+            pos += n;
+            read += n;
+        }
+        return read;
+    }
+
+    public int read(final long offset, final byte[] buf) throws IOException {
+        return read(offset, buf, 0, buf.length);
+    }
+
+    /**
+     * Write <code>len</code> bytes from <code>buf</code> at the given file offset.
+     */
+    public void write(final long offset, final byte[] buf, final int off, final int len) throws IOException {
+        final ByteBuffer segment = segmentFor(offset, len);
+        if (segment != null) {
+            segment.position((int) (offset % segmentSize));
+            segment.put(buf, off, len);
+            return;
+        }
+        final ByteBuffer src = ByteBuffer.wrap(buf, off, len);
+        long pos = offset;
+        while (src.hasRemaining()) {
+            pos += channel.write(src, pos);
+        }
+        synchronized (this) {
+            if (pos > length) {
+                length = pos;
+            }
+        }
+    }
+
+    public void write(final long offset, final byte[] buf) throws IOException {
+        write(offset, buf, 0, buf.length);
+    }
+
+    /**
+     * Flush modified segments to the storage device.
+     */
+    public synchronized void force() {
+        for (final MappedByteBuffer segment : segments) {
+            if (segment != null) {
+                segment.force();
+            }
+        }
+    }
+
+    /**
+     * Release all mappings. The underlying channel is not closed.
+     */
+    public synchronized void close() {
+        for (int i = 0; i < segments.length; i++) {
+            if (segments[i] != null) {
+                unmap(segments[i]);
+                segments[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Returns a private view on the segment containing the requested range
+     * or null if the range is not (yet) mappable.
+     */
+    private ByteBuffer segmentFor(final long offset, final int len) throws IOException {
+        final long idx = offset / segmentSize;
+        if ((offset % segmentSize) + len > segmentSize || idx > Integer.MAX_VALUE) {
+            return null;
+        }
+        final MappedByteBuffer segment;
+        synchronized (this) {
+            final long end = (idx + 1) * segmentSize;
+            if (end > length) {
+                return null;
+            }
+            if (idx >= segments.length) {
+                segments = Arrays.copyOf(segments, Math.max((int) idx + 1, segments.length * 2));
+            }
+            if (segments[(int) idx] == null) {
+                segments[(int) idx] = channel.map(mode, idx * segmentSize, segmentSize);
+            }
+            segment = segments[(int) idx];
+        }
+        return segment.duplicate();
+    }
+
+    /**
+     * Best-effort release of the mapping. Java 8 has no public API for this,
+     * so we fall back to the buffer's cleaner if it is accessible and otherwise
+     * leave it to the garbage collector.
+     */
+    private static void unmap(final MappedByteBuffer buffer) {
+        try {
+            final Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            final Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                final Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (final Exception | LinkageError e) {
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Unable to unmap segment, leaving it to the garbage collector: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -74,14 +74,18 @@ package org.exist.storage.btree;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.DefaultCacheManager;
+import org.exist.storage.cache.OffHeapPageCache;
 import org.exist.storage.journal.Lsn;
 import org.exist.util.ByteConversion;
+import org.exist.util.Configuration;
 import org.exist.util.FileUtils;
 import org.exist.xquery.Constants;
 
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.channels.NonWritableChannelException;
@@ -127,19 +131,33 @@ public abstract class Paged {
 
     protected static int PAGE_SIZE = 4096;
 
+    public static final String PAGE_IO_ATTRIBUTE = "pageIO";
+    public static final String PROPERTY_PAGE_IO = "db-connection.page-io";
+    /** Read and write pages through {@link RandomAccessFile} (the default) */
+    public static final String PAGE_IO_FILE = "file";
+    /** Serve page reads and writes from a memory mapping of the file, see {@link MappedPageFile} */
+    public static final String PAGE_IO_MMAP = "mmap";
+
     private RandomAccessFile raf;
+    private MappedPageFile mappedFile = null;
+    private final boolean useMappedIO;
+    private final OffHeapPageCache offHeapCache;
+    private int offHeapFileId = -1;
     private Path file;
     private FileHeader fileHeader;
     private boolean readOnly = false;
     private boolean fileIsNew = false;
 
+    /** buffer for page writes, which are serialized on it */
     private byte[] tempPageData = null;
-    private byte[] tempHeaderData = null;
 	
     public Paged(BrokerPool pool) {
         fileHeader = createFileHeader(pool.getPageSize());
         tempPageData = new byte[fileHeader.pageSize];
-        tempHeaderData = new byte[fileHeader.pageHeaderSize];
+        final Configuration config = pool.getConfiguration();
+        useMappedIO = config != null && PAGE_IO_MMAP.equals(config.getProperty(PROPERTY_PAGE_IO));
+        final DefaultCacheManager cacheManager = pool.getCacheManager();
+        offHeapCache = cacheManager == null ? null : cacheManager.getOffHeapPageCache();
     }
 
     public abstract short getFileVersion();
@@ -164,6 +182,13 @@ public abstract class Paged {
      */
     public boolean close() throws DBException {
         try {
+            if (mappedFile != null) {
+                mappedFile.close();
+                mappedFile = null;
+            }
+            if (offHeapCache != null) {
+                offHeapCache.removeFile(offHeapFileId);
+            }
             raf.close();
         } catch (final IOException e) {
             throw new DBException("an error occurred while closing database file: " + e.getMessage());
@@ -260,6 +285,13 @@ public abstract class Paged {
      */
     public void closeAndRemove() {
         try {
+            if (mappedFile != null) {
+                mappedFile.close();
+                mappedFile = null;
+            }
+            if (offHeapCache != null) {
+                offHeapCache.removeFile(offHeapFileId);
+            }
             raf.close();
         } catch (final IOException e) {
             //TODO : forward the exception ? -pb
@@ -335,9 +367,29 @@ public abstract class Paged {
     }
 
     public boolean open(short expectedVersion) throws DBException {
+        return open(expectedVersion, expectedVersion);
+    }
+
+    /**
+     * Open the file, accepting files written in an older format which can still
+     * be read. The version stored in the header of such a file is upgraded, so the
+     * file cannot be opened by older versions any more.
+     *
+     * @param expectedVersion the current file format version
+     * @param legacyVersion the oldest file format version which can be migrated
+     * @return true if the file exists and was opened
+     * @throws DBException if the file has an incompatible format
+     */
+    public boolean open(short expectedVersion, short legacyVersion) throws DBException {
         try {
             if (exists()) {
                 fileHeader.read();
+                if (fileHeader.getVersion() >= legacyVersion && fileHeader.getVersion() < expectedVersion) {
+                    LOG.info("Upgrading " + FileUtils.fileName(getFile()) + " from file format version " +
+                        fileHeader.getVersion() + " to " + expectedVersion);
+                    fileHeader.setVersion(expectedVersion);
+                    fileHeader.write();
+                }
                 if(fileHeader.getVersion() != expectedVersion)
                     {throw new DBException("Database file " +
                         FileUtils.fileName(getFile()) + " has a storage format incompatible with this " +
@@ -408,6 +460,58 @@ public abstract class Paged {
             LOG.warn("An exception occurred while opening database file " +
                 file.toAbsolutePath().toString() + ": " + e.getMessage(), e);
         }
+        if (offHeapCache != null) {
+            offHeapFileId = offHeapCache.registerFile();
+        }
+        if (useMappedIO && raf != null) {
+            try {
+                mappedFile = new MappedPageFile(raf.getChannel(), readOnly, fileHeader.pageSize);
+            } catch (final IOException e) {
+                LOG.warn("Failed to memory-map database file " + file.toAbsolutePath().toString() +
+                    ", falling back to file I/O: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Read from the file at the given offset, either from the
+     * memory mapping or through the random access file.
+     *
+     * Uses positional I/O, which does not move the file pointer,
+     * so pages can be read by several threads at the same time.
+     */
+    private int readAt(long offset, byte[] buf) throws IOException {
+        if (mappedFile != null) {
+            return mappedFile.read(offset, buf);
+        }
+        final FileChannel channel = raf.getChannel();
+        final ByteBuffer dst = ByteBuffer.wrap(buf);
+        long pos = offset;
+        while (dst.hasRemaining()) {
+            final int n = channel.read(dst, pos);
+            if (n < 0) {
+                return dst.position() == 0 ? -1 : dst.position();
+            }
+            pos += n;
+        }
+        return buf.length;
+    }
+
+    /**
+     * Write to the file at the given offset, either into the
+     * memory mapping or through the random access file.
+     */
+    private void writeAt(long offset, byte[] buf) throws IOException {
+        if (mappedFile != null) {
+            mappedFile.write(offset, buf);
+            return;
+        }
+        final FileChannel channel = raf.getChannel();
+        final ByteBuffer src = ByteBuffer.wrap(buf);
+        long pos = offset;
+        while (src.hasRemaining()) {
+            pos += channel.write(src, pos);
+        }
     }
 
     /**
@@ -669,6 +773,11 @@ public abstract class Paged {
         public final short getVersion() {
             return versionId;
         }
+
+        public final void setVersion(short versionId) {
+            this.versionId = versionId;
+            dirty = true;
+        }
         
         /**  Increment the number of records being managed by the file */
         public final synchronized void incRecordCount() {
@@ -686,8 +795,7 @@ public abstract class Paged {
         }
 
         public final synchronized void read() throws IOException {
-            raf.seek(0);
-            raf.read(buf);
+            readAt(0, buf);
             read(buf);
             calculateWorkSize();
             dirty = false;
@@ -823,9 +931,8 @@ public abstract class Paged {
         }
 
         public final synchronized void write() throws IOException {
-            raf.seek(0);
             write(buf);
-            raf.write(buf);
+            writeAt(0, buf);
             dirty = false;
         }
 
@@ -920,16 +1027,26 @@ public abstract class Paged {
 
         public byte[] read() throws IOException {
             try {
-                if (raf.getFilePointer() != offset) {
-                    raf.seek(offset);
+                if (offHeapCache != null) {
+                    // read the whole page through the off-heap cache
+                    final byte[] pageData = new byte[fileHeader.pageSize];
+                    if (!offHeapCache.read(offHeapFileId, pageNum, pageData)) {
+                        readAt(offset, pageData);
+                        offHeapCache.write(offHeapFileId, pageNum, pageData);
+                    }
+                    header.read(pageData, 0);
+                    final byte[] workData = new byte[header.dataLen];
+                    System.arraycopy(pageData, fileHeader.pageHeaderSize, workData, 0, header.dataLen);
+                    return workData;
                 }
-                Arrays.fill(tempHeaderData, (byte)0);
-                raf.read(tempHeaderData);
+                // buffers are allocated per read, as pages may be read concurrently
+                final byte[] headerData = new byte[fileHeader.pageHeaderSize];
+                readAt(offset, headerData);
                 // Read in the header
-                header.read(tempHeaderData, 0);
+                header.read(headerData, 0);
                 // Read the working data
                 final byte[] workData = new byte[header.dataLen];
-                raf.read(workData);
+                readAt(offset + headerData.length, workData);
                 return workData;
             } catch(final Exception e) {
                 LOG.warn("error while reading page: " + getPageInfo(), e);
@@ -947,25 +1064,30 @@ public abstract class Paged {
         }
 
         private final void write(byte[] data) throws IOException {
-            if(data == null) {
-                // Removed page: fill with 0
-                Arrays.fill(tempPageData, (byte)0);
-                header.setLsn(Lsn.LSN_INVALID);
-            }
-            // Write out the header
-            header.write(tempPageData, 0);
-            header.dirty = false;
-            if (data != null) {
-                if (data.length > fileHeader.workSize)
-                    {throw new IOException("page: " + getPageInfo() +
-                    ": data length too large: " + data.length);}
-                else {
-                    System.arraycopy(data, 0, tempPageData, fileHeader.pageHeaderSize, data.length);
+            // pages evicted from the caches by concurrent readers may be written at the same time
+            synchronized (tempPageData) {
+                if(data == null) {
+                    // Removed page: fill with 0
+                    Arrays.fill(tempPageData, (byte)0);
+                    header.setLsn(Lsn.LSN_INVALID);
+                }
+                // Write out the header
+                header.write(tempPageData, 0);
+                header.dirty = false;
+                if (data != null) {
+                    if (data.length > fileHeader.workSize)
+                        {throw new IOException("page: " + getPageInfo() +
+                        ": data length too large: " + data.length);}
+                    else {
+                        System.arraycopy(data, 0, tempPageData, fileHeader.pageHeaderSize, data.length);
+                    }
+                }
+                writeAt(offset, tempPageData);
+                header.firstDirtyLsn = Lsn.LSN_INVALID;
+                if (offHeapCache != null) {
+                    offHeapCache.write(offHeapFileId, pageNum, tempPageData);
                 }
             }
-            if (raf.getFilePointer() != offset)
-                {raf.seek(offset);}
-            raf.write(tempPageData);
         }
 
         /* (non-Javadoc)
@@ -988,10 +1110,8 @@ public abstract class Paged {
         }
 
         public void dumpPage() throws IOException {
-            if (raf.getFilePointer() != offset)
-                {raf.seek(offset);}
             final byte[] data = new byte[fileHeader.pageSize];
-            raf.read(data);
+            readAt(offset, data);
             LOG.debug("Contents of page " + pageNum + ": " + hexDump(data));
         }
     }
@@ -1010,7 +1130,10 @@ public abstract class Paged {
         private byte status = UNUSED;
 
         private long lsn = Lsn.LSN_INVALID;
-        
+
+        /** LSN of the first change since the page was last written; not stored on disk */
+        private long firstDirtyLsn = Lsn.LSN_INVALID;
+
         public PageHeader() {
     }
 
@@ -1074,6 +1197,21 @@ public abstract class Paged {
 
         public final void setLsn(long lsn) {
             this.lsn = lsn;
+            if (firstDirtyLsn == Lsn.LSN_INVALID) {
+                firstDirtyLsn = lsn;
+            }
+        }
+
+        /**
+         * Returns the LSN of the first operation which modified this page
+         * since it was last written to disk, or {@link Lsn#LSN_INVALID} if
+         * no journalled operation changed the page since then. Recovery has to start
+         * at the smallest such LSN of all pages still dirty in memory.
+         *
+         * @return log sequence number of the oldest change not yet written to disk
+         */
+        public final long getFirstDirtyLsn() {
+            return firstDirtyLsn;
         }
 
         public int read(byte[] data, int offset) throws IOException {
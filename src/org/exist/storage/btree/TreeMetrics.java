@@ -25,13 +25,26 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 
 /**
+ * Page statistics for a {@link BTree}, collected by {@link BTree#treeStatistics()}.
  *
+ * Besides the page counts, the metrics record how many bytes the keys take
+ * with and without prefix compression. The number of pages the tree would need
+ * without compression is estimated from these figures, assuming the same
+ * average page fill.
  */
 public class TreeMetrics {
 
     private int leafPages = 0;
     private int innerPages = 0;
     private int dataPages = 0;
+    private int legacyPages = 0;
+    private int height = 0;
+    private long leafKeys = 0;
+    private long innerKeys = 0;
+    private long leafBytes = 0;
+    private long leafUncompressedBytes = 0;
+    private long innerBytes = 0;
+    private long innerUncompressedBytes = 0;
     private String btreeName;
 
     public TreeMetrics(String name) {
@@ -45,6 +58,33 @@ public class TreeMetrics {
             {addLeafPage();}
     }
 
+    /**
+     * Add a page with its key statistics.
+     *
+     * @param status the page type
+     * @param depth the level of the page, starting with 1 for the root
+     * @param keys the number of keys in the page
+     * @param dataLen the number of bytes used in the page
+     * @param uncompressedLen the number of bytes the page would use without prefix compression
+     * @param legacy true if the page is still stored in the old, uncompressed format
+     */
+    public void addPage(int status, int depth, int keys, int dataLen, int uncompressedLen, boolean legacy) {
+        addPage(status);
+        if (status == BTree.BRANCH) {
+            innerKeys += keys;
+            innerBytes += dataLen;
+            innerUncompressedBytes += uncompressedLen;
+        } else {
+            leafKeys += keys;
+            leafBytes += dataLen;
+            leafUncompressedBytes += uncompressedLen;
+        }
+        if (legacy)
+            {++legacyPages;}
+        if (depth > height)
+            {height = depth;}
+    }
+
     public void addLeafPage() {
         ++leafPages;
     }
@@ -57,11 +97,60 @@ public class TreeMetrics {
         ++dataPages;
     }
 
+    public int getLeafPages() {
+        return leafPages;
+    }
+
+    public int getInnerPages() {
+        return innerPages;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the average number of children of an inner page
+     */
+    public double getFanOut() {
+        return innerPages == 0 ? 0 : (innerKeys + innerPages) / (double) innerPages;
+    }
+
+    /**
+     * @return the estimated number of leaf pages needed without prefix compression
+     */
+    public long getUncompressedLeafPages() {
+        return estimatePages(leafPages, leafBytes, leafUncompressedBytes);
+    }
+
+    /**
+     * @return the estimated number of inner pages needed without prefix compression
+     */
+    public long getUncompressedInnerPages() {
+        return estimatePages(innerPages, innerBytes, innerUncompressedBytes);
+    }
+
+    private static long estimatePages(int pages, long bytes, long uncompressedBytes) {
+        if (bytes == 0)
+            {return pages;}
+        return (long) Math.ceil(pages * (uncompressedBytes / (double) bytes));
+    }
+
     public void print(PrintWriter writer) {
         writer.println("BTree tree metrics for " + btreeName);
         writer.println("# inner pages: " + innerPages);
         writer.println("# leaf pages: " + leafPages);
         writer.println("# data pages: " + dataPages);
+        if (height > 0) {
+            writer.println("tree height: " + height);
+            writer.println("average fan-out: " + String.format("%.1f", getFanOut()));
+            writer.println("# keys in leaf pages: " + leafKeys);
+            writer.println("leaf bytes: " + leafBytes + " (uncompressed: " + leafUncompressedBytes + ")");
+            writer.println("inner bytes: " + innerBytes + " (uncompressed: " + innerUncompressedBytes + ")");
+            writer.println("# inner pages without compression (estimated): " + getUncompressedInnerPages());
+            writer.println("# leaf pages without compression (estimated): " + getUncompressedLeafPages());
+            writer.println("# inner pages in old format: " + legacyPages);
+        }
     }
 
     public void toLogger() {
@@ -267,10 +267,14 @@ public class Value implements Comparable<Object> {
         return l;
     }
 
+    /**
+     * Returns the shortest prefix of <code>other</code> which is greater than this
+     * value. <code>other</code> has to be greater than this value.
+     */
     public Value getSeparator(Value other) {
-        final int offset = commonPrefix(other) + 1;
-        final byte[] data = new byte[Math.abs(offset)];
-        System.arraycopy(other.getData(), 0, data, 0, data.length);
+        final int length = Math.min(commonPrefix(other) + 1, other.len);
+        final byte[] data = new byte[length];
+        System.arraycopy(other.data, other.pos, data, 0, length);
         return new Value(data);
     }
 
@@ -0,0 +1,374 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+import org.exist.util.hashtable.SequencedLongHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cache implementation based on the Adaptive Replacement Cache (ARC) policy
+ * by Megiddo and Modha.
+ *
+ * The cache keeps two LRU lists of resident pages: <code>t1</code> holds pages
+ * which have been referenced once since they entered the cache, <code>t2</code>
+ * pages referenced at least twice. Two "ghost" lists, <code>b1</code> and
+ * <code>b2</code>, remember the keys (not the pages) recently evicted from
+ * t1 and t2. A hit on a ghost key adapts the target size of t1: hits in b1 mean
+ * that recency matters and t1 should grow, hits in b2 mean that frequency
+ * matters and t2 should grow.
+ *
+ * Pages touched only once, for example by a sequential scan over a large
+ * collection, never leave t1 and are thus evicted before any page in t2. A
+ * single large scan cannot flush the frequently used pages (like the inner
+ * pages of a B+-tree) from the cache.
+ *
+ * As for the other caches, an item is accessed by calling {@link #get(long)}
+ * followed by {@link #add(Cacheable)}. The reference count passed to
+ * {@link #add(Cacheable, int)} is ignored.
+ */
+public class ARCCache implements Cache {
+
+    private final static Object DUMMY = new Object();
+
+    /** the maximum number of resident pages */
+    protected int max;
+
+    /** target size of t1, adapted on ghost hits */
+    protected int p = 0;
+
+    protected SequencedLongHashMap<Cacheable> t1;
+    protected SequencedLongHashMap<Cacheable> t2;
+    protected SequencedLongHashMap<Object> b1;
+    protected SequencedLongHashMap<Object> b2;
+
+    protected Accounting accounting;
+
+    protected int hitsOld = -1;
+
+    protected double growthFactor;
+
+    protected String fileName;
+
+    protected CacheManager cacheManager = null;
+
+    private final String type;
+
+    public ARCCache(int size, double growthFactor, double growthThreshold, String type) {
+        this.max = size;
+        this.growthFactor = growthFactor;
+        this.t1 = new SequencedLongHashMap<>(size * 2);
+        this.t2 = new SequencedLongHashMap<>(size * 2);
+        this.b1 = new SequencedLongHashMap<>(size * 2);
+        this.b2 = new SequencedLongHashMap<>(size * 2);
+        this.accounting = new Accounting(growthThreshold);
+        accounting.setTotalSize(max);
+        this.type = type;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public void add(Cacheable item, int initialRefCount) {
+        add(item);
+    }
+
+    @Override
+    public void add(Cacheable item) {
+        final long key = item.getKey();
+        if (t1.get(key) != null) {
+            // second reference: promote to the frequency list
+            t1.remove(key);
+            t2.put(key, item);
+            return;
+        }
+        if (t2.get(key) != null) {
+            // move to the MRU end
+            t2.put(key, item);
+            return;
+        }
+        if (b1.get(key) != null) {
+            // recently evicted from t1: favour recency
+            p = Math.min(max, p + Math.max(b2.size() / Math.max(b1.size(), 1), 1));
+            b1.remove(key);
+            if (isFull()) {
+                replace(item, false);
+            }
+            t2.put(key, item);
+            return;
+        }
+        if (b2.get(key) != null) {
+            // recently evicted from t2: favour frequency
+            p = Math.max(0, p - Math.max(b1.size() / Math.max(b2.size(), 1), 1));
+            b2.remove(key);
+            if (isFull()) {
+                replace(item, true);
+            }
+            t2.put(key, item);
+            return;
+        }
+
+        // a page which has not been seen recently
+        final int l1 = t1.size() + b1.size();
+        if (l1 >= max) {
+            if (t1.size() < max) {
+                b1.removeFirst();
+                if (isFull()) {
+                    replace(item, false);
+                }
+            } else {
+                // b1 is empty: evict from t1 without remembering the key
+                evict(t1, null, item);
+            }
+        } else if (isFull()) {
+            if (l1 + t2.size() + b2.size() >= 2 * max) {
+                b2.removeFirst();
+            }
+            replace(item, false);
+        }
+        t1.put(key, item);
+    }
+
+    private boolean isFull() {
+        return t1.size() + t2.size() >= max;
+    }
+
+    /**
+     * Evict a page from either t1 or t2, depending on the current target size
+     * of t1. The key of the evicted page is moved into the corresponding ghost list.
+     */
+    private void replace(Cacheable item, boolean inB2) {
+        final int s1 = t1.size();
+        if (s1 > 0 && (s1 > p || (inB2 && s1 == p))) {
+            if (!evict(t1, b1, item)) {
+                evict(t2, b2, item);
+            }
+        } else {
+            if (!evict(t2, b2, item)) {
+                evict(t1, b1, item);
+            }
+        }
+    }
+
+    /**
+     * Remove the least recently used page from the list which can be unloaded.
+     *
+     * @return false if no page in the list could be unloaded
+     */
+    private boolean evict(SequencedLongHashMap<Cacheable> list, SequencedLongHashMap<Object> ghosts, Cacheable item) {
+        SequencedLongHashMap.Entry<Cacheable> next = list.getFirstEntry();
+        while (next != null) {
+            final Cacheable cached = next.getValue();
+            if (cached.allowUnload() && cached.getKey() != item.getKey()) {
+                cached.sync(true);
+                list.remove(next.getKey());
+                if (ghosts != null) {
+                    ghosts.put(cached.getKey(), DUMMY);
+                }
+                accounting.replacedPage(item);
+                if (growthFactor > 1.0 && cacheManager != null && accounting.resizeNeeded()) {
+                    cacheManager.requestMem(this);
+                }
+                return true;
+            }
+            next = next.getNext();
+        }
+        return false;
+    }
+
+    @Override
+    public Cacheable get(Cacheable item) {
+        return get(item.getKey());
+    }
+
+    @Override
+    public Cacheable get(long key) {
+        Cacheable obj = t1.get(key);
+        if (obj == null) {
+            obj = t2.get(key);
+        }
+        if (obj == null) {
+            accounting.missesIncrement();
+        } else {
+            accounting.hitIncrement();
+        }
+        return obj;
+    }
+
+    @Override
+    public void remove(Cacheable item) {
+        final long key = item.getKey();
+        if (t1.remove(key) == null) {
+            t2.remove(key);
+        }
+    }
+
+    @Override
+    public boolean hasDirtyItems() {
+        return hasDirtyItems(t1) || hasDirtyItems(t2);
+    }
+
+    private static boolean hasDirtyItems(SequencedLongHashMap<Cacheable> list) {
+        SequencedLongHashMap.Entry<Cacheable> next = list.getFirstEntry();
+        while (next != null) {
+            if (next.getValue().isDirty()) {
+                return true;
+            }
+            next = next.getNext();
+        }
+        return false;
+    }
+
+    @Override
+    public List<Cacheable> getDirtyItems() {
+        final List<Cacheable> dirty = new ArrayList<>();
+        collectDirtyItems(t1, dirty);
+        collectDirtyItems(t2, dirty);
+        return dirty;
+    }
+
+    private static void collectDirtyItems(SequencedLongHashMap<Cacheable> list, List<Cacheable> dirty) {
+        SequencedLongHashMap.Entry<Cacheable> next = list.getFirstEntry();
+        while (next != null) {
+            if (next.getValue().isDirty()) {
+                dirty.add(next.getValue());
+            }
+            next = next.getNext();
+        }
+    }
+
+    @Override
+    public boolean flush() {
+        final boolean flushed = flush(t1);
+        return flush(t2) | flushed;
+    }
+
+    private static boolean flush(SequencedLongHashMap<Cacheable> list) {
+        boolean flushed = false;
+        SequencedLongHashMap.Entry<Cacheable> next = list.getFirstEntry();
+        while (next != null) {
+            final Cacheable cacheable = next.getValue();
+            if (cacheable.isDirty()) {
+                flushed = flushed | cacheable.sync(false);
+            }
+            next = next.getNext();
+        }
+        return flushed;
+    }
+
+    @Override
+    public int getBuffers() {
+        return max;
+    }
+
+    @Override
+    public int getUsedBuffers() {
+        return t1.size() + t2.size();
+    }
+
+    @Override
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    @Override
+    public void resize(int newSize) {
+        if (newSize < max) {
+            shrink(newSize);
+        } else {
+            t1 = copy(t1, newSize);
+            t2 = copy(t2, newSize);
+            b1 = copy(b1, newSize);
+            b2 = copy(b2, newSize);
+            max = newSize;
+            accounting.reset();
+            accounting.setTotalSize(max);
+        }
+    }
+
+    private static <V> SequencedLongHashMap<V> copy(SequencedLongHashMap<V> list, int newSize) {
+        final SequencedLongHashMap<V> newList = new SequencedLongHashMap<>(newSize * 2);
+        SequencedLongHashMap.Entry<V> next = list.getFirstEntry();
+        while (next != null) {
+            newList.put(next.getKey(), next.getValue());
+            next = next.getNext();
+        }
+        return newList;
+    }
+
+    protected void shrink(int newSize) {
+        flush();
+        t1 = new SequencedLongHashMap<>(newSize * 2);
+        t2 = new SequencedLongHashMap<>(newSize * 2);
+        b1 = new SequencedLongHashMap<>(newSize * 2);
+        b2 = new SequencedLongHashMap<>(newSize * 2);
+        max = newSize;
+        p = 0;
+        accounting.reset();
+        accounting.setTotalSize(max);
+    }
+
+    @Override
+    public void setCacheManager(CacheManager manager) {
+        this.cacheManager = manager;
+    }
+
+    @Override
+    public int getHits() {
+        return accounting.getHits();
+    }
+
+    @Override
+    public int getFails() {
+        return accounting.getMisses();
+    }
+
+    public int getThrashing() {
+        return accounting.getThrashing();
+    }
+
+    @Override
+    public int getLoad() {
+        if (hitsOld == 0) {
+            hitsOld = accounting.getHits();
+            return Integer.MAX_VALUE;
+        }
+        final int load = accounting.getHits() - hitsOld;
+        hitsOld = accounting.getHits();
+        return load;
+    }
+
+    @Override
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+}
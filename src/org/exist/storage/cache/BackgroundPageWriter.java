@@ -0,0 +1,201 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.cache;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.journal.Journal;
+import org.exist.storage.journal.Lsn;
+import org.exist.storage.lock.Lock;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Writes dirty pages of a {@link Cache} to disk in the background, so that
+ * a checkpoint or a page replacement rarely has to wait for a page to be written.
+ *
+ * Every <code>interval</code> milliseconds the writer tries to acquire the lock
+ * of the file the cache belongs to. If the lock is busy, the round is skipped:
+ * the writer never blocks a thread working on the file. Otherwise it writes
+ *
+ * <ul>
+ *     <li>all pages which were already dirty during the previous round, and</li>
+ *     <li>as many additional pages as needed to bring the number of dirty pages
+ *     down to <code>dirtyRatio</code> times the size of the cache.</li>
+ * </ul>
+ *
+ * Pages are written in the order of the first journal entry which modified them,
+ * so the oldest changes - which determine where recovery has to start - go to disk
+ * first. The journal is flushed before any page is written.
+ */
+public class BackgroundPageWriter implements Runnable {
+
+    private final static Logger LOG = LogManager.getLogger(BackgroundPageWriter.class);
+
+    /** the minimum number of pages written in one round if there are enough to write */
+    private final static int MIN_PAGES_PER_ROUND = 16;
+
+    private final static Comparator<Cacheable> OLDEST_CHANGE_FIRST = (c1, c2) -> {
+        final long lsn1 = c1.getFirstDirtyLsn();
+        final long lsn2 = c2.getFirstDirtyLsn();
+        if (lsn1 == lsn2) {
+            return 0;
+        }
+        // pages without journalled changes go last
+        if (lsn1 == Lsn.LSN_INVALID) {
+            return 1;
+        }
+        if (lsn2 == Lsn.LSN_INVALID) {
+            return -1;
+        }
+        return lsn1 < lsn2 ? -1 : 1;
+    };
+
+    private final Cache cache;
+    private final Lock lock;
+    private final Journal journal;
+    private final long interval;
+    private final double dirtyRatio;
+
+    private Set<Long> previouslyDirty = new HashSet<>();
+    private long pagesWritten = 0;
+
+    private volatile boolean stopped = false;
+    private Thread thread = null;
+
+    /**
+     * @param cache the cache to write
+     * @param lock the lock of the file the cache belongs to
+     * @param journal the journal to flush before writing pages, or null if the file is not transactional
+     * @param interval the time between two rounds in milliseconds
+     * @param dirtyRatio the fraction of the cache which may be dirty without the pages being old
+     */
+    public BackgroundPageWriter(Cache cache, Lock lock, Journal journal, long interval, double dirtyRatio) {
+        this.cache = cache;
+        this.lock = lock;
+        this.journal = journal;
+        this.interval = interval;
+        this.dirtyRatio = dirtyRatio;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this, "exist-page-writer-" + cache.getFileName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the writer thread and wait until it has finished
+     * the current round.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(interval + 1000);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            try {
+                Thread.sleep(interval);
+            } catch (final InterruptedException e) {
+                break;
+            }
+            try {
+                writeOnce();
+            } catch (final Exception e) {
+                LOG.warn("Background write of " + cache.getFileName() + " failed: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Run a single round.
+     *
+     * @return the number of pages written, or -1 if the file was locked
+     */
+    public int writeOnce() {
+        if (BrokerPool.FORCE_CORRUPTION) {
+            return 0;
+        }
+        if (!lock.attempt(Lock.WRITE_LOCK)) {
+            return -1;
+        }
+        try {
+            final List<Cacheable> dirty = cache.getDirtyItems();
+            if (dirty.isEmpty()) {
+                previouslyDirty = new HashSet<>();
+                return 0;
+            }
+            dirty.sort(OLDEST_CHANGE_FIRST);
+
+            final int maxPages = Math.max(MIN_PAGES_PER_ROUND, cache.getBuffers() / 8);
+            int excess = dirty.size() - (int) (cache.getBuffers() * dirtyRatio);
+            final Set<Long> stillDirty = new HashSet<>();
+            boolean journalFlushed = false;
+            int written = 0;
+            for (final Cacheable item : dirty) {
+                final Long key = item.getKey();
+                if (written < maxPages && (excess > 0 || previouslyDirty.contains(key))) {
+                    if (journal != null && !journalFlushed) {
+                        journal.flushToLog(true);
+                        journalFlushed = true;
+                    }
+                    if (item.sync(false)) {
+                        written++;
+                    }
+                    excess--;
+                } else {
+                    stillDirty.add(key);
+                }
+            }
+            previouslyDirty = stillDirty;
+            pagesWritten += written;
+            return written;
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * @return the total number of pages written by this writer
+     */
+    public long getPagesWritten() {
+        return pagesWritten;
+    }
+}
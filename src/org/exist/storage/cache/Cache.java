@@ -26,6 +26,8 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.storage.CacheManager;
 
+import java.util.List;
+
 /**
  * Base interface for all cache implementations that are used for
  * buffering btree and data pages.
@@ -89,6 +91,15 @@ public interface Cache {
      */
     public boolean hasDirtyItems();
 
+    /**
+     * Returns a snapshot of all items which are currently dirty,
+     * i.e. which need to be written to disk. The items remain
+     * in the cache.
+     *
+     * @return the dirty items, in no particular order
+     */
+    public List<Cacheable> getDirtyItems();
+
     /**
      * Call release on all items, but without
      * actually removing them from the cache.
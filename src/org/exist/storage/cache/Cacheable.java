@@ -22,6 +22,8 @@
  */
 package org.exist.storage.cache;
 
+import org.exist.storage.journal.Lsn;
+
 /**
  * Implemented by all objects that should be stored into a cache.
  * 
@@ -108,4 +110,14 @@ public interface Cacheable {
 	public boolean allowUnload();
 	
 	public boolean isDirty();
+
+	/**
+	 * Returns the log sequence number of the first journalled change
+	 * which has not yet been written to disk.
+	 *
+	 * @return the LSN or {@link Lsn#LSN_INVALID} if there are no such changes
+	 */
+	public default long getFirstDirtyLsn() {
+		return Lsn.LSN_INVALID;
+	}
 }
@@ -0,0 +1,348 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe variant of {@link GClockCache}.
+ *
+ * Lookups ({@link #get(long)}) and reference count updates for items which are
+ * already in the cache do not take any lock: the index is a
+ * {@link ConcurrentHashMap} and the reference counts of the cache slots are
+ * kept in an {@link AtomicIntegerArray}, instead of in the {@link Cacheable}
+ * objects. Only inserting a new item, which may have to run the clock to find
+ * a victim, and removing or resizing are serialized on the cache.
+ *
+ * Read-only page hits can thus proceed in parallel on any number of threads.
+ */
+public class ConcurrentGClockCache implements Cache {
+
+    /**
+     * Binds a cached item to its slot in the clock.
+     */
+    private static final class Entry {
+        final Cacheable item;
+        final int slot;
+
+        Entry(Cacheable item, int slot) {
+            this.item = item;
+            this.slot = slot;
+        }
+    }
+
+    private volatile ConcurrentHashMap<Long, Entry> map;
+    private volatile AtomicIntegerArray refs;
+    private Cacheable[] items;
+    private int size;
+    private int count = 0;
+    private int used = 0;
+    private int clockHand = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private int hitsOld = 0;
+
+    protected Accounting accounting;
+    protected double growthFactor;
+
+    protected CacheManager cacheManager = null;
+    private String fileName = "unknown";
+
+    private final String type;
+
+    public ConcurrentGClockCache(int size, double growthFactor, double growthThreshold, String type) {
+        this.size = size;
+        this.growthFactor = growthFactor;
+        this.items = new Cacheable[size];
+        this.refs = new AtomicIntegerArray(size);
+        this.map = new ConcurrentHashMap<>(size * 2);
+        this.accounting = new Accounting(growthThreshold);
+        accounting.setTotalSize(size);
+        this.type = type;
+    }
+
+    @Override
+    public String getType() {
+        return type;
+    }
+
+    @Override
+    public void add(Cacheable item) {
+        add(item, 1);
+    }
+
+    @Override
+    public void add(Cacheable item, int initialRefCount) {
+        final Entry old = map.get(item.getKey());
+        if (old != null) {
+            incReferenceCount(old.slot);
+            return;
+        }
+        boolean resize = false;
+        synchronized (this) {
+            // check again: another thread may have added the item in the meantime
+            final Entry current = map.get(item.getKey());
+            if (current != null) {
+                incReferenceCount(current.slot);
+                return;
+            }
+            final int slot;
+            if (count < size) {
+                slot = count++;
+                used++;
+            } else {
+                slot = removeOne(item);
+                resize = cacheManager != null && accounting.resizeNeeded();
+            }
+            items[slot] = item;
+            refs.set(slot, initialRefCount);
+            map.put(item.getKey(), new Entry(item, slot));
+        }
+        if (resize) {
+            cacheManager.requestMem(this);
+        }
+    }
+
+    private void incReferenceCount(int slot) {
+        final AtomicIntegerArray r = refs;
+        if (slot < r.length()) {
+            r.updateAndGet(slot, c -> c < Cacheable.MAX_REF ? c + 1 : c);
+        }
+    }
+
+    /**
+     * Run the clock until a slot with a reference count of 0 is found.
+     * Must be called while holding the monitor.
+     *
+     * @return the slot which can be reused
+     */
+    private int removeOne(Cacheable item) {
+        // after two full rounds without success, ignore allowUnload
+        final int maxSteps = size * (Cacheable.MAX_REF + 2);
+        for (int step = 0; ; step++) {
+            final int slot = clockHand;
+            clockHand = (clockHand + 1) % size;
+            final Cacheable old = items[slot];
+            if (old == null) {
+                used++;
+                return slot;
+            }
+            if (refs.get(slot) > 0) {
+                refs.decrementAndGet(slot);
+            } else if (old.allowUnload() || step > maxSteps) {
+                map.remove(old.getKey());
+                old.sync(true);
+                items[slot] = null;
+                accounting.replacedPage(item);
+                return slot;
+            }
+        }
+    }
+
+    @Override
+    public Cacheable get(Cacheable item) {
+        return get(item.getKey());
+    }
+
+    @Override
+    public Cacheable get(long key) {
+        final Entry entry = map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.item;
+    }
+
+    /**
+     * Returns the item stored for the given key, like {@link #get(long)}, and
+     * increments its reference count, as {@link #add(Cacheable, int)} would do
+     * for an item which is already cached. Unlike add, this never inserts an item
+     * and thus never evicts (and writes) another one, so it can be called by threads
+     * which do not hold the lock on the underlying file.
+     *
+     * @param key the key of the item
+     * @param increment the amount by which to increment the reference count
+     * @return the item or null if it is not in the cache
+     */
+    public Cacheable getAndReference(long key, int increment) {
+        final Entry entry = map.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        for (int i = 0; i < increment; i++) {
+            incReferenceCount(entry.slot);
+        }
+        return entry.item;
+    }
+
+    /**
+     * Returns true if the given item (and not just another item with the same key)
+     * is currently stored in the cache. Does not count as a cache access.
+     */
+    public boolean isCached(Cacheable item) {
+        final Entry entry = map.get(item.getKey());
+        return entry != null && entry.item == item;
+    }
+
+    @Override
+    public synchronized void remove(Cacheable item) {
+        final Entry entry = map.remove(item.getKey());
+        if (entry != null && items[entry.slot] == entry.item) {
+            items[entry.slot] = null;
+            refs.set(entry.slot, 0);
+            used--;
+        }
+    }
+
+    @Override
+    public synchronized boolean hasDirtyItems() {
+        for (int i = 0; i < count; i++) {
+            if (items[i] != null && items[i].isDirty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized List<Cacheable> getDirtyItems() {
+        final List<Cacheable> dirty = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (items[i] != null && items[i].isDirty()) {
+                dirty.add(items[i]);
+            }
+        }
+        return dirty;
+    }
+
+    @Override
+    public synchronized boolean flush() {
+        boolean flushed = false;
+        for (int i = 0; i < count; i++) {
+            if (items[i] != null && items[i].sync(false)) {
+                flushed = true;
+            }
+        }
+        return flushed;
+    }
+
+    @Override
+    public int getBuffers() {
+        return size;
+    }
+
+    @Override
+    public synchronized int getUsedBuffers() {
+        return used;
+    }
+
+    @Override
+    public double getGrowthFactor() {
+        return growthFactor;
+    }
+
+    @Override
+    public synchronized void resize(int newSize) {
+        if (newSize < size) {
+            flush();
+            items = new Cacheable[newSize];
+            refs = new AtomicIntegerArray(newSize);
+            map = new ConcurrentHashMap<>(newSize * 2);
+            count = 0;
+            used = 0;
+        } else {
+            final Cacheable[] newItems = new Cacheable[newSize];
+            final AtomicIntegerArray newRefs = new AtomicIntegerArray(newSize);
+            final ConcurrentHashMap<Long, Entry> newMap = new ConcurrentHashMap<>(newSize * 2);
+            int j = 0;
+            for (int i = 0; i < count; i++) {
+                if (items[i] != null) {
+                    newItems[j] = items[i];
+                    newRefs.set(j, refs.get(i));
+                    newMap.put(items[i].getKey(), new Entry(items[i], j));
+                    j++;
+                }
+            }
+            items = newItems;
+            refs = newRefs;
+            map = newMap;
+            count = j;
+            used = j;
+        }
+        size = newSize;
+        clockHand = 0;
+        accounting.reset();
+        accounting.setTotalSize(size);
+    }
+
+    @Override
+    public void setCacheManager(CacheManager manager) {
+        this.cacheManager = manager;
+    }
+
+    @Override
+    public int getHits() {
+        return (int) hits.sum();
+    }
+
+    @Override
+    public int getFails() {
+        return (int) misses.sum();
+    }
+
+    public synchronized int getThrashing() {
+        return accounting.getThrashing();
+    }
+
+    @Override
+    public synchronized int getLoad() {
+        final int currentHits = getHits();
+        if (hitsOld == 0) {
+            hitsOld = currentHits;
+            return Integer.MAX_VALUE;
+        }
+        final int load = currentHits - hitsOld;
+        hitsOld = currentHits;
+        return load;
+    }
+
+    @Override
+    public void setFileName(String fileName) {
+        this.fileName = fileName;
+    }
+
+    @Override
+    public String getFileName() {
+        return fileName;
+    }
+}
@@ -25,6 +25,9 @@ package org.exist.storage.cache;
 import org.exist.storage.CacheManager;
 import org.exist.util.hashtable.Long2ObjectHashMap;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Cache implementation based on the GClock algorithm. 
  * 
@@ -140,6 +143,17 @@ public class GClockCache implements Cache {
 		}
 	    return false;
 	}
+
+	@Override
+	public List<Cacheable> getDirtyItems() {
+		final List<Cacheable> dirty = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			if (items[i] != null && items[i].isDirty()) {
+				dirty.add(items[i]);
+			}
+		}
+		return dirty;
+	}
 	
 	protected Cacheable removeOne(Cacheable item) {
 		Cacheable old = null;
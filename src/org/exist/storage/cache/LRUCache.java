@@ -25,6 +25,9 @@ package org.exist.storage.cache;
 import org.exist.storage.CacheManager;
 import org.exist.util.hashtable.SequencedLongHashMap;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * A simple cache implementing a Last Recently Used policy. This
  * cache implementation is based on a 
@@ -139,6 +142,19 @@ public class LRUCache implements Cache {
         }
 		return false;
     }
+
+    @Override
+    public List<Cacheable> getDirtyItems() {
+        final List<Cacheable> dirty = new ArrayList<>();
+        SequencedLongHashMap.Entry<Cacheable> next = map.getFirstEntry();
+        while (next != null) {
+            if (next.getValue().isDirty()) {
+                dirty.add(next.getValue());
+            }
+            next = next.getNext();
+        }
+        return dirty;
+    }
     
 	/* (non-Javadoc)
 	 * @see org.exist.storage.cache.Cache#getBuffers()
@@ -0,0 +1,224 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.cache;
+
+import org.exist.util.hashtable.Long2ObjectHashMap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A second level page cache which keeps raw page images outside of the Java heap.
+ *
+ * The on-heap caches ({@link BTreeCache}, {@link LRUCache}, {@link GClockCache}) hold
+ * deserialized pages and are rather expensive in terms of garbage collection. Pages
+ * evicted from those caches need to be read from disk again. This cache sits between
+ * the on-heap caches and the file: it keeps a copy of every page read from or written
+ * to a {@link org.exist.storage.btree.Paged} file in slabs of direct memory. A miss in
+ * the on-heap cache can thus be served by a memory copy instead of a disk read, while the
+ * heap only holds a small index of page slots.
+ *
+ * Memory is allocated in slabs of {@link #SLAB_SIZE} bytes, which are created on demand
+ * until the configured maximum is reached. Every slab is divided into slots of one page.
+ * Once all slots are in use, slots are reused following a simple CLOCK (second chance)
+ * policy.
+ *
+ * The cache is write-through: callers must update it whenever a page is written to disk,
+ * so it never contains data which is not on disk, and entries can be dropped at any time.
+ *
+ * Hit and miss counts are tracked through {@link Accounting}, as for the on-heap caches.
+ */
+public class OffHeapPageCache {
+
+    /** size of a single slab of direct memory */
+    public final static int SLAB_SIZE = 32 * 1024 * 1024;
+
+    private final int pageSize;
+    private final int slotsPerSlab;
+    private final int maxSlots;
+
+    private final ByteBuffer[] slabs;
+    private final long[] slotKeys;
+    private final boolean[] referenced;
+    private final Long2ObjectHashMap<Integer> map;
+
+    private int usedSlots = 0;
+    private int clockHand = 0;
+    private int nextFileId = 0;
+
+    private final Accounting accounting;
+
+    /**
+     * @param maxMem the maximum amount of direct memory to use in bytes
+     * @param pageSize the size of one page
+     */
+    public OffHeapPageCache(long maxMem, int pageSize) {
+        this.pageSize = pageSize;
+        this.slotsPerSlab = Math.max(1, SLAB_SIZE / pageSize);
+        final long slabCount = Math.max(1, maxMem / ((long) slotsPerSlab * pageSize));
+        this.maxSlots = (int) Math.min(Integer.MAX_VALUE - 8, slabCount * slotsPerSlab);
+        this.slabs = new ByteBuffer[(maxSlots + slotsPerSlab - 1) / slotsPerSlab];
+        this.slotKeys = new long[maxSlots];
+        this.referenced = new boolean[maxSlots];
+        this.map = new Long2ObjectHashMap<>(Math.min(maxSlots, 1024 * 1024));
+        this.accounting = new Accounting(0);
+        accounting.setTotalSize(maxSlots);
+    }
+
+    /**
+     * Register a paged file with the cache. The returned id has to be
+     * passed to all other methods.
+     *
+     * @return a unique id for the file
+     */
+    public synchronized int registerFile() {
+        return nextFileId++;
+    }
+
+    /**
+     * Copy the cached image of the given page into <code>page</code>.
+     *
+     * @param fileId the id returned by {@link #registerFile()}
+     * @param pageNum the page number
+     * @param page buffer of at least pageSize bytes
+     * @return true if the page was found in the cache
+     */
+    public synchronized boolean read(int fileId, long pageNum, byte[] page) {
+        final Integer slot = map.get(key(fileId, pageNum));
+        if (slot == null) {
+            accounting.missesIncrement();
+            return false;
+        }
+        accounting.hitIncrement();
+        referenced[slot] = true;
+        final ByteBuffer buf = slab(slot);
+        buf.position(slotOffset(slot));
+        buf.get(page, 0, pageSize);
+        return true;
+    }
+
+    /**
+     * Store the image of the given page, replacing an older copy if present.
+     *
+     * @param fileId the id returned by {@link #registerFile()}
+     * @param pageNum the page number
+     * @param page the complete page as written to disk
+     */
+    public synchronized void write(int fileId, long pageNum, byte[] page) {
+        final long key = key(fileId, pageNum);
+        Integer slot = map.get(key);
+        if (slot == null) {
+            slot = nextSlot();
+            slotKeys[slot] = key;
+            map.put(key, slot);
+        }
+        referenced[slot] = true;
+        final ByteBuffer buf = slab(slot);
+        buf.position(slotOffset(slot));
+        buf.put(page, 0, pageSize);
+    }
+
+    /**
+     * Drop all pages belonging to the given file, e.g. when the file is closed.
+     *
+     * @param fileId the id returned by {@link #registerFile()}
+     */
+    public synchronized void removeFile(int fileId) {
+        for (int i = 0; i < usedSlots; i++) {
+            final long key = slotKeys[i];
+            if (key != -1 && (int) (key >>> 32) == fileId) {
+                map.remove(key);
+                slotKeys[i] = -1;
+                referenced[i] = false;
+            }
+        }
+    }
+
+    private int nextSlot() {
+        if (usedSlots < maxSlots) {
+            return usedSlots++;
+        }
+        while (true) {
+            final int slot = clockHand;
+            clockHand = (clockHand + 1) % maxSlots;
+            if (referenced[slot]) {
+                referenced[slot] = false;
+            } else {
+                if (slotKeys[slot] != -1) {
+                    map.remove(slotKeys[slot]);
+                }
+                return slot;
+            }
+        }
+    }
+
+    private ByteBuffer slab(int slot) {
+        final int idx = slot / slotsPerSlab;
+        if (slabs[idx] == null) {
+            slabs[idx] = ByteBuffer.allocateDirect(slotsPerSlab * pageSize);
+        }
+        return slabs[idx];
+    }
+
+    private int slotOffset(int slot) {
+        return (slot % slotsPerSlab) * pageSize;
+    }
+
+    private static long key(int fileId, long pageNum) {
+        return ((long) fileId << 32) | (pageNum & 0xFFFFFFFFL);
+    }
+
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * @return the maximum number of pages the cache can hold
+     */
+    public int getBuffers() {
+        return maxSlots;
+    }
+
+    public synchronized int getUsedBuffers() {
+        return usedSlots;
+    }
+
+    public synchronized int getHits() {
+        return accounting.getHits();
+    }
+
+    public synchronized int getFails() {
+        return accounting.getMisses();
+    }
+
+    /**
+     * @return the amount of direct memory currently allocated in bytes
+     */
+    public synchronized long getAllocatedMem() {
+        long total = 0;
+        for (final ByteBuffer slab : slabs) {
+            if (slab != null) {
+                total += slab.capacity();
+            }
+        }
+        return total;
+    }
+}
@@ -68,6 +68,11 @@ public class AddLinkLoggable extends AbstractLoggable {
         return 14;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoAddLink(this);
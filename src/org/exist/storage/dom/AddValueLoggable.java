@@ -86,6 +86,11 @@ public class AddValueLoggable extends AbstractLoggable {
         return 8 + value.length;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoAddValue(this);
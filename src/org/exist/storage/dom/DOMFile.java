@@ -28,6 +28,10 @@ import java.io.Writer;
 import java.nio.file.Path;
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import static java.nio.charset.StandardCharsets.UTF_8;
@@ -60,7 +64,6 @@ import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
 import org.exist.storage.cache.Cache;
 import org.exist.storage.cache.Cacheable;
-import org.exist.storage.cache.LRUCache;
 import org.exist.storage.journal.LogEntryTypes;
 import org.exist.storage.journal.Loggable;
 import org.exist.storage.journal.Lsn;
@@ -125,6 +128,21 @@ public class DOMFile extends BTree implements Lockable {
     public static final int LENGTH_FORWARD_LOCATION = LENGTH_LINK;
     public static final int LENGTH_OVERFLOW_LOCATION = LENGTH_LINK;
 
+    public static final String COMPRESSION_ATTRIBUTE = "domCompression";
+    public static final String PROPERTY_COMPRESSION = "db-connection.dom-compression";
+    /** Store overflow values as they are (the default) */
+    public static final String COMPRESSION_NONE = "none";
+    /** Compress overflow values with {@link Deflater#BEST_SPEED} */
+    public static final String COMPRESSION_DEFLATE = "deflate";
+
+    /**
+     * First byte of a compressed overflow value, followed by the uncompressed length
+     * and the deflated data. The byte is never a valid node signature (see {@link Signatures}),
+     * so values written without compression remain readable.
+     */
+    private final static byte COMPRESSED_VALUE = (byte) 0xFF;
+    private final static int LENGTH_COMPRESSED_HEADER = 1 + 4;
+
     /*
      * Byte ids for the records written to the log file.
      */
@@ -161,7 +179,10 @@ public class DOMFile extends BTree implements Lockable {
         LogEntryTypes.addEntryType(LOG_UPDATE_LINK, UpdateLinkLoggable::new);
     }
 
-    public final static short FILE_FORMAT_VERSION_ID = 9;
+    public final static short FILE_FORMAT_VERSION_ID = 10;
+
+    /** the previous version, which is still readable and upgraded on open */
+    public final static short LEGACY_FILE_FORMAT_VERSION_ID = 9;
 
     //Page types
     public final static byte LOB = 21;
@@ -185,13 +206,16 @@ public class DOMFile extends BTree implements Lockable {
 
     private final AddValueLoggable addValueLog = new AddValueLoggable();
 
+    private final boolean compressOverflow;
+
     public DOMFile(BrokerPool pool, byte id, Path dataDir, Configuration config) throws DBException {
         super(pool, id, true, pool.getCacheManager());
         lock = new ReentrantReadWriteLock(getFileName());
+        compressOverflow = COMPRESSION_DEFLATE.equals(config.getProperty(PROPERTY_COMPRESSION));
         fileHeader = (BTreeFileHeader)getFileHeader();
         fileHeader.setPageCount(0);
         fileHeader.setTotalCount(0);
-        dataCache = new LRUCache(256, 0.0, 1.0, CacheManager.DATA_CACHE);
+        dataCache = cacheManager.createCache(CacheManager.DATA_CACHE, 256, 0.0, 1.0);
         dataCache.setFileName(getFileName());
         cacheManager.registerCache(dataCache);
         final Path file = dataDir.resolve(getFileName());
@@ -262,7 +286,7 @@ public class DOMFile extends BTree implements Lockable {
      * @exception DBException   Description of the Exception
      */
     public boolean open() throws DBException {
-        return super.open(FILE_FORMAT_VERSION_ID);
+        return super.open(FILE_FORMAT_VERSION_ID, LEGACY_FILE_FORMAT_VERSION_ID);
     }
 
     public void closeDocument() {
@@ -302,12 +326,29 @@ public class DOMFile extends BTree implements Lockable {
     }
 
     public boolean close() throws DBException {
+        stopPageWriters();
         if (!isReadOnly())
             {flush();}
         super.close();
         return true;
     }
 
+    @Override
+    protected void initCache() {
+        super.initCache();
+        startPageWriter(dataCache);
+    }
+
+    @Override
+    public boolean flushUnjournalled() throws DBException {
+        if (BrokerPool.FORCE_CORRUPTION) {
+            return false;
+        }
+        boolean flushed = super.flushUnjournalled();
+        flushed = flushed | flushUnjournalled(dataCache);
+        return flushed;
+    }
+
     public void closeAndRemove() {
         if (!lock.isLockedForWrite())
             {LOG.warn("The file doesn't own a write lock");}
@@ -341,7 +382,7 @@ public class DOMFile extends BTree implements Lockable {
             if (LOG.isDebugEnabled())
                 {LOG.debug("Creating overflow page");}
             final OverflowDOMPage overflowPage = new OverflowDOMPage(transaction);
-            overflowPage.write(transaction, value);
+            overflowPage.write(transaction, compress(value));
             final byte[] pageNum = ByteConversion.longToByte(overflowPage.getPageNum());
             return add(transaction, pageNum, true);
         } else {
@@ -460,7 +501,13 @@ public class DOMFile extends BTree implements Lockable {
     public byte[] getBinary(long pageNum) {
         if (!lock.hasLock())
             {LOG.warn("The file doesn't own a lock");}
-        return getOverflowValue(pageNum);
+        try {
+            final OverflowDOMPage overflowPage = new OverflowDOMPage(pageNum);
+            return overflowPage.read();
+        } catch (final IOException e) {
+            LOG.warn("IO error while loading overflow value", e);
+            return null;
+        }
     }
 
     public void readBinary(long pageNum, OutputStream os) {
@@ -518,7 +565,7 @@ public class DOMFile extends BTree implements Lockable {
         if (LENGTH_TID + LENGTH_DATA_LENGTH + value.length > fileHeader.getWorkSize()) {
             final OverflowDOMPage overflowPage = new OverflowDOMPage(transaction);
             LOG.debug("Creating overflow page: " + overflowPage.getPageNum());
-            overflowPage.write(transaction, value);
+            overflowPage.write(transaction, compress(value));
             value = ByteConversion.longToByte(overflowPage.getPageNum());
             isOverflow = true;
         }
@@ -1536,7 +1583,11 @@ public class DOMFile extends BTree implements Lockable {
             {LOG.warn("The file doesn't own a lock");}
         try {
             final OverflowDOMPage overflow = new OverflowDOMPage(pointer);
-            return overflow.read();
+            final byte[] data = overflow.read();
+            if (data.length > 0 && data[0] == COMPRESSED_VALUE) {
+                return decompress(data);
+            }
+            return data;
         } catch (final IOException e) {
             LOG.warn("IO error while loading overflow value", e);
             //TODO : throw exception ?
@@ -1544,6 +1595,59 @@ public class DOMFile extends BTree implements Lockable {
         }
     }
 
+    /**
+     * Compress a node value which is going to be written to an overflow page,
+     * if compression is enabled and the value does shrink.
+     *
+     * @param value the node value
+     * @return the value to write to the overflow page
+     */
+    private byte[] compress(byte[] value) {
+        if (!compressOverflow)
+            {return value;}
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(value);
+            deflater.finish();
+            // give up as soon as the compressed value gets as long as the original
+            final byte[] data = new byte[value.length];
+            data[0] = COMPRESSED_VALUE;
+            ByteConversion.intToByte(value.length, data, 1);
+            int len = LENGTH_COMPRESSED_HEADER;
+            while (!deflater.finished() && len < data.length) {
+                len += deflater.deflate(data, len, data.length - len);
+            }
+            if (!deflater.finished())
+                {return value;}
+            return Arrays.copyOf(data, len);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private byte[] decompress(byte[] data) throws IOException {
+        final byte[] value = new byte[ByteConversion.byteToInt(data, 1)];
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data, LENGTH_COMPRESSED_HEADER, data.length - LENGTH_COMPRESSED_HEADER);
+            int len = 0;
+            while (len < value.length && !inflater.finished()) {
+                final int inflated = inflater.inflate(value, len, value.length - len);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    {break;}
+                len += inflated;
+            }
+            if (len != value.length)
+                {throw new IOException("Compressed overflow value is truncated: expected " +
+                    value.length + " bytes, got " + len);}
+            return value;
+        } catch (final DataFormatException e) {
+            throw new IOException("Compressed overflow value is corrupted: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+
     /**
      * Remove the overflow value.
      * 
@@ -3091,6 +3195,11 @@ public class DOMFile extends BTree implements Lockable {
             return !saved;
         }
 
+        @Override
+        public long getFirstDirtyLsn() {
+            return page.getPageHeader().getFirstDirtyLsn();
+        }
+
         public void setDirty(boolean dirty) {
             saved = !dirty;
             page.getPageHeader().setDirty(dirty);
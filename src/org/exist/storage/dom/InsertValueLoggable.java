@@ -84,6 +84,11 @@ public class InsertValueLoggable extends AbstractLoggable {
         return 13 + value.length;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoInsertValue(this);
@@ -68,6 +68,11 @@ public class RemoveEmptyPageLoggable extends AbstractLoggable {
         return 12;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoRemoveEmptyPage(this);
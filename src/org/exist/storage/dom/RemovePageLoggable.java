@@ -87,6 +87,11 @@ public class RemovePageLoggable extends AbstractLoggable {
         return 18 + oldLen;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoRemovePage(this);
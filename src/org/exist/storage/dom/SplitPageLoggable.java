@@ -76,6 +76,11 @@ public class SplitPageLoggable extends AbstractLoggable implements Loggable {
         return 10 + oldLen;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoSplitPage(this);
@@ -77,6 +77,11 @@ public class UpdateHeaderLoggable extends AbstractLoggable {
         return 20;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoUpdateHeader(this);
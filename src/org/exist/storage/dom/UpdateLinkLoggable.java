@@ -69,6 +69,11 @@ public class UpdateLinkLoggable extends AbstractLoggable {
         return 22;
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoUpdateLink(this);
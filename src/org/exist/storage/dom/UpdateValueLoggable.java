@@ -80,6 +80,11 @@ public class UpdateValueLoggable extends AbstractLoggable {
         return 10 + (value.length * 2);
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoUpdateValue(this);
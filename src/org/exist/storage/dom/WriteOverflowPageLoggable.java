@@ -73,6 +73,11 @@ public class WriteOverflowPageLoggable extends AbstractLoggable {
         return 10 + value.getLength();
     }
 
+    @Override
+    public byte getFileId() {
+        return NativeBroker.DOM_DBX_ID;
+    }
+
     @Override
     public void redo() throws LogException {
         domDb.redoWriteOverflow(this);
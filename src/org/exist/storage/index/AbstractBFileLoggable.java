@@ -59,6 +59,11 @@ public abstract class AbstractBFileLoggable extends AbstractLoggable {
         return 1;
     }
 
+    @Override
+    public byte getFileId() {
+        return fileId;
+    }
+
     protected BFile getIndexFile() {
         return (BFile) broker.getStorage(fileId);
     }
@@ -37,7 +37,6 @@ import org.exist.storage.btree.IndexQuery;
 import org.exist.storage.btree.Value;
 import org.exist.storage.cache.Cache;
 import org.exist.storage.cache.Cacheable;
-import org.exist.storage.cache.LRUCache;
 import org.exist.storage.io.VariableByteArrayInput;
 import org.exist.storage.io.VariableByteInput;
 import org.exist.storage.io.VariableByteOutputStream;
@@ -45,6 +44,7 @@ import org.exist.storage.journal.LogEntryTypes;
 import org.exist.storage.journal.Loggable;
 import org.exist.storage.journal.Lsn;
 import org.exist.storage.lock.Lock;
+import org.exist.storage.lock.QueuedReadWriteLock;
 import org.exist.storage.lock.ReentrantReadWriteLock;
 import org.exist.storage.txn.TransactionException;
 import org.exist.storage.txn.Txn;
@@ -80,13 +80,25 @@ import static java.nio.charset.StandardCharsets.UTF_8;
  * 
  * Data pages are buffered.
  * 
+ * Callers lock the file through {@link #getLock()}: a read lock for lookups and
+ * queries, a write lock for any modification. If both, the b+-tree and the data
+ * cache, are concurrent ({@link DefaultCacheManager#isConcurrent(String)}), read
+ * locks are shared, so any number of readers can proceed together. Pages which
+ * are not cached are then loaded under a latch striped by page number
+ * ({@link #getLoadLatch(long)}). Otherwise the lock is exclusive in both modes.
+ * Writers are always serialized, as neither the b+-tree nor the free space
+ * list of the data pages support concurrent modifications.
+ * 
  * @author Wolfgang Meier <wolfgang@exist-db.org>
  */
 public class BFile extends BTree {
 
     protected final static Logger LOGSTATS = LogManager.getLogger( NativeBroker.EXIST_STATISTICS_LOGGER );
 
-    public final static short FILE_FORMAT_VERSION_ID = 13;
+    public final static short FILE_FORMAT_VERSION_ID = 14;
+
+    /** version 13 files are upgraded on open, their branch pages are converted lazily */
+    public final static short LEGACY_FILE_FORMAT_VERSION_ID = 13;
     
     public final static long UNKNOWN_ADDRESS = -1;
 
@@ -152,11 +164,15 @@ public class BFile extends BTree {
             double cacheGrowth, double thresholdData) throws DBException {
         super(pool, fileId, transactional, cacheManager, file);
         fileHeader = (BFileHeader) getFileHeader();
-        dataCache = new LRUCache(64, cacheGrowth, thresholdData, CacheManager.DATA_CACHE);
+        dataCache = cacheManager.createCache(CacheManager.DATA_CACHE, 64, cacheGrowth, thresholdData);
         dataCache.setFileName(FileUtils.fileName(file));
         cacheManager.registerCache(dataCache);
         minFree = PAGE_MIN_FREE;
-        lock = new ReentrantReadWriteLock(FileUtils.fileName(file));
+        if (cacheManager.isConcurrent(CacheManager.BTREE_CACHE) && cacheManager.isConcurrent(CacheManager.DATA_CACHE)) {
+            lock = new QueuedReadWriteLock(FileUtils.fileName(file));
+        } else {
+            lock = new ReentrantReadWriteLock(FileUtils.fileName(file));
+        }
         maxValueSize = fileHeader.getWorkSize() / 2;
         
         if(exists()) {
@@ -306,6 +322,19 @@ public class BFile extends BTree {
         cacheManager.deregisterCache(dataCache);
     }
 
+    @Override
+    protected void initCache() {
+        super.initCache();
+        startPageWriter(dataCache);
+    }
+
+    @Override
+    public boolean flushUnjournalled() throws DBException {
+        boolean flushed = flushUnjournalled(dataCache);
+        flushed = flushed | super.flushUnjournalled();
+        return flushed;
+    }
+
     private SinglePage createDataPage() {
         try {
             final SinglePage page = new SinglePage();
@@ -556,18 +585,14 @@ public class BFile extends BTree {
     }
 
     private DataPage getDataPage(long pos, boolean initialize) throws IOException {
-        final DataPage wp = (DataPage) dataCache.get(pos);
+        DataPage wp = (DataPage) dataCache.get(pos);
         if (wp == null) {
-            final Page page = getPage(pos);
-            if (page == null) {
-                LOG.debug("page " + pos + " not found!");
+            wp = loadSinglePage(pos, initialize);
+            if (wp == null) {
                 return null;
             }
-            final byte[] data = page.read();
-            if (page.getPageHeader().getStatus() == MULTI_PAGE)
-                {return new OverflowPage(page, data);}
-            return new SinglePage(page, data, initialize);
-        } else if (wp.getPageHeader().getStatus() == MULTI_PAGE)
+        }
+        if (wp.getPageHeader().getStatus() == MULTI_PAGE)
             {return new OverflowPage(wp);}
         else
             {return wp;}
@@ -580,17 +605,34 @@ public class BFile extends BTree {
     private SinglePage getSinglePage(long pos, boolean initialize) throws IOException {
         final SinglePage wp = (SinglePage) dataCache.get(pos);
         if (wp == null) {
-            final Page page = getPage(pos);
-            if (page == null) {
-                LOG.debug("page " + pos + " not found!");
-                return null;
-            }
-            final byte[] data = page.read();
-            return new SinglePage(page, data, initialize);
+            return loadSinglePage(pos, initialize);
         }
         return wp;
     }
 
+    /**
+     * Read a page which was not found in the data cache and add it to the cache,
+     * unless another reader did so in the meantime.
+     */
+    private SinglePage loadSinglePage(long pos, boolean initialize) throws IOException {
+        synchronized (getLoadLatch(pos)) {
+            SinglePage wp = (SinglePage) dataCache.get(pos);
+            if (wp == null) {
+                final Page page = getPage(pos);
+                if (page == null) {
+                    LOG.debug("page " + pos + " not found!");
+                    return null;
+                }
+                final byte[] data = page.read();
+                // the first page of an overflow value has no table of tids
+                final boolean overflow = page.getPageHeader().getStatus() == MULTI_PAGE;
+                wp = new SinglePage(page, data, initialize && !overflow);
+            }
+            dataCache.add(wp);
+            return wp;
+        }
+    }
+
     public ArrayList<Value> getEntries() throws IOException, BTreeException, TerminatedException {
         final IndexQuery query = new IndexQuery(IndexQuery.ANY, "");
         final FindCallback cb = new FindCallback(FindCallback.BOTH);
@@ -613,7 +655,7 @@ public class BFile extends BTree {
     }
 
     public boolean open() throws DBException {
-        return super.open(FILE_FORMAT_VERSION_ID);
+        return super.open(FILE_FORMAT_VERSION_ID, LEGACY_FILE_FORMAT_VERSION_ID);
     }
 
     /**
@@ -713,6 +755,25 @@ public class BFile extends BTree {
         }
     }
 
+    /**
+     * Store a value and pass its key to the given bulk loader. Keys
+     * have to be passed in ascending order, see {@link BTree#bulkLoad(double)}.
+     * Like the bulk loader, this does not write to the journal.
+     *
+     * @param loader the bulk loader obtained from {@link #bulkLoad(double)}
+     * @param key the key
+     * @param value the value to store
+     * @return the address of the stored value
+     */
+    public long bulkPut(BulkLoader loader, Value key, ByteArray value) throws IOException, BTreeException {
+        if (key.getLength() > fileHeader.getWorkSize()) {
+            throw new BTreeException("Key length exceeds page size: " + key.getLength());
+        }
+        final long p = storeValue(null, value);
+        loader.add(key, p);
+        return p;
+    }
+
     public void remove(Value key) {
         remove(null, key);
     }
@@ -1678,6 +1739,11 @@ public class BFile extends BTree {
             return !saved;
         }
 
+        @Override
+        public long getFirstDirtyLsn() {
+            return getPageHeader().getFirstDirtyLsn();
+        }
+
         public boolean allowUnload() {
             return true;
         }
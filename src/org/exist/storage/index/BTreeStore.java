@@ -12,7 +12,9 @@ import java.nio.file.Path;
 
 public class BTreeStore extends BTree {
 
-    public final static short FILE_FORMAT_VERSION_ID = 2;
+    public final static short FILE_FORMAT_VERSION_ID = 3;
+
+    public final static short LEGACY_FILE_FORMAT_VERSION_ID = 2;
 
     protected Lock lock = null;
 
@@ -21,7 +23,7 @@ public class BTreeStore extends BTree {
         lock = new ReentrantReadWriteLock(FileUtils.fileName(file));
 
         if(exists()) {
-            open(FILE_FORMAT_VERSION_ID);
+            open(FILE_FORMAT_VERSION_ID, LEGACY_FILE_FORMAT_VERSION_ID);
         } else {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("Creating data file: " + FileUtils.fileName(getFile()));
@@ -0,0 +1,216 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.journal;
+
+import java.io.IOException;
+
+/**
+ * Lets concurrently committing transactions share a single write and sync
+ * of the journal.
+ *
+ * A committing thread calls {@link #awaitDurable(long)} with the LSN of its commit
+ * record, after the record has been added to the journal buffer. If no other thread
+ * is currently syncing the journal, the caller becomes the leader: it optionally waits
+ * up to <code>window</code> milliseconds for more commits to arrive (or until
+ * <code>maxBytes</code> of journal data are pending), then flushes and syncs the journal
+ * once for all of them. All other callers wait until a sync covering their LSN
+ * has completed. Commits arriving while a sync is in progress are handled
+ * together by the next one, even if the window is 0.
+ *
+ * If writing or syncing the journal fails, the LSN is not marked durable and the
+ * leader gets the error. The failure is kept: the data written since the last
+ * successful sync may be lost, so every later commit which is not yet durable
+ * fails with the same error.
+ */
+public class GroupCommit {
+
+    /**
+     * Writes and syncs the journal.
+     */
+    public interface Flusher {
+
+        /**
+         * @return the last LSN which is durable afterwards
+         * @throws IOException if the journal could not be written or synced
+         */
+        long flush() throws IOException;
+    }
+
+    private final Flusher flusher;
+    private final long window;
+    private final int maxBytes;
+
+    // all guarded by this
+    private long durableLsn = Lsn.LSN_INVALID;
+    private long requestedLsn = Lsn.LSN_INVALID;
+    private boolean syncInProgress = false;
+    private int waiting = 0;
+    private IOException failure = null;
+
+    private long commits = 0;
+    private long syncs = 0;
+    private int maxCommitsPerSync = 0;
+
+    /**
+     * @param flusher writes and syncs the journal, returning the last LSN which is durable afterwards
+     * @param window the time in milliseconds a leader waits for more commits before syncing
+     * @param maxBytes stop waiting if at least this many bytes of journal data are pending
+     */
+    public GroupCommit(Flusher flusher, long window, int maxBytes) {
+        this.flusher = flusher;
+        this.window = window;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Block until the journal has been written and synced up to
+     * (and including) the given LSN.
+     *
+     * @param lsn the LSN of the commit record
+     * @throws IOException if the journal could not be written or synced up to the LSN
+     */
+    public void awaitDurable(long lsn) throws IOException {
+        final int batch;
+        synchronized (this) {
+            commits++;
+            if (lsn <= durableLsn) {
+                return;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (lsn > requestedLsn) {
+                requestedLsn = lsn;
+            }
+            waiting++;
+            notifyAll();
+            boolean interrupted = false;
+            try {
+                while (syncInProgress && lsn > durableLsn) {
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (lsn <= durableLsn) {
+                    return;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                // become the leader
+                syncInProgress = true;
+                interrupted = waitForBatch() || interrupted;
+                batch = waiting;
+                waiting = 0;
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        long synced = Lsn.LSN_INVALID;
+        try {
+            synced = flusher.flush();
+        } catch (final IOException e) {
+            synchronized (this) {
+                failure = e;
+            }
+            throw e;
+        } finally {
+            synchronized (this) {
+                if (synced > durableLsn) {
+                    durableLsn = synced;
+                }
+                syncs++;
+                if (batch > maxCommitsPerSync) {
+                    maxCommitsPerSync = batch;
+                }
+                syncInProgress = false;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Called by the leader while holding the monitor: wait until the window
+     * has passed or enough data is pending.
+     *
+     * @return true if the thread was interrupted
+     */
+    private boolean waitForBatch() {
+        if (window <= 0) {
+            return false;
+        }
+        final long deadline = System.currentTimeMillis() + window;
+        long remaining = window;
+        while (remaining > 0 && pendingBytes() < maxBytes) {
+            try {
+                wait(remaining);
+            } catch (final InterruptedException e) {
+                return true;
+            }
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return false;
+    }
+
+    private long pendingBytes() {
+        if (durableLsn == Lsn.LSN_INVALID || Lsn.getFileNumber(durableLsn) != Lsn.getFileNumber(requestedLsn)) {
+            // nothing synced in this file yet: everything up to the requested LSN is pending
+            return Lsn.getOffset(requestedLsn);
+        }
+        return Lsn.getOffset(requestedLsn) - Lsn.getOffset(durableLsn);
+    }
+
+    /**
+     * @return the time in milliseconds a leader waits for further commits
+     */
+    public long getWindow() {
+        return window;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getCommitCount() {
+        return commits;
+    }
+
+    public synchronized long getSyncCount() {
+        return syncs;
+    }
+
+    /**
+     * @return the average number of commits which shared a single sync of the journal
+     */
+    public synchronized double getCommitsPerSync() {
+        return syncs == 0 ? 0.0 : commits / (double) syncs;
+    }
+
+    public synchronized int getMaxCommitsPerSync() {
+        return maxCommitsPerSync;
+    }
+}
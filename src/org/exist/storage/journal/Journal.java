@@ -28,9 +28,11 @@ import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.text.DateFormat;
 import java.util.Optional;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -68,6 +70,17 @@ import org.exist.util.sanity.SanityCheck;
  *  <li>backLink: offset to the start of the record. Used when scanning the log file backwards.</li>
  * </ul>
  * 
+ * If a compression threshold is configured, the data of entries at least that large is deflated.
+ * The entry type of a compressed entry has the {@link #LOG_ENTRY_COMPRESSED} bit set, and its
+ * data starts with the uncompressed length as a short.
+ * 
+ * If preallocation is enabled, each journal file is filled with zeros up to the size limit
+ * before it is used. Appending to the journal then no longer changes the file size, so
+ * syncing the journal does not have to update the file system metadata. A zeroed entry header
+ * marks the end of the journal. Instead of being deleted after a checkpoint, the old file is
+ * zeroed by a background thread and kept as a spare file, which is renamed to become
+ * the next journal file.
+ * 
  * @author wolf
  */
 @ConfigurationClass("journal")
@@ -85,11 +98,22 @@ public class Journal {
     public final static String PROPERTY_RECOVERY_SIZE_LIMIT = "db-connection.recovery.size-limit";
     public final static String PROPERTY_RECOVERY_JOURNAL_DIR = "db-connection.recovery.journal-dir";
     public final static String PROPERTY_RECOVERY_SYNC_ON_COMMIT = "db-connection.recovery.sync-on-commit";
+    public final static String RECOVERY_GROUP_COMMIT_WINDOW_ATTRIBUTE = "group-commit-window";
+    public final static String PROPERTY_RECOVERY_GROUP_COMMIT_WINDOW = "db-connection.recovery.group-commit-window";
+    public final static String RECOVERY_GROUP_COMMIT_SIZE_ATTRIBUTE = "group-commit-size";
+    public final static String PROPERTY_RECOVERY_GROUP_COMMIT_SIZE = "db-connection.recovery.group-commit-size";
+    public final static String RECOVERY_COMPRESS_THRESHOLD_ATTRIBUTE = "compress-threshold";
+    public final static String PROPERTY_RECOVERY_COMPRESS_THRESHOLD = "db-connection.recovery.compress-threshold";
+    public final static String RECOVERY_PREALLOCATE_ATTRIBUTE = "preallocate";
+    public final static String PROPERTY_RECOVERY_PREALLOCATE = "db-connection.recovery.preallocate";
 
     public final static String LOG_FILE_SUFFIX = "log";
     public final static String BAK_FILE_SUFFIX = ".bak";
 
     public final static String LCK_FILE = "journal.lck";
+
+    /** a zeroed journal file which can be reused as the next journal */
+    public final static String SPARE_FILE = "journal.spare";
     
     /** the length of the header of each entry: entryType + transactionId + length */
     public final static int LOG_ENTRY_HEADER_LEN = 11;
@@ -97,9 +121,21 @@ public class Journal {
     /** header length + trailing back link */
     public final static int LOG_ENTRY_BASE_LEN = LOG_ENTRY_HEADER_LEN + 2;
 
+    /** set in the entry type of entries with deflated data. Entry types registered in {@link LogEntryTypes} are smaller */
+    public final static byte LOG_ENTRY_COMPRESSED = (byte) 0x80;
+
     /** default maximum journal size */
     public final static int DEFAULT_MAX_SIZE = 10 * 1024 * 1024;
 
+    /** default time in ms a group commit waits for further transactions; 0 only groups commits arriving during a sync */
+    public final static int DEFAULT_GROUP_COMMIT_WINDOW = 0;
+
+    /** default amount of pending journal data (in kilobytes) which ends the group commit window early */
+    public final static int DEFAULT_GROUP_COMMIT_SIZE = 64;
+
+    /** default minimal size of an entry's data to be compressed; 0 disables compression */
+    public final static int DEFAULT_COMPRESS_THRESHOLD = 0;
+
     /** minimal size the journal needs to have to be replaced by a new file during a checkpoint */
     private static final long MIN_REPLACE = 1024 * 1024;
 
@@ -113,15 +149,28 @@ public class Journal {
 
     /** the current output channel 
      * Only valid after switchFiles() was called at least once! */
-    private FileOutputStream os;
     private FileChannel channel;
 
+    /** entries with at least this many bytes of data are compressed, if larger than 0 */
+    private int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;
+
+    /** used to compress entries, guarded by this */
+    private Deflater deflater = null;
+    private ByteBuffer uncompressed = null;
+    private byte[] compressed = null;
+
+    /** if set to true, journal files are filled with zeros up to the size limit, and recycled */
+    private boolean preallocate = false;
+
     /** Synching the journal is done by a background thread */
     private FileSyncThread syncThread;
 
     /** latch used to synchronize writes to the channel */
     private Object latch = new Object();
 
+    /** the first error writing the buffer to the channel, guarded by latch */
+    private IOException flushFailure = null;
+
     /** the data directory where journal files are written to */
     @ConfigurationFieldAsAttribute("journal-dir") 
     //TODO: conf.xml refactoring <recovery journal-dir=""> => <journal dir="">
@@ -160,6 +209,9 @@ public class Journal {
 
     private Path fsJournalDir;
 
+    /** lets concurrent commits share a sync of the journal */
+    private final GroupCommit groupCommit;
+
     public Journal(final BrokerPool pool, final Path directory) throws EXistException {
         this.dir = directory;
         this.pool = pool;
@@ -213,6 +265,25 @@ public class Journal {
         if (sizeOpt != null) {
             journalSizeLimit = sizeOpt.intValue() * 1024 * 1024;
         }
+
+        final Integer windowOpt = (Integer) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_GROUP_COMMIT_WINDOW);
+        final Integer groupSizeOpt = (Integer) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_GROUP_COMMIT_SIZE);
+        groupCommit = new GroupCommit(this::flushForGroupCommit,
+                windowOpt == null ? DEFAULT_GROUP_COMMIT_WINDOW : windowOpt.intValue(),
+                (groupSizeOpt == null ? DEFAULT_GROUP_COMMIT_SIZE : groupSizeOpt.intValue()) * 1024);
+
+        final Integer compressOpt = (Integer) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_COMPRESS_THRESHOLD);
+        if (compressOpt != null) {
+            compressThreshold = compressOpt.intValue();
+        }
+        if (compressThreshold > 0) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+
+        final Boolean preallocateOpt = (Boolean) pool.getConfiguration().getProperty(PROPERTY_RECOVERY_PREALLOCATE);
+        if (preallocateOpt != null) {
+            preallocate = preallocateOpt.booleanValue();
+        }
     }
 
     public void initialize() throws EXistException, ReadOnlyException {
@@ -240,6 +311,10 @@ public class Journal {
             {throw new TransactionException("Database is shut down.");}
         SanityCheck.ASSERT(!inRecovery, "Write to log during recovery. Should not happen!");
         final int size = loggable.getLogSize();
+        if (deflater != null && size >= compressThreshold && writeCompressed(loggable, size)) {
+            pool.getTransactionManager().trackOperation(loggable.getTransactionId());
+            return;
+        }
         final int required = size + LOG_ENTRY_BASE_LEN;
         if (required > currentBuffer.remaining())
             {flushToLog(false);}
@@ -257,6 +332,48 @@ public class Journal {
         pool.getTransactionManager().trackOperation(loggable.getTransactionId());
     }
 
+    /**
+     * Write the entry with deflated data, unless compression does not
+     * save at least the bytes needed to store the uncompressed length.
+     *
+     * @param loggable the entry
+     * @param size the size of the entry's data
+     * @return false if the entry was not written
+     */
+    private boolean writeCompressed(final Loggable loggable, final int size) throws TransactionException {
+        if (uncompressed == null || uncompressed.capacity() < size) {
+            uncompressed = ByteBuffer.allocate(size);
+            compressed = new byte[size];
+        }
+        // make room for the uncompressed entry, so the LSN does not change after the data was written
+        if (size + LOG_ENTRY_BASE_LEN > currentBuffer.remaining())
+            {flushToLog(false);}
+        loggable.setLsn(Lsn.create(currentFile, inFilePos + currentBuffer.position() + 1));
+        uncompressed.clear();
+        try {
+            loggable.write(uncompressed);
+        } catch (final BufferOverflowException e) {
+            throw new TransactionException("Buffer overflow while writing log record: " + loggable.dump(), e);
+        }
+        deflater.reset();
+        deflater.setInput(uncompressed.array(), 0, uncompressed.position());
+        deflater.finish();
+        final int compressedSize = deflater.deflate(compressed, 0, size - 2);
+        if (!deflater.finished()) {
+            return false;
+        }
+
+        final int dataSize = compressedSize + 2;
+        currentLsn = loggable.getLsn();
+        currentBuffer.put((byte) (loggable.getLogType() | LOG_ENTRY_COMPRESSED));
+        currentBuffer.putLong(loggable.getTransactionId());
+        currentBuffer.putShort((short) dataSize);
+        currentBuffer.putShort((short) size);
+        currentBuffer.put(compressed, 0, compressedSize);
+        currentBuffer.putShort((short) (dataSize + LOG_ENTRY_HEADER_LEN));
+        return true;
+    }
+
     /**
      * Returns the last LSN physically written to the journal.
      * 
@@ -291,12 +408,54 @@ public class Journal {
             syncThread.triggerSync();
             lastSyncLsn = currentLsn;
         }
+        if (channel != null && inFilePos >= journalSizeLimit)
+            {pool.triggerCheckpoint();}
+    }
+
+    /**
+     * Wait until the journal has been written up to the given commit record,
+     * and synced if sync-on-commit is enabled. Concurrent callers share
+     * a single write and sync, see {@link GroupCommit}.
+     *
+     * @param commitLsn the LSN of the commit record
+     */
+    public void awaitCommit(long commitLsn) throws TransactionException {
+        if (inRecovery || commitLsn == Lsn.LSN_INVALID)
+            {return;}
         try {
-            if (channel != null && channel.size() >= journalSizeLimit)
-                {pool.triggerCheckpoint();}
+            groupCommit.awaitDurable(commitLsn);
         } catch (final IOException e) {
-            LOG.warn("Failed to trigger checkpoint!", e);
+            throw new TransactionException("Failed to write the journal: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Called by the leader of a group commit. The file is synced outside
+     * of the journal's monitor, so other transactions can continue writing
+     * to the buffer in the meantime.
+     *
+     * @return the last LSN which is on disk
+     * @throws IOException if the buffer could not be written or the file could not be synced
+     */
+    private long flushForGroupCommit() throws IOException {
+        final long lsn;
+        synchronized (this) {
+            flushToLog(false);
+            lsn = currentLsn;
+        }
+        synchronized (latch) {
+            if (flushFailure != null) {
+                throw flushFailure;
+            }
+            if (syncOnCommit && channel != null) {
+                channel.force(false);
+            }
         }
+        return lsn;
+    }
+
+    public GroupCommit getGroupCommit() {
+        return groupCommit;
     }
 
     /**
@@ -319,6 +478,8 @@ public class Journal {
                 }
             } catch (final IOException e) {
                 LOG.warn("Flushing log file failed!", e);
+                // the buffer is lost: group commits must not report it as durable
+                flushFailure = e;
             } finally {
                 currentBuffer.clear();
             }
@@ -328,15 +489,32 @@ public class Journal {
     /**
      * Write a checkpoint record to the journal and flush it. If switchLogFiles is true,
      * a new journal will be started, but only if the file is larger than
-     * {@link #MIN_REPLACE}. The old log is removed.
+     * {@link #MIN_REPLACE}. The old log is removed, or kept as spare file if preallocation
+     * is enabled.
      *
      * @param txnId
      * @param switchLogFiles
      * @throws TransactionException
      */
     public void checkpoint(long txnId, boolean switchLogFiles) throws TransactionException {
+        checkpoint(txnId, switchLogFiles, Lsn.LSN_INVALID);
+    }
+
+    /**
+     * Write a checkpoint record. If redoLsn is valid, the checkpoint is fuzzy:
+     * some pages changed by entries since redoLsn may not yet be on disk,
+     * so the journal file is not switched.
+     *
+     * @param txnId the transaction id
+     * @param switchLogFiles true if a new journal file should be started
+     * @param redoLsn the oldest LSN recovery may have to redo, or {@link Lsn#LSN_INVALID}
+     */
+    public void checkpoint(long txnId, boolean switchLogFiles, long redoLsn) throws TransactionException {
         LOG.debug("Checkpoint reached");
-        writeToLog(new Checkpoint(txnId));
+        if (redoLsn != Lsn.LSN_INVALID) {
+            switchLogFiles = false;
+        }
+        writeToLog(new Checkpoint(txnId, redoLsn));
         if (switchLogFiles)
             // if we switch files, we don't need to sync.
             // the file will be removed anyway.
@@ -346,7 +524,7 @@ public class Journal {
         try {
             if (switchLogFiles && channel != null && channel.position() > MIN_REPLACE) {
                 final Path oldFile = getFile(currentFile);
-                final RemoveThread rt = new RemoveThread(channel, oldFile);
+                final RemoveThread rt = new RemoveThread(channel, oldFile, preallocate ? dir.resolve(SPARE_FILE) : null);
                 try {
                     switchFiles();
                 } catch (final LogException e) {
@@ -414,18 +592,69 @@ public class Journal {
         synchronized (latch) {
             close();
             try {
-                //RandomAccessFile raf = new RandomAccessFile(file, "rw");
-                os = new FileOutputStream(file.toFile(), true);
-                channel = os.getChannel();
-                
+                final boolean recycled = preallocate && reuseSpareFile(file);
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                if (preallocate && (!recycled || channel.size() < journalSizeLimit)) {
+                    preallocate(channel, journalSizeLimit);
+                }
+
                 syncThread.setChannel(channel);
-            } catch (final FileNotFoundException e) {
+            } catch (final IOException e) {
                 throw new LogException("Failed to open new journal: " + file.toAbsolutePath().toString(), e);
             }
         }
         inFilePos = 0;
     }
 
+    /**
+     * Rename the spare journal file, if there is one, to the given file.
+     *
+     * @return true if the spare file was renamed
+     */
+    private boolean reuseSpareFile(final Path file) {
+        final Path spare = dir.resolve(SPARE_FILE);
+        if (!Files.exists(spare)) {
+            return false;
+        }
+        try {
+            Files.move(spare, file, StandardCopyOption.ATOMIC_MOVE);
+            if (LOG.isDebugEnabled()) {
+                LOG.debug("Reusing spare journal file for " + file.toAbsolutePath().toString());
+            }
+            return true;
+        } catch (final IOException e) {
+            LOG.warn("Failed to reuse spare journal file: " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    /**
+     * Fill the file with zeros up to the given size and sync it, so later writes
+     * and syncs do not change the file size.
+     */
+    private static void preallocate(final FileChannel channel, final long size) throws IOException {
+        zeroFill(channel, size);
+        channel.force(true);
+        channel.position(0);
+    }
+
+    /**
+     * Overwrite the file with zeros, up to the given size or the current
+     * size of the file, whichever is larger.
+     */
+    private static void zeroFill(final FileChannel channel, final long size) throws IOException {
+        final ByteBuffer zeros = ByteBuffer.allocateDirect(64 * 1024);
+        final long end = Math.max(size, channel.size());
+        long pos = 0;
+        while (pos < end) {
+            zeros.clear();
+            zeros.limit((int) Math.min(zeros.capacity(), end - pos));
+            while (zeros.hasRemaining()) {
+                pos += channel.write(zeros, pos);
+            }
+        }
+    }
+
     public void close() {
         if (channel != null) {
             try {
@@ -434,13 +663,6 @@ public class Journal {
                 LOG.warn("Failed to close journal", e);
             }
         }
-        if (os != null) {
-            try {
-                os.close();
-            } catch (final IOException e) {
-                LOG.warn("Failed to close journal", e);
-            }
-        }
     }
 
     private static int journalFileNum(final Path path) {
@@ -517,6 +739,9 @@ public class Journal {
             //Nothing to do
         }
         currentBuffer = null;
+        if (deflater != null) {
+            deflater.end();
+        }
     }
 
     /**
@@ -541,14 +766,20 @@ public class Journal {
         return hex + '.' + LOG_FILE_SUFFIX;
     }
 
+    /**
+     * Closes and removes a journal file which is no longer needed. If a spare
+     * file is given, the journal is zeroed and renamed to the spare file instead.
+     */
     private static class RemoveThread extends Thread {
         final FileChannel channel;
         final Path path;
+        final Path spare;
 
-        RemoveThread(final FileChannel channel, final Path path) {
+        RemoveThread(final FileChannel channel, final Path path, final Path spare) {
             super("RemoveJournalThread");
             this.channel = channel;
             this.path = path;
+            this.spare = spare;
         }
 
         @Override
@@ -560,6 +791,22 @@ public class Journal {
             } catch (final IOException e) {
                 LOG.warn("Exception while closing journal file: " + e.getMessage(), e);
             }
+            if (spare != null) {
+                try (final FileChannel fc = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                    zeroFill(fc, 0);
+                    fc.force(true);
+                } catch (final IOException e) {
+                    LOG.warn("Failed to clear journal file " + path.toAbsolutePath().toString() + ": " + e.getMessage(), e);
+                    FileUtils.deleteQuietly(path);
+                    return;
+                }
+                try {
+                    Files.move(path, spare, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                    return;
+                } catch (final IOException e) {
+                    LOG.warn("Failed to keep journal file as spare: " + e.getMessage(), e);
+                }
+            }
             FileUtils.deleteQuietly(path);
         }
     }
@@ -24,9 +24,10 @@ package org.exist.storage.journal;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SeekableByteChannel;
-import java.nio.file.Files;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 import static java.nio.file.StandardOpenOption.READ;
 
 import org.apache.logging.log4j.LogManager;
@@ -35,8 +36,10 @@ import org.exist.storage.DBBroker;
 
 /**
  * Read log entries from the journal file. This class is used during recovery to scan the
- * last journal file. It uses a memory-mapped byte buffer on the file.
+ * last journal file. The file is read in large chunks into a read-ahead buffer, so
+ * scanning a journal with many small entries does not need a system call per entry.
  * Journal entries can be read forward (during redo) or backward (during undo). 
+ * A zeroed entry header marks the end of a preallocated journal file.
  * 
  * @author wolf
  *
@@ -45,13 +48,27 @@ public class JournalReader {
 
     private static final Logger LOG = LogManager.getLogger(JournalReader.class);
 
-    private SeekableByteChannel fc;
-    private ByteBuffer header = ByteBuffer.allocateDirect(Journal.LOG_ENTRY_HEADER_LEN);
-    private ByteBuffer payload = ByteBuffer.allocateDirect(8192);
+    /** size of the read-ahead buffer */
+    private static final int READ_AHEAD = 1024 * 1024;
+
+    private FileChannel fc;
+
+    /** the size of the file, which is not written while it is being read */
+    private final long fileSize;
+
+    /** the current position in the file */
+    private long position = 0;
+
+    /** contains the bytes of the file starting at bufferStart */
+    private ByteBuffer buffer = ByteBuffer.allocate(READ_AHEAD);
+    private long bufferStart = 0;
 
     private int fileNumber;
     private DBBroker broker;
 
+    /** used to read compressed entries */
+    private Inflater inflater = null;
+
     /**
      * Opens the specified file for reading.
      * 
@@ -64,10 +81,12 @@ public class JournalReader {
         this.broker = broker;
         this.fileNumber = fileNumber;
         try {
-            fc = Files.newByteChannel(file, READ);
+            fc = FileChannel.open(file, READ);
+            fileSize = fc.size();
         } catch (final IOException e) {
             throw new LogException("Failed to read log file " + file.toAbsolutePath().toString(), e);
         }
+        buffer.limit(0);
     }
 
     /**
@@ -77,13 +96,9 @@ public class JournalReader {
      * @throws LogException if an entry could not be read due to an inconsistency on disk.
      */
     public Loggable nextEntry() throws LogException {
-        try {
-            if (fc.position() + Journal.LOG_ENTRY_BASE_LEN > fc.size())
-                {return null;}
-            return readEntry();
-        } catch (final IOException e) {
-            return null;
-        }
+        if (position + Journal.LOG_ENTRY_BASE_LEN > fileSize)
+            {return null;}
+        return readEntry(false);
     }
 
     /**
@@ -91,26 +106,22 @@ public class JournalReader {
      * 
      * @return the previous entry
      * @throws LogException if an entry could not be read due to an inconsistency on disk.
-     * @throws LogException 
+     * @throws LogException
      */
     public Loggable previousEntry() throws LogException {
         try {
-            if (fc.position() == 0)
+            if (position == 0)
                 {return null;}
             // go back two bytes and read the back-link of the last entry
-            fc.position(fc.position() - 2);
-            header.clear().limit(2);
-            final int bytes = fc.read(header);
-            if (bytes < 2)
+            if (position < 2 || fill(position - 2, 2, true) < 2)
                 {throw new LogException("Incomplete log entry found!");}
-            header.flip();
-            final short prevLink = header.getShort();
-            // position the channel to the start of the previous entry and mark it
-            final long prevStart = fc.position() - 2 -prevLink;
-            fc.position(prevStart);
-            final Loggable loggable = readEntry();
+            final short prevLink = buffer.getShort((int) (position - 2 - bufferStart));
+            // position the reader to the start of the previous entry and mark it
+            final long prevStart = position - 2 - prevLink;
+            position = prevStart;
+            final Loggable loggable = readEntry(true);
             // reset to the mark
-            fc.position(prevStart);
+            position = prevStart;
             return loggable;
         } catch (final IOException e) {
             throw new LogException("Fatal error while reading journal entry: " + e.getMessage(), e);
@@ -119,61 +130,172 @@ public class JournalReader {
 
     public Loggable lastEntry() throws LogException {
         try {
-            fc.position(fc.size());
-            return previousEntry();
+            position = endOfData();
         } catch (final IOException e) {
             throw new LogException("Fatal error while reading journal entry: " + e.getMessage(), e);
         }
+        return previousEntry();
+    }
+
+    /**
+     * Find the end of the last entry. This is the end of the file, unless the
+     * file was preallocated: then the last entry ends with the back-link before
+     * the zeroed remainder of the file. If its lower byte is zero, the back-link
+     * ends one byte after the last non-zero byte.
+     *
+     * @return the offset following the last entry
+     */
+    private long endOfData() throws IOException {
+        long end = fileSize;
+        while (end > 0) {
+            final int len = (int) Math.min(READ_AHEAD, end);
+            fill(end - len, len, true);
+            final int offset = (int) (end - len - bufferStart);
+            int i = offset + len - 1;
+            while (i >= offset && buffer.get(i) == 0) {
+                i--;
+            }
+            if (i >= offset) {
+                end = bufferStart + i + 1;
+                break;
+            }
+            end -= len;
+        }
+        if (end == fileSize || end == 0) {
+            return end;
+        }
+        if (end + 1 <= fileSize && !isEndOfEntry(end) && isEndOfEntry(end + 1)) {
+            return end + 1;
+        }
+        return end;
+    }
+
+    /**
+     * @return true if the back-link before the given offset points to the start
+     * of an entry with a matching length
+     */
+    private boolean isEndOfEntry(final long end) throws IOException {
+        if (end < Journal.LOG_ENTRY_BASE_LEN || fill(end - 2, 2, true) < 2) {
+            return false;
+        }
+        final short prevLink = buffer.getShort((int) (end - 2 - bufferStart));
+        final long start = end - 2 - prevLink;
+        if (prevLink < Journal.LOG_ENTRY_HEADER_LEN || start < 0 || fill(start, Journal.LOG_ENTRY_HEADER_LEN, true) < Journal.LOG_ENTRY_HEADER_LEN) {
+            return false;
+        }
+        return buffer.getShort((int) (start + 9 - bufferStart)) == prevLink - Journal.LOG_ENTRY_HEADER_LEN;
+    }
+
+    /**
+     * Make sure the buffer contains len bytes starting at offset pos
+     * in the file, unless the end of the file is reached.
+     *
+     * @param pos the offset in the file
+     * @param len the number of bytes required
+     * @param backward true if the file is scanned backwards: the buffer will end at pos + len
+     * @return the number of bytes available from pos, at most len
+     */
+    private int fill(final long pos, final int len, final boolean backward) throws IOException {
+        if (pos >= bufferStart && pos + len <= bufferStart + buffer.limit())
+            {return len;}
+        if (len > buffer.capacity())
+            {buffer = ByteBuffer.allocate(len);}
+        bufferStart = backward ? Math.max(0, pos + len - buffer.capacity()) : pos;
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, bufferStart + buffer.position()) < 0)
+                {break;}
+        }
+        buffer.flip();
+        return (int) Math.max(0, Math.min(len, bufferStart + buffer.limit() - pos));
     }
 
     /**
-     * Read a single entry.
+     * Read a single entry at the current position.
      * 
+     * @param backward true if the file is scanned backwards
      * @return The entry
      * @throws LogException
      */
-    private Loggable readEntry() throws LogException {
+    private Loggable readEntry(final boolean backward) throws LogException {
         try {
-            final long lsn = Lsn.create(fileNumber, (int) fc.position() + 1);
-            header.clear();
-            int bytes = fc.read(header);
+            final long start = position;
+            final long lsn = Lsn.create(fileNumber, (int) start + 1);
+            final int bytes = fill(start, Journal.LOG_ENTRY_HEADER_LEN, backward);
             if (bytes <= 0)
                 {return null;}
             if (bytes < Journal.LOG_ENTRY_HEADER_LEN)
                 {throw new LogException("Incomplete log entry header found: " + bytes);}
-            header.flip();
-            final byte entryType = header.get();
-            final long transactId = header.getLong();
-            final short size = header.getShort();
-            if (fc.position() + size > fc.size())
+            int offset = (int) (start - bufferStart);
+            final byte storedType = buffer.get(offset);
+            final long transactId = buffer.getLong(offset + 1);
+            final short size = buffer.getShort(offset + 9);
+            final long payloadStart = start + Journal.LOG_ENTRY_HEADER_LEN;
+            if (payloadStart + size > fileSize)
                 {throw new LogException("Invalid length");}
+            if (storedType == 0 && transactId == 0 && size == 0 && !backward && isZeroed(payloadStart))
+                {return null;}
+            final boolean compressed = (storedType & Journal.LOG_ENTRY_COMPRESSED) != 0;
+            final byte entryType = (byte) (storedType & ~Journal.LOG_ENTRY_COMPRESSED);
             final Loggable loggable = LogEntryTypes.create(entryType, broker, transactId);
             if (loggable == null)
                 {throw new LogException("Invalid log entry: " + entryType + "; size: " + size + "; id: " +
                         transactId + "; at: " + Lsn.dump(lsn));}
             loggable.setLsn(lsn);
-            if (size + 2 > payload.capacity()) {
-                // resize the payload buffer
-                payload = ByteBuffer.allocate(size + 2);
-            }
-            payload.clear().limit(size + 2);
-            bytes = fc.read(payload);
-            if (bytes < size + 2)
+            if (fill(payloadStart, size + 2, backward) < size + 2)
                 {throw new LogException("Incomplete log entry found!");}
-            payload.flip();
-            loggable.read(payload);
+            offset = (int) (payloadStart - bufferStart);
+            final ByteBuffer payload = buffer.duplicate();
+            payload.limit(offset + size + 2).position(offset);
+            if (compressed) {
+                loggable.read(inflate(payload, size));
+            } else {
+                loggable.read(payload);
+            }
             final short prevLink = payload.getShort();
             if (prevLink != size + Journal.LOG_ENTRY_HEADER_LEN) {
                 LOG.warn("Bad pointer to previous: prevLink = " + prevLink + "; size = " + size + 
                         "; transactId = " + transactId);
                 throw new LogException("Bad pointer to previous in entry: " + loggable.dump());
             }
+            position = payloadStart + size + 2;
             return loggable;
         } catch (final Exception e) {
             throw new LogException(e.getMessage(), e);
         }
     }
 
+    /**
+     * @return true if the back-link following an empty entry header is zero,
+     * so the header belongs to the zeroed end of a preallocated file
+     */
+    private boolean isZeroed(final long backLinkStart) throws IOException {
+        return fill(backLinkStart, 2, false) == 2 && buffer.getShort((int) (backLinkStart - bufferStart)) == 0;
+    }
+
+    /**
+     * Inflate the data of a compressed entry. The data starts with the
+     * uncompressed length.
+     *
+     * @param payload positioned at the start of the data, will be positioned after it
+     * @param size the size of the compressed data
+     * @return the uncompressed data
+     */
+    private ByteBuffer inflate(final ByteBuffer payload, final int size) throws DataFormatException, LogException {
+        final int uncompressedSize = payload.getShort();
+        final byte[] data = new byte[uncompressedSize];
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), size - 2);
+        if (inflater.inflate(data) != uncompressedSize || !inflater.finished()) {
+            throw new LogException("Corrupted compressed log entry");
+        }
+        payload.position(payload.position() + size - 2);
+        return ByteBuffer.wrap(data);
+    }
+
     /**
      * Re-position the file position so it points to the start of the entry
      * with the given LSN.
@@ -182,11 +304,7 @@ public class JournalReader {
      * @throws LogException 
      */
     public void position(final long lsn) throws LogException {
-        try {
-            fc.position((int) Lsn.getOffset(lsn) - 1);
-        } catch (final IOException e) {
-            throw new LogException("Fatal error while reading journal: " + e.getMessage(), e);
-        }
+        position = Lsn.getOffset(lsn) - 1;
     }
 
     public void close() {
@@ -196,5 +314,8 @@ public class JournalReader {
             //Nothing to do
         }
         fc = null;
+        if (inflater != null) {
+            inflater.end();
+        }
     }
 }
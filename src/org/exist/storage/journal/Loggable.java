@@ -30,6 +30,12 @@ import java.nio.ByteBuffer;
  * @author wolf
  */
 public interface Loggable {
+
+    /**
+     * Returned by {@link #getFileId()} if the entry is not bound to a single
+     * paged file.
+     */
+    public static final byte NO_FILE = -1;
     
 	/**
 	 * Returns the type id of the log entry. This is the type registered
@@ -101,6 +107,18 @@ public interface Loggable {
      */
     public void undo() throws LogException;
     
+    /**
+     * Returns the id of the paged file modified by {@link #redo()}
+     * and {@link #undo()}. During recovery, entries for different files
+     * are redone concurrently, entries for the same file in LSN order.
+     *
+     * @return the file id or {@link #NO_FILE} if the entry may
+     * touch anything else than a single file
+     */
+    public default byte getFileId() {
+        return NO_FILE;
+    }
+
     /**
      * Returns a description of the entry for debugging purposes.
      * 
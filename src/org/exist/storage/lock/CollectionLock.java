@@ -0,0 +1,129 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.lock;
+
+import org.exist.collections.Collection;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * The lock of a single {@link Collection}, which also takes part in the
+ * {@link HierarchicalLockTable} of the database.
+ *
+ * Before the collection is locked, an intention lock is acquired on the collection
+ * and its ancestors: {@link HierarchicalLockTable#INTENTION_READ} for a read lock,
+ * {@link HierarchicalLockTable#INTENTION_WRITE} for a write lock. Intention locks
+ * don't conflict with each other, so this only makes a difference while another
+ * thread holds a subtree lock which covers the collection.
+ *
+ * The path is determined when the lock is acquired, as a collection may be moved
+ * while it is cached.
+ */
+public class CollectionLock extends ReentrantReadWriteLock {
+
+    private final HierarchicalLockTable hierarchy;
+    private final Collection collection;
+
+    /** the intention locks taken by the current owner, guarded by this */
+    private final Deque<Held> held = new ArrayDeque<>();
+
+    public CollectionLock(final HierarchicalLockTable hierarchy, final Collection collection) {
+        super(collection.getURI());
+        this.hierarchy = hierarchy;
+        this.collection = collection;
+    }
+
+    @Override
+    public String getId() {
+        return collection.getURI().toString();
+    }
+
+    @Override
+    public boolean acquire(final int mode) throws LockException {
+        if (mode == Lock.NO_LOCK) {
+            return super.acquire(mode);
+        }
+        final Held intention = new Held(collection, mode);
+        hierarchy.acquire(intention.path, intention.mode);
+        boolean acquired = false;
+        try {
+            acquired = super.acquire(mode);
+        } finally {
+            if (acquired) {
+                synchronized (this) {
+                    held.push(intention);
+                }
+            } else {
+                hierarchy.release(intention.path, intention.mode);
+            }
+        }
+        return acquired;
+    }
+
+    @Override
+    public boolean attempt(final int mode) {
+        if (mode == Lock.NO_LOCK) {
+            return super.attempt(mode);
+        }
+        final Held intention = new Held(collection, mode);
+        if (!hierarchy.attempt(intention.path, intention.mode)) {
+            return false;
+        }
+        if (!super.attempt(mode)) {
+            hierarchy.release(intention.path, intention.mode);
+            return false;
+        }
+        synchronized (this) {
+            held.push(intention);
+        }
+        return true;
+    }
+
+    @Override
+    public void release(final int mode) {
+        final Held intention;
+        synchronized (this) {
+            if (!hasLock(Thread.currentThread())) {
+                // not ours, only logged by the super class
+                super.release(mode);
+                return;
+            }
+            super.release(mode);
+            intention = held.pop();
+        }
+        hierarchy.release(intention.path, intention.mode);
+    }
+
+    private final static class Held {
+        final XmldbURI path;
+        final int mode;
+
+        Held(final Collection collection, final int lockMode) {
+            this.path = collection.getURI();
+            this.mode = lockMode == Lock.WRITE_LOCK ?
+                    HierarchicalLockTable.INTENTION_WRITE : HierarchicalLockTable.INTENTION_READ;
+        }
+    }
+}
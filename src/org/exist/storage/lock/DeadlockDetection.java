@@ -151,7 +151,7 @@ public class DeadlockDetection {
                 }
                 waiters.add(wt);
                 final Lock l = wt.getLock();
-                final Thread t = ((MultiReadReentrantLock) l).getWriteLockedThread();
+                final Thread t = getWriteLockedThread(l);
                 if (t == owner) {
                     return false;
                 }
@@ -178,6 +178,13 @@ public class DeadlockDetection {
         }
     }
 
+    private static Thread getWriteLockedThread(final Lock lock) {
+        if (lock instanceof QueuedReadWriteLock) {
+            return ((QueuedReadWriteLock) lock).getWriteLockedThread();
+        }
+        return ((MultiReadReentrantLock) lock).getWriteLockedThread();
+    }
+
     /**
      * Register a thread as waiting for a resource lock.
      *
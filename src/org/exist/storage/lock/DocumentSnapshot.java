@@ -0,0 +1,117 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.lock;
+
+import org.exist.dom.persistent.DocumentImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the documents read by a query which runs without document read locks.
+ *
+ * For every document, the write stamp of its update lock (see
+ * {@link QueuedReadWriteLock#getWriteStamp()}) is recorded when the query
+ * first accesses it. After the query has been evaluated, {@link #validate()} checks
+ * that none of the documents has been write locked in the meantime. If it has, the
+ * query may have seen a partially updated document and has to be evaluated again.
+ * Writers never wait for a query using a snapshot, but a query may have to wait
+ * for a writer which holds the lock when a document is recorded.
+ */
+public class DocumentSnapshot {
+
+    private final long timeout;
+    private final Map<Integer, Entry> documents = new HashMap<>();
+    private boolean valid = true;
+
+    /**
+     * @param timeout maximum time in milliseconds to wait for a writer
+     *                when a document is recorded
+     */
+    public DocumentSnapshot(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Record a document read by the query. If another thread currently
+     * holds the write lock on the document, wait until it is released.
+     *
+     * @param doc the document
+     */
+    public synchronized void add(DocumentImpl doc) {
+        if (!valid || documents.containsKey(doc.getDocId())) {
+            return;
+        }
+        final Lock lock = doc.getUpdateLock();
+        if (!(lock instanceof QueuedReadWriteLock)) {
+            // no stamps available, the read can't be validated
+            valid = false;
+            return;
+        }
+        final QueuedReadWriteLock stamped = (QueuedReadWriteLock) lock;
+        final long stamp = stamped.awaitWriteStamp(timeout);
+        if ((stamp & 1) != 0 && stamped.getWriteLockedThread() != Thread.currentThread()) {
+            // still being written to
+            valid = false;
+            return;
+        }
+        documents.put(doc.getDocId(), new Entry(stamped, stamp));
+    }
+
+    /**
+     * @return true if none of the recorded documents has been write locked
+     * by another thread since it was recorded
+     */
+    public synchronized boolean validate() {
+        if (!valid) {
+            return false;
+        }
+        for (final Entry entry : documents.values()) {
+            if (entry.lock.getWriteStamp() != entry.stamp) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of documents recorded
+     */
+    public synchronized int getDocumentCount() {
+        return documents.size();
+    }
+
+    public synchronized void clear() {
+        documents.clear();
+        valid = true;
+    }
+
+    private final static class Entry {
+        final QueuedReadWriteLock lock;
+        final long stamp;
+
+        Entry(QueuedReadWriteLock lock, long stamp) {
+            this.lock = lock;
+            this.stamp = stamp;
+        }
+    }
+}
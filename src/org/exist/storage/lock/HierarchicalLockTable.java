@@ -0,0 +1,397 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.lock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.util.DeadlockException;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Multi-granularity locks on the collection tree.
+ *
+ * A lock on a collection path implicitly covers all the collections below it. Before
+ * a thread locks a path in {@link #READ} or {@link #WRITE} mode, it takes an intention
+ * lock ({@link #INTENTION_READ} or {@link #INTENTION_WRITE}) on every ancestor, starting
+ * at /db. Intention locks are compatible with each other, so threads working in disjoint
+ * subtrees never wait for each other, while a {@link #WRITE} lock on a collection keeps
+ * out everybody who wants to lock the collection or any of its descendants, without
+ * having to visit them.
+ *
+ * <table>
+ *     <tr><th></th><th>IS</th><th>IX</th><th>S</th><th>X</th></tr>
+ *     <tr><th>IS</th><td>yes</td><td>yes</td><td>yes</td><td>no</td></tr>
+ *     <tr><th>IX</th><td>yes</td><td>yes</td><td>no</td><td>no</td></tr>
+ *     <tr><th>S</th><td>yes</td><td>no</td><td>yes</td><td>no</td></tr>
+ *     <tr><th>X</th><td>no</td><td>no</td><td>no</td><td>no</td></tr>
+ * </table>
+ *
+ * Locks are reentrant and the locks held by a thread never conflict with each other,
+ * so a thread holding a subtree lock may acquire any lock inside of it. Entries are only
+ * kept for paths which are currently locked or waited for.
+ *
+ * Waiting threads check for deadlocks every {@link #WAIT_CHECK_PERIOD} ms. If the thread
+ * blocking the lock is itself waiting for a lock held by the current thread, either in this
+ * table, on a collection or on a resource, a {@link DeadlockException} is thrown.
+ */
+public class HierarchicalLockTable {
+
+    private final static Logger LOG = LogManager.getLogger(HierarchicalLockTable.class);
+
+    public final static int INTENTION_READ = 0;
+    public final static int INTENTION_WRITE = 1;
+    public final static int READ = 2;
+    public final static int WRITE = 3;
+
+    private final static String[] MODE_NAMES = { "IS", "IX", "S", "X" };
+
+    private final static boolean[][] COMPATIBLE = {
+        //  IS     IX     S      X
+        { true,  true,  true,  false },  // IS
+        { true,  true,  false, false },  // IX
+        { true,  false, true,  false },  // S
+        { false, false, false, false }   // X
+    };
+
+    private static final int WAIT_CHECK_PERIOD = 200;
+
+    private final Map<String, Node> nodes = new ConcurrentHashMap<>();
+    private final Map<Thread, Waiting> waiting = new ConcurrentHashMap<>();
+
+    /**
+     * Lock the collection in the given mode. Intention locks are acquired
+     * on all of its ancestors first.
+     *
+     * @param path the collection path
+     * @param mode one of {@link #INTENTION_READ}, {@link #INTENTION_WRITE},
+     *             {@link #READ} or {@link #WRITE}
+     * @throws LockException if the thread was interrupted or would deadlock. No
+     *         locks are held by the call in this case.
+     */
+    public void acquire(final XmldbURI path, final int mode) throws LockException {
+        final String[] keys = keys(path);
+        final int intention = intentionFor(mode);
+        for (int i = 0; i < keys.length; i++) {
+            try {
+                lockNode(keys[i], i == keys.length - 1 ? mode : intention);
+            } catch (final LockException e) {
+                releaseChain(keys, i, intention, mode);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Try to lock the collection without waiting.
+     *
+     * @param path the collection path
+     * @param mode the lock mode
+     * @return true if the lock was acquired
+     */
+    public boolean attempt(final XmldbURI path, final int mode) {
+        final String[] keys = keys(path);
+        final int intention = intentionFor(mode);
+        for (int i = 0; i < keys.length; i++) {
+            if (!tryLockNode(keys[i], i == keys.length - 1 ? mode : intention)) {
+                releaseChain(keys, i, intention, mode);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Release a lock acquired by {@link #acquire(XmldbURI, int)} or
+     * {@link #attempt(XmldbURI, int)}, including the intention locks on the ancestors.
+     *
+     * @param path the collection path
+     * @param mode the lock mode
+     */
+    public void release(final XmldbURI path, final int mode) {
+        final String[] keys = keys(path);
+        releaseChain(keys, keys.length, intentionFor(mode), mode);
+    }
+
+    /**
+     * @return the number of paths which are currently locked or waited for
+     */
+    public int size() {
+        return nodes.size();
+    }
+
+    public Map<String, LockInfo> getWaitingThreads() {
+        final Map<String, LockInfo> table = new HashMap<>();
+        for (final Map.Entry<Thread, Waiting> entry : waiting.entrySet()) {
+            table.put(entry.getKey().getName(), entry.getValue().getLockInfo());
+        }
+        return table;
+    }
+
+    public void debug(final PrintStream out) {
+        out.println("Collection hierarchy locks:");
+        for (final Node node : nodes.values()) {
+            out.println(node);
+        }
+        for (final Map.Entry<Thread, Waiting> entry : waiting.entrySet()) {
+            out.println("Thread " + entry.getKey().getName() + " waiting for " +
+                    MODE_NAMES[entry.getValue().mode] + " on " + entry.getValue().node.path);
+        }
+    }
+
+    private void lockNode(final String key, final int mode) throws LockException {
+        final Thread thread = Thread.currentThread();
+        try {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new LockException("Interrupted while waiting for lock on " + key);
+                }
+                final Node node = nodes.computeIfAbsent(key, Node::new);
+                final Thread blocker;
+                synchronized (node) {
+                    if (node.retired) {
+                        continue;
+                    }
+                    Thread conflict = node.conflict(thread, mode);
+                    if (conflict != null) {
+                        waiting.put(thread, new Waiting(node, mode));
+                        node.waiters++;
+                        try {
+                            node.wait(WAIT_CHECK_PERIOD);
+                        } catch (final InterruptedException e) {
+                            node.waiters--;
+                            retireIfUnused(node);
+                            throw new LockException("Interrupted while waiting for lock on " + key);
+                        }
+                        node.waiters--;
+                        conflict = node.conflict(thread, mode);
+                    }
+                    if (conflict == null) {
+                        node.grant(thread, mode);
+                        return;
+                    }
+                    blocker = conflict;
+                }
+                if (wouldDeadlock(thread, blocker)) {
+                    LOG.debug("Deadlock detected: " + thread.getName() + " requested " + MODE_NAMES[mode] +
+                            " on " + key + " held by " + blocker.getName());
+                    throw new DeadlockException("Deadlock while waiting for " + MODE_NAMES[mode] + " lock on " + key);
+                }
+            }
+        } finally {
+            waiting.remove(thread);
+        }
+    }
+
+    private boolean tryLockNode(final String key, final int mode) {
+        final Thread thread = Thread.currentThread();
+        while (true) {
+            final Node node = nodes.computeIfAbsent(key, Node::new);
+            synchronized (node) {
+                if (node.retired) {
+                    continue;
+                }
+                if (node.conflict(thread, mode) != null) {
+                    retireIfUnused(node);
+                    return false;
+                }
+                node.grant(thread, mode);
+                return true;
+            }
+        }
+    }
+
+    private void unlockNode(final String key, final int mode) {
+        final Node node = nodes.get(key);
+        if (node == null) {
+            LOG.warn("Released " + MODE_NAMES[mode] + " lock on " + key + " which was not held");
+            return;
+        }
+        synchronized (node) {
+            if (!node.revoke(Thread.currentThread(), mode)) {
+                LOG.warn("Released " + MODE_NAMES[mode] + " lock on " + key + " which was not held");
+                return;
+            }
+            if (node.waiters > 0) {
+                node.notifyAll();
+            }
+            retireIfUnused(node);
+        }
+    }
+
+    private void retireIfUnused(final Node node) {
+        if (node.holders.isEmpty() && node.waiters == 0) {
+            node.retired = true;
+            nodes.remove(node.path, node);
+        }
+    }
+
+    /**
+     * Release the first <code>count</code> locks of a chain, deepest first.
+     */
+    private void releaseChain(final String[] keys, final int count, final int intention, final int mode) {
+        for (int i = count - 1; i >= 0; i--) {
+            unlockNode(keys[i], i == keys.length - 1 ? mode : intention);
+        }
+    }
+
+    /**
+     * Check if the thread blocking us waits for a lock we hold.
+     */
+    private boolean wouldDeadlock(final Thread thread, final Thread blocker) {
+        final Waiting blocked = waiting.get(blocker);
+        if (blocked != null) {
+            synchronized (blocked.node) {
+                final int[] held = blocked.node.holders.get(thread);
+                if (held != null) {
+                    for (int m = 0; m < held.length; m++) {
+                        if (held[m] > 0 && !COMPATIBLE[m][blocked.mode]) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        if (DeadlockDetection.isBlockedBy(thread, blocker)) {
+            return true;
+        }
+        final Lock collectionLock = DeadlockDetection.isWaitingFor(blocker);
+        return collectionLock != null && collectionLock.hasLock(thread);
+    }
+
+    private static int intentionFor(final int mode) {
+        switch (mode) {
+            case INTENTION_READ:
+            case READ:
+                return INTENTION_READ;
+            case INTENTION_WRITE:
+            case WRITE:
+                return INTENTION_WRITE;
+            default:
+                throw new IllegalArgumentException("Unknown lock mode: " + mode);
+        }
+    }
+
+    /**
+     * The path of every collection from /db down to the given one.
+     */
+    private static String[] keys(final XmldbURI uri) {
+        String path = uri.getRawCollectionPath();
+        if (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        final List<String> keys = new ArrayList<>();
+        for (int i = path.indexOf('/', 1); i > 0; i = path.indexOf('/', i + 1)) {
+            keys.add(path.substring(0, i));
+        }
+        keys.add(path);
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    private final static class Node {
+        final String path;
+        /** lock counts per mode of every thread holding a lock, guarded by this */
+        final Map<Thread, int[]> holders = new HashMap<>(4);
+        int waiters = 0;
+        boolean retired = false;
+
+        Node(final String path) {
+            this.path = path;
+        }
+
+        /**
+         * @return a thread holding a lock which is incompatible with the mode, or null
+         */
+        Thread conflict(final Thread thread, final int mode) {
+            for (final Map.Entry<Thread, int[]> entry : holders.entrySet()) {
+                if (entry.getKey() == thread) {
+                    continue;
+                }
+                final int[] held = entry.getValue();
+                for (int m = 0; m < held.length; m++) {
+                    if (held[m] > 0 && !COMPATIBLE[m][mode]) {
+                        return entry.getKey();
+                    }
+                }
+            }
+            return null;
+        }
+
+        void grant(final Thread thread, final int mode) {
+            holders.computeIfAbsent(thread, t -> new int[MODE_NAMES.length])[mode]++;
+        }
+
+        boolean revoke(final Thread thread, final int mode) {
+            final int[] held = holders.get(thread);
+            if (held == null || held[mode] == 0) {
+                return false;
+            }
+            held[mode]--;
+            for (final int count : held) {
+                if (count > 0) {
+                    return true;
+                }
+            }
+            holders.remove(thread);
+            return true;
+        }
+
+        synchronized String[] owners() {
+            final List<String> owners = new ArrayList<>();
+            for (final Map.Entry<Thread, int[]> entry : holders.entrySet()) {
+                for (int m = 0; m < MODE_NAMES.length; m++) {
+                    if (entry.getValue()[m] > 0) {
+                        owners.add(entry.getKey().getName() + " (" + MODE_NAMES[m] + ")");
+                    }
+                }
+            }
+            return owners.toArray(new String[owners.size()]);
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + String.join(", ", owners());
+        }
+    }
+
+    private final static class Waiting {
+        final Node node;
+        final int mode;
+
+        Waiting(final Node node, final int mode) {
+            this.node = node;
+            this.mode = mode;
+        }
+
+        LockInfo getLockInfo() {
+            final String lockMode = mode == READ || mode == INTENTION_READ ? LockInfo.READ_LOCK : LockInfo.WRITE_LOCK;
+            return new LockInfo(LockInfo.COLLECTION_LOCK, lockMode, node.path, node.owners());
+        }
+    }
+}
@@ -52,6 +52,9 @@ import java.util.List;
  * <p/>
  * This is an adapted and bug-fixed version of code taken from Apache's Turbine
  * JCS.
+ * <p/>
+ * Document locks use {@link QueuedReadWriteLock}, which has the same semantics
+ * but does not synchronize on the lock for every acquire and release.
  */
 public class MultiReadReentrantLock implements Lock {
 
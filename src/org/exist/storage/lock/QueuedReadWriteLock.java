@@ -0,0 +1,518 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.storage.lock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.util.DeadlockException;
+import org.exist.util.LockException;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.AbstractQueuedLongSynchronizer;
+
+/**
+ * A reentrant read/write lock with the semantics of {@link MultiReadReentrantLock},
+ * built on an {@link AbstractQueuedLongSynchronizer}.
+ *
+ * An uncontended acquire or release is a single compare-and-set on the lock state plus
+ * an update of the calling thread's hold count. Waiting threads are parked in the queue
+ * of the synchronizer instead of waiting on a monitor. The bookkeeping for
+ * {@link DeadlockDetection} is only done when a thread actually has to wait.
+ *
+ * As with {@link MultiReadReentrantLock}:
+ * <ul>
+ *     <li>the thread holding the write lock may acquire read locks,</li>
+ *     <li>a thread holding the only read locks may acquire the write lock,</li>
+ *     <li>waiting writers are preferred: new readers wait until the writer has been
+ *     served, but for no longer than one deadlock check period,</li>
+ *     <li>a waiting writer is granted the lock if all remaining readers are waiting
+ *     for a resource held by the writer,</li>
+ *     <li>a writer which would complete a circular wait gets a {@link DeadlockException},</li>
+ *     <li>a waiting thread suspended by a collection lock keeps waiting until it is
+ *     resumed, see {@link WaitingThread}.</li>
+ * </ul>
+ *
+ * The lock also keeps a write stamp, which is odd while a thread holds the write lock.
+ * It is used by {@link DocumentSnapshot} to validate reads which did not acquire a
+ * read lock.
+ */
+public class QueuedReadWriteLock implements Lock {
+
+    private final static Logger LOG = LogManager.getLogger(QueuedReadWriteLock.class);
+
+    private static final long WAIT_CHECK_PERIOD = TimeUnit.MILLISECONDS.toNanos(500);
+
+    /** arguments to the synchronizer */
+    private static final long READ = 1;
+    private static final long READ_BARGING = 2;
+    private static final long WRITE = 1;
+    private static final long WRITE_FORCED = 2;
+
+    private final Object id;
+
+    private final Sync sync = new Sync();
+
+    /**
+     * Read locks held by each thread. A thread's count is only changed by
+     * the thread itself. Entries are kept when the count drops to zero, so
+     * a thread reading the lock repeatedly does not allocate; entries of
+     * threads which have terminated are removed when a thread has to wait.
+     */
+    private final Map<Thread, Holds> readers = new ConcurrentHashMap<>(4);
+
+    /**
+     * Threads waiting for the write lock.
+     */
+    private final Set<Thread> waitingForWriteLock = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Incremented whenever a thread is granted the write lock and whenever
+     * the write lock is released, so it is odd while the lock is held for write.
+     */
+    private volatile long writeStamp = 0;
+
+    private final Object stampMonitor = new Object();
+    private int waitingForWriteStamp = 0;
+
+    public QueuedReadWriteLock(final Object id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getId() {
+        return id.toString();
+    }
+
+    @Override
+    public boolean acquire() throws LockException {
+        return acquire(Lock.READ_LOCK);
+    }
+
+    @Override
+    public boolean acquire(final int mode) throws LockException {
+        switch (mode) {
+            case Lock.NO_LOCK:
+                LOG.warn("acquired with no lock !");
+                return true;
+            case Lock.WRITE_LOCK:
+                if (!sync.tryAcquire(WRITE)) {
+                    waitFor(Lock.WRITE_LOCK);
+                }
+                return true;
+            default:
+                if (sync.tryAcquireShared(READ) < 0) {
+                    waitFor(Lock.READ_LOCK);
+                }
+                addReadHold();
+                return true;
+        }
+    }
+
+    @Override
+    public boolean attempt(final int mode) {
+        switch (mode) {
+            case Lock.NO_LOCK:
+                return true;
+            case Lock.WRITE_LOCK:
+                return sync.tryAcquire(WRITE);
+            default:
+                if (sync.tryAcquireShared(READ_BARGING) < 0) {
+                    return false;
+                }
+                addReadHold();
+                return true;
+        }
+    }
+
+    @Override
+    public void release(final int mode) {
+        release(mode, 1);
+    }
+
+    @Override
+    public void release(final int mode, final int count) {
+        switch (mode) {
+            case Lock.NO_LOCK:
+                break;
+            case Lock.WRITE_LOCK:
+                releaseWrite(count);
+                break;
+            default:
+                releaseRead(count);
+                break;
+        }
+    }
+
+    private void releaseWrite(final int count) {
+        if (sync.owner() != Thread.currentThread()) {
+            LOG.warn("Possible lock problem: a thread released a write lock it didn't hold. Either the " +
+                "thread was interrupted or it never acquired the lock.", new Throwable());
+            return;
+        }
+        if (sync.release(count)) {
+            synchronized (stampMonitor) {
+                if (waitingForWriteStamp > 0) {
+                    stampMonitor.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void releaseRead(final int count) {
+        final Thread thread = Thread.currentThread();
+        final Holds holds = readers.get(thread);
+        if (holds == null || holds.count == 0) {
+            final Thread writer = sync.owner();
+            LOG.warn("Possible lock problem: thread " + thread.getName() +
+                    " released a read lock it didn't hold. Either the " +
+                    "thread was interrupted or it never acquired the lock. " +
+                    "Write lock: " + (writer != null ? writer.getName() : "null"),
+                    new Throwable());
+            return;
+        }
+        final int released = Math.min(count, holds.count);
+        holds.count -= released;
+        sync.releaseShared(released);
+    }
+
+    private void addReadHold() {
+        final Thread thread = Thread.currentThread();
+        final Holds holds = readers.get(thread);
+        if (holds == null) {
+            readers.put(thread, new Holds(1));
+        } else {
+            holds.count++;
+        }
+    }
+
+    private int readHolds(final Thread thread) {
+        final Holds holds = readers.get(thread);
+        return holds == null ? 0 : holds.count;
+    }
+
+    /**
+     * Slow path: queue for the lock, checking for deadlocks every
+     * {@link #WAIT_CHECK_PERIOD}.
+     */
+    private void waitFor(final int mode) throws LockException {
+        final Thread thread = Thread.currentThread();
+        readers.entrySet().removeIf(entry -> entry.getValue().count == 0 && !entry.getKey().isAlive());
+        final WaitingThread waiter = new WaitingThread(thread, this, this, mode);
+        DeadlockDetection.addResourceWaiter(thread, waiter);
+        if (mode == Lock.WRITE_LOCK) {
+            waitingForWriteLock.add(thread);
+        }
+        boolean acquired = false;
+        try {
+            long arg = mode == Lock.WRITE_LOCK ? WRITE : READ;
+            while (!acquired) {
+                if (waiter.isDeadlocked()) {
+                    throw new DeadlockException();
+                }
+                if (waiter.isSuspended()) {
+                    waiter.doWait();
+                }
+                if (mode == Lock.WRITE_LOCK) {
+                    acquired = sync.tryAcquireNanos(arg, WAIT_CHECK_PERIOD);
+                    if (!acquired) {
+                        arg = checkForDeadlock(thread) ? WRITE_FORCED : WRITE;
+                    }
+                } else {
+                    acquired = sync.tryAcquireSharedNanos(arg, WAIT_CHECK_PERIOD);
+                    // don't give way to waiting writers any longer, they may wait for us
+                    arg = READ_BARGING;
+                }
+            }
+            // a collection lock may have suspended us while we were queued
+            if (waiter.isSuspended()) {
+                waiter.doWait();
+            }
+        } catch (final InterruptedException e) {
+            throw new LockException("Interrupted while waiting for " +
+                    (mode == Lock.WRITE_LOCK ? "write" : "read") + " lock on " + getId());
+        } catch (final LockException e) {
+            if (acquired) {
+                if (mode == Lock.WRITE_LOCK) {
+                    releaseWrite(1);
+                } else {
+                    sync.releaseShared(READ);
+                }
+            }
+            throw e;
+        } finally {
+            DeadlockDetection.clearResourceWaiter(thread);
+            if (mode == Lock.WRITE_LOCK) {
+                waitingForWriteLock.remove(thread);
+            }
+        }
+    }
+
+    /**
+     * Check the threads blocking a waiting writer.
+     *
+     * @return true if the write lock can be granted although there are still
+     * readers, because all of them are waiting for a lock held by the writer
+     * @throws DeadlockException if the writer is part of a circular wait
+     */
+    private boolean checkForDeadlock(final Thread thread) throws DeadlockException {
+        final Thread writer = sync.owner();
+        if (writer != null) {
+            final List<WaitingThread> waiters = new ArrayList<>(10);
+            if (DeadlockDetection.wouldDeadlock(thread, writer, waiters) && !waiters.isEmpty()) {
+                LOG.warn("Potential deadlock detected on lock " + getId() + "; killing threads: " + waiters.size());
+                for (final WaitingThread waiter : waiters) {
+                    waiter.signalDeadlock();
+                }
+                throw new DeadlockException();
+            }
+            return false;
+        }
+        boolean blocked = false;
+        for (final Map.Entry<Thread, Holds> entry : readers.entrySet()) {
+            final Thread reader = entry.getKey();
+            if (reader != thread && entry.getValue().count > 0) {
+                if (!DeadlockDetection.isBlockedBy(thread, reader)) {
+                    return false;
+                }
+                blocked = true;
+            }
+        }
+        return blocked;
+    }
+
+    /**
+     * Returns the current write stamp. The stamp is odd while a thread holds
+     * the write lock and changes every time the write lock is acquired or released.
+     * A reader which did not acquire a read lock can compare the stamps before
+     * and after reading: if both are the same and even, no writer held the lock
+     * in between.
+     *
+     * @return the write stamp
+     */
+    public long getWriteStamp() {
+        return writeStamp;
+    }
+
+    /**
+     * Wait until no thread holds the write lock, but do not acquire a lock.
+     * Returns immediately if the calling thread holds the write lock itself.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return the write stamp, which is still odd if the write lock was not
+     * released within the timeout
+     */
+    public long awaitWriteStamp(final long timeout) {
+        if ((writeStamp & 1) == 0 || sync.owner() == Thread.currentThread()) {
+            return writeStamp;
+        }
+        final long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        synchronized (stampMonitor) {
+            waitingForWriteStamp++;
+            try {
+                while ((writeStamp & 1) != 0 && remaining > 0) {
+                    stampMonitor.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waitingForWriteStamp--;
+            }
+        }
+        return writeStamp;
+    }
+
+    public Thread getWriteLockedThread() {
+        return sync.owner();
+    }
+
+    @Override
+    public boolean isLockedForWrite() {
+        return sync.owner() != null || !waitingForWriteLock.isEmpty();
+    }
+
+    @Override
+    public boolean isLockedForRead(final Thread owner) {
+        return readHolds(owner) > 0;
+    }
+
+    @Override
+    public boolean hasLock() {
+        return sync.isReadLocked() || isLockedForWrite();
+    }
+
+    @Override
+    public boolean hasLock(final Thread owner) {
+        return sync.owner() == owner || readHolds(owner) > 0;
+    }
+
+    @Override
+    public void wakeUp() {
+        //Nothing to do
+    }
+
+    @Override
+    public LockInfo getLockInfo() {
+        final List<String> readLocks = new ArrayList<>();
+        for (final Map.Entry<Thread, Holds> entry : readers.entrySet()) {
+            for (int i = 0; i < entry.getValue().count; i++) {
+                readLocks.add(entry.getKey().getName());
+            }
+        }
+        final String[] readerNames = readLocks.toArray(new String[readLocks.size()]);
+        final Thread writer = sync.owner();
+        final LockInfo info;
+        if (writer != null) {
+            info = new LockInfo(LockInfo.RESOURCE_LOCK, LockInfo.WRITE_LOCK, getId(), new String[] { writer.getName() });
+            info.setReadLocks(readerNames);
+        } else {
+            info = new LockInfo(LockInfo.RESOURCE_LOCK, LockInfo.READ_LOCK, getId(), readerNames);
+        }
+        final Collection<Thread> queued = sync.getExclusiveQueuedThreads();
+        final List<String> waitingForWrite = new ArrayList<>(queued.size());
+        for (final Thread thread : queued) {
+            waitingForWrite.add(thread.getName());
+        }
+        info.setWaitingForWrite(waitingForWrite.toArray(new String[waitingForWrite.size()]));
+        return info;
+    }
+
+    @Override
+    public void debug(final PrintStream out) {
+        getLockInfo().debug(out);
+    }
+
+    private final static class Holds {
+        int count;
+
+        Holds(final int count) {
+            this.count = count;
+        }
+    }
+
+    /**
+     * The lock state: the number of read holds in the upper 32 bits,
+     * the number of (nested) write holds in the lower 32 bits.
+     */
+    private final class Sync extends AbstractQueuedLongSynchronizer {
+
+        private static final long serialVersionUID = 4712309532641289384L;
+
+        private static final int SHARED_SHIFT = 32;
+        private static final long SHARED_UNIT = 1L << SHARED_SHIFT;
+        private static final long EXCLUSIVE_MASK = SHARED_UNIT - 1;
+
+        Thread owner() {
+            return getExclusiveOwnerThread();
+        }
+
+        boolean isReadLocked() {
+            return (getState() >>> SHARED_SHIFT) != 0;
+        }
+
+        @Override
+        protected boolean tryAcquire(final long arg) {
+            final Thread current = Thread.currentThread();
+            final long c = getState();
+            if ((c & EXCLUSIVE_MASK) != 0) {
+                if (getExclusiveOwnerThread() != current) {
+                    return false;
+                }
+                setState(c + 1);
+                return true;
+            }
+            final long shared = c >>> SHARED_SHIFT;
+            if (shared != 0 && shared != readHolds(current) && arg != WRITE_FORCED) {
+                // other threads hold read locks
+                return false;
+            }
+            if (!compareAndSetState(c, c + 1)) {
+                return false;
+            }
+            setExclusiveOwnerThread(current);
+            writeStamp++;
+            return true;
+        }
+
+        @Override
+        protected boolean tryRelease(final long arg) {
+            final long c = getState();
+            final long holds = c & EXCLUSIVE_MASK;
+            final long released = Math.min(arg, holds);
+            final boolean free = holds == released;
+            if (free) {
+                writeStamp++;
+                setExclusiveOwnerThread(null);
+            }
+            setState(c - released);
+            return free;
+        }
+
+        @Override
+        protected long tryAcquireShared(final long arg) {
+            final Thread current = Thread.currentThread();
+            for (;;) {
+                final long c = getState();
+                if ((c & EXCLUSIVE_MASK) != 0) {
+                    if (getExclusiveOwnerThread() != current) {
+                        return -1;
+                    }
+                } else if (arg != READ_BARGING && writerQueuedFirst() && readHolds(current) == 0) {
+                    // give way to the waiting writer, unless this is a nested lock
+                    return -1;
+                }
+                if (compareAndSetState(c, c + SHARED_UNIT)) {
+                    return 1;
+                }
+            }
+        }
+
+        private boolean writerQueuedFirst() {
+            if (waitingForWriteLock.isEmpty()) {
+                return false;
+            }
+            final Thread first = getFirstQueuedThread();
+            return first != null && waitingForWriteLock.contains(first);
+        }
+
+        @Override
+        protected boolean tryReleaseShared(final long arg) {
+            for (;;) {
+                final long c = getState();
+                final long next = c - arg * SHARED_UNIT;
+                if (compareAndSetState(c, next)) {
+                    // a waiting writer may be able to upgrade its own read lock,
+                    // so the queue is always signalled
+                    return true;
+                }
+            }
+        }
+    }
+}
@@ -35,17 +35,17 @@ public class WaitingThread implements LockListener {
     private final static Logger LOG = LogManager.getLogger(WaitingThread.class);
     
     private Object monitor;
-    private MultiReadReentrantLock lock;
+    private Lock lock;
 
     private int lockType;
 
     private Thread thread;
 
-    private boolean suspended = false;
+    private volatile boolean suspended = false;
 
-    private boolean deadlocked = false;
+    private volatile boolean deadlocked = false;
 
-    public WaitingThread(Thread thread, Object monitor, MultiReadReentrantLock lock, int lockType) {
+    public WaitingThread(Thread thread, Object monitor, Lock lock, int lockType) {
         this.monitor = monitor;
         this.lock = lock;
         this.thread = thread;
@@ -104,6 +104,10 @@ public class WaitingThread implements LockListener {
         return suspended;
     }
 
+    public boolean isDeadlocked() {
+        return deadlocked;
+    }
+
     public Thread getThread() {
         return thread;
     }
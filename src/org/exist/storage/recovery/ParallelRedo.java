@@ -0,0 +1,256 @@
+/*
+ * eXist Open Source Native XML Database
+ * Copyright (C) 2001-2016 The eXist-db Project
+ * http://exist-db.org
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program; if not, write to the Free Software Foundation
+ * Inc., 51 Franklin Street, Fifth Floor, Boston, MA 02110-1301, USA.
+ *
+ *  $Id$
+ */
+package org.exist.storage.recovery;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.storage.journal.LogException;
+import org.exist.storage.journal.Loggable;
+import org.exist.storage.lock.Lock;
+import org.exist.util.LockException;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Redoes journal entries in parallel, partitioned by the paged file they modify.
+ *
+ * Every file gets its own worker thread, which applies the entries for this file
+ * in the order they were passed to {@link #redo(Loggable)}, i.e. in LSN order.
+ * Entries for different files (e.g. dom.dbx and values.dbx) are redone concurrently.
+ * Pages are never shared between files, so this keeps the per page ordering
+ * required by the redo operations. Pages of the same file cannot be redone
+ * independently, as page allocation and the file header are shared
+ * by all pages of a file.
+ *
+ * Entries which are not bound to a single file ({@link Loggable#getFileId()}
+ * returns {@link Loggable#NO_FILE}) act as a barrier: all queued entries are
+ * redone first, then the entry is redone by the calling thread.
+ *
+ * A worker holds the write lock of its file while redoing a batch of entries.
+ */
+public class ParallelRedo implements AutoCloseable {
+
+    private final static Logger LOG = LogManager.getLogger(ParallelRedo.class);
+
+    /** number of entries handed to a worker at once */
+    private final static int BATCH_SIZE = 256;
+
+    /** maximum number of batches queued, but not yet redone, over all files */
+    private final static int MAX_PENDING_BATCHES = 64;
+
+    private final Function<Byte, Lock> locks;
+    private final Map<Byte, Partition> partitions = new HashMap<>();
+    private final Semaphore pending = new Semaphore(MAX_PENDING_BATCHES);
+    private volatile LogException failure = null;
+    private long redone = 0;
+
+    /**
+     * @param locks returns the lock of the file with the given id, or null if
+     *              the file does not need to be locked
+     */
+    public ParallelRedo(final Function<Byte, Lock> locks) {
+        this.locks = locks;
+    }
+
+    /**
+     * Schedule an entry to be redone.
+     *
+     * @param entry the journal entry
+     * @throws LogException if redoing this or a previously scheduled entry failed
+     */
+    public void redo(final Loggable entry) throws LogException {
+        checkFailure();
+        final byte fileId = entry.getFileId();
+        if (fileId == Loggable.NO_FILE) {
+            barrier();
+            entry.redo();
+            redone++;
+            return;
+        }
+        Partition partition = partitions.get(fileId);
+        if (partition == null) {
+            partition = new Partition(fileId, locks.apply(fileId));
+            partitions.put(fileId, partition);
+        }
+        partition.add(entry);
+    }
+
+    /**
+     * Wait until all scheduled entries have been redone.
+     *
+     * @throws LogException if redoing an entry failed
+     */
+    public void barrier() throws LogException {
+        for (final Partition partition : partitions.values()) {
+            partition.submit();
+        }
+        for (final Partition partition : partitions.values()) {
+            partition.await();
+        }
+        checkFailure();
+    }
+
+    /**
+     * @return the number of entries redone so far
+     */
+    public long getRedoCount() {
+        long count = redone;
+        for (final Partition partition : partitions.values()) {
+            count += partition.redone;
+        }
+        return count;
+    }
+
+    /**
+     * Wait for all scheduled entries and stop the workers.
+     *
+     * @throws LogException if redoing an entry failed
+     */
+    @Override
+    public void close() throws LogException {
+        try {
+            barrier();
+        } finally {
+            for (final Partition partition : partitions.values()) {
+                partition.executor.shutdownNow();
+            }
+        }
+    }
+
+    private void checkFailure() throws LogException {
+        final LogException e = failure;
+        if (e != null) {
+            // a new instance each time, the failure may be reported more than once
+            throw new LogException(e.getMessage(), e.getCause());
+        }
+    }
+
+    private class Partition {
+
+        private final byte fileId;
+        private final Lock lock;
+        private final ExecutorService executor;
+        private List<Loggable> batch = new ArrayList<>(BATCH_SIZE);
+        private final List<Future<?>> submitted = new ArrayList<>();
+        private volatile long redone = 0;
+
+        Partition(final byte fileId, final Lock lock) {
+            this.fileId = fileId;
+            this.lock = lock;
+            this.executor = Executors.newSingleThreadExecutor(r -> {
+                final Thread thread = new Thread(r, "exist-recovery-redo-" + fileId);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        void add(final Loggable entry) throws LogException {
+            batch.add(entry);
+            if (batch.size() == BATCH_SIZE) {
+                submit();
+            }
+        }
+
+        void submit() throws LogException {
+            if (batch.isEmpty()) {
+                return;
+            }
+            final List<Loggable> entries = batch;
+            batch = new ArrayList<>(BATCH_SIZE);
+            try {
+                pending.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LogException("Interrupted while waiting for redo of file " + fileId, e);
+            }
+            submitted.add(executor.submit(() -> {
+                try {
+                    redo(entries);
+                } finally {
+                    pending.release();
+                }
+            }));
+            // forget about batches which are done already
+            submitted.removeIf(Future::isDone);
+        }
+
+        private void redo(final List<Loggable> entries) {
+            if (failure != null) {
+                return;
+            }
+            Loggable current = null;
+            try {
+                if (lock != null) {
+                    lock.acquire(Lock.WRITE_LOCK);
+                }
+                try {
+                    for (final Loggable entry : entries) {
+                        current = entry;
+                        entry.redo();
+                        redone++;
+                    }
+                } finally {
+                    if (lock != null) {
+                        lock.release(Lock.WRITE_LOCK);
+                    }
+                }
+            } catch (final LockException e) {
+                fail(new LogException("Failed to lock file " + fileId + " for redo: " + e.getMessage(), e));
+            } catch (final Exception e) {
+                LOG.error("Redo of file " + fileId + " failed", e);
+                fail(new LogException("Redo of log entry failed: " + (current == null ? "" : current.dump()) +
+                        ": " + e.getMessage(), e));
+            }
+        }
+
+        private void fail(final LogException e) {
+            synchronized (ParallelRedo.this) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+
+        void await() throws LogException {
+            for (final Future<?> future : submitted) {
+                try {
+                    future.get();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new LogException("Interrupted while waiting for redo of file " + fileId, e);
+                } catch (final ExecutionException e) {
+                    fail(new LogException("Redo of file " + fileId + " failed: " + e.getMessage(), e.getCause()));
+                }
+            }
+            submitted.clear();
+        }
+    }
+}
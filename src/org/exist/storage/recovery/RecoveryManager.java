@@ -31,18 +31,20 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.storage.DBBroker;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.NativeBroker;
+import org.exist.storage.btree.BTree;
 import org.exist.storage.journal.Journal;
 import org.exist.storage.journal.JournalReader;
 import org.exist.storage.journal.LogEntryTypes;
 import org.exist.storage.journal.LogException;
 import org.exist.storage.journal.Loggable;
 import org.exist.storage.journal.Lsn;
+import org.exist.storage.lock.Lock;
 import org.exist.storage.sync.Sync;
 import org.exist.storage.txn.Checkpoint;
 import org.exist.util.FileUtils;
 import org.exist.util.ProgressBar;
 import org.exist.util.hashtable.Long2ObjectHashMap;
-import org.exist.util.sanity.SanityCheck;
 
 /**
  * Database recovery. This class is used once during startup to check
@@ -55,14 +57,22 @@ public class RecoveryManager {
 	
 	private final static Logger LOG = LogManager.getLogger(RecoveryManager.class);
 
+    public final static String RECOVERY_PARALLEL_REDO_ATTRIBUTE = "parallel-redo";
+    public final static String PROPERTY_RECOVERY_PARALLEL_REDO = "db-connection.recovery.parallel-redo";
+
 	private Journal logManager;
 	private DBBroker broker;
     private boolean restartOnError;
+    private boolean parallelRedo = true;
 
 	public RecoveryManager(DBBroker broker, Journal log, boolean restartOnError) {
         this.broker = broker;
 		this.logManager = log;
         this.restartOnError = restartOnError;
+        final Boolean parallelOpt = (Boolean) broker.getConfiguration().getProperty(PROPERTY_RECOVERY_PARALLEL_REDO);
+        if (parallelOpt != null) {
+            this.parallelRedo = parallelOpt.booleanValue();
+        }
 	}
 
 	/**
@@ -71,7 +81,8 @@ public class RecoveryManager {
 	 * The method scans the last log file and tries to find the last checkpoint
 	 * record. If the checkpoint record is the last record in the file,
 	 * the database was closed cleanly and is in a consistent state. If not, a
-	 * recovery run is started beginning at the last checkpoint found.
+	 * recovery run is started beginning at the last checkpoint found. If that
+	 * checkpoint was fuzzy, the recovery run starts at the redo LSN stored in it.
 	 *  
 	 * @throws LogException
 	 */
@@ -99,7 +110,8 @@ public class RecoveryManager {
                     	final Checkpoint checkpoint = (Checkpoint) lastLog;
                     	// Found a checkpoint. To be sure it is indeed a valid checkpoint
                     	// record, we compare the LSN stored in it with the current LSN.
-                    	if (checkpoint.getStoredLsn() == checkpoint.getLsn()) {
+                    	// A fuzzy checkpoint is never written on shutdown.
+                    	if (checkpoint.getStoredLsn() == checkpoint.getLsn() && !checkpoint.isFuzzy()) {
                     		checkpointFound = true;
                     		LOG.debug("Database is in clean state. Last checkpoint: " + 
                     				checkpoint.getDateString());
@@ -144,14 +156,26 @@ public class RecoveryManager {
                     }
 
 	    			// if the last checkpoint record is not the last record in the file
-	    			// we need a recovery.
-	    			if ((lastCheckpoint == null || lastCheckpoint.getLsn() != lastLsn) &&
-	    					txnsStarted.size() > 0) {
+	    			// we need a recovery. After a fuzzy checkpoint, committed transactions
+	    			// preceding the checkpoint may not have been written to disk either.
+	    			final boolean fuzzy = lastCheckpoint != null && lastCheckpoint.isFuzzy();
+	    			if (fuzzy || ((lastCheckpoint == null || lastCheckpoint.getLsn() != lastLsn) &&
+	    					txnsStarted.size() > 0)) {
 	    				LOG.info("Dirty transactions: " + txnsStarted.size());
 	    				// starting recovery: reposition the log reader to the last checkpoint
 						if (lastCheckpoint == null)
 						    {reader.position(1);}
-						else {
+						else if (fuzzy) {
+						    final long redoLsn = lastCheckpoint.getRedoLsn();
+						    LOG.info("Last checkpoint is fuzzy. Redoing from " + Lsn.dump(redoLsn));
+						    if (Lsn.getFileNumber(redoLsn) == lastNum) {
+						        reader.position(redoLsn);
+						    } else {
+						        LOG.warn("Redo LSN " + Lsn.dump(redoLsn) + " is not in the last journal file. " +
+						            "Redoing the entire file.");
+						        reader.position(1);
+						    }
+						} else {
 						    reader.position(lastCheckpoint.getLsn());
 						    next = reader.nextEntry();
 						}
@@ -220,11 +244,17 @@ public class RecoveryManager {
             final ProgressBar progress = new ProgressBar("Redo ", FileUtils.sizeQuietly(last));
             Loggable next = null;
             int redoCnt = 0;
+            final long start = System.currentTimeMillis();
+            // entries for different files are redone by concurrent workers
+            final ParallelRedo redo = parallelRedo ? new ParallelRedo(this::getFileLock) : null;
             try {
                 while ((next = reader.nextEntry()) != null) {
-                    SanityCheck.ASSERT(next.getLogType() != LogEntryTypes.CHECKPOINT,
-                            "Found a checkpoint during recovery run! This should not ever happen.");
-                    if (next.getLogType() == LogEntryTypes.TXN_START) {
+                    if (next.getLogType() == LogEntryTypes.CHECKPOINT) {
+                        // redoing from a fuzzy checkpoint passes over later checkpoints
+                        if (next.getLsn() == lastLsn)
+                            {break;}
+                        continue;
+                    } else if (next.getLogType() == LogEntryTypes.TXN_START) {
                         // new transaction starts: add it to the transactions table
                         runningTxns.put(next.getTransactionId(), next);
                     } else if (next.getLogType() == LogEntryTypes.TXN_COMMIT) {
@@ -234,22 +264,38 @@ public class RecoveryManager {
                     } else if (next.getLogType() == LogEntryTypes.TXN_ABORT) {
                         // transaction aborted: remove it from the transactions table
                         runningTxns.remove(next.getTransactionId());
-                    }
+                    } else {
         //            LOG.debug("Redo: " + next.dump());
-                    // redo the log entry
-                    next.redo();
+                        // redo the log entry
+                        if (redo == null)
+                            {next.redo();}
+                        else
+                            {redo.redo(next);}
+                    }
                     progress.set(Lsn.getOffset(next.getLsn()));
                     if (next.getLsn() == lastLsn)
                         {break;} // last readable entry reached. Stop here.
                 }
+                if (redo != null) {
+                    // wait for the workers before undoing anything
+                    redo.close();
+                }
             } catch (final Exception e) {
+                if (redo != null) {
+                    try {
+                        redo.close();
+                    } catch (final LogException e2) {
+                        // already failed
+                    }
+                }
                 LOG.error("Exception caught while redoing transactions. Aborting recovery to avoid possible damage. " +
                     "Before starting again, make sure to run a check via the emergency export tool.", e);
                 if (next != null)
                     {LOG.info("Log entry that caused the exception: " + next.dump());}
                 throw new LogException("Recovery aborted. ");
             } finally {
-                LOG.info("Redo processed " + redoCnt + " out of " + txnCount + " transactions.");
+                LOG.info("Redo processed " + redoCnt + " out of " + txnCount + " transactions in " +
+                        (System.currentTimeMillis() - start) + "ms.");
             }
 
             // ------- UNDO ---------
@@ -296,6 +342,19 @@ public class RecoveryManager {
         }
     }
     
+    /**
+     * @return the lock of the paged file with the given id, or null if it is unknown
+     */
+    private Lock getFileLock(final Byte fileId) {
+        if (broker instanceof NativeBroker) {
+            final BTree file = ((NativeBroker) broker).getStorage(fileId);
+            if (file != null) {
+                return file.getLock();
+            }
+        }
+        return null;
+    }
+
 	private void cleanDirectory(final Stream<Path> files) {
         files.forEach(FileUtils::deleteQuietly);
 	}
@@ -32,11 +32,16 @@ import org.exist.indexing.IndexWorker;
 import org.exist.indexing.RawBackupSupport;
 import org.exist.storage.BrokerPool;
 import org.exist.storage.DBBroker;
+import org.exist.storage.btree.BTree;
+import org.exist.storage.btree.BTreeException;
 import org.exist.storage.btree.DBException;
+import org.exist.storage.btree.KeySorter;
+import org.exist.storage.btree.Value;
 import org.exist.storage.index.BTreeStore;
 import org.exist.storage.lock.Lock;
 import org.exist.util.DatabaseConfigurationException;
 import org.exist.util.FileUtils;
+import org.exist.util.ByteConversion;
 import org.exist.util.LockException;
 import org.w3c.dom.Element;
 
@@ -54,6 +59,9 @@ public class NativeStructuralIndex extends AbstractIndex implements RawBackupSup
 
     protected SymbolTable symbols;
 
+    /** the entries collected while the index is rebuilt from scratch, see {@link #startBulkLoad()} */
+    protected KeySorter bulkEntries = null;
+
     public NativeStructuralIndex() {
         //Nothing to do
     }
@@ -102,6 +110,66 @@ public class NativeStructuralIndex extends AbstractIndex implements RawBackupSup
         }
     }
 
+    /**
+     * Start rebuilding the empty index from scratch: until {@link #finishBulkLoad()} is called,
+     * the keys of new nodes are collected and sorted instead of being inserted into the btree
+     * one by one. They can not be found by queries before {@link #finishBulkLoad()}.
+     */
+    public void startBulkLoad() {
+        final Lock lock = btree.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            bulkEntries = new KeySorter();
+        } catch (final LockException e) {
+            LOG.warn("Failed to acquire lock for '" + FileUtils.fileName(btree.getFile()) + "'", e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    /**
+     * Fill the btree bottom-up from the keys collected since {@link #startBulkLoad()}.
+     * If the btree is not empty, the keys are inserted one by one.
+     */
+    public void finishBulkLoad() {
+        final Lock lock = btree.getLock();
+        try {
+            lock.acquire(Lock.WRITE_LOCK);
+            final KeySorter entries = bulkEntries;
+            bulkEntries = null;
+            if (entries == null) {
+                return;
+            }
+            LOG.info("Loading " + entries.getCount() + " keys into '" + FileUtils.fileName(btree.getFile()) + "'");
+            BTree.BulkLoader loader = null;
+            try {
+                loader = btree.bulkLoad(BTree.DEFAULT_FILL_FACTOR);
+            } catch (final BTreeException e) {
+                LOG.warn("Inserting keys one by one: " + e.getMessage());
+            }
+            final BTree.BulkLoader bulkLoader = loader;
+            // a key may have been added more than once for a document: keep the first pointer
+            entries.sort((key, values) -> {
+                final long pointer = ByteConversion.byteToLong(values.get(0), 0);
+                if (bulkLoader != null) {
+                    bulkLoader.add(key, pointer);
+                } else if (btree.findValue(key) == -1) {
+                    btree.addValue(key, pointer);
+                }
+            });
+            if (bulkLoader != null) {
+                bulkLoader.finish();
+            }
+            btree.flush();
+        } catch (final LockException e) {
+            LOG.warn("Failed to acquire lock for '" + FileUtils.fileName(btree.getFile()) + "'", e);
+        } catch (final IOException | DBException e) {
+            LOG.error("Failed to load structural index: " + e.getMessage(), e);
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+    }
+
     @Override
     public void remove() throws DBException {
         btree.closeAndRemove();
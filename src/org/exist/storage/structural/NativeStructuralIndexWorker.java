@@ -688,6 +688,16 @@ public class NativeStructuralIndexWorker implements IndexWorker, StructuralIndex
                 try {
                     lock.acquire(Lock.WRITE_LOCK);
                     final List<NodeProxy> nodes = entry.getValue();
+                    if (index.bulkEntries != null) {
+                        // the index is rebuilt from scratch: keys are sorted and loaded later
+                        for (final NodeProxy proxy : nodes) {
+                            final byte[] key = computeKey(qname.getNameType(), qname, document.getDocId(), proxy.getNodeId());
+                            index.bulkEntries.add(key, ByteConversion.longToByte(computeValue(proxy)));
+                        }
+                        index.bulkEntries.add(computeDocKey(qname.getNameType(), document.getDocId(), qname),
+                            ByteConversion.longToByte(0));
+                        continue;
+                    }
                     for (final NodeProxy proxy : nodes) {
                         final NodeId nodeId = proxy.getNodeId();
                         final byte[] key = computeKey(qname.getNameType(), qname, document.getDocId(), nodeId);
@@ -31,4 +31,10 @@ public interface Sync {
 
     public final static int MINOR_SYNC = 0;
     public final static int MAJOR_SYNC = 1;
+
+    /**
+     * Like {@link #MAJOR_SYNC}, but pages of transactional files which only
+     * contain journalled changes may stay in the caches. Used for fuzzy checkpoints.
+     */
+    public final static int FUZZY_SYNC = 2;
 }
@@ -27,13 +27,23 @@ import java.util.Date;
 import org.exist.storage.DBBroker;
 import org.exist.storage.journal.AbstractLoggable;
 import org.exist.storage.journal.LogEntryTypes;
+import org.exist.storage.journal.Lsn;
 
 /**
+ * A checkpoint record in the journal.
+ *
+ * A sharp checkpoint is written after all dirty pages have been flushed to disk:
+ * recovery never has to look at entries preceding it. A fuzzy checkpoint
+ * leaves dirty pages in the caches and instead records the LSN of the oldest
+ * change not yet written (the redo LSN). Recovery has to redo all entries
+ * from there.
+ *
  * @author wolf
  */
 public class Checkpoint extends AbstractLoggable {
 	private long timestamp;
 	private long storedLsn;
+	private long redoLsn = Lsn.LSN_INVALID;
 	
 	private final DateFormat df =
 		DateFormat.getDateTimeInstance(DateFormat.MEDIUM, DateFormat.MEDIUM);
@@ -46,26 +56,56 @@ public class Checkpoint extends AbstractLoggable {
         super(LogEntryTypes.CHECKPOINT, transactionId);
 		timestamp = new Date().getTime();
     }
+
+    /**
+     * Create a fuzzy checkpoint.
+     *
+     * @param transactionId the transaction id
+     * @param redoLsn the LSN of the oldest change which has not been written to disk,
+     *                or {@link Lsn#LSN_INVALID} for a sharp checkpoint
+     */
+    public Checkpoint(final long transactionId, final long redoLsn) {
+        this(null, transactionId);
+        this.redoLsn = redoLsn;
+    }
     
     @Override
     public void write(final ByteBuffer out) {
     	out.putLong(lsn);
 		out.putLong(timestamp);
+		out.putLong(redoLsn);
     }
 
     @Override
     public void read(final ByteBuffer in) {
     	storedLsn = in.getLong();
 		timestamp = in.getLong();
+		// journals written by older versions do not contain the redo LSN
+		// (the remaining 2 bytes are the link to the previous entry)
+		if (in.remaining() >= 10) {
+			redoLsn = in.getLong();
+		}
     }
 
     public long getStoredLsn() {
     	return storedLsn;
     }
+
+    /**
+     * @return the LSN at which recovery has to start redoing, or
+     * {@link Lsn#LSN_INVALID} if this is a sharp checkpoint
+     */
+    public long getRedoLsn() {
+        return redoLsn;
+    }
+
+    public boolean isFuzzy() {
+        return redoLsn != Lsn.LSN_INVALID;
+    }
     
     @Override
     public int getLogSize() {
-        return 16;
+        return 24;
     }
 
     public String getDateString() {
@@ -74,6 +114,7 @@ public class Checkpoint extends AbstractLoggable {
 
     @Override
 	public String dump() {
-		return super.dump() + " - checkpoint at " + df.format(new Date(timestamp));
+		return super.dump() + " - checkpoint at " + df.format(new Date(timestamp)) +
+			(isFuzzy() ? "; redo from " + Lsn.dump(redoLsn) : "");
 	}
 }
@@ -33,6 +33,7 @@ import org.exist.storage.DBBroker;
 import org.exist.storage.SystemTask;
 import org.exist.storage.SystemTaskManager;
 import org.exist.storage.journal.Journal;
+import org.exist.storage.journal.Lsn;
 import org.exist.storage.recovery.RecoveryManager;
 import org.exist.util.ReadOnlyException;
 import org.exist.xmldb.XmldbURI;
@@ -62,6 +63,8 @@ public class TransactionManager {
 	public final static String PROPERTY_RECOVERY_GROUP_COMMIT = "db-connection.recovery.group-commit";
     public final static String RECOVERY_FORCE_RESTART_ATTRIBUTE = "force-restart";
     public final static String PROPERTY_RECOVERY_FORCE_RESTART = "db-connection.recovery.force-restart";
+    public final static String RECOVERY_FUZZY_CHECKPOINT_ATTRIBUTE = "fuzzy-checkpoint";
+    public final static String PROPERTY_RECOVERY_FUZZY_CHECKPOINT = "db-connection.recovery.fuzzy-checkpoint";
 
     /**
      * Timeout for inactive transactions. A transaction which has not processed
@@ -88,6 +91,9 @@ public class TransactionManager {
     @ConfigurationFieldAsAttribute("force-restart")
     private boolean forceRestart = false;
 
+    @ConfigurationFieldAsAttribute("fuzzy-checkpoint")
+    private boolean fuzzyCheckpoint = false;
+
     private SystemTaskManager taskManager;
 
     private final Map<Long, TxnCounter> transactions = new HashMap<>();
@@ -109,21 +115,28 @@ public class TransactionManager {
             transactionsEnabled ? new Journal(pool, dataDir) : null,
             Optional.ofNullable((boolean)pool.getConfiguration().getProperty(PROPERTY_RECOVERY_GROUP_COMMIT)).orElse(false),
             Optional.ofNullable((boolean)pool.getConfiguration().getProperty(PROPERTY_RECOVERY_FORCE_RESTART)).orElse(false),
+            Optional.ofNullable((Boolean)pool.getConfiguration().getProperty(PROPERTY_RECOVERY_FUZZY_CHECKPOINT)).orElse(false),
             new SystemTaskManager(pool)
         );
     }
 
     TransactionManager(final BrokerPool pool, final boolean transactionsEnabled, final Journal journal, final boolean groupCommit, final boolean forceRestart, final SystemTaskManager taskManager) {
+        this(pool, transactionsEnabled, journal, groupCommit, forceRestart, false, taskManager);
+    }
+
+    TransactionManager(final BrokerPool pool, final boolean transactionsEnabled, final Journal journal, final boolean groupCommit, final boolean forceRestart, final boolean fuzzyCheckpoint, final SystemTaskManager taskManager) {
         this.pool = pool;
         this.enabled = transactionsEnabled;
         this.journal = journal;
         this.groupCommit = groupCommit;
         this.forceRestart = forceRestart;
+        this.fuzzyCheckpoint = fuzzyCheckpoint;
         this.taskManager = taskManager;
 
         if (LOG.isDebugEnabled()) {
             LOG.debug("GroupCommits = " + groupCommit);
             LOG.debug("ForceRestart = " + forceRestart);
+            LOG.debug("FuzzyCheckpoint = " + fuzzyCheckpoint);
         }
     }
 
@@ -188,11 +201,14 @@ public class TransactionManager {
             return;
         }
 
-        new RunWithLock<Object>() {
-        	public Object execute() {
+        final Long commitLsn = new RunWithLock<Long>() {
+        	public Long execute() {
+                long lsn = Lsn.LSN_INVALID;
                 if (enabled) {
                     try {
-						journal.writeToLog(new TxnCommit(txn.getId()));
+                        final TxnCommit commit = new TxnCommit(txn.getId());
+						journal.writeToLog(commit);
+                        lsn = commit.getLsn();
 					} catch (final TransactionException e) {
 						LOG.error("transaction manager caught exception while committing", e);
 					}
@@ -204,9 +220,14 @@ public class TransactionManager {
                 transactions.remove(txn.getId());
                 processSystemTasks();
                 LOG.debug("Committed transaction: " + txn.getId());
-                return null;
+                return lsn;
         	}
         }.run();
+
+        // wait outside of the lock, so concurrent commits can share one sync of the journal
+        if (groupCommit && commitLsn != null) {
+            journal.awaitCommit(commitLsn);
+        }
     }
 	
     public void abort(final Txn txn) {
@@ -279,6 +300,10 @@ public class TransactionManager {
     /**
      * Create a new checkpoint. A checkpoint fixes the current database state. All dirty pages
      * are written to disk and the journal file is cleaned.
+     *
+     * If fuzzy checkpoints are enabled and the journal file is not switched, dirty
+     * pages may remain in the caches: the checkpoint then records the LSN of the oldest
+     * change which has not been written, and recovery starts redoing from there.
      * 
      * This method is called from 
      * {@link org.exist.storage.BrokerPool} within pre-defined periods. It
@@ -293,7 +318,24 @@ public class TransactionManager {
         }
         
 	final long txnId = nextTxnId++;
-	journal.checkpoint(txnId, switchFiles);
+	final long redoLsn = isFuzzyCheckpoint() && !switchFiles ?
+	    pool.getCacheManager().getOldestDirtyLsn() : Lsn.LSN_INVALID;
+	journal.checkpoint(txnId, switchFiles, redoLsn);
+    }
+
+    /**
+     * @return true if a checkpoint which does not switch the journal file may leave
+     * dirty pages in the caches
+     */
+    public boolean isFuzzyCheckpoint() {
+        return enabled && fuzzyCheckpoint;
+    }
+
+    /**
+     * @return true if committing transactions share a single write and sync of the journal
+     */
+    public boolean isGroupCommit() {
+        return enabled && groupCommit;
     }
 	
     public Journal getJournal() {
@@ -51,7 +51,10 @@ import org.exist.storage.IndexSpec;
 import org.exist.storage.NativeBroker;
 import org.exist.storage.NativeValueIndex;
 import org.exist.storage.XQueryPool;
+import org.exist.storage.btree.Paged;
+import org.exist.storage.dom.DOMFile;
 import org.exist.storage.journal.Journal;
+import org.exist.storage.recovery.RecoveryManager;
 import org.exist.storage.serializers.CustomMatchListenerFactory;
 import org.exist.storage.serializers.Serializer;
 import org.exist.storage.txn.TransactionManager;
@@ -330,6 +333,36 @@ public class Configuration implements ErrorHandler
         config.put( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL, Configuration.parseBoolean( raiseErrorOnFailedRetrieval, XQueryContext.XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_DEFAULT ) );
         LOG.debug( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL + ": " + config.get( XQueryContext.PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL ) );
 
+        final String snapshotReads = getConfigAttributeValue( xquery, XQueryContext.SNAPSHOT_READS_ATTRIBUTE );
+        config.put( XQueryContext.PROPERTY_SNAPSHOT_READS, Configuration.parseBoolean( snapshotReads, XQueryContext.SNAPSHOT_READS_DEFAULT ) );
+        LOG.debug( XQueryContext.PROPERTY_SNAPSHOT_READS + ": " + config.get( XQueryContext.PROPERTY_SNAPSHOT_READS ) );
+
+        final String parallelism = getConfigAttributeValue( xquery, XQueryContext.PARALLELISM_ATTRIBUTE );
+
+        if( parallelism != null ) {
+
+            try {
+                config.put( XQueryContext.PROPERTY_PARALLELISM, Integer.valueOf( parallelism ) );
+                LOG.debug( XQueryContext.PROPERTY_PARALLELISM + ": " + config.get( XQueryContext.PROPERTY_PARALLELISM ) );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new DatabaseConfigurationException( "parallelism attribute in xquery section needs to be a number" ) );
+            }
+        }
+
+        final String spillThreshold = getConfigAttributeValue( xquery, XQueryContext.SPILL_THRESHOLD_ATTRIBUTE );
+
+        if( spillThreshold != null ) {
+
+            try {
+                config.put( XQueryContext.PROPERTY_SPILL_THRESHOLD, Integer.valueOf( spillThreshold ) );
+                LOG.debug( XQueryContext.PROPERTY_SPILL_THRESHOLD + ": " + config.get( XQueryContext.PROPERTY_SPILL_THRESHOLD ) );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new DatabaseConfigurationException( "spill-threshold attribute in xquery section needs to be a number" ) );
+            }
+        }
+
         final String trace = getConfigAttributeValue( xquery, PerformanceStats.CONFIG_ATTR_TRACE );
         config.put( PerformanceStats.CONFIG_PROPERTY_TRACE, trace );
 
@@ -728,6 +761,25 @@ public class Configuration implements ErrorHandler
     }
     
 
+    /**
+     * Read the cache policy from the given attribute. Unknown policies are ignored.
+     */
+    private void configureCachePolicy( Element con, String attribute, String property )
+    {
+        final String policy = getConfigAttributeValue( con, attribute );
+
+        if( policy != null ) {
+
+            if( DefaultCacheManager.CACHE_POLICY_ARC.equals( policy ) || DefaultCacheManager.CACHE_POLICY_CONCURRENT.equals( policy )
+                    || DefaultCacheManager.CACHE_POLICY_DEFAULT.equals( policy ) ) {
+                config.put( property, policy );
+                LOG.debug( property + ": " + config.get( property ) );
+            } else {
+                LOG.warn( "Unknown cache policy for " + attribute + ": " + policy + ". Using " + DefaultCacheManager.CACHE_POLICY_DEFAULT );
+            }
+        }
+    }
+
     /**
      * DOCUMENT ME!
      *
@@ -806,6 +858,52 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        String offHeapCache = getConfigAttributeValue( con, DefaultCacheManager.OFF_HEAP_CACHE_SIZE_ATTRIBUTE );
+
+        if( offHeapCache != null ) {
+
+            if( offHeapCache.endsWith( "M" ) || offHeapCache.endsWith( "m" ) ) {
+                offHeapCache = offHeapCache.substring( 0, offHeapCache.length() - 1 );
+            }
+
+            try {
+                config.put( DefaultCacheManager.PROPERTY_OFF_HEAP_CACHE_SIZE, Integer.valueOf(offHeapCache) );
+                LOG.debug( DefaultCacheManager.PROPERTY_OFF_HEAP_CACHE_SIZE + ": " + config.get( DefaultCacheManager.PROPERTY_OFF_HEAP_CACHE_SIZE ) + "m" );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
+        configureCachePolicy( con, DefaultCacheManager.BTREE_CACHE_POLICY_ATTRIBUTE, DefaultCacheManager.PROPERTY_BTREE_CACHE_POLICY );
+        configureCachePolicy( con, DefaultCacheManager.DATA_CACHE_POLICY_ATTRIBUTE, DefaultCacheManager.PROPERTY_DATA_CACHE_POLICY );
+
+        final String writerInterval = getConfigAttributeValue( con, DefaultCacheManager.BACKGROUND_WRITER_INTERVAL_ATTRIBUTE );
+
+        if( writerInterval != null ) {
+
+            try {
+                config.put( DefaultCacheManager.PROPERTY_BACKGROUND_WRITER_INTERVAL, Integer.valueOf(writerInterval) );
+                LOG.debug( DefaultCacheManager.PROPERTY_BACKGROUND_WRITER_INTERVAL + ": " + config.get( DefaultCacheManager.PROPERTY_BACKGROUND_WRITER_INTERVAL ) + "ms" );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
+        final String dirtyRatio = getConfigAttributeValue( con, DefaultCacheManager.BACKGROUND_WRITER_DIRTY_RATIO_ATTRIBUTE );
+
+        if( dirtyRatio != null ) {
+
+            try {
+                config.put( DefaultCacheManager.PROPERTY_BACKGROUND_WRITER_DIRTY_RATIO, Double.valueOf(dirtyRatio) );
+                LOG.debug( DefaultCacheManager.PROPERTY_BACKGROUND_WRITER_DIRTY_RATIO + ": " + config.get( DefaultCacheManager.PROPERTY_BACKGROUND_WRITER_DIRTY_RATIO ) );
+            }
+            catch( final NumberFormatException nfe ) {
+                LOG.warn( nfe );
+            }
+        }
+
         String collectionCache = getConfigAttributeValue( con, CollectionCacheManager.CACHE_SIZE_ATTRIBUTE );
 
         if( collectionCache != null ) {
@@ -836,6 +934,30 @@ public class Configuration implements ErrorHandler
             }
         }
 
+        final String pageIO = getConfigAttributeValue( con, Paged.PAGE_IO_ATTRIBUTE );
+
+        if( pageIO != null ) {
+
+            if( Paged.PAGE_IO_MMAP.equals( pageIO ) || Paged.PAGE_IO_FILE.equals( pageIO ) ) {
+                config.put( Paged.PROPERTY_PAGE_IO, pageIO );
+                LOG.debug( Paged.PROPERTY_PAGE_IO + ": " + config.get( Paged.PROPERTY_PAGE_IO ) );
+            } else {
+                LOG.warn( "Unknown value for " + Paged.PAGE_IO_ATTRIBUTE + ": " + pageIO + ". Using " + Paged.PAGE_IO_FILE );
+            }
+        }
+
+        final String domCompression = getConfigAttributeValue( con, DOMFile.COMPRESSION_ATTRIBUTE );
+
+        if( domCompression != null ) {
+
+            if( DOMFile.COMPRESSION_NONE.equals( domCompression ) || DOMFile.COMPRESSION_DEFLATE.equals( domCompression ) ) {
+                config.put( DOMFile.PROPERTY_COMPRESSION, domCompression );
+                LOG.debug( DOMFile.PROPERTY_COMPRESSION + ": " + config.get( DOMFile.PROPERTY_COMPRESSION ) );
+            } else {
+                LOG.warn( "Unknown value for " + DOMFile.COMPRESSION_ATTRIBUTE + ": " + domCompression + ". Using " + DOMFile.COMPRESSION_NONE );
+            }
+        }
+
         //Not clear : rather looks like a buffers count
         final String collCacheSize = getConfigAttributeValue( con, BrokerPool.COLLECTION_CACHE_SIZE_ATTRIBUTE );
 
@@ -1032,6 +1154,60 @@ public class Configuration implements ErrorHandler
         setProperty( TransactionManager.PROPERTY_RECOVERY_GROUP_COMMIT, parseBoolean( option, false ) );
         LOG.debug( TransactionManager.PROPERTY_RECOVERY_GROUP_COMMIT + ": " + config.get( TransactionManager.PROPERTY_RECOVERY_GROUP_COMMIT ) );
 
+        option = getConfigAttributeValue( recovery, Journal.RECOVERY_GROUP_COMMIT_WINDOW_ATTRIBUTE );
+
+        if( option != null ) {
+
+            try {
+                setProperty( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_WINDOW, Integer.valueOf( option ) );
+                LOG.debug( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_WINDOW + ": " + config.get( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_WINDOW ) + "ms" );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new DatabaseConfigurationException( "group-commit-window attribute in recovery section needs to be a number" ) );
+            }
+        }
+
+        option = getConfigAttributeValue( recovery, Journal.RECOVERY_GROUP_COMMIT_SIZE_ATTRIBUTE );
+
+        if( option != null ) {
+
+            if( option.endsWith( "K" ) || option.endsWith( "k" ) ) {
+                option = option.substring( 0, option.length() - 1 );
+            }
+
+            try {
+                setProperty( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_SIZE, Integer.valueOf( option ) );
+                LOG.debug( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_SIZE + ": " + config.get( Journal.PROPERTY_RECOVERY_GROUP_COMMIT_SIZE ) + "k" );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new DatabaseConfigurationException( "group-commit-size attribute in recovery section needs to be a number" ) );
+            }
+        }
+
+        option = getConfigAttributeValue( recovery, Journal.RECOVERY_COMPRESS_THRESHOLD_ATTRIBUTE );
+
+        if( option != null ) {
+
+            try {
+                setProperty( Journal.PROPERTY_RECOVERY_COMPRESS_THRESHOLD, Integer.valueOf( option ) );
+                LOG.debug( Journal.PROPERTY_RECOVERY_COMPRESS_THRESHOLD + ": " + config.get( Journal.PROPERTY_RECOVERY_COMPRESS_THRESHOLD ) );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new DatabaseConfigurationException( "compress-threshold attribute in recovery section needs to be a number" ) );
+            }
+        }
+
+        option = getConfigAttributeValue( recovery, Journal.RECOVERY_PREALLOCATE_ATTRIBUTE );
+        setProperty( Journal.PROPERTY_RECOVERY_PREALLOCATE, parseBoolean( option, false ) );
+        LOG.debug( Journal.PROPERTY_RECOVERY_PREALLOCATE + ": " + config.get( Journal.PROPERTY_RECOVERY_PREALLOCATE ) );
+
+        option = getConfigAttributeValue( recovery, RecoveryManager.RECOVERY_PARALLEL_REDO_ATTRIBUTE );
+
+        if( option != null ) {
+            setProperty( RecoveryManager.PROPERTY_RECOVERY_PARALLEL_REDO, parseBoolean( option, true ) );
+            LOG.debug( RecoveryManager.PROPERTY_RECOVERY_PARALLEL_REDO + ": " + config.get( RecoveryManager.PROPERTY_RECOVERY_PARALLEL_REDO ) );
+        }
+
         option = getConfigAttributeValue( recovery, Journal.RECOVERY_JOURNAL_DIR_ATTRIBUTE );
 
         if(option != null) {
@@ -1072,6 +1248,15 @@ public class Configuration implements ErrorHandler
         setProperty( TransactionManager.PROPERTY_RECOVERY_FORCE_RESTART, Boolean.valueOf( value ) );
         LOG.debug( TransactionManager.PROPERTY_RECOVERY_FORCE_RESTART + ": " + config.get( TransactionManager.PROPERTY_RECOVERY_FORCE_RESTART ) );
 
+        option = getConfigAttributeValue( recovery, TransactionManager.RECOVERY_FUZZY_CHECKPOINT_ATTRIBUTE );
+        value  = false;
+
+        if( option != null ) {
+            value = "yes".equals(option);
+        }
+        setProperty( TransactionManager.PROPERTY_RECOVERY_FUZZY_CHECKPOINT, Boolean.valueOf( value ) );
+        LOG.debug( TransactionManager.PROPERTY_RECOVERY_FUZZY_CHECKPOINT + ": " + config.get( TransactionManager.PROPERTY_RECOVERY_FUZZY_CHECKPOINT ) );
+
         option = getConfigAttributeValue( recovery, BrokerPool.RECOVERY_POST_RECOVERY_CHECK );
         value  = false;
 
@@ -67,6 +67,47 @@ public abstract class AbstractFLWORClause extends AbstractExpression implements
         return previousClause;
     }
 
+    /**
+     * Returns true if no order by or group by clause follows this clause.
+     * The first items returned by this clause are then the first items of
+     * the FLWOR expression, so a caller may stop evaluating it early.
+     */
+    protected boolean canStopEarly() {
+        Expression next = returnExpr;
+        while (next instanceof FLWORClause) {
+            final ClauseType type = ((FLWORClause) next).getType();
+            if (type == ClauseType.ORDERBY || type == ClauseType.GROUPBY) {
+                return false;
+            }
+            next = ((FLWORClause) next).getReturnExpression();
+        }
+        return true;
+    }
+
+    /**
+     * Returns the order by clause following this clause if it is the only
+     * one and no group by clause follows. Sorting the items collected by
+     * the order by clause then yields the result of the FLWOR expression,
+     * so a caller which needs the first items only may limit the sort.
+     */
+    protected OrderByClause getLimitableOrderBy() {
+        OrderByClause orderBy = null;
+        Expression next = returnExpr;
+        while (next instanceof FLWORClause) {
+            final ClauseType type = ((FLWORClause) next).getType();
+            if (type == ClauseType.GROUPBY) {
+                return null;
+            } else if (type == ClauseType.ORDERBY) {
+                if (orderBy != null) {
+                    return null;
+                }
+                orderBy = (OrderByClause) next;
+            }
+            next = ((FLWORClause) next).getReturnExpression();
+        }
+        return orderBy;
+    }
+
     protected void setActualReturnType(int type) {
         this.actualReturnType = type;
     }
@@ -58,7 +58,7 @@ public abstract class BasicFunction extends Function {
 		final Sequence[] args = new Sequence[argCount];
 		for (int i = 0; i < argCount; i++) {
             try {
-                args[i] = getArgument(i).eval(contextSequence, contextItem);
+                args[i] = LimitedExpression.eval(getArgument(i), contextSequence, contextItem, getArgumentLimit(i));
             } catch (final XPathException e) {
                 e.prependMessage(
                     ErrorCodes.XPTY0004, 
@@ -75,6 +75,19 @@ public abstract class BasicFunction extends Function {
         return result;        
 	}
 
+	/**
+	 * Returns the number of items of the argument at the given position
+	 * the function needs. Functions which only look at the first items of
+	 * an argument may return less than {@link Integer#MAX_VALUE}, so the
+	 * argument may stop producing items early, see {@link LimitedExpression}.
+	 * 
+	 * @param argument the position of the argument
+	 * @return the number of items needed, by default all
+	 */
+	protected int getArgumentLimit(int argument) {
+		return Integer.MAX_VALUE;
+	}
+
 	/**
 	 * Process the function. All arguments are passed in the array args. The number of
 	 * arguments, their type and cardinality have already been checked to match 
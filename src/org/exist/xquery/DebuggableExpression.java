@@ -41,6 +41,10 @@ public class DebuggableExpression implements Expression, RewritableExpression {
         this.column = this.expression.getColumn();
     }
 
+    public Expression getExpression() {
+        return expression;
+    }
+
     public int getExpressionId() {
         return expression.getExpressionId();
     }
@@ -33,7 +33,7 @@ import org.exist.xquery.value.Sequence;
  * 
  * @author wolf
  */
-public class DynamicCardinalityCheck extends AbstractExpression {
+public class DynamicCardinalityCheck extends AbstractExpression implements LimitedExpression {
 
     final private Expression expression;
     final private int requiredCardinality;
@@ -60,6 +60,15 @@ public class DynamicCardinalityCheck extends AbstractExpression {
      * @see org.exist.xquery.Expression#eval(org.exist.xquery.StaticContext, org.exist.dom.persistent.DocumentSet, org.exist.xquery.value.Sequence, org.exist.xquery.value.Item)
      */
     public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        return eval(contextSequence, contextItem, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evaluate the expression with the given limit. If the required cardinality
+     * does not allow more than one item, at least two items are needed to check it.
+     */
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem, int limit) throws XPathException {
         if (context.getProfiler().isEnabled()) {
             context.getProfiler().start(this);
             context.getProfiler().message(this, Profiler.DEPENDENCIES,
@@ -71,7 +80,8 @@ public class DynamicCardinalityCheck extends AbstractExpression {
                 {context.getProfiler().message(this, Profiler.START_SEQUENCES,
                 "CONTEXT ITEM", contextItem.toSequence());}
         }
-        final Sequence seq = expression.eval(contextSequence, contextItem);
+        final Sequence seq = LimitedExpression.eval(expression, contextSequence, contextItem,
+            (requiredCardinality & Cardinality.MANY) == 0 ? Math.max(limit, 2) : limit);
         int actualCardinality;
         if (seq.isEmpty())
             {actualCardinality = Cardinality.EMPTY;}
@@ -22,6 +22,7 @@
 package org.exist.xquery;
 
 import org.exist.dom.persistent.DocumentSet;
+import org.exist.xquery.parser.XQueryAST;
 import org.exist.xquery.util.ExpressionDumper;
 import org.exist.xquery.value.Item;
 import org.exist.xquery.value.Sequence;
@@ -50,6 +51,21 @@ public class ExtensionExpression extends AbstractExpression {
         this.innerExpression = inner;
     }
 
+    public Expression getExpression() {
+        return innerExpression;
+    }
+
+    /**
+     * Set the inner expression and pass its syntax tree on to the pragmas,
+     * see {@link Pragma#setExpressionAST(XQueryAST)}.
+     */
+    public void setExpression(Expression inner, XQueryAST ast) {
+        setExpression(inner);
+        for (final Pragma pragma : pragmas) {
+            pragma.setExpressionAST(ast);
+        }
+    }
+
     public void addPragma(Pragma pragma) {
         pragmas.add(pragma);
     }
@@ -27,6 +27,7 @@ import java.util.List;
 
 import org.exist.dom.persistent.NodeSet;
 import org.exist.dom.memtree.NodeImpl;
+import org.exist.xquery.functions.fn.FunPosition;
 import org.exist.xquery.util.ExpressionDumper;
 import org.exist.xquery.value.*;
 
@@ -102,7 +103,8 @@ public class FilteredExpression extends AbstractExpression {
         if (contextItem != null)
             {contextSequence = contextItem.toSequence();}
         Sequence result;
-        final Sequence seq = expression.eval(contextSequence, contextItem);
+        final Sequence seq = abbreviated ? expression.eval(contextSequence, contextItem) :
+            LimitedExpression.eval(expression, contextSequence, contextItem, getPositionalLimit());
         if (seq.isEmpty())
             {result = Sequence.EMPTY_SEQUENCE;}
         else {
@@ -146,6 +148,68 @@ public class FilteredExpression extends AbstractExpression {
         return result;
     }
 
+    /**
+     * If the first predicate selects items by a constant position, like [1] or
+     * [position() le 10], return the number of items it looks at.
+     *
+     * @return the last position the predicate may select, or Integer.MAX_VALUE
+     */
+    private int getPositionalLimit() {
+        final Predicate pred = predicates.get(0);
+        if (pred.getLength() != 1) {
+            return Integer.MAX_VALUE;
+        }
+        final Expression inner = unwrap(pred.getExpression(0));
+        if (inner instanceof LiteralValue) {
+            return positionOf((LiteralValue) inner, false);
+        }
+        if (inner instanceof GeneralComparison &&
+                unwrap(((GeneralComparison) inner).getLeft()) instanceof FunPosition) {
+            final Expression right = unwrap(((GeneralComparison) inner).getRight());
+            if (right instanceof LiteralValue) {
+                switch (((GeneralComparison) inner).getRelation()) {
+                    case Constants.EQ:
+                    case Constants.LTEQ:
+                        return positionOf((LiteralValue) right, false);
+                    case Constants.LT:
+                        return positionOf((LiteralValue) right, true);
+                    default:
+                        break;
+                }
+            }
+        }
+        return Integer.MAX_VALUE;
+    }
+
+    private static int positionOf(LiteralValue literal, boolean exclusive) {
+        final AtomicValue value = literal.getValue();
+        if (!Type.subTypeOf(value.getType(), Type.NUMBER)) {
+            return Integer.MAX_VALUE;
+        }
+        try {
+            final double position = ((NumericValue) value).getDouble();
+            if (Double.isNaN(position) || position >= Integer.MAX_VALUE) {
+                return Integer.MAX_VALUE;
+            }
+            final int limit = (int) (exclusive ? Math.ceil(position) - 1 : Math.floor(position));
+            return Math.max(limit, 1);
+        } catch (final XPathException e) {
+            return Integer.MAX_VALUE;
+        }
+    }
+
+    private static Expression unwrap(Expression expr) {
+        while (true) {
+            if (expr.getClass() == PathExpr.class && ((PathExpr) expr).getLength() == 1) {
+                expr = ((PathExpr) expr).getExpression(0);
+            } else if (expr instanceof InternalFunctionCall) {
+                expr = ((InternalFunctionCall) expr).getFunction();
+            } else {
+                return expr;
+            }
+        }
+    }
+
     private Sequence processPredicate(Sequence contextSequence, Sequence seq) throws XPathException {
         for (final Predicate pred : predicates) {
             seq = pred.evalPredicate(contextSequence, seq, Constants.DESCENDANT_SELF_AXIS);
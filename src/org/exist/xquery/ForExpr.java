@@ -33,7 +33,7 @@ import org.exist.xquery.value.*;
  * 
  * @author Wolfgang Meier <wolfgang@exist-db.org>
  */
-public class ForExpr extends BindingExpression {
+public class ForExpr extends BindingExpression implements LimitedExpression {
 
     private String positionalVariable = null;
     private boolean allowEmpty = false;
@@ -58,6 +58,17 @@ public class ForExpr extends BindingExpression {
         positionalVariable = var;
     }
 
+    /**
+     * @return the QName of the positional variable or null if there is none
+     */
+    public String getPositionalVariable() {
+        return positionalVariable;
+    }
+
+    public boolean isAllowingEmpty() {
+        return allowEmpty;
+    }
+
 	/* (non-Javadoc)
      * @see org.exist.xquery.Expression#analyze(org.exist.xquery.Expression)
      */
@@ -104,6 +115,30 @@ public class ForExpr extends BindingExpression {
      */
     public Sequence eval(Sequence contextSequence, Item contextItem)
             throws XPathException {
+        return eval(contextSequence, contextItem, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evaluate the for expression, but stop iterating once the return clause
+     * produced limit items. If an order by clause follows, all items are
+     * iterated, but the order by clause only keeps the first limit items in
+     * sort order. The limit is ignored if a group by clause follows, or if
+     * the result is unordered.
+     */
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem, int limit)
+            throws XPathException {
+        if (unordered) {
+            limit = Integer.MAX_VALUE;
+        } else if (!canStopEarly()) {
+            if (limit < Integer.MAX_VALUE) {
+                final OrderByClause orderBy = getLimitableOrderBy();
+                if (orderBy != null) {
+                    orderBy.setLimit(limit);
+                }
+            }
+            limit = Integer.MAX_VALUE;
+        }
         if (context.getProfiler().isEnabled()) {
             context.getProfiler().start(this);
             context.getProfiler().message(this, Profiler.DEPENDENCIES,
@@ -172,10 +207,11 @@ public class ForExpr extends BindingExpression {
             // Loop through each variable binding
             int p = 0;
             if (in.isEmpty() && allowEmpty) {
-                processItem(var, AtomicValue.EMPTY_VALUE, Sequence.EMPTY_SEQUENCE, resultSequence, at, p);
+                processItem(var, AtomicValue.EMPTY_VALUE, Sequence.EMPTY_SEQUENCE, resultSequence, at, p, limit);
             } else {
-                for (final SequenceIterator i = in.iterate(); i.hasNext(); p++) {
-                    processItem(var, i.nextItem(), in, resultSequence, at, p);
+                int count = 0;
+                for (final SequenceIterator i = in.iterate(); i.hasNext() && count < limit; p++) {
+                    count += processItem(var, i.nextItem(), in, resultSequence, at, p, limit - count);
                 }
             }
         } finally {
@@ -220,8 +256,11 @@ public class ForExpr extends BindingExpression {
         return resultSequence;
     }
 
-    private void processItem(LocalVariable var, Item contextItem, Sequence in, Sequence resultSequence, LocalVariable
-            at, int p) throws XPathException {
+    /**
+     * @return the number of items added to the result, or 0 if there is no limit
+     */
+    private int processItem(LocalVariable var, Item contextItem, Sequence in, Sequence resultSequence, LocalVariable
+            at, int p, int limit) throws XPathException {
         context.proceed(this);
         context.setContextSequencePosition(p, in);
         if (positionalVariable != null) {
@@ -235,10 +274,13 @@ public class ForExpr extends BindingExpression {
         //Reset the context position
         context.setContextSequencePosition(0, null);
 
-        resultSequence.addAll(returnExpr.eval(null));
+        final Sequence returned = LimitedExpression.eval(returnExpr, null, null, limit);
+        resultSequence.addAll(returned);
 
         // free resources
         var.destroy(context, resultSequence);
+        // only count if needed, this may be expensive for some sequences
+        return limit == Integer.MAX_VALUE ? 0 : returned.getItemCount();
     }
 
     private boolean callPostEval() {
@@ -146,6 +146,7 @@ public abstract class Function extends PathExpr {
                 initArgs[1] = def.getSignature();
             }
             final Object obj = construct.newInstance(initArgs);
+            context.addFunctionCall(def.getSignature().getName());
             if (obj instanceof Function) {
                 ((Function)obj).setLocation(ast.getLine(), ast.getColumn());
                 return (Function) obj;
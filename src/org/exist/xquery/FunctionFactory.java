@@ -242,6 +242,7 @@ public class FunctionFactory {
                 " Call to " + qname.getStringValue() + " denied.");
         }
         final JavaCall call = new JavaCall(context, qname);
+        context.addSideEffect(qname.getStringValue());
         call.setLocation(ast.getLine(), ast.getColumn());
         call.setArguments(params);
         return call;
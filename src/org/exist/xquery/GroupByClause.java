@@ -1,9 +1,11 @@
 package org.exist.xquery;
 
 import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
 import org.exist.xquery.util.ExpressionDumper;
 import org.exist.xquery.value.*;
 
+import java.io.IOException;
 import java.text.Collator;
 import java.util.*;
 import java.util.stream.Stream;
@@ -15,12 +17,26 @@ import java.util.stream.Stream;
  */
 public class GroupByClause extends AbstractFLWORClause {
 
+    /**
+     * Number of temporary files the groups are distributed to once the
+     * spill threshold is reached, see {@link XQueryContext#getSpillThreshold()}.
+     */
+    private final static int PARTITIONS = 32;
+
     protected FLWORClause rootClause = null;
     private GroupSpec[] groupSpecs;
     private Map<List<AtomicValue>, Tuple> groupedMap = null;
     private Map<QName, LocalVariable> variables = null;
     private List<LocalVariable> groupingVars = null;
 
+    // true as long as the groups may be written to temporary files
+    private boolean spillable = false;
+    // the number of tuples added to the grouping map since it was last written
+    private int tupleCount = 0;
+    private SpillFile[] partitions = null;
+    private int[] partitionSizes = null;
+    private Map<Integer, DocumentImpl> documents = null;
+
     public GroupByClause(XQueryContext context) {
         super(context);
     }
@@ -43,6 +59,9 @@ public class GroupByClause extends AbstractFLWORClause {
             }
             variables = new HashMap<>();
             groupingVars = new ArrayList<>();
+            // temporary files are only used if groups can be found by hash code
+            spillable = context.getSpillThreshold() > 0 && usesDefaultCollator();
+            tupleCount = 0;
         }
 
         // Evaluate group spec to create grouping key sequence
@@ -83,12 +102,157 @@ public class GroupByClause extends AbstractFLWORClause {
                 var.setContextDocs(nextVar.getContextDocs());
                 variables.put(var.getQName(), var);
             }
+            if (spillable) {
+                spillable = canSpill(nextVar.getValue());
+            }
             nextVar = nextVar.after;
         }
 
+        if (spillable) {
+            for (final Sequence groupingValue : groupingValues) {
+                spillable = spillable && canSpill(groupingValue);
+            }
+            if (spillable && ++tupleCount >= context.getSpillThreshold()) {
+                spill();
+            }
+        }
         return contextSequence;
     }
 
+    private static boolean canSpill(final Sequence seq) throws XPathException {
+        for (final SequenceIterator i = seq.iterate(); i.hasNext(); ) {
+            if (!SpillFile.canSpill(i.nextItem())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int getPartition(final List<AtomicValue> keys) {
+        return (keys.hashCode() & Integer.MAX_VALUE) % PARTITIONS;
+    }
+
+    /**
+     * Write all groups to the temporary files of their partitions and clear the
+     * grouping map. Groups with the same key always end up in the same partition,
+     * so the partitions can be grouped one after another by {@link #readPartition(int)}.
+     */
+    private void spill() throws XPathException {
+        try {
+            if (partitions == null) {
+                partitions = new SpillFile[PARTITIONS];
+                partitionSizes = new int[PARTITIONS];
+                documents = new HashMap<>();
+            }
+            for (final Map.Entry<List<AtomicValue>, Tuple> group : groupedMap.entrySet()) {
+                final int partition = getPartition(group.getKey());
+                if (partitions[partition] == null) {
+                    partitions[partition] = new SpillFile(documents);
+                }
+                writeGroup(partitions[partition], group.getKey(), group.getValue());
+                partitionSizes[partition]++;
+            }
+        } catch (final IOException e) {
+            releasePartitions();
+            throw new XPathException(this, "Failed to write groups to a temporary file: " + e.getMessage(), e);
+        }
+        groupedMap.clear();
+        tupleCount = 0;
+    }
+
+    private void writeGroup(final SpillFile file, final List<AtomicValue> keys, final Tuple tuple) throws IOException, XPathException {
+        for (final AtomicValue key : keys) {
+            file.writeItem(key);
+        }
+        for (final Sequence groupingValue : tuple.groupingValues) {
+            writeSequence(file, groupingValue);
+        }
+        file.writeInt(tuple.size());
+        for (final Map.Entry<QName, Sequence> entry : tuple.entrySet()) {
+            file.writeQName(entry.getKey());
+            writeSequence(file, entry.getValue());
+        }
+    }
+
+    private static void writeSequence(final SpillFile file, final Sequence seq) throws IOException, XPathException {
+        file.writeInt(seq.getItemCount());
+        for (final SequenceIterator i = seq.iterate(); i.hasNext(); ) {
+            file.writeItem(i.nextItem());
+        }
+    }
+
+    private static Sequence readSequence(final SpillFile file) throws IOException, XPathException {
+        final int count = file.readInt();
+        final ValueSequence seq = new ValueSequence(count);
+        for (int i = 0; i < count; i++) {
+            seq.add(file.readItem());
+        }
+        return seq;
+    }
+
+    /**
+     * Read the groups of a partition into a new grouping map, merging the tuples
+     * of groups written more than once, and add the groups still in memory which
+     * belong to the partition.
+     */
+    private Map<List<AtomicValue>, Tuple> readPartition(final int partition) throws XPathException {
+        final Map<List<AtomicValue>, Tuple> groups = new HashMap<>();
+        final SpillFile file = partitions[partition];
+        if (file != null) {
+            try {
+                file.startReading();
+                for (int n = 0; n < partitionSizes[partition]; n++) {
+                    final List<AtomicValue> keys = new ArrayList<>(groupSpecs.length);
+                    for (int i = 0; i < groupSpecs.length; i++) {
+                        keys.add((AtomicValue) file.readItem());
+                    }
+                    final List<Sequence> groupingValues = new ArrayList<>(groupSpecs.length);
+                    for (int i = 0; i < groupSpecs.length; i++) {
+                        groupingValues.add(readSequence(file));
+                    }
+                    final Tuple tuple = groups.computeIfAbsent(keys, ks -> new Tuple(groupingValues));
+                    final int vars = file.readInt();
+                    for (int i = 0; i < vars; i++) {
+                        tuple.add(file.readQName(), readSequence(file));
+                    }
+                }
+            } catch (final IOException e) {
+                throw new XPathException(this, "Failed to read groups from a temporary file: " + e.getMessage(), e);
+            } finally {
+                file.delete();
+                partitions[partition] = null;
+            }
+        }
+        for (final Iterator<Map.Entry<List<AtomicValue>, Tuple>> i = groupedMap.entrySet().iterator(); i.hasNext(); ) {
+            final Map.Entry<List<AtomicValue>, Tuple> group = i.next();
+            if (getPartition(group.getKey()) == partition) {
+                final Tuple tuple = groups.get(group.getKey());
+                if (tuple == null) {
+                    groups.put(group.getKey(), group.getValue());
+                } else {
+                    for (final Map.Entry<QName, Sequence> entry : group.getValue().entrySet()) {
+                        tuple.add(entry.getKey(), entry.getValue());
+                    }
+                }
+                i.remove();
+            }
+        }
+        return groups;
+    }
+
+    private void releasePartitions() {
+        if (partitions != null) {
+            for (final SpillFile file : partitions) {
+                if (file != null) {
+                    file.delete();
+                }
+            }
+            partitions = null;
+            partitionSizes = null;
+            documents = null;
+        }
+    }
+
     @Override
     public Sequence postEval(final Sequence seq) throws XPathException {
         if (groupedMap != null) {
@@ -103,29 +267,22 @@ public class GroupByClause extends AbstractFLWORClause {
                 for (LocalVariable var: groupingVars) {
                     context.declareVariableBinding(var);
                 }
-                // iterate over each group
-                for (Tuple tuple: groupedMap.values()) {
-                    context.proceed();
-
-                    // set grouping variable values
-                    final Iterator<Sequence> siter = tuple.groupingValues.iterator();
-                    for (LocalVariable var : groupingVars) {
-                        if (siter.hasNext()) {
-                            Sequence val = siter.next();
-                            var.setValue(val);
-                        } else {
-                            throw new XPathException(this, "Internal error: missing grouping value");
-                        }
+                if (partitions == null) {
+                    // iterate over each group
+                    for (Tuple tuple: groupedMap.values()) {
+                        evalGroup(tuple, result);
                     }
-                    // set values of non-grouping variables
-                    for (Map.Entry<QName, Sequence> entry : tuple.entrySet()) {
-                        final LocalVariable var = variables.get(entry.getKey());
-                        var.setValue(entry.getValue());
+                } else {
+                    // groups were written to temporary files: process one partition at a time
+                    for (int partition = 0; partition < PARTITIONS; partition++) {
+                        for (Tuple tuple: readPartition(partition).values()) {
+                            evalGroup(tuple, result);
+                        }
                     }
-                    result.addAll(returnExpr.eval(null));
                 }
             } finally {
                 context.popLocalVariables(mark, result);
+                releasePartitions();
             }
             groupedMap = null;
             groupingVars = null;
@@ -139,6 +296,27 @@ public class GroupByClause extends AbstractFLWORClause {
         return seq;
     }
 
+    private void evalGroup(final Tuple tuple, final Sequence result) throws XPathException {
+        context.proceed();
+
+        // set grouping variable values
+        final Iterator<Sequence> siter = tuple.groupingValues.iterator();
+        for (LocalVariable var : groupingVars) {
+            if (siter.hasNext()) {
+                Sequence val = siter.next();
+                var.setValue(val);
+            } else {
+                throw new XPathException(this, "Internal error: missing grouping value");
+            }
+        }
+        // set values of non-grouping variables
+        for (Map.Entry<QName, Sequence> entry : tuple.entrySet()) {
+            final LocalVariable var = variables.get(entry.getKey());
+            var.setValue(entry.getValue());
+        }
+        result.addAll(returnExpr.eval(null));
+    }
+
     @Override
     public void analyze(AnalyzeContextInfo contextInfo) throws XPathException {
         contextInfo.setParent(this);
@@ -210,6 +388,7 @@ public class GroupByClause extends AbstractFLWORClause {
     @Override
     public void resetState(boolean postOptimization) {
         super.resetState(postOptimization);
+        releasePartitions();
         groupedMap = null;
         groupingVars = null;
         variables = null;
@@ -33,7 +33,7 @@ import org.exist.xquery.value.Type;
  * 
  * @author Wolfgang Meier <wolfgang@exist-db.org>
  */
-public class LetExpr extends BindingExpression {
+public class LetExpr extends BindingExpression implements LimitedExpression {
 
     public LetExpr(XQueryContext context) {
         super(context);
@@ -75,6 +75,15 @@ public class LetExpr extends BindingExpression {
      */
     public Sequence eval(Sequence contextSequence, Item contextItem)
             throws XPathException {
+        return eval(contextSequence, contextItem, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Evaluate the let expression, passing the limit on to the return clause.
+     */
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem, int limit)
+            throws XPathException {
         if (context.getProfiler().isEnabled()){
             context.getProfiler().start(this);
             context.getProfiler().message(this, Profiler.DEPENDENCIES,
@@ -108,7 +117,7 @@ public class LetExpr extends BindingExpression {
                 var.setContextDocs(inputSequence.getContextDocSet());
                 registerUpdateListener(in);
 
-                resultSequence = returnExpr.eval(contextSequence, null);
+                resultSequence = LimitedExpression.eval(returnExpr, contextSequence, null, limit);
 
                 if (sequenceType != null) {
                     int actualCardinality;
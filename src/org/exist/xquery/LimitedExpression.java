@@ -0,0 +1,65 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery;
+
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+
+/**
+ * To be implemented by expressions which can stop producing items once
+ * the caller has got as many as it needs. Callers which only look at the
+ * start of a sequence, like fn:head, fn:exists or a positional predicate,
+ * pass the number of items they need, so for example a for expression
+ * does not evaluate its return clause for the remaining bindings.
+ *
+ * The items are still computed within the call to eval: the result is an
+ * ordinary sequence and may be used like any other.
+ */
+public interface LimitedExpression extends Expression {
+
+    /**
+     * Evaluate the expression, but stop once limit items have been produced.
+     * The returned sequence starts with the same items as the result of
+     * {@link #eval(Sequence, Item)}. It may contain more than limit items,
+     * so callers still have to select the ones they need. Errors raised by
+     * the items which were not computed are not reported.
+     *
+     * @param contextSequence the context sequence
+     * @param contextItem the context item
+     * @param limit the number of items required by the caller, at least 1
+     * @return the first items of the result
+     * @throws XPathException
+     */
+    Sequence eval(Sequence contextSequence, Item contextItem, int limit) throws XPathException;
+
+    /**
+     * Evaluate the expression with a limit if it supports it, otherwise
+     * evaluate it completely.
+     */
+    static Sequence eval(final Expression expr, final Sequence contextSequence, final Item contextItem, final int limit)
+            throws XPathException {
+        if (expr instanceof LimitedExpression && limit > 0 && limit < Integer.MAX_VALUE) {
+            return ((LimitedExpression) expr).eval(contextSequence, contextItem, limit);
+        }
+        return expr.eval(contextSequence, contextItem);
+    }
+}
@@ -19,13 +19,18 @@
  */
 package org.exist.xquery;
 
+import org.exist.Namespaces;
+import org.exist.dom.QName;
+import org.exist.xquery.pragmas.HashJoin;
 import org.exist.xquery.pragmas.Optimize;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.exist.xquery.util.ExpressionDumper;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Analyzes the query and marks optimizable expressions for the query engine.
@@ -44,6 +49,9 @@ import java.util.List;
  *
  * <pre>declare option exist:optimize "enable=yes|no";</pre>
  *
+ * The optimizer also rewrites equi-joins between two for clauses into a hash join by
+ * enclosing the input sequence of the inner for clause with an (#exist:hash-join#) pragma,
+ * see {@link org.exist.xquery.pragmas.HashJoin}.
  */
 public class Optimizer extends DefaultExpressionVisitor {
 
@@ -178,6 +186,175 @@ public class Optimizer extends DefaultExpressionVisitor {
         }
     }
 
+    @Override
+    public void visitForExpression(ForExpr forExpr) {
+        super.visitForExpression(forExpr);
+        try {
+            rewriteJoin(forExpr);
+        } catch (final XPathException e) {
+            LOG.warn("Failed to rewrite join: " + forExpr + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Check if the for clause is followed by another for clause and a where clause comparing
+     * a key of the outer variable with a key of the inner variable:
+     *
+     * <pre>for $a in A, $c in C where $a/@cust = $c/@id and ...</pre>
+     *
+     * If the input sequence C and the key $c/@id are independent of $a, enclose C with an
+     * (#exist:hash-join#) pragma, which evaluates C only once and returns only the items
+     * of C with a matching key for each item of A.
+     */
+    private void rewriteJoin(ForExpr outer) throws XPathException {
+        if (context.isBackwardsCompatible() || !(outer.getReturnExpression() instanceof ForExpr)) {
+            return;
+        }
+        final ForExpr inner = (ForExpr) outer.getReturnExpression();
+        if (inner.getPositionalVariable() != null || inner.isAllowingEmpty() ||
+                inner.getInputSequence() instanceof ExtensionExpression ||
+                !(inner.getReturnExpression() instanceof WhereClause)) {
+            return;
+        }
+        final QName outerVar = QName.parse(context, outer.getVariable(), null);
+        final QName innerVar = QName.parse(context, inner.getVariable(), null);
+        final Set<QName> outerVars = new HashSet<QName>();
+        outerVars.add(outerVar);
+        if (outer.getPositionalVariable() != null) {
+            outerVars.add(QName.parse(context, outer.getPositionalVariable(), null));
+        }
+        if (outerVars.contains(innerVar)) {
+            return;
+        }
+        final Set<QName> inputVars = new HashSet<QName>();
+        if (!collectVariables(inner.getInputSequence(), inputVars) || intersects(inputVars, outerVars)) {
+            return;
+        }
+
+        final List<GeneralComparison> comparisons = new ArrayList<GeneralComparison>();
+        findJoinComparisons(((WhereClause) inner.getReturnExpression()).getWhereExpr(), comparisons);
+        for (final GeneralComparison comparison : comparisons) {
+            final Set<QName> leftVars = new HashSet<QName>();
+            final Set<QName> rightVars = new HashSet<QName>();
+            if (!collectVariables(comparison.getLeft(), leftVars) || !collectVariables(comparison.getRight(), rightVars)) {
+                continue;
+            }
+            Expression innerKey = null;
+            Expression outerKey = null;
+            if (leftVars.contains(innerVar) && !intersects(leftVars, outerVars) && !rightVars.contains(innerVar)) {
+                innerKey = comparison.getLeft();
+                outerKey = comparison.getRight();
+            } else if (rightVars.contains(innerVar) && !intersects(rightVars, outerVars) && !leftVars.contains(innerVar)) {
+                innerKey = comparison.getRight();
+                outerKey = comparison.getLeft();
+            }
+            if (innerKey != null) {
+                if (LOG.isTraceEnabled())
+                    {LOG.trace("Rewriting join: " + ExpressionDumper.dump(comparison));}
+                hasOptimized = true;
+                final ExtensionExpression extension = new ExtensionExpression(context);
+                extension.addPragma(new HashJoin(context, outerVar, innerVar, innerKey, outerKey));
+                extension.setExpression(inner.getInputSequence());
+                inner.setInputSequence(extension);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Find the equality comparisons which have to be true for the where clause to be true.
+     */
+    private void findJoinComparisons(Expression expr, List<GeneralComparison> comparisons) {
+        if (expr instanceof DebuggableExpression) {
+            expr = ((DebuggableExpression) expr).getExpression();
+        }
+        expr = simplifyPath(expr);
+        if (expr instanceof OpAnd) {
+            findJoinComparisons(((OpAnd) expr).getLeft(), comparisons);
+            findJoinComparisons(((OpAnd) expr).getRight(), comparisons);
+        } else if (expr instanceof GeneralComparison) {
+            final GeneralComparison comparison = (GeneralComparison) expr;
+            if (comparison.getRelation() == Constants.EQ && comparison.getTruncation() == Constants.TRUNC_NONE &&
+                    comparison.collationArg == null) {
+                comparisons.add(comparison);
+            }
+        }
+    }
+
+    /**
+     * Collect the names of the variables referenced by an expression.
+     *
+     * @return false if the expression may reference variables which cannot be determined,
+     * or may have side effects
+     */
+    private boolean collectVariables(Expression expr, Set<QName> vars) throws XPathException {
+        if (expr instanceof VariableReference) {
+            vars.add(QName.parse(context, ((VariableReference) expr).getName(), null));
+            return true;
+        }
+        if (expr instanceof LiteralValue) {
+            return true;
+        }
+        if (expr instanceof LocationStep || expr instanceof RootNode) {
+            for (final Predicate pred : ((Step) expr).getPredicates()) {
+                if (!collectVariables(pred, vars)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (expr instanceof BinaryOp) {
+            if (expr instanceof GeneralComparison && ((GeneralComparison) expr).collationArg != null) {
+                return false;
+            }
+            return collectVariables(((BinaryOp) expr).getLeft(), vars) &&
+                collectVariables(((BinaryOp) expr).getRight(), vars);
+        }
+        if (expr instanceof ExtensionExpression) {
+            return collectVariables(((ExtensionExpression) expr).getExpression(), vars);
+        }
+        if (expr instanceof DebuggableExpression) {
+            return collectVariables(((DebuggableExpression) expr).getExpression(), vars);
+        }
+        if (expr instanceof CastExpression) {
+            return collectVariables(((CastExpression) expr).getInnerExpression(), vars);
+        }
+        if (expr instanceof Function) {
+            // only functions of the standard library are known to be free of side effects
+            final Function function = (Function) expr;
+            if (function instanceof FunctionCall ||
+                    !Namespaces.XPATH_FUNCTIONS_NS.equals(function.getName().getNamespaceURI())) {
+                return false;
+            }
+            for (int i = 0; i < function.getArgumentCount(); i++) {
+                if (!collectVariables(function.getArgument(i), vars)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (expr.getClass() == PathExpr.class || expr instanceof Predicate || expr instanceof SequenceConstructor ||
+                expr instanceof Atomize || expr instanceof DynamicCardinalityCheck ||
+                expr instanceof DynamicTypeCheck || expr instanceof UntypedValueCheck) {
+            for (int i = 0; i < expr.getSubExpressionCount(); i++) {
+                if (!collectVariables(expr.getSubExpression(i), vars)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean intersects(Set<QName> vars, Set<QName> others) {
+        for (final QName var : others) {
+            if (vars.contains(var)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public void visitFilteredExpr(FilteredExpression filtered) {
         super.visitFilteredExpr(filtered);
 
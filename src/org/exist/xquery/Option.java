@@ -42,6 +42,8 @@ public class Option {
     public final static QName OPTIMIZE_QNAME = new QName("optimize", Namespaces.EXIST_NS);
     public final static QName OPTIMIZE_IMPLICIT_TIMEZONE = new QName("implicit-timezone", Namespaces.EXIST_NS);
     public final static QName CURRENT_DATETIME = new QName("current-dateTime", Namespaces.EXIST_NS);
+    public final static QName SNAPSHOT_QNAME = new QName("snapshot", Namespaces.EXIST_NS);
+    public final static QName SPILL_THRESHOLD_QNAME = new QName("spill-threshold", Namespaces.EXIST_NS);
 	
     private final static String paramPattern =
 		"\\s*([\\w\\.-]+)\\s*=\\s*('[^']*'|\"[^\"]*\"|[^\"\'\\s][^\\s]*)";
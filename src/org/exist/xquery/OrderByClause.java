@@ -14,6 +14,8 @@ public class OrderByClause extends AbstractFLWORClause {
 
     protected OrderSpec[] orderSpecs = null;
     protected OrderedValueSequence orderedResult = null;
+    private int limit = Integer.MAX_VALUE;
+    private boolean discardResults = false;
 
     public OrderByClause(XQueryContext context, List<OrderSpec> orderSpecs) {
         super(context);
@@ -24,6 +26,17 @@ public class OrderByClause extends AbstractFLWORClause {
         return orderSpecs;
     }
 
+    /**
+     * Called by the for clause starting the FLWOR expression if the caller only needs
+     * the first limit items of the result. Only those items are kept while collecting
+     * the results to be sorted. The limit applies to the next evaluation.
+     *
+     * @param limit the number of items required by the caller
+     */
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
     @Override
     public ClauseType getType() {
         return ClauseType.ORDERBY;
@@ -46,17 +59,42 @@ public class OrderByClause extends AbstractFLWORClause {
     @Override
     public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
         if (orderedResult == null) {
-            orderedResult = new OrderedValueSequence(orderSpecs, 100);
+            orderedResult = new OrderedValueSequence(orderSpecs, 100, limit);
+            discardResults = canDiscardResults();
+            if (discardResults && context.getSpillThreshold() > 0) {
+                orderedResult.setSpillThreshold(context.getSpillThreshold());
+            }
         }
         final Sequence result = getReturnExpression().eval(contextSequence, contextItem);
         if (result != null) {
             orderedResult.addAll(result);
         }
+        // if only the first items are kept, or items are written to temporary files, the
+        // enclosing for clause should not keep all of them in its own result, which is
+        // replaced by the sorted items anyway
+        if (discardResults && (limit < Integer.MAX_VALUE || orderedResult.isSpillable())) {
+            return Sequence.EMPTY_SEQUENCE;
+        }
         return result;
     }
 
+    /**
+     * The results returned to the preceding clauses may only be dropped, and collected
+     * items only be written to temporary files, if no preceding for or let clause checks
+     * the type of the results returned by this clause.
+     */
+    private boolean canDiscardResults() {
+        for (FLWORClause prev = getPreviousClause(); prev != null; prev = prev.getPreviousClause()) {
+            if (prev instanceof BindingExpression && ((BindingExpression) prev).sequenceType != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Override
     public Sequence postEval(Sequence seq) throws XPathException {
+        limit = Integer.MAX_VALUE;
         if (orderedResult == null) {
             return seq;
         }
@@ -90,6 +128,10 @@ public class OrderByClause extends AbstractFLWORClause {
     @Override
     public void resetState(boolean postOptimization) {
         super.resetState(postOptimization);
+        if (orderedResult != null) {
+            orderedResult.release();
+        }
         orderedResult = null;
+        limit = Integer.MAX_VALUE;
     }
 }
@@ -22,6 +22,7 @@
 package org.exist.xquery;
 
 import org.exist.dom.QName;
+import org.exist.xquery.parser.XQueryAST;
 import org.exist.xquery.value.Item;
 import org.exist.xquery.value.Sequence;
 
@@ -43,6 +44,15 @@ public abstract class Pragma {
         return null;
     }
     
+    /**
+     * Called by the parser with the syntax tree of the expression the pragma
+     * applies to. Pragmas which need to compile the expression again keep it.
+     *
+     * @param ast the syntax tree of the inner expression
+     */
+    public void setExpressionAST(XQueryAST ast) {
+    }
+
     public abstract void before(XQueryContext context, Expression expression, Sequence contextSequence) throws XPathException;
     
     public abstract void after(XQueryContext context, Expression expression) throws XPathException;
@@ -80,15 +80,18 @@ public class RootNode extends Step {
         
         // check if the loaded documents should remain locked
         NewArrayNodeSet result = new NewArrayNodeSet();
+        final boolean lockDocs = !(context.inProtectedMode() || context.useSnapshotReads());
         try {
             // wait for pending updates
-            if (!context.inProtectedMode())
+            if (lockDocs)
                 {ds.lock(context.getBroker(), false, true);}
 	        DocumentImpl doc;
 	        for (final Iterator<DocumentImpl> i = ds.getDocumentIterator(); i.hasNext();) {
 	            doc = i.next();
                 if (context.inProtectedMode() && !context.getProtectedDocs().containsKey(doc.getDocId()))
                     {continue;}
+                if (context.useSnapshotReads())
+                    {context.addSnapshotDocument(doc);}
                 if(doc.getResourceType() == DocumentImpl.XML_FILE) {  // skip binary resources
 	            	result.add(new NodeProxy(doc));
 	            }
@@ -99,7 +102,7 @@ public class RootNode extends Step {
             throw new XPathException(this, "Failed to acquire lock on the context document set");
         } finally {
             // release all locks
-            if (!context.inProtectedMode())
+            if (lockDocs)
                 {ds.unlock(false);}
         }
 //        result.updateNoSort();
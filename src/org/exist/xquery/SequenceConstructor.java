@@ -33,7 +33,7 @@ import org.exist.xquery.value.ValueSequence;
  * 
  * @author wolf
  */
-public class SequenceConstructor extends PathExpr {
+public class SequenceConstructor extends PathExpr implements LimitedExpression {
 
     /**
      * @param context
@@ -94,6 +94,31 @@ public class SequenceConstructor extends PathExpr {
         return result;
     }
 
+    /**
+     * Evaluate the operands until limit items have been produced.
+     */
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem, int limit) throws XPathException {
+        if (unordered) {
+            return eval(contextSequence, contextItem);
+        }
+        final ValueSequence result = new ValueSequence();
+        int count = 0;
+        for (int i = 0; i < steps.size() && count < limit; i++) {
+            context.pushDocumentContext();
+            try {
+                final Sequence temp = LimitedExpression.eval(steps.get(i), contextSequence, contextItem, limit - count);
+                if (temp != null && !temp.isEmpty()) {
+                    result.addAll(temp);
+                    count += temp.getItemCount();
+                }
+            } finally {
+                context.popDocumentContext();
+            }
+        }
+        return result;
+    }
+
     /* (non-Javadoc)
      * @see org.exist.xquery.PathExpr#dump(org.exist.xquery.util.ExpressionDumper)
      */
@@ -11,7 +11,7 @@ import org.exist.xquery.value.Type;
  *
  * @author wolf
  */
-public class WhereClause extends AbstractFLWORClause {
+public class WhereClause extends AbstractFLWORClause implements LimitedExpression {
 
     protected Expression whereExpr;
     protected boolean fastTrack = false;
@@ -109,6 +109,14 @@ public class WhereClause extends AbstractFLWORClause {
         return Sequence.EMPTY_SEQUENCE;
     }
 
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem, int limit) throws XPathException {
+        if (applyWhereExpression()) {
+            return LimitedExpression.eval(returnExpr, null, null, limit);
+        }
+        return Sequence.EMPTY_SEQUENCE;
+    }
+
     @Override
     public Sequence postEval(Sequence seq) throws XPathException {
         fastTrack = false;
@@ -60,6 +60,12 @@ import org.exist.xquery.value.Sequence;
 public class XQuery {
 
     private final static Logger LOG = LogManager.getLogger(XQuery.class);
+
+    /**
+     * Number of times a query in snapshot mode is evaluated before falling back
+     * to read locks, see {@link XQueryContext#useSnapshotReads()}.
+     */
+    public final static int MAX_SNAPSHOT_ATTEMPTS = 3;
     
     public CompiledXQuery compile(final DBBroker broker, final XQueryContext context, final String expression) throws XPathException, PermissionDeniedException {
     	final Source source = new StringSource(expression);
@@ -276,7 +282,7 @@ public class XQuery {
             context.getProfiler().traceQueryStart();
             broker.getBrokerPool().getProcessMonitor().queryStarted(context.getWatchDog());
             try {
-                final Sequence result = expression.eval(contextSequence);
+                final Sequence result = eval(expression, contextSequence);
                 if(LOG.isDebugEnabled()) {
                     final NumberFormat nf = NumberFormat.getNumberInstance();
                     LOG.debug("Execution took "  +  nf.format(System.currentTimeMillis() - start) + " ms");
@@ -304,6 +310,70 @@ public class XQuery {
         }
     }
 
+    /**
+     * Evaluate the expression. In snapshot mode, documents are read without read locks.
+     * If a document read by the query was write locked by another thread in the meantime,
+     * the query may have seen a partial update and is evaluated again. After
+     * {@link #MAX_SNAPSHOT_ATTEMPTS} failed attempts, the query is evaluated with read locks.
+     *
+     * Only queries which were found to be free of side effects while compiling them are
+     * evaluated in snapshot mode, see {@link XQueryContext#addSideEffect(String)}. All other
+     * queries are evaluated with read locks straight away.
+     */
+    private Sequence eval(final CompiledXQuery expression, final Sequence contextSequence) throws XPathException {
+        final XQueryContext context = expression.getContext();
+        if(!context.useSnapshotReads()) {
+            return expression.eval(contextSequence);
+        }
+        if(context.getSideEffect() != null) {
+            if(LOG.isDebugEnabled()) {
+                LOG.debug("Query " + context.getSource().getKey() + " calls " + context.getSideEffect() +
+                        ", evaluating it with read locks");
+            }
+            return evalWithLocks(expression, contextSequence);
+        }
+        for(int attempt = 1; attempt <= MAX_SNAPSHOT_ATTEMPTS; attempt++) {
+            context.getSnapshot().clear();
+            Sequence result = null;
+            XPathException error = null;
+            RuntimeException runtimeError = null;
+            try {
+                result = expression.eval(contextSequence);
+            } catch(final XPathException e) {
+                error = e;
+            } catch(final RuntimeException e) {
+                // reading a document while it is being modified may fail in unexpected ways
+                runtimeError = e;
+            }
+            if(context.getSnapshot().validate() || context.hasModifiedDocuments() ||
+                    context.getWatchDog().isTerminating()) {
+                if(error != null) {
+                    throw error;
+                }
+                if(runtimeError != null) {
+                    throw runtimeError;
+                }
+                return result;
+            }
+            if(LOG.isDebugEnabled()) {
+                LOG.debug("Documents read by query " + context.getSource().getKey() +
+                        " were modified during attempt " + attempt + ", evaluating again");
+            }
+            expression.reset();
+        }
+        return evalWithLocks(expression, contextSequence);
+    }
+
+    private Sequence evalWithLocks(final CompiledXQuery expression, final Sequence contextSequence) throws XPathException {
+        final XQueryContext context = expression.getContext();
+        context.setSnapshotReads(false);
+        try {
+            return expression.eval(contextSequence);
+        } finally {
+            context.setSnapshotReads(true);
+        }
+    }
+
     public Sequence execute(final DBBroker broker, final String expression, final Sequence contextSequence, final AccessContext accessCtx) throws XPathException, PermissionDeniedException {
         final XQueryContext context = new XQueryContext(broker.getBrokerPool(), accessCtx);
         final CompiledXQuery compiled = compile(broker, context, expression);
@@ -28,14 +28,17 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.Collator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
 import java.util.SimpleTimeZone;
 import java.util.Stack;
 import java.util.TimeZone;
@@ -79,6 +82,7 @@ import org.exist.source.*;
 import org.exist.stax.ExtendedXMLStreamReader;
 import org.exist.storage.DBBroker;
 import org.exist.storage.UpdateListener;
+import org.exist.storage.lock.DocumentSnapshot;
 import org.exist.storage.lock.Lock;
 import org.exist.storage.lock.LockedDocumentMap;
 import org.exist.util.Collations;
@@ -86,7 +90,11 @@ import org.exist.util.Configuration;
 import org.exist.util.LockException;
 import org.exist.util.hashtable.NamePool;
 import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.functions.array.ArrayModule;
+import org.exist.xquery.functions.map.MapModule;
 import org.exist.xquery.functions.request.RequestModule;
+import org.exist.xquery.functions.util.UtilModule;
+import org.exist.xquery.functions.xmldb.XMLDBModule;
 import org.exist.xquery.parser.*;
 import org.exist.xquery.pragmas.*;
 import org.exist.xquery.update.Modification;
@@ -110,6 +118,9 @@ public class XQueryContext implements BinaryValueManager, Context
     public static final String                         XQUERY_BACKWARD_COMPATIBLE_ATTRIBUTE             = "backwardCompatible";
     public static final String                         XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_ATTRIBUTE = "raise-error-on-failed-retrieval";
     public static final String						   ENFORCE_INDEX_USE_ATTRIBUTE					    = "enforce-index-use";
+    public static final String                         SNAPSHOT_READS_ATTRIBUTE                         = "snapshot-reads";
+    public static final String                         PARALLELISM_ATTRIBUTE                            = "parallelism";
+    public static final String                         SPILL_THRESHOLD_ATTRIBUTE                        = "spill-threshold";
 
     //TODO : move elsewhere ?
     public static final String                         BUILT_IN_MODULE_URI_ATTRIBUTE                    = "uri";
@@ -121,6 +132,13 @@ public class XQueryContext implements BinaryValueManager, Context
     public static final String                         PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL  = "xquery.raise-error-on-failed-retrieval";
     public static final boolean                        XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_DEFAULT   = false;
     public static final String						   PROPERTY_ENFORCE_INDEX_USE						= "xquery.enforce-index-use";
+    public static final String                         PROPERTY_SNAPSHOT_READS                          = "xquery.snapshot-reads";
+    public static final boolean                        SNAPSHOT_READS_DEFAULT                           = false;
+    public static final String                         PROPERTY_PARALLELISM                             = "xquery.parallelism";
+    public static final String                         PROPERTY_SPILL_THRESHOLD                         = "xquery.spill-threshold";
+
+    /** maximum time in milliseconds a query in snapshot mode waits for a writer to release a document */
+    public static final long                           SNAPSHOT_WRITER_TIMEOUT                          = 2000;
 
     //TODO : move elsewhere ?
     public static final String                         PROPERTY_BUILT_IN_MODULES                        = "xquery.modules";
@@ -303,6 +321,31 @@ public class XQueryContext implements BinaryValueManager, Context
 
     private boolean                                    raiseErrorOnFailedRetrieval   = XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL_DEFAULT;
 
+    /** modules whose functions have no side effects, except for {@link #SIDE_EFFECT_FUNCTIONS} */
+    private final static Set<String> READ_ONLY_MODULES = new HashSet<String>( Arrays.asList(
+            Namespaces.XPATH_FUNCTIONS_NS, Namespaces.XPATH_FUNCTIONS_MATH_NS, MapModule.NAMESPACE_URI, ArrayModule.NAMESPACE_URI ) );
+
+    /** functions of the standard library which write to the log or may return any function */
+    private final static Set<String> SIDE_EFFECT_FUNCTIONS = new HashSet<String>( Arrays.asList( "trace", "function-lookup" ) );
+
+    /** read-only functions of other modules, as namespace and local name */
+    private final static Set<String> READ_ONLY_FUNCTIONS = new HashSet<String>( Arrays.asList(
+            UtilModule.NAMESPACE_URI + " wait", XMLDBModule.NAMESPACE_URI + " document" ) );
+
+    /** read documents without read locks, see {@link #useSnapshotReads()} */
+    private boolean                                    snapshotReads                 = SNAPSHOT_READS_DEFAULT;
+
+    private DocumentSnapshot                           snapshot                      = null;
+
+    /** the first function or expression with side effects found while compiling the query, see {@link #addSideEffect(String)} */
+    private String                                     sideEffect                    = null;
+
+    /** number of threads evaluating a for expression marked with (# exist:parallel #) */
+    private int                                        parallelism                   = Runtime.getRuntime().availableProcessors();
+
+    /** number of items or tuples after which order by and group by write to temporary files, 0 to disable */
+    private int                                        spillThreshold                = 0;
+
     private boolean                                    isShared                      = false;
 
     private Source source = null;
@@ -433,6 +476,53 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
 
+    /**
+     * Create a copy of this context for compiling and evaluating part of the query in another thread,
+     * see {@link ParallelPragma}. The copy has its own local variable stack, which starts with copies
+     * of the local variables visible in this context, like a closure. User defined functions and
+     * library modules are not copied: they are compiled once and keep state while being evaluated,
+     * so they can not be called from two threads. Documents read by the copy are recorded in the
+     * snapshot of this context. Resources registered by the copy, like binary values, are released
+     * when the cleanup tasks of this context run.
+     *
+     * @return  the new context
+     *
+     * @throws  XPathException
+     */
+    public XQueryContext copyContextForThread() throws XPathException
+    {
+        final XQueryContext ctx = copyContext();
+        ctx.declaredFunctions = new TreeMap<FunctionId, UserDefinedFunction>();
+        ctx.modules.values().removeIf( module -> !module.isInternalModule() );
+        ctx.allModules.values().removeIf( module -> !module.isInternalModule() );
+        ctx.xqueryVersion     = this.xqueryVersion;
+        ctx.lastVar           = null;
+        ctx.variableStackSize = 0;
+        ctx.contextStack      = new Stack<LocalVariable>();
+        ctx.restoreStack( getLocalStack() );
+
+        if( useSnapshotReads() ) {
+            ctx.snapshot = getSnapshot();
+        }
+
+        if( threadContexts == null ) {
+            threadContexts = new ArrayList<XQueryContext>();
+            cleanupTasks.add( new CleanupTask() {
+
+                @Override
+                public void cleanup( final XQueryContext context ) {
+                    for( final XQueryContext threadContext : context.threadContexts ) {
+                        threadContext.runCleanupTasks();
+                    }
+                    context.threadContexts.clear();
+                }
+            } );
+        }
+        threadContexts.add( ctx );
+        return( ctx );
+    }
+
+
     /**
      * Update the current dynamic context using the properties of another context. This is needed by {@link org.exist.xquery.functions.util.Eval}.
      *
@@ -475,6 +565,10 @@ public class XQueryContext implements BinaryValueManager, Context
         ctx.defaultCollator          = this.defaultCollator;
         ctx.backwardsCompatible      = this.backwardsCompatible;
         ctx.enableOptimizer          = this.enableOptimizer;
+        ctx.snapshotReads            = this.snapshotReads;
+        ctx.sideEffect               = this.sideEffect;
+        ctx.parallelism              = this.parallelism;
+        ctx.spillThreshold           = this.spillThreshold;
         ctx.stripWhitespace          = this.stripWhitespace;
         ctx.preserveNamespaces       = this.preserveNamespaces;
         ctx.inheritNamespaces        = this.inheritNamespaces;
@@ -1355,6 +1449,131 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
 
+    /**
+     * @return true if the query has modified documents since the context was last reset
+     */
+    public boolean hasModifiedDocuments()
+    {
+        return( modifiedDocuments != null && modifiedDocuments.getDocumentCount() > 0 );
+    }
+
+
+    /**
+     * Should documents be read without acquiring read locks? In snapshot mode,
+     * documents accessed by the query are recorded via {@link #addSnapshotDocument(DocumentImpl)}
+     * instead of being locked. Writers are not blocked by the query, and {@link XQuery}
+     * evaluates the query again if one of the documents was changed while the query was running.
+     * Snapshot mode is never used while the context is in protected mode.
+     *
+     * <p>Enabled by the <code>snapshot-reads</code> attribute in conf.xml or
+     * <code>declare option exist:snapshot "yes";</code></p>
+     *
+     * @return true if documents are read without read locks
+     */
+    public boolean useSnapshotReads()
+    {
+        return( snapshotReads && !inProtectedMode() );
+    }
+
+
+    public void setSnapshotReads( boolean snapshotReads )
+    {
+        this.snapshotReads = snapshotReads;
+    }
+
+
+    /**
+     * Record a function call or an expression with side effects, found while compiling the
+     * query or one of its modules. Such a query is never evaluated in snapshot mode: evaluating
+     * it again after a document was modified would repeat the side effects.
+     *
+     * @param name the name of the function or expression, for logging
+     */
+    public void addSideEffect( String name )
+    {
+        final XQueryContext root = getRootContext();
+        if( root.sideEffect == null ) {
+            root.sideEffect = name;
+        }
+    }
+
+
+    /**
+     * Record a call to a built-in function, see {@link #addSideEffect(String)}. Only the functions
+     * of the standard function libraries and a few read-only eXist functions are known to be free
+     * of side effects.
+     *
+     * @param name the name of the function
+     */
+    public void addFunctionCall( QName name )
+    {
+        final String ns = name.getNamespaceURI();
+        if( ( READ_ONLY_MODULES.contains( ns ) && !SIDE_EFFECT_FUNCTIONS.contains( name.getLocalPart() ) ) ||
+                READ_ONLY_FUNCTIONS.contains( ns + ' ' + name.getLocalPart() ) ) {
+            return;
+        }
+        addSideEffect( name.getStringValue() );
+    }
+
+
+    /**
+     * @return the first function or expression with side effects in the query, or null if it has none
+     */
+    public String getSideEffect()
+    {
+        return( getRootContext().sideEffect );
+    }
+
+
+    /**
+     * Get the number of threads which may evaluate a for expression marked with
+     * <code>(# exist:parallel #)</code>, see {@link ParallelPragma}. Configured by the
+     * <code>parallelism</code> attribute in conf.xml, defaults to the number of processors.
+     *
+     * @return the maximum number of threads evaluating the expression
+     */
+    public int getParallelism()
+    {
+        return( parallelism );
+    }
+
+
+    /**
+     * Get the number of items an "order by", or tuples a "group by", keeps in memory before
+     * writing them to temporary files. Configured by the <code>spill-threshold</code> attribute
+     * in conf.xml or per query by <code>declare option exist:spill-threshold</code>.
+     *
+     * @return the threshold, or 0 if order by and group by always work in memory
+     */
+    public int getSpillThreshold()
+    {
+        return( spillThreshold );
+    }
+
+
+    /**
+     * Record a document read by the query in snapshot mode.
+     *
+     * @param  doc  the document
+     */
+    public void addSnapshotDocument( DocumentImpl doc )
+    {
+        getSnapshot().add( doc );
+    }
+
+
+    /**
+     * @return the documents read in snapshot mode since the context was last reset
+     */
+    public DocumentSnapshot getSnapshot()
+    {
+        if( snapshot == null ) {
+            snapshot = new DocumentSnapshot( SNAPSHOT_WRITER_TIMEOUT );
+        }
+        return( snapshot );
+    }
+
+
     public void reset()
     {
         reset( false );
@@ -1388,6 +1607,7 @@ public class XQueryContext implements BinaryValueManager, Context
             }
             modifiedDocuments = null;
         }
+        snapshot         = null;
         calendar         = null;
         implicitTimeZone = null;
         
@@ -3188,6 +3408,16 @@ public class XQueryContext implements BinaryValueManager, Context
             //TODO : error check
             final DateTimeValue dtv = new DateTimeValue( option.getContents() );
             calendar = (XMLGregorianCalendar)dtv.calendar.clone();
+        } else if( Option.SNAPSHOT_QNAME.compareTo( qn ) == 0 ) {
+            snapshotReads = "yes".equals( option.getContents().trim() );
+        } else if( Option.SPILL_THRESHOLD_QNAME.compareTo( qn ) == 0 ) {
+
+            try {
+                spillThreshold = Integer.parseInt( option.getContents().trim() );
+            }
+            catch( final NumberFormatException e ) {
+                throw( new XPathException( "Option exist:spill-threshold needs to be a number: " + option.getContents() ) );
+            }
         }
     }
 
@@ -3251,6 +3481,10 @@ public class XQueryContext implements BinaryValueManager, Context
             if( NoIndexPragma.NO_INDEX_PRAGMA.equals(qname) ) {
                 return( new NoIndexPragma( qname, contents ) );
             }
+
+            if( ParallelPragma.PARALLEL_PRAGMA.equals(qname) ) {
+                return( new ParallelPragma( this, qname, contents ) );
+            }
         }
         return( null );
     }
@@ -3362,6 +3596,18 @@ public class XQueryContext implements BinaryValueManager, Context
         final Boolean option = ( (Boolean)config.getProperty( PROPERTY_XQUERY_RAISE_ERROR_ON_FAILED_RETRIEVAL ) );
         raiseErrorOnFailedRetrieval = ( option != null ) && option.booleanValue();
 
+        // Switch: snapshot reads
+        final Boolean snapshotOption = (Boolean)config.getProperty( PROPERTY_SNAPSHOT_READS );
+        snapshotReads = ( snapshotOption != null ) ? snapshotOption.booleanValue() : SNAPSHOT_READS_DEFAULT;
+
+        // Number of threads evaluating a for expression marked with (# exist:parallel #)
+        final Integer parallelismOption = (Integer)config.getProperty( PROPERTY_PARALLELISM );
+        parallelism = ( parallelismOption != null ) ? parallelismOption.intValue() : Runtime.getRuntime().availableProcessors();
+
+        // Number of items kept in memory by order by and group by before using temporary files
+        final Integer spillThresholdOption = (Integer)config.getProperty( PROPERTY_SPILL_THRESHOLD );
+        spillThreshold = ( spillThresholdOption != null ) ? spillThresholdOption.intValue() : 0;
+
         // Get map of built-in modules
         final Map<String, Class<Module>> builtInModules = (Map)config.getProperty( PROPERTY_BUILT_IN_MODULES );
 
@@ -3528,6 +3774,9 @@ public class XQueryContext implements BinaryValueManager, Context
     }
 
     private List<BinaryValue> binaryValueInstances;
+
+    /** contexts created by {@link #copyContextForThread()}, cleaned up together with this context */
+    private List<XQueryContext> threadContexts;
     
     @Override
     public void registerBinaryValueInstance(final BinaryValue binaryValue) {
@@ -165,7 +165,9 @@ public class ExtCollection extends Function {
             dlock = doc.getUpdateLock();
             boolean lockAcquired = false;
             try {
-                if (!context.inProtectedMode() && !dlock.hasLock()) {
+                if (context.useSnapshotReads()) {
+                    context.addSnapshotDocument(doc);
+                } else if (!context.inProtectedMode() && !dlock.hasLock()) {
                     dlock.acquire(Lock.READ_LOCK);
                     lockAcquired = true;
                 }
@@ -26,6 +26,7 @@ import org.exist.xquery.Cardinality;
 import org.exist.xquery.Dependency;
 import org.exist.xquery.Function;
 import org.exist.xquery.FunctionSignature;
+import org.exist.xquery.LimitedExpression;
 import org.exist.xquery.Profiler;
 import org.exist.xquery.XPathException;
 import org.exist.xquery.XQueryContext;
@@ -73,7 +74,8 @@ public class FunEmpty extends Function {
                 {context.getProfiler().message(this, Profiler.START_SEQUENCES,
                     "CONTEXT ITEM", contextItem.toSequence());}
         }
-        final Sequence seq = getArgument(0).eval(contextSequence, contextItem);
+        // the first item decides
+        final Sequence seq = LimitedExpression.eval(getArgument(0), contextSequence, contextItem, 1);
         final Sequence result = seq.isEmpty() ? BooleanValue.TRUE : BooleanValue.FALSE;
         if (context.getProfiler().isEnabled()) 
             {context.getProfiler().end(this, "", result);} 
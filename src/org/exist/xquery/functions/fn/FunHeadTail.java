@@ -51,6 +51,11 @@ public class FunHeadTail extends BasicFunction {
 		}
 	}
 	
+	@Override
+	protected int getArgumentLimit(int argument) {
+		return isCalledAs("head") ? 1 : Integer.MAX_VALUE;
+	}
+
 	@Override
 	public Sequence eval(Sequence[] args, Sequence contextSequence)
 			throws XPathException {
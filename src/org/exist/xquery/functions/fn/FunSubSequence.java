@@ -110,30 +110,29 @@ public class FunSubSequence extends Function {
         }
 
         Sequence result;
-        final Sequence seq = getArgument(0).eval(contextSequence, contextItem);
+        final Expression source = getArgument(0);
+        Sequence seq;
+        int start = 0;
+        int length = Integer.MAX_VALUE;
+        if (source instanceof LimitedExpression) {
+            // evaluate the positions first, so the source can stop after the last item needed
+            start = getStart(contextSequence, contextItem);
+            length = getLength(contextSequence, contextItem, start);
+            start = Math.max(start, 0);
+            final long needed = (long) start + length;
+            seq = LimitedExpression.eval(source, contextSequence, contextItem,
+                    length <= 0 ? 1 : (int) Math.min(needed, Integer.MAX_VALUE));
+        } else {
+            seq = source.eval(contextSequence, contextItem);
+            if (!seq.isEmpty()) {
+                start = getStart(contextSequence, contextItem);
+                length = getLength(contextSequence, contextItem, start);
+                start = Math.max(start, 0);
+            }
+        }
         if (seq.isEmpty())
             {result = Sequence.EMPTY_SEQUENCE;}
         else {
-            int start = ((DoubleValue) getArgument(1).eval(contextSequence,
-                    contextItem).convertTo(Type.DOUBLE)).getInt();
-
-            int length = Integer.MAX_VALUE;
-            if (getSignature().getArgumentCount() == 3) {
-                length = ((DoubleValue) getArgument(2).eval(
-                        contextSequence, contextItem)
-                        .convertTo(Type.DOUBLE)).getInt();
-            }
-
-            // TODO : exception? -pb
-            if (start < 0) {
-                length = length + start - 1;
-                start = 0;
-            } else if (start == 0) {
-            	--length;
-                --start;
-            } else
-            	{--start;}
-                        
             Sequence tmp;
             if (seq instanceof NodeSet) {
                 tmp = new ExtArrayNodeSet();
@@ -165,4 +164,30 @@ public class FunSubSequence extends Function {
 
     }
 
+    /**
+     * @return the 0-based position of the first item, which may be negative
+     */
+    private int getStart(Sequence contextSequence, Item contextItem) throws XPathException {
+        final int start = ((DoubleValue) getArgument(1).eval(contextSequence,
+                contextItem).convertTo(Type.DOUBLE)).getInt();
+        return start - 1;
+    }
+
+    /**
+     * @return the number of items to return, counted from the 0-based start position
+     */
+    private int getLength(Sequence contextSequence, Item contextItem, int start) throws XPathException {
+        int length = Integer.MAX_VALUE;
+        if (getSignature().getArgumentCount() == 3) {
+            length = ((DoubleValue) getArgument(2).eval(
+                    contextSequence, contextItem)
+                    .convertTo(Type.DOUBLE)).getInt();
+        }
+        // TODO : exception? -pb
+        if (start < 0 && length != Integer.MAX_VALUE) {
+            length = length + start;
+        }
+        return length;
+    }
+
 }
@@ -109,6 +109,7 @@ public class XMLDBDocument extends Function {
 	Sequence result = null;
 	// check if the loaded documents should remain locked
         final boolean lockOnLoad = context.lockDocumentsOnLoad();
+        final boolean snapshot = context.useSnapshotReads() && !lockOnLoad;
         boolean cacheIsValid = false;
 	if (getArgumentCount() == 0) {
             // TODO: disabled cache for now as it may cause concurrency issues
@@ -170,9 +171,14 @@ public class XMLDBDocument extends Function {
 	    }
 	}
 	try {
-            if(!cacheIsValid)
+            if(!cacheIsValid && !snapshot)
                 // wait for pending updates
                 {docs.lock(context.getBroker(), lockOnLoad, true);}
+            if(snapshot) {
+                for (final Iterator<DocumentImpl> i = docs.getDocumentIterator(); i.hasNext();) {
+                    context.addSnapshotDocument(i.next());
+                }
+            }
 	    // wait for pending updates
 	    if(result == null) {
 		result = new ExtArrayNodeSet(docs.getDocumentCount(), 1);
@@ -190,7 +196,7 @@ public class XMLDBDocument extends Function {
 
             throw new XPathException(this, "Could not acquire lock on document set.");
         } finally {
-            if(!(cacheIsValid || lockOnLoad))
+            if(!(cacheIsValid || lockOnLoad || snapshot))
                 // release all locks
                 {docs.unlock(lockOnLoad);}
 	}
@@ -3077,10 +3077,10 @@ throws XPathException, PermissionDeniedException, EXistException
 			}
 		)
 	)+
-	expr [pathExpr]
+	e:expr [pathExpr]
 	{
 		if (ext != null) {
-			ext.setExpression(pathExpr);
+			ext.setExpression(pathExpr, e);
 			path.add(ext);
 			step = ext;
 		} else {
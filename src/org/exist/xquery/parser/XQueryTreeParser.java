@@ -8083,6 +8083,7 @@ public XQueryTreeParser() {
 		org.exist.xquery.parser.XQueryAST extensionExpr_AST_in = (_t == ASTNULL) ? null : (org.exist.xquery.parser.XQueryAST)_t;
 		org.exist.xquery.parser.XQueryAST p = null;
 		org.exist.xquery.parser.XQueryAST c = null;
+		org.exist.xquery.parser.XQueryAST e = null;
 		
 			step = null;
 			PathExpr pathExpr = new PathExpr(context);
@@ -8137,11 +8138,12 @@ public XQueryTreeParser() {
 			_cnt345++;
 		} while (true);
 		}
+		e = _t==ASTNULL ? null : (org.exist.xquery.parser.XQueryAST)_t;
 		expr(_t,pathExpr);
 		_t = _retTree;
 		
 				if (ext != null) {
-					ext.setExpression(pathExpr);
+					ext.setExpression(pathExpr, e);
 					path.add(ext);
 					step = ext;
 				} else {
@@ -0,0 +1,244 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.exist.xquery.pragmas;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.Namespaces;
+import org.exist.dom.QName;
+import org.exist.xquery.*;
+import org.exist.xquery.value.*;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates the input sequence of the inner for clause of an equi-join like
+ *
+ * <pre>for $a in //order, $c in //customer where $a/@cust = $c/@id return ...</pre>
+ *
+ * as a hash join. Inserted by the {@link Optimizer}, which makes sure the input sequence
+ * ($c in //customer) and the key of the inner variable ($c/@id) do not depend on the outer
+ * variable ($a).
+ *
+ * Instead of evaluating the input sequence and comparing each item for every item of the
+ * outer for clause, the input sequence is evaluated once for each evaluation of the outer
+ * for clause and its items are put into a hash table by the atomized values of their key.
+ * For every outer item, the pragma then returns only the items whose key may be equal to
+ * the key of the outer item ($a/@cust), in their original order. The where clause is still
+ * evaluated for these items, so the hash table only needs to find a superset of the
+ * matching items: numbers are looked up as doubles, strings by their value and untyped
+ * values as both. If a key has any other type, all items are returned.
+ */
+public class HashJoin extends Pragma {
+
+    public final static QName HASH_JOIN_PRAGMA = new QName("hash-join", Namespaces.EXIST_NS, "exist");
+
+    private final static Logger LOG = LogManager.getLogger(HashJoin.class);
+
+    private final XQueryContext context;
+    private final QName outerVar;
+    private final QName innerVar;
+    private final Expression innerKey;
+    private final Expression outerKey;
+    private Expression innerExpr = null;
+
+    // the outer variable the hash table was built for: a new variable is
+    // declared each time the outer for clause is evaluated
+    private Variable joinedVar = null;
+    private Sequence input = null;
+    private Item[] items = null;
+    private Map<Object, int[]> table = null;
+    // positions of the items with keys which can not be hashed
+    private int[] unhashed = null;
+
+    /**
+     * @param context the query context
+     * @param outerVar the variable of the outer for clause
+     * @param innerVar the variable of the inner for clause
+     * @param innerKey the operand of the comparison which depends on the inner variable
+     * @param outerKey the operand of the comparison which does not depend on the inner variable
+     */
+    public HashJoin(XQueryContext context, QName outerVar, QName innerVar, Expression innerKey, Expression outerKey)
+            throws XPathException {
+        super(HASH_JOIN_PRAGMA, null);
+        this.context = context;
+        this.outerVar = outerVar;
+        this.innerVar = innerVar;
+        this.innerKey = innerKey;
+        this.outerKey = outerKey;
+    }
+
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        if (context.getDefaultCollator() != null) {
+            // strings may be equal without having the same hash code
+            return null;
+        }
+        final Variable var = context.resolveVariable(outerVar);
+        if (var == null) {
+            return null;
+        }
+        if (var != joinedVar) {
+            build(contextSequence, contextItem);
+            joinedVar = var;
+        }
+
+        final Set<Object> keys = new HashSet<>();
+        if (!getKeys(outerKey.eval(null), keys)) {
+            return input;
+        }
+        final BitSet matches = new BitSet(items.length);
+        for (final Object key : keys) {
+            add(matches, table.get(key));
+        }
+        add(matches, unhashed);
+        final ValueSequence result = new ValueSequence(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            result.add(items[i]);
+        }
+        return result;
+    }
+
+    private void build(Sequence contextSequence, Item contextItem) throws XPathException {
+        input = innerExpr.eval(contextSequence, contextItem);
+        items = new Item[input.getItemCount()];
+        table = new HashMap<>();
+        unhashed = null;
+        int pos = 0;
+        for (final SequenceIterator i = input.iterate(); i.hasNext(); ) {
+            items[pos++] = i.nextItem();
+        }
+
+        final LocalVariable mark = context.markLocalVariables(false);
+        try {
+            final LocalVariable var = new LocalVariable(innerVar);
+            context.declareVariableBinding(var);
+            final Set<Object> keys = new HashSet<>();
+            for (int i = 0; i < items.length; i++) {
+                var.setValue(items[i].toSequence());
+                keys.clear();
+                if (getKeys(innerKey.eval(null), keys)) {
+                    for (final Object key : keys) {
+                        table.put(key, append(table.get(key), i));
+                    }
+                } else {
+                    unhashed = append(unhashed, i);
+                }
+            }
+        } finally {
+            context.popLocalVariables(mark);
+        }
+        if (LOG.isTraceEnabled()) {
+            LOG.trace("exist:hash-join: " + items.length + " items, " + table.size() + " keys");
+        }
+    }
+
+    /**
+     * Append a position to a list of positions, which keeps its length in the first element.
+     */
+    private static int[] append(int[] positions, int pos) {
+        if (positions == null) {
+            positions = new int[4];
+        } else if (positions[0] + 1 == positions.length) {
+            final int[] newPositions = new int[positions.length * 2];
+            System.arraycopy(positions, 0, newPositions, 0, positions.length);
+            positions = newPositions;
+        }
+        positions[++positions[0]] = pos;
+        return positions;
+    }
+
+    private static void add(BitSet matches, int[] positions) {
+        if (positions != null) {
+            for (int i = 1; i <= positions[0]; i++) {
+                matches.set(positions[i]);
+            }
+        }
+    }
+
+    /**
+     * Collect the hash keys of the atomized values of a sequence.
+     *
+     * @return false if a value can not be hashed
+     */
+    private static boolean getKeys(Sequence seq, Set<Object> keys) throws XPathException {
+        for (final SequenceIterator i = seq.iterate(); i.hasNext(); ) {
+            final AtomicValue value = i.nextItem().atomize();
+            final int type = value.getType();
+            if (Type.subTypeOf(type, Type.NUMBER)) {
+                addNumber(keys, ((NumericValue) value).getDouble());
+            } else if (type == Type.UNTYPED_ATOMIC) {
+                // compared as string to strings and untyped values, as double to numbers
+                final String s = value.getStringValue();
+                keys.add(s);
+                if (isNumeric(s)) {
+                    try {
+                        addNumber(keys, ((NumericValue) value.convertTo(Type.DOUBLE)).getDouble());
+                    } catch (final XPathException e) {
+                        // not a number
+                    }
+                }
+            } else if (Type.subTypeOf(type, Type.STRING) || type == Type.ANY_URI) {
+                keys.add(value.getStringValue());
+            } else {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void addNumber(Set<Object> keys, double d) {
+        // NaN is not equal to any value, 0 is equal to -0
+        if (!Double.isNaN(d)) {
+            keys.add(d == 0 ? 0.0d : d);
+        }
+    }
+
+    private static boolean isNumeric(String s) {
+        s = s.trim();
+        if (s.isEmpty()) {
+            return false;
+        }
+        final char c = s.charAt(0);
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'I';
+    }
+
+    @Override
+    public void before(XQueryContext context, Expression expression, Sequence contextSequence) throws XPathException {
+        innerExpr = expression;
+    }
+
+    @Override
+    public void after(XQueryContext context, Expression expression) throws XPathException {
+    }
+
+    @Override
+    public void resetState(boolean postOptimization) {
+        joinedVar = null;
+        input = null;
+        items = null;
+        table = null;
+        unhashed = null;
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery.pragmas;
+
+import antlr.RecognitionException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.exist.EXistException;
+import org.exist.Namespaces;
+import org.exist.dom.QName;
+import org.exist.dom.persistent.NewArrayNodeSet;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.dom.persistent.NodeSet;
+import org.exist.security.PermissionDeniedException;
+import org.exist.security.Subject;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.ParallelExecutor;
+import org.exist.xquery.*;
+import org.exist.xquery.parser.XQueryAST;
+import org.exist.xquery.parser.XQueryTreeParser;
+import org.exist.xquery.util.ExpressionDumper;
+import org.exist.xquery.value.Item;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.SequenceIterator;
+import org.exist.xquery.value.Type;
+import org.exist.xquery.value.ValueSequence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Evaluates a for expression with several threads:
+ *
+ * <pre>
+ * (# exist:parallel #) {
+ *     for $doc in collection("/db/data")/record
+ *     return local:expensive($doc)
+ * }
+ * </pre>
+ *
+ * The input sequence of the for is evaluated first and split into contiguous chunks.
+ * Compiled expressions keep state while being evaluated, so every thread compiles a
+ * private copy of the for expression from the syntax tree, in a context created by
+ * {@link XQueryContext#copyContextForThread()}, and evaluates it for the chunks it takes.
+ * The results are concatenated in the order of the input sequence, so the result is the
+ * same as without the pragma. The number of threads is limited by the <code>parallelism</code>
+ * attribute in conf.xml. The calling thread evaluates chunks itself; the other threads are
+ * taken from the {@link ParallelExecutor} of the database instance, which is shared by all
+ * queries and limits the number of brokers held by parallel workers.
+ *
+ * The return clause must not have side effects which depend on the order of evaluation.
+ * The expression is evaluated sequentially if
+ * <ul>
+ *     <li>it is not a for expression or has a positional variable</li>
+ *     <li>it has an order by or group by clause</li>
+ *     <li>it calls user defined functions or functions from library modules, which can
+ *     not be compiled again</li>
+ *     <li>it is contained in a library module, the profiler is enabled or the context
+ *     is in protected mode</li>
+ *     <li>a variable it may use holds a function item</li>
+ * </ul>
+ */
+public class ParallelPragma extends Pragma {
+
+    public  final static QName PARALLEL_PRAGMA = new QName("parallel", Namespaces.EXIST_NS, "exist");
+
+    private final static Logger LOG = LogManager.getLogger(ParallelPragma.class);
+
+    /** number of chunks the input is split into for every thread, so threads which finish early take more */
+    private final static int CHUNKS_PER_THREAD = 4;
+
+    private final XQueryContext context;
+    private XQueryAST ast = null;
+    private Expression innerExpression = null;
+    private boolean warned = false;
+
+    public ParallelPragma(XQueryContext context, QName qname, String contents) throws XPathException {
+        super(qname, contents);
+        this.context = context;
+    }
+
+    @Override
+    public void setExpressionAST(XQueryAST ast) {
+        this.ast = ast;
+    }
+
+    @Override
+    public void before(XQueryContext context, Expression expression, Sequence contextSequence) throws XPathException {
+        innerExpression = expression;
+    }
+
+    @Override
+    public void after(XQueryContext context, Expression expression) throws XPathException {
+    }
+
+    /**
+     * Evaluate the for expression in parallel, or return null if it has
+     * to be evaluated sequentially.
+     */
+    @Override
+    public Sequence eval(Sequence contextSequence, Item contextItem) throws XPathException {
+        final ForExpr forExpr = getForExpr(innerExpression);
+        final String reason = checkExpression(forExpr);
+        if (reason != null) {
+            if (!warned) {
+                LOG.warn("Evaluating expression sequentially: " + reason);
+                warned = true;
+            }
+            return null;
+        }
+        if (context.getParallelism() < 2 || context.inProtectedMode() || context.getProfiler().isEnabled()) {
+            return null;
+        }
+        for (final Variable var : context.getLocalStack()) {
+            if (!isShareable(var.getValue())) {
+                return null;
+            }
+        }
+        for (final Variable var : context.getGlobalVariables().values()) {
+            if (!isShareable(var.getValue())) {
+                return null;
+            }
+        }
+
+        final List<ParallelCopy> copies = new ArrayList<>();
+        final ParallelCopy first = compile();
+        if (first == null) {
+            return null;
+        }
+        copies.add(first);
+
+        final Sequence input = forExpr.getInputSequence().eval(contextSequence, null);
+        final int count = input.getItemCount();
+        if (count < 2 || !isShareable(input)) {
+            return first.eval(input);
+        }
+
+        final Sequence[] chunks = split(input, Math.min(count, context.getParallelism() * CHUNKS_PER_THREAD));
+        final int threads = Math.min(context.getParallelism(), chunks.length);
+        while (copies.size() < threads) {
+            final ParallelCopy copy = compile();
+            if (copy == null) {
+                break;
+            }
+            copies.add(copy);
+        }
+
+        final Sequence[] results = new Sequence[chunks.length];
+        final AtomicInteger next = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(chunks.length);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final BrokerPool pool = context.getBroker().getBrokerPool();
+        final Subject subject = context.getSubject();
+        final ParallelExecutor executor = pool.getParallelExecutor();
+        for (int i = 1; i < copies.size(); i++) {
+            final ParallelCopy copy = copies.get(i);
+            executor.submit(() -> {
+                if (next.get() >= chunks.length) {
+                    // all chunks were taken while the task was queued
+                    return;
+                }
+                try (final DBBroker broker = pool.get(Optional.ofNullable(subject))) {
+                    evalChunks(copy, chunks, results, next, done, error);
+                } catch (final EXistException e) {
+                    // the remaining chunks are evaluated by the other threads
+                    LOG.warn("Unable to get a broker for parallel evaluation: " + e.getMessage(), e);
+                }
+            });
+        }
+        // the calling thread takes chunks as well, so the evaluation also completes
+        // if no worker is free or gets a broker
+        evalChunks(first, chunks, results, next, done, error);
+        try {
+            done.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new XPathException(forExpr, "Interrupted while waiting for parallel evaluation", e);
+        }
+
+        final Throwable e = error.get();
+        if (e instanceof XPathException) {
+            throw (XPathException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e instanceof Error) {
+            throw (Error) e;
+        }
+
+        final ValueSequence result = new ValueSequence();
+        for (final Sequence chunkResult : results) {
+            result.addAll(chunkResult);
+        }
+        return result;
+    }
+
+    /**
+     * Take chunks until all are taken and evaluate them. Once a chunk failed, the
+     * remaining ones are skipped.
+     */
+    private static void evalChunks(final ParallelCopy copy, final Sequence[] chunks, final Sequence[] results,
+            final AtomicInteger next, final CountDownLatch done, final AtomicReference<Throwable> error) {
+        int i;
+        while ((i = next.getAndIncrement()) < chunks.length) {
+            try {
+                if (error.get() == null) {
+                    results[i] = copy.eval(chunks[i]);
+                }
+            } catch (final Throwable e) {
+                error.compareAndSet(null, e);
+            } finally {
+                done.countDown();
+            }
+        }
+    }
+
+    /**
+     * @return the reason why the for expression can not be evaluated in parallel, or null
+     */
+    private String checkExpression(final ForExpr forExpr) {
+        if (ast == null || forExpr == null) {
+            return "not a for expression";
+        }
+        if (forExpr.getPositionalVariable() != null) {
+            return "the for expression has a positional variable";
+        }
+        Expression next = forExpr.getReturnExpression();
+        while (next instanceof FLWORClause) {
+            final FLWORClause.ClauseType type = ((FLWORClause) next).getType();
+            if (type == FLWORClause.ClauseType.ORDERBY || type == FLWORClause.ClauseType.GROUPBY) {
+                return "the for expression has an order by or group by clause";
+            }
+            next = ((FLWORClause) next).getReturnExpression();
+        }
+        if (context.hasParent()) {
+            return "the expression is contained in a library module";
+        }
+        return null;
+    }
+
+    /**
+     * Compile a private copy of the for expression.
+     *
+     * @return the copy or null if it can not be compiled
+     */
+    private ParallelCopy compile() throws XPathException {
+        final XQueryContext copyContext = context.copyContextForThread();
+        final XQueryTreeParser treeParser = new XQueryTreeParser(copyContext);
+        final PathExpr path = new PathExpr(copyContext);
+        try {
+            treeParser.expr(ast, path);
+            if (treeParser.foundErrors()) {
+                LOG.debug("Evaluating expression sequentially: " + treeParser.getErrorMessage());
+                return null;
+            }
+            copyContext.resolveForwardReferences();
+        } catch (final RecognitionException | PermissionDeniedException | EXistException | XPathException e) {
+            LOG.debug("Evaluating expression sequentially: " + e.getMessage());
+            return null;
+        }
+
+        final ForExpr forExpr = getForExpr(path);
+        if (forExpr == null) {
+            return null;
+        }
+        final ChunkExpression input = new ChunkExpression(copyContext, getForExpr(innerExpression).getInputSequence().returnsType());
+        forExpr.setInputSequence(input);
+        path.analyze(new AnalyzeContextInfo());
+        if (copyContext.optimizationsEnabled()) {
+            final Optimizer optimizer = new Optimizer(copyContext);
+            path.accept(optimizer);
+            if (optimizer.hasOptimized()) {
+                path.resetState(true);
+                path.analyze(new AnalyzeContextInfo());
+            }
+        }
+        return new ParallelCopy(path, input);
+    }
+
+    private static ForExpr getForExpr(Expression expr) {
+        while (expr instanceof PathExpr && ((PathExpr) expr).getLength() == 1) {
+            expr = ((PathExpr) expr).getExpression(0);
+        }
+        return expr instanceof ForExpr ? (ForExpr) expr : null;
+    }
+
+    /**
+     * Check if a value can be used by several threads. Function items are compiled
+     * expressions and can not. Node sets are sorted lazily, so make sure they are
+     * sorted before other threads see them.
+     */
+    private static boolean isShareable(final Sequence value) throws XPathException {
+        if (value == null) {
+            return true;
+        }
+        value.getItemCount();
+        final int type = value.getItemType();
+        if (type == Type.FUNCTION_REFERENCE) {
+            return false;
+        }
+        if (type == Type.ITEM) {
+            for (final SequenceIterator i = value.iterate(); i.hasNext(); ) {
+                if (i.nextItem().getType() == Type.FUNCTION_REFERENCE) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split the input into contiguous chunks of about the same size.
+     */
+    private static Sequence[] split(final Sequence input, final int count) throws XPathException {
+        final Sequence[] chunks = new Sequence[count];
+        final int size = input.getItemCount();
+        final SequenceIterator i = input.iterate();
+        for (int c = 0; c < count; c++) {
+            final int chunkSize = size / count + (c < size % count ? 1 : 0);
+            if (input instanceof NodeSet) {
+                final NewArrayNodeSet chunk = new NewArrayNodeSet();
+                for (int j = 0; j < chunkSize; j++) {
+                    chunk.add((NodeProxy) i.nextItem());
+                }
+                chunk.getItemCount();
+                chunks[c] = chunk;
+            } else {
+                final ValueSequence chunk = new ValueSequence(chunkSize);
+                for (int j = 0; j < chunkSize; j++) {
+                    chunk.add(i.nextItem());
+                }
+                chunks[c] = chunk;
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * A copy of the for expression, whose input sequence is replaced by the chunk
+     * to be evaluated.
+     */
+    private static class ParallelCopy {
+
+        private final PathExpr expr;
+        private final ChunkExpression input;
+
+        ParallelCopy(final PathExpr expr, final ChunkExpression input) {
+            this.expr = expr;
+            this.input = input;
+        }
+
+        Sequence eval(final Sequence chunk) throws XPathException {
+            input.setSequence(chunk);
+            try {
+                return expr.eval(null, null);
+            } finally {
+                input.setSequence(null);
+            }
+        }
+    }
+
+    /**
+     * Returns the chunk of the input sequence currently evaluated.
+     */
+    private static class ChunkExpression extends AbstractExpression {
+
+        private final int type;
+        private Sequence sequence = null;
+
+        ChunkExpression(final XQueryContext context, final int type) {
+            super(context);
+            this.type = type;
+        }
+
+        void setSequence(final Sequence sequence) {
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void analyze(final AnalyzeContextInfo contextInfo) throws XPathException {
+            contextInfo.setStaticReturnType(type);
+        }
+
+        @Override
+        public Sequence eval(final Sequence contextSequence, final Item contextItem) throws XPathException {
+            return sequence == null ? Sequence.EMPTY_SEQUENCE : sequence;
+        }
+
+        @Override
+        public int returnsType() {
+            return type;
+        }
+
+        @Override
+        public int getCardinality() {
+            return Cardinality.ZERO_OR_MORE;
+        }
+
+        @Override
+        public int getDependencies() {
+            return Dependency.NO_DEPENDENCY;
+        }
+
+        @Override
+        public void dump(final ExpressionDumper dumper) {
+            dumper.display("(: parallel chunk :)");
+        }
+
+        @Override
+        public String toString() {
+            return "(: parallel chunk :)";
+        }
+    }
+}
@@ -84,6 +84,7 @@ public abstract class Modification extends AbstractExpression
 		this.select = select;
 		this.value = value;
         this.triggers = new Int2ObjectHashMap<DocumentTrigger>(10);
+        context.addSideEffect("update");
     }
 
 	public int getCardinality() {
@@ -129,7 +130,9 @@ public abstract class Modification extends AbstractExpression
 	/**
 	 * Acquire a lock on all documents processed by this modification.
 	 * We have to avoid that node positions change during the
-	 * operation.
+	 * operation. Only the documents being modified are locked, in
+	 * ascending order of their id (see {@link DocumentSet#lock}), so
+	 * updates to different documents run in parallel.
 	 * 
 	 * @param nodes
 	 * 
@@ -138,38 +141,31 @@ public abstract class Modification extends AbstractExpression
 	 */
 	protected StoredNode[] selectAndLock(Txn transaction, Sequence nodes) throws LockException, PermissionDeniedException,
 		XPathException, TriggerException {
-	    final Lock globalLock = context.getBroker().getBrokerPool().getGlobalUpdateLock();
-	    try {
-	        globalLock.acquire(Lock.READ_LOCK);
-	       
-	        lockedDocuments = nodes.getDocumentSet();
-	        
-		    // acquire a lock on all documents
-	        // we have to avoid that node positions change
-	        // during the modification
-	        lockedDocuments.lock(context.getBroker(), true, false);
-	        
-		    final StoredNode ql[] = new StoredNode[nodes.getItemCount()];
-			for (int i = 0; i < ql.length; i++) {
-                final Item item = nodes.itemAt(i);
-                if (!Type.subTypeOf(item.getType(), Type.NODE))
-                    {throw new XPathException(this, "XQuery update expressions can only be applied to nodes. Got: " +
-                        item.getStringValue());}
-                final NodeValue nv = (NodeValue)item;
-                if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE)
-                    {throw new XPathException(this, "XQuery update expressions can not be applied to in-memory nodes.");}
-                final Node n = nv.getNode();
-                if (n.getNodeType() == Node.DOCUMENT_NODE)
-                    {throw new XPathException(this, "Updating the document object is not allowed.");}
-				ql[i] = (StoredNode) n;
-				final DocumentImpl doc = ql[i].getOwnerDocument();
-				//prepare Trigger
-				prepareTrigger(transaction, doc);
-			}
-			return ql;
-	    } finally {
-	        globalLock.release(Lock.READ_LOCK);
+	    lockedDocuments = nodes.getDocumentSet();
+
+	    // acquire a lock on all documents
+	    // we have to avoid that node positions change
+	    // during the modification
+	    lockedDocuments.lock(context.getBroker(), true, false);
+
+	    final StoredNode ql[] = new StoredNode[nodes.getItemCount()];
+	    for (int i = 0; i < ql.length; i++) {
+	        final Item item = nodes.itemAt(i);
+	        if (!Type.subTypeOf(item.getType(), Type.NODE))
+	            {throw new XPathException(this, "XQuery update expressions can only be applied to nodes. Got: " +
+	                item.getStringValue());}
+	        final NodeValue nv = (NodeValue)item;
+	        if (nv.getImplementationType() == NodeValue.IN_MEMORY_NODE)
+	            {throw new XPathException(this, "XQuery update expressions can not be applied to in-memory nodes.");}
+	        final Node n = nv.getNode();
+	        if (n.getNodeType() == Node.DOCUMENT_NODE)
+	            {throw new XPathException(this, "Updating the document object is not allowed.");}
+	        ql[i] = (StoredNode) n;
+	        final DocumentImpl doc = ql[i].getOwnerDocument();
+	        //prepare Trigger
+	        prepareTrigger(transaction, doc);
 	    }
+	    return ql;
 	}
 	
 	protected Sequence deepCopy(Sequence inSeq) throws XPathException {
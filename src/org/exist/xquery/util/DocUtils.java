@@ -181,6 +181,11 @@ public class DocUtils {
 						// add the document to the list of locked documents
 						context.addLockedDocument(doc);
 					}
+                    else if(context.useSnapshotReads())
+                    {
+                        // the lock is released below, record the document instead
+                        context.addSnapshotDocument(doc);
+                    }
 					document = new NodeProxy(doc);
 				}
 			}
@@ -34,7 +34,13 @@ import org.exist.xquery.XPathException;
 import org.exist.xquery.util.ExpressionDumper;
 import org.w3c.dom.Node;
 
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.stream.Stream;
 
 /**
@@ -53,15 +59,69 @@ public class OrderedValueSequence extends AbstractSequence {
 	private Entry[] items = null;
 	private int count = 0;
 	private int state = 0;
+	// the position of the next item added, used to keep the sort stable
+	private int position = 0;
+	// the maximum number of items kept, see OrderedValueSequence(OrderSpec[], int, int)
+	private final int limit;
+
+	// the number of entries kept in memory before they are written to a run, see setSpillThreshold(int)
+	private int spillThreshold = 0;
+	// true as long as all entries can be written to a run
+	private boolean spillable = true;
+	// sorted runs of entries written to temporary files
+	private List<SpillFile> runs = null;
+	// the documents of the nodes in the runs
+	private Map<Integer, org.exist.dom.persistent.DocumentImpl> documents = null;
+	// the number of entries in the runs
+	private int spilled = 0;
 
     // used to keep track of the type of added items.
     private int itemType = Type.ANY_TYPE;
     
 	public OrderedValueSequence(OrderSpec orderSpecs[], int size) {
+		this(orderSpecs, size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Create a sequence which only keeps the first limit items in sort order. Once
+	 * limit items were added, the entries are kept in a heap with the greatest entry
+	 * on top, which is replaced if a smaller item is added. Sorting n items thus takes
+	 * O(n log limit) time and the sequence never holds more than limit items.
+	 *
+	 * @param orderSpecs the order specs of the "order by" clause
+	 * @param size the initial size
+	 * @param limit the number of items to keep
+	 */
+	public OrderedValueSequence(OrderSpec orderSpecs[], int size, int limit) {
 		this.orderSpecs = orderSpecs;
+		this.limit = limit;
         if (size == 0)
             {size = 1;}
-		this.items = new Entry[size];
+		this.items = new Entry[Math.min(size, limit)];
+	}
+
+	/**
+	 * Keep at most threshold entries in memory. Whenever threshold entries were added,
+	 * they are sorted and written to a temporary file as a run, which is merged with the
+	 * other runs by {@link #sort()}. Only the sorted items are kept in memory after the merge,
+	 * the sort keys are dropped.
+	 *
+	 * Runs are only written if all items and sort keys can be written to a file, see
+	 * {@link SpillFile#canSpill(Item)}, and if the sequence has no limit. Otherwise all
+	 * entries are kept in memory.
+	 *
+	 * @param threshold the number of entries kept in memory, 0 to keep all entries in memory
+	 */
+	public void setSpillThreshold(int threshold) {
+		this.spillThreshold = threshold;
+	}
+
+	/**
+	 * @return true if entries are written to temporary files once the
+	 * threshold set by {@link #setSpillThreshold(int)} is reached
+	 */
+	public boolean isSpillable() {
+		return spillThreshold > 0 && spillable && limit == Integer.MAX_VALUE;
 	}
 
 	/* (non-Javadoc)
@@ -82,7 +142,7 @@ public class OrderedValueSequence extends AbstractSequence {
 	 * @see org.exist.xquery.value.Sequence#getLength()
 	 */
 	public int getItemCount() {
-		return (items == null) ? 0 : count;
+		return (items == null) ? 0 : count + spilled;
 	}
 	
 	public boolean isEmpty() {
@@ -97,23 +157,100 @@ public class OrderedValueSequence extends AbstractSequence {
 	 * @see org.exist.xquery.value.Sequence#add(org.exist.xquery.value.Item)
 	 */
 	public void add(Item item) throws XPathException {
+		if (count == limit) {
+			final Entry entry = new Entry(item, position++);
+			if (entry.compareTo(items[0]) < 0) {
+				items[0] = entry;
+				siftDown(0);
+				checkItemType(item.getType());
+				setHasChanged();
+			}
+			return;
+		}
 		if (hasOne)
 			{hasOne = false;}
 		if (isEmpty)
 			{hasOne = true;}
         isEmpty = false;
-		if(count == 0 && items.length == 1) {
+		if(count == 0 && items.length == 1 && limit > 1) {
 			items = new Entry[2];
 		} else if (count == items.length) {
-			Entry newItems[] = new Entry[count * 2];
+			Entry newItems[] = new Entry[Math.min(count * 2, limit)];
 			System.arraycopy(items, 0, newItems, 0, count);
 			items = newItems;
 		}
-		items[count] = new Entry(item, count++);
+		final Entry entry = new Entry(item, position++);
+		items[count++] = entry;
 		checkItemType(item.getType());
         setHasChanged();
+		if (count == limit) {
+			for (int i = count / 2 - 1; i >= 0; i--) {
+				siftDown(i);
+			}
+		}
+		if (isSpillable()) {
+			spillable = entry.canSpill();
+			if (spillable && count >= spillThreshold)
+				{spill();}
+		}
     }
 
+	/**
+	 * Sort the entries in memory and write them to a new run.
+	 */
+	private void spill() throws XPathException {
+		Arrays.sort(items, 0, count);
+		if (runs == null) {
+			runs = new ArrayList<>();
+			documents = new HashMap<>();
+		}
+		try {
+			final SpillFile run = new SpillFile(documents);
+			runs.add(run);
+			run.writeInt(count);
+			for (int i = 0; i < count; i++) {
+				items[i].write(run);
+			}
+		} catch (final IOException e) {
+			release();
+			throw new XPathException("Failed to write order by entries to a temporary file: " + e.getMessage(), e);
+		}
+		Arrays.fill(items, 0, count, null);
+		spilled += count;
+		count = 0;
+	}
+
+	/**
+	 * Delete the temporary files of runs not yet merged by {@link #sort()}.
+	 */
+	public void release() {
+		if (runs != null) {
+			for (final SpillFile run : runs) {
+				run.delete();
+			}
+			runs = null;
+			documents = null;
+		}
+	}
+
+	/**
+	 * Restore the heap order below the given entry: move it down until
+	 * it is greater than its children.
+	 */
+	private void siftDown(int i) {
+		final Entry entry = items[i];
+		int child;
+		while ((child = 2 * i + 1) < count) {
+			if (child + 1 < count && items[child + 1].compareTo(items[child]) > 0)
+				{child++;}
+			if (entry.compareTo(items[child]) >= 0)
+				{break;}
+			items[i] = items[child];
+			i = child;
+		}
+		items[i] = entry;
+	}
+
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.AbstractSequence#addAll(org.exist.xquery.value.Sequence)
 	 */
@@ -129,7 +266,11 @@ public class OrderedValueSequence extends AbstractSequence {
 		} 
 	}
 	
-	public void sort() {
+	public void sort() throws XPathException {
+		if (runs != null) {
+			merge();
+			return;
+		}
 //		FastQSort.sort(items, 0, count - 1);
 		items =
 			Stream.of(items).filter(entry -> entry != null)
@@ -138,6 +279,40 @@ public class OrderedValueSequence extends AbstractSequence {
 					.map(entry -> { entry.clear(); return entry; })
 					.toArray(Entry[]::new);
 	}
+
+	/**
+	 * Merge the runs and the sorted entries still in memory into the final sequence.
+	 */
+	private void merge() throws XPathException {
+		Arrays.sort(items, 0, count);
+		final Entry[] merged = new Entry[count + spilled];
+		final PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size() + 1);
+		try {
+			for (final SpillFile run : runs) {
+				final RunReader reader = new RunReader(run);
+				if (reader.next())
+					{queue.add(reader);}
+			}
+			final RunReader memory = new RunReader(items, count);
+			if (memory.next())
+				{queue.add(memory);}
+			int n = 0;
+			while (!queue.isEmpty()) {
+				final RunReader reader = queue.poll();
+				reader.entry.clear();
+				merged[n++] = reader.entry;
+				if (reader.next())
+					{queue.add(reader);}
+			}
+		} catch (final IOException e) {
+			throw new XPathException("Failed to read order by entries from a temporary file: " + e.getMessage(), e);
+		} finally {
+			release();
+		}
+		items = merged;
+		count = merged.length;
+		spilled = 0;
+	}
 	
 	/* (non-Javadoc)
 	 * @see org.exist.xquery.value.Sequence#itemAt(int)
@@ -309,6 +484,12 @@ public class OrderedValueSequence extends AbstractSequence {
 		 * @param position the original position of the item in the result sequence
 		 * @throws XPathException
 		 */
+		public Entry(Item item, AtomicValue values[], int position) {
+			this.item = item;
+			this.values = values;
+			this.pos = position;
+		}
+
 		public Entry(Item item, int position) throws XPathException {
 			this.item = item;
 			this.pos = position;
@@ -339,8 +520,8 @@ public class OrderedValueSequence extends AbstractSequence {
                     final boolean bIsEmpty = (b.isEmpty() || (Type.subTypeOf(b.getType(), Type.NUMBER) && ((NumericValue) b).isNaN()));
                     if (aIsEmpty) {
                         if (bIsEmpty)
-                            // both values are empty
-                            {return Constants.EQUAL;}
+                            // both values are empty, compare the next value
+                            {cmp = Constants.EQUAL;}
                         else if ((orderSpecs[i].getModifiers() & OrderSpec.EMPTY_LEAST) != 0)
 							{cmp = Constants.INFERIOR;}
                         else
@@ -392,6 +573,75 @@ public class OrderedValueSequence extends AbstractSequence {
 		public void clear() {
 			values = null;
 		}
+
+		boolean canSpill() {
+			if (!SpillFile.canSpill(item))
+				{return false;}
+			for (final AtomicValue value : values) {
+				if (!SpillFile.canSpill(value))
+					{return false;}
+			}
+			return true;
+		}
+
+		void write(SpillFile run) throws IOException, XPathException {
+			run.writeInt(pos);
+			for (final AtomicValue value : values) {
+				run.writeItem(value);
+			}
+			run.writeItem(item);
+		}
+	}
+
+	/**
+	 * Reads the entries of a run in sort order, either from a temporary
+	 * file or from the entries kept in memory.
+	 */
+	private class RunReader implements Comparable<RunReader> {
+
+		private final SpillFile run;
+		private final Entry[] entries;
+		private int remaining;
+		private int index = 0;
+		Entry entry = null;
+
+		RunReader(SpillFile run) throws IOException {
+			this.run = run;
+			this.entries = null;
+			run.startReading();
+			this.remaining = run.readInt();
+		}
+
+		RunReader(Entry[] entries, int count) {
+			this.run = null;
+			this.entries = entries;
+			this.remaining = count;
+		}
+
+		boolean next() throws IOException, XPathException {
+			if (remaining == 0) {
+				entry = null;
+				return false;
+			}
+			remaining--;
+			if (entries != null) {
+				entry = entries[index];
+				entries[index++] = null;
+			} else {
+				final int pos = run.readInt();
+				final AtomicValue values[] = new AtomicValue[orderSpecs.length];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = (AtomicValue) run.readItem();
+				}
+				entry = new Entry(run.readItem(), values, pos);
+			}
+			return true;
+		}
+
+		@Override
+		public int compareTo(RunReader other) {
+			return entry.compareTo(other.entry);
+		}
 	}
 	
 	private class OrderedValueSequenceIterator implements SequenceIterator {
@@ -0,0 +1,232 @@
+/*
+ *  eXist Open Source Native XML Database
+ *  Copyright (C) 2001-2016 The eXist Project
+ *  http://exist-db.org
+ *
+ *  This program is free software; you can redistribute it and/or
+ *  modify it under the terms of the GNU Lesser General Public License
+ *  as published by the Free Software Foundation; either version 2
+ *  of the License, or (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU Lesser General Public License for more details.
+ *
+ *  You should have received a copy of the GNU Lesser General Public
+ *  License along with this library; if not, write to the Free Software
+ *  Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ *  $Id$
+ */
+package org.exist.xquery.value;
+
+import org.exist.dom.QName;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.dom.persistent.NodeProxy;
+import org.exist.numbering.NodeId;
+import org.exist.util.io.TemporaryFileManager;
+import org.exist.xquery.XPathException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * A temporary file to which items are written while evaluating a query, to be read back
+ * later in the same order. Used by "order by" and "group by" to move the items they collect
+ * out of memory, see {@link OrderedValueSequence#setSpillThreshold(int)}.
+ *
+ * Only atomic values and stored nodes can be written, see {@link #canSpill(Item)}.
+ * Stored nodes are written as document id and node id. The documents are not written, they
+ * are kept in a map shared by the files of a query and looked up by id when reading.
+ *
+ * The file is obtained from the {@link TemporaryFileManager} and returned to it by
+ * {@link #delete()}.
+ */
+public class SpillFile {
+
+    private final static byte EMPTY = 0;
+    private final static byte DOUBLE = 1;
+    private final static byte FLOAT = 2;
+    private final static byte ATOMIC = 3;
+    private final static byte NODE = 4;
+
+    private final Path path;
+    private final Map<Integer, DocumentImpl> documents;
+    private DataOutputStream os;
+    private DataInputStream is = null;
+
+    /**
+     * Create a new file, open for writing.
+     *
+     * @param documents the documents of the nodes written, shared by all files of a query
+     * @throws IOException if the file can not be created
+     */
+    public SpillFile(final Map<Integer, DocumentImpl> documents) throws IOException {
+        this.documents = documents;
+        this.path = TemporaryFileManager.getInstance().getTemporaryFile();
+        this.os = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+    }
+
+    /**
+     * Check if an item can be written to the file.
+     *
+     * @param item the item
+     * @return true for atomic values, except for QNames, notations and binary values,
+     * for stored nodes without matches or context and for the empty value of an empty key
+     */
+    public static boolean canSpill(final Item item) {
+        if (item instanceof NodeProxy) {
+            // only the node is written: full text matches, which are needed for highlighting
+            // and scores, and the context of the node would be lost
+            final NodeProxy p = (NodeProxy) item;
+            return p.getMatches() == null && p.getContext() == null;
+        }
+        if (item == AtomicValue.EMPTY_VALUE) {
+            return true;
+        }
+        final int type = item.getType();
+        return item instanceof AtomicValue && Type.subTypeOf(type, Type.ATOMIC) &&
+            type != Type.QNAME && type != Type.NOTATION &&
+            type != Type.BASE64_BINARY && type != Type.HEX_BINARY;
+    }
+
+    public void writeInt(final int i) throws IOException {
+        os.writeInt(i);
+    }
+
+    public void writeString(final String s) throws IOException {
+        final byte[] data = s.getBytes(UTF_8);
+        os.writeInt(data.length);
+        os.write(data);
+    }
+
+    public void writeQName(final QName qname) throws IOException {
+        writeString(qname.getLocalPart());
+        writeString(qname.getNamespaceURI() == null ? "" : qname.getNamespaceURI());
+        writeString(qname.getPrefix() == null ? "" : qname.getPrefix());
+    }
+
+    /**
+     * Write an item which {@link #canSpill(Item)}. The empty value written for
+     * an empty sort or grouping key is read back as {@link AtomicValue#EMPTY_VALUE}.
+     */
+    public void writeItem(final Item item) throws IOException, XPathException {
+        if (item == AtomicValue.EMPTY_VALUE || (item instanceof AtomicValue && ((AtomicValue) item).isEmpty())) {
+            os.writeByte(EMPTY);
+        } else if (item instanceof NodeProxy) {
+            final NodeProxy p = (NodeProxy) item;
+            final DocumentImpl doc = p.getOwnerDocument();
+            documents.putIfAbsent(doc.getDocId(), doc);
+            os.writeByte(NODE);
+            os.writeInt(doc.getDocId());
+            os.writeShort(p.getNodeType());
+            os.writeLong(p.getInternalAddress());
+            final NodeId nodeId = p.getNodeId();
+            if (NodeId.DOCUMENT_NODE.equals(nodeId)) {
+                os.writeInt(-1);
+            } else {
+                final byte[] data = new byte[nodeId.size()];
+                nodeId.serialize(data, 0);
+                os.writeInt(nodeId.units());
+                os.writeInt(data.length);
+                os.write(data);
+            }
+        } else if (item.getType() == Type.DOUBLE) {
+            os.writeByte(DOUBLE);
+            os.writeDouble(((DoubleValue) item).getDouble());
+        } else if (item.getType() == Type.FLOAT) {
+            os.writeByte(FLOAT);
+            os.writeFloat(((FloatValue) item).getValue());
+        } else {
+            os.writeByte(ATOMIC);
+            os.writeShort(item.getType());
+            writeString(item.getStringValue());
+        }
+    }
+
+    /**
+     * Close the file for writing and start reading it from the beginning.
+     */
+    public void startReading() throws IOException {
+        os.close();
+        os = null;
+        is = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)));
+    }
+
+    public int readInt() throws IOException {
+        return is.readInt();
+    }
+
+    public String readString() throws IOException {
+        final byte[] data = new byte[is.readInt()];
+        is.readFully(data);
+        return new String(data, UTF_8);
+    }
+
+    public QName readQName() throws IOException {
+        final String localPart = readString();
+        final String namespaceURI = readString();
+        final String prefix = readString();
+        return new QName(localPart, namespaceURI, prefix.isEmpty() ? null : prefix);
+    }
+
+    public Item readItem() throws IOException, XPathException {
+        final byte tag = is.readByte();
+        switch (tag) {
+            case EMPTY:
+                return AtomicValue.EMPTY_VALUE;
+            case DOUBLE:
+                return new DoubleValue(is.readDouble());
+            case FLOAT:
+                return new FloatValue(is.readFloat());
+            case ATOMIC:
+                final int type = is.readShort();
+                final String value = readString();
+                return type == Type.STRING ? new StringValue(value) : new StringValue(value).convertTo(type);
+            case NODE:
+                final DocumentImpl doc = documents.get(is.readInt());
+                final short nodeType = is.readShort();
+                final long address = is.readLong();
+                final int units = is.readInt();
+                final NodeId nodeId;
+                if (units < 0) {
+                    nodeId = NodeId.DOCUMENT_NODE;
+                } else {
+                    final byte[] data = new byte[is.readInt()];
+                    is.readFully(data);
+                    nodeId = doc.getBrokerPool().getNodeFactory().createFromData(units, data, 0);
+                }
+                return new NodeProxy(doc, nodeId, nodeType, address);
+            default:
+                throw new IOException("Invalid item tag in temporary file " + path + ": " + tag);
+        }
+    }
+
+    /**
+     * Close the file and return it to the {@link TemporaryFileManager}.
+     */
+    public void delete() {
+        try {
+            if (os != null) {
+                os.close();
+            }
+            if (is != null) {
+                is.close();
+            }
+        } catch (final IOException e) {
+            // the file is deleted anyway
+        }
+        os = null;
+        is = null;
+        TemporaryFileManager.getInstance().returnTemporaryFile(path);
+    }
+}
@@ -48,7 +48,6 @@ import org.exist.source.Source;
 import org.exist.source.StringSource;
 import org.exist.storage.DBBroker;
 import org.exist.storage.XQueryPool;
-import org.exist.storage.lock.Lock;
 import org.exist.storage.txn.Txn;
 import org.exist.util.LockException;
 import org.exist.util.hashtable.Int2ObjectHashMap;
@@ -212,7 +211,8 @@ public abstract class Modification {
 
 	/**
 	 * Acquire a lock on all documents processed by this modification. We have
-	 * to avoid that node positions change during the operation.
+	 * to avoid that node positions change during the operation. Documents are
+	 * locked in ascending order of their id (see {@link DocumentSet#lock}).
 	 * feature trigger_update :
 	 * At the same time we leverage on the fact that it's called before 
 	 * database modification to call the eventual triggers.
@@ -228,33 +228,26 @@ public abstract class Modification {
 	protected final StoredNode[] selectAndLock(Txn transaction)
 			throws LockException, PermissionDeniedException, EXistException,
 			XPathException, TriggerException {
-	    final Lock globalLock = broker.getBrokerPool().getGlobalUpdateLock();
-	    try {
-	        globalLock.acquire(Lock.READ_LOCK);
-	        
-	        final NodeList nl = select(docs);
-	        lockedDocuments = ((NodeSet)nl).getDocumentSet();
-	        
-		    // acquire a lock on all documents
-	        // we have to avoid that node positions change
-	        // during the modification
-	        lockedDocuments.lock(broker, true, false);
-	        
-		    final StoredNode ql[] = new StoredNode[nl.getLength()];		    
-			for (int i = 0; i < ql.length; i++) {
-				ql[i] = (StoredNode)nl.item(i);
-				final DocumentImpl doc = ql[i].getOwnerDocument();
-				
-				// call the eventual triggers
-				// TODO -jmv separate loop on docs and not on nodes
-			
-				//prepare Trigger
-				prepareTrigger(transaction, doc);
-			}
-			return ql;
-	    } finally {
-	        globalLock.release(Lock.READ_LOCK);
+	    final NodeList nl = select(docs);
+	    lockedDocuments = ((NodeSet)nl).getDocumentSet();
+
+	    // acquire a lock on all documents
+	    // we have to avoid that node positions change
+	    // during the modification
+	    lockedDocuments.lock(broker, true, false);
+
+	    final StoredNode ql[] = new StoredNode[nl.getLength()];
+	    for (int i = 0; i < ql.length; i++) {
+	        ql[i] = (StoredNode)nl.item(i);
+	        final DocumentImpl doc = ql[i].getOwnerDocument();
+
+	        // call the eventual triggers
+	        // TODO -jmv separate loop on docs and not on nodes
+
+	        //prepare Trigger
+	        prepareTrigger(transaction, doc);
 	    }
+	    return ql;
 	}
 	
 	/**
@@ -13,9 +13,16 @@ import static org.easymock.EasyMock.capture;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.exist.EXistException;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import static org.junit.Assert.assertEquals;
 
 /**
@@ -25,6 +32,9 @@ public class SymbolTableTest {
 
     private final Path tmpDir = Paths.get(System.getProperty("java.io.tmpdir"));
 
+    @Rule
+    public final TemporaryFolder concurrentDir = new TemporaryFolder();
+
     @Test
     public void getName_returns_empty_string_when_id_is_zero() throws EXistException, IOException {
         SymbolTable symbolTable = new SymbolTable(tmpDir);
@@ -108,6 +118,40 @@ public class SymbolTableTest {
         assertEquals(mimetype, roundTrippedMimetype);
     }
 
+    @Test
+    public void concurrent_lookups_agree_on_ids() throws Exception {
+        // uses its own symbols.dbx, the other tests expect only their own symbols
+        final SymbolTable symbolTable = new SymbolTable(concurrentDir.getRoot().toPath());
+        final int threads = 8;
+        final int names = 500;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<short[]>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int start = t * 37;
+                futures.add(executor.submit(() -> {
+                    final short[] ids = new short[names];
+                    for (int i = 0; i < names; i++) {
+                        final int n = (start + i) % names;
+                        ids[n] = symbolTable.getSymbol("concurrent-" + n);
+                        assertEquals("concurrent-" + n, symbolTable.getName(ids[n]));
+                    }
+                    return ids;
+                }));
+            }
+            final short[] expected = futures.get(0).get();
+            for (final Future<short[]> future : futures) {
+                final short[] ids = future.get();
+                for (int i = 0; i < names; i++) {
+                    assertEquals(expected[i], ids[i]);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            symbolTable.close();
+        }
+    }
+
     @Test
     public void write_and_read_are_balanced() throws EXistException, IOException {
 
@@ -0,0 +1,119 @@
+package org.exist.numbering;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.ToIntBiFunction;
+
+/**
+ * Measures the comparison operations of {@link DLN} which are used by structural
+ * joins: {@link DLN#compareTo(NodeId)}, {@link DLN#isDescendantOf(NodeId)},
+ * {@link DLN#isChildOf(NodeId)} and {@link DLN#computeRelation(NodeId)}.
+ * The child tests used to decode all levels below the ancestor, their previous
+ * implementation is measured on the same ids for comparison.
+ *
+ * Operations are run on two sets of pairs: neighbours in document order, as
+ * compared while merging two sorted node sets, and descendants paired with each
+ * of their ancestors, as tested by an ancestor-descendant join.
+ *
+ * Not part of the regular test suite. The number of rounds can be set with
+ * the system property <code>exist.dln.benchmark.rounds</code>.
+ */
+public class DLNBenchmark {
+
+    private static final int ROUNDS = Integer.getInteger("exist.dln.benchmark.rounds", 20);
+    private static final int IDS = 20000;
+    private static final int MAX_LEVEL = 20;
+
+    private final DLN[][] neighbours;
+    private final DLN[][] ancestors;
+    private long sink = 0;
+
+    public DLNBenchmark() {
+        final DLN[] ids = generateIds();
+        final List<DLN[]> pairs = new ArrayList<>();
+        for (int i = 1; i < ids.length; i++) {
+            pairs.add(new DLN[] { ids[i], ids[i - 1] });
+        }
+        neighbours = pairs.toArray(new DLN[pairs.size()][]);
+        pairs.clear();
+        for (final DLN id : ids) {
+            for (NodeId ancestor = id.getParentId(); ancestor != NodeId.DOCUMENT_NODE; ancestor = ancestor.getParentId()) {
+                pairs.add(new DLN[] { id, (DLN) ancestor });
+            }
+        }
+        ancestors = pairs.toArray(new DLN[pairs.size()][]);
+    }
+
+    @Test
+    public void compare() {
+        run("compareTo", neighbours, (id1, id2) -> id1.compareTo(id2), null);
+        run("isDescendantOf", ancestors, (id1, id2) -> id1.isDescendantOf(id2) ? 1 : 0, null);
+        run("isChildOf", ancestors, (id1, id2) -> id1.isChildOf(id2) ? 1 : 0,
+                (id1, id2) -> id1.startsWith(id2) && id1.getLevelCount(id2.bitIndex + 2) == 1 ? 1 : 0);
+        run("computeRelation", ancestors, (id1, id2) -> id1.computeRelation(id2),
+                DLNBenchmark::computeRelationByLevelCount);
+        System.out.println("(" + sink + ")");
+    }
+
+    private void run(final String operation, final DLN[][] pairs, final ToIntBiFunction<DLN, DLN> op,
+            final ToIntBiFunction<DLN, DLN> previous) {
+        long best = Long.MAX_VALUE;
+        long bestPrevious = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            best = Math.min(best, time(pairs, op));
+            if (previous != null) {
+                bestPrevious = Math.min(bestPrevious, time(pairs, previous));
+            }
+        }
+        final double ops = (double) ROUNDS * pairs.length;
+        System.out.println(String.format("%-16s %6.2f ns/op", operation, best / ops) +
+                (previous == null ? "" : String.format(", previous implementation %6.2f ns/op", bestPrevious / ops)));
+    }
+
+    private long time(final DLN[][] pairs, final ToIntBiFunction<DLN, DLN> op) {
+        final long start = System.nanoTime();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (final DLN[] pair : pairs) {
+                sink += op.applyAsInt(pair[0], pair[1]);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Ids of a document with up to 20 levels, in document order.
+     */
+    private static DLN[] generateIds() {
+        final Random random = new Random(1);
+        final DLN[] ids = new DLN[IDS];
+        DLN current = new DLN();
+        for (int i = 0; i < IDS; i++) {
+            final int level = current.getTreeLevel();
+            final int move = random.nextInt(10);
+            if (level < MAX_LEVEL && (move < 5 || level < 4)) {
+                current = (DLN) current.getChild(1 + random.nextInt(level % 4 == 0 ? 1000 : 5));
+            } else if (move < 8 || level == 1) {
+                current = (DLN) current.nextSibling();
+            } else {
+                current = (DLN) current.getParentId().nextSibling();
+            }
+            ids[i] = current;
+        }
+        return ids;
+    }
+
+    private static int computeRelationByLevelCount(final DLN id, final DLN ancestor) {
+        if (id.startsWith(ancestor)) {
+            if (id.bitIndex == ancestor.bitIndex) {
+                return NodeId.IS_SELF;
+            }
+            if (id.bitIndex > ancestor.bitIndex && id.isLevelSeparator(ancestor.bitIndex + 1)) {
+                return id.getLevelCount(ancestor.bitIndex + 2) == 1 ? NodeId.IS_CHILD : NodeId.IS_DESCENDANT;
+            }
+        }
+        return -1;
+    }
+}
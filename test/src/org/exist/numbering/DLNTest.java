@@ -270,4 +270,47 @@ public class DLNTest {
         dln = (DLN) left.insertNode(right);
         assertEquals("1.1/0/34", dln.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void deepIds() {
+        // ids spanning several 64 bit words, with level values of different unit counts
+        final Random rand = new Random(42);
+        final int[][] levels = new int[200][];
+        final DLN[] ids = new DLN[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = new int[1 + rand.nextInt(30)];
+            final StringBuilder s = new StringBuilder();
+            for (int j = 0; j < levels[i].length; j++) {
+                // share a common prefix with the previous id now and then
+                levels[i][j] = i > 0 && j < levels[i - 1].length && rand.nextBoolean() ?
+                        levels[i - 1][j] : 1 + rand.nextInt(j % 3 == 0 ? 5000 : 10);
+                if (j > 0) {
+                    s.append('.');
+                }
+                s.append(levels[i][j]);
+            }
+            ids[i] = new DLN(s.toString());
+            assertEquals(s.toString(), ids[i].toString());
+            assertEquals(levels[i].length, ids[i].getLevelCount(0));
+        }
+        for (int i = 0; i < ids.length; i++) {
+            for (int j = 0; j < ids.length; j++) {
+                final int expected = compareLevels(levels[i], levels[j]);
+                assertEquals(ids[i] + " <> " + ids[j], expected, Integer.signum(ids[i].compareTo(ids[j])));
+                final boolean prefix = levels[j].length <= levels[i].length &&
+                        compareLevels(Arrays.copyOf(levels[i], levels[j].length), levels[j]) == 0;
+                assertEquals(prefix && levels[i].length > levels[j].length, ids[i].isDescendantOf(ids[j]));
+                assertEquals(prefix && levels[i].length == levels[j].length + 1, ids[i].isChildOf(ids[j]));
+            }
+        }
+    }
+
+    private static int compareLevels(final int[] l1, final int[] l2) {
+        for (int i = 0; i < Math.min(l1.length, l2.length); i++) {
+            if (l1[i] != l2[i]) {
+                return l1[i] < l2[i] ? -1 : 1;
+            }
+        }
+        return Integer.signum(l1.length - l2.length);
+    }
+}
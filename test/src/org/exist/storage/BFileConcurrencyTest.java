@@ -0,0 +1,231 @@
+package org.exist.storage;
+
+import org.exist.storage.btree.IndexQuery;
+import org.exist.storage.btree.Value;
+import org.exist.storage.index.BFile;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.lock.QueuedReadWriteLock;
+import org.exist.storage.lock.ReentrantReadWriteLock;
+import org.exist.util.Configuration;
+import org.exist.util.FileUtils;
+import org.exist.util.FixedByteArray;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.*;
+
+/**
+ * Multi-threaded stress test for {@link BFile} with concurrent caches, where readers
+ * share the file lock and load pages through the striped load latches.
+ */
+public class BFileConcurrencyTest {
+
+    private static final int KEYS = 10000;
+    private static final int READERS = 6;
+    private static final int WRITERS = 2;
+    private static final int WRITES_PER_WRITER = 2000;
+
+    private BrokerPool pool;
+    private Path file;
+    private BFile bfile;
+
+    @Test
+    public void readersShareTheLock() throws Exception {
+        final Lock lock = bfile.getLock();
+        assertTrue(lock instanceof QueuedReadWriteLock);
+        lock.acquire(Lock.READ_LOCK);
+        try {
+            final AtomicBoolean shared = new AtomicBoolean(false);
+            final Thread other = new Thread(() -> {
+                if (lock.attempt(Lock.READ_LOCK)) {
+                    shared.set(true);
+                    lock.release(Lock.READ_LOCK);
+                }
+            });
+            other.start();
+            other.join();
+            assertTrue(shared.get());
+        } finally {
+            lock.release(Lock.READ_LOCK);
+        }
+    }
+
+    @Test
+    public void exclusiveWithoutConcurrentCaches() throws Exception {
+        pool.getConfiguration().setProperty(DefaultCacheManager.PROPERTY_DATA_CACHE_POLICY,
+                DefaultCacheManager.CACHE_POLICY_DEFAULT);
+        final Path other = file.resolveSibling("test-exclusive.dbx");
+        final BFile exclusive = new BFile(pool, (byte) 1, false, other, new DefaultCacheManager(pool), 1.25, 0.01);
+        try {
+            assertTrue(exclusive.getLock() instanceof ReentrantReadWriteLock);
+        } finally {
+            exclusive.closeAndRemove();
+        }
+    }
+
+    /**
+     * Readers look up and scan keys while writers overwrite existing values and
+     * add new ones. Every value starts with its key, so a reader would notice a
+     * value read from a page which was modified or loaded concurrently.
+     */
+    @Test
+    public void concurrentReadsAndWrites() throws Exception {
+        final Lock lock = bfile.getLock();
+        lock.acquire(Lock.WRITE_LOCK);
+        try {
+            for (int i = 0; i < KEYS; i++) {
+                bfile.put(key(i), value(i, 0), true);
+            }
+        } finally {
+            lock.release(Lock.WRITE_LOCK);
+        }
+        bfile.flush();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final AtomicInteger writersDone = new AtomicInteger(0);
+        final AtomicInteger added = new AtomicInteger(0);
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+
+        for (int r = 0; r < READERS; r++) {
+            final int seed = r;
+            threads.add(new Thread(() -> {
+                final Random random = new Random(seed);
+                try {
+                    start.await();
+                    while (writersDone.get() < WRITERS && error.get() == null) {
+                        final int k = random.nextInt(KEYS);
+                        lock.acquire(Lock.READ_LOCK);
+                        try {
+                            final Value v = bfile.get(key(k));
+                            assertNotNull("key " + k, v);
+                            assertValue(k, v);
+
+                            // a range of ten keys, the upper bound is exclusive
+                            final AtomicInteger found = new AtomicInteger(0);
+                            final int from = Math.min(k, KEYS - 10);
+                            bfile.find(new IndexQuery(IndexQuery.RANGE, key(from), key(from + 10)), (key, value) -> {
+                                assertValue(Integer.parseInt(new String(key.getData(), UTF_8).substring(1)), value);
+                                found.incrementAndGet();
+                                return true;
+                            });
+                            assertEquals(10, found.get());
+                        } finally {
+                            lock.release(Lock.READ_LOCK);
+                        }
+                    }
+                } catch (final Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }));
+        }
+        for (int w = 0; w < WRITERS; w++) {
+            final int seed = 100 + w;
+            threads.add(new Thread(() -> {
+                final Random random = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < WRITES_PER_WRITER && error.get() == null; i++) {
+                        lock.acquire(Lock.WRITE_LOCK);
+                        try {
+                            if (random.nextInt(4) == 0) {
+                                final int k = KEYS + added.getAndIncrement();
+                                bfile.put(key(k), value(k, 0), true);
+                            } else {
+                                final int k = random.nextInt(KEYS);
+                                bfile.put(key(k), value(k, random.nextInt(8)), true);
+                            }
+                        } finally {
+                            lock.release(Lock.WRITE_LOCK);
+                        }
+                    }
+                } catch (final Throwable e) {
+                    error.compareAndSet(null, e);
+                } finally {
+                    writersDone.incrementAndGet();
+                }
+            }));
+        }
+
+        for (final Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        for (int i = 0; i < KEYS + added.get(); i++) {
+            final Value v = bfile.get(key(i));
+            assertNotNull("key " + i, v);
+            assertValue(i, v);
+        }
+    }
+
+    private static Value key(final int i) {
+        return new Value(String.format("K%08d", i));
+    }
+
+    /**
+     * The key followed by a padding whose length depends on the version,
+     * so updated values move between pages.
+     */
+    private static FixedByteArray value(final int i, final int version) {
+        final StringBuilder buf = new StringBuilder(String.format("K%08d:", i));
+        for (int j = 0; j < 20 + version * 30; j++) {
+            buf.append((char) ('a' + (i + j) % 26));
+        }
+        final byte[] data = buf.toString().getBytes(UTF_8);
+        return new FixedByteArray(data, 0, data.length);
+    }
+
+    private static void assertValue(final int i, final Value value) {
+        final String s = new String(value.getData(), UTF_8);
+        assertTrue("key " + i + ": " + s, s.startsWith(String.format("K%08d:", i)));
+        for (int j = 10; j < s.length(); j++) {
+            assertEquals("key " + i + ": " + s, (char) ('a' + (i + j - 10) % 26), s.charAt(j));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        pool.getConfiguration().setProperty(DefaultCacheManager.PROPERTY_BTREE_CACHE_POLICY,
+                DefaultCacheManager.CACHE_POLICY_CONCURRENT);
+        pool.getConfiguration().setProperty(DefaultCacheManager.PROPERTY_DATA_CACHE_POLICY,
+                DefaultCacheManager.CACHE_POLICY_CONCURRENT);
+
+        file = Paths.get(System.getProperty("exist.home", ".")).resolve("test/junit/test-concurrent.dbx");
+        Files.createDirectories(file.getParent());
+        FileUtils.deleteQuietly(file);
+        bfile = new BFile(pool, (byte) 0, false, file, new DefaultCacheManager(pool), 1.25, 0.01);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (bfile != null) {
+            bfile.closeAndRemove();
+        }
+        BrokerPool.stopAll(false);
+        FileUtils.deleteQuietly(file);
+        pool = null;
+    }
+}
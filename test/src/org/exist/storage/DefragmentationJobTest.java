@@ -0,0 +1,157 @@
+package org.exist.storage;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DefragmentationJobTest {
+
+    private final static XmldbURI FRAGMENTED = XmldbURI.create("fragmented.xml");
+    private final static XmldbURI SEQUENTIAL = XmldbURI.create("sequential.xml");
+    private final static int ITEMS = 300;
+
+    private BrokerPool pool;
+
+    @Test
+    public void defragmentsFragmentedDocuments() throws Exception {
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQuery xquery = pool.getXQueryService();
+            // insert into the middle of full pages to cause page splits
+            for (int i = 1; i <= ITEMS; i += 3) {
+                xquery.execute(broker, "update insert <added>" + longText(i) + "</added> into " +
+                        "doc('" + TestConstants.TEST_COLLECTION_URI.append(FRAGMENTED) + "')//item[" + i + "]",
+                        null, AccessContext.TEST);
+            }
+            final int splits = getDocument(broker, FRAGMENTED).getMetadata().getSplitCount();
+            assertTrue("document should be fragmented", splits > 1);
+
+            final DefragmentationJob job = new DefragmentationJob();
+            final Properties properties = new Properties();
+            properties.setProperty(DefragmentationJob.THRESHOLD_PROP_NAME, "1");
+            properties.setProperty(DefragmentationJob.TIME_SLICE_PROP_NAME, "60000");
+            job.configure(pool.getConfiguration(), properties);
+            assertEquals(1, job.findFragmented(broker).size());
+
+            // runs with its own broker, like a scheduled job
+            final Map<String, Object> params = new HashMap<>();
+            params.put(DefragmentationJob.THRESHOLD_PROP_NAME, "1");
+            params.put(DefragmentationJob.TIME_SLICE_PROP_NAME, "60000");
+            job.execute(pool, params);
+
+            assertEquals(0, getDocument(broker, FRAGMENTED).getMetadata().getSplitCount());
+            assertEquals(0, job.findFragmented(broker).size());
+
+            // the contents are unchanged
+            assertEquals(ITEMS, count(broker, FRAGMENTED, "//item"));
+            assertEquals((ITEMS + 2) / 3, count(broker, FRAGMENTED, "//item/added"));
+            assertEquals(ITEMS, count(broker, SEQUENTIAL, "//item"));
+        }
+    }
+
+    @Test
+    public void skipsLockedDocuments() throws Exception {
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final DocumentImpl doc = getDocument(broker, FRAGMENTED);
+            doc.getMetadata().setSplitCount(1000);
+
+            final DefragmentationJob job = new DefragmentationJob();
+            final Properties properties = new Properties();
+            properties.setProperty(DefragmentationJob.THRESHOLD_PROP_NAME, "10");
+            job.configure(pool.getConfiguration(), properties);
+
+            final Thread reader = new Thread(() -> {
+                try {
+                    doc.getUpdateLock().acquire(Lock.READ_LOCK);
+                } catch (final Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            reader.start();
+            reader.join();
+
+            assertEquals(0, job.defragment(broker));
+            assertEquals(1000, doc.getMetadata().getSplitCount());
+        }
+    }
+
+    private DocumentImpl getDocument(final DBBroker broker, final XmldbURI docName) throws Exception {
+        final DocumentImpl doc = broker.getXMLResource(TestConstants.TEST_COLLECTION_URI.append(docName), Lock.NO_LOCK);
+        assertNotNull(doc);
+        return doc;
+    }
+
+    private int count(final DBBroker broker, final XmldbURI docName, final String path) throws Exception {
+        final Sequence result = pool.getXQueryService().execute(broker,
+                "count(doc('" + TestConstants.TEST_COLLECTION_URI.append(docName) + "')" + path + ")",
+                null, AccessContext.TEST);
+        return Integer.parseInt(result.getStringValue());
+    }
+
+    private static String longText(final int i) {
+        final StringBuilder text = new StringBuilder();
+        for (int j = 0; j < 20; j++) {
+            text.append("added text ").append(i).append(' ');
+        }
+        return text.toString();
+    }
+
+    private static String generateDocument() {
+        final StringBuilder xml = new StringBuilder("<root>");
+        for (int i = 0; i < ITEMS; i++) {
+            xml.append("<item n=\"").append(i).append("\">item ").append(i).append("</item>");
+        }
+        return xml.append("</root>").toString();
+    }
+
+    @Before
+    public void startDB() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.saveCollection(transaction, root);
+            final String xml = generateDocument();
+            for (final XmldbURI docName : new XmldbURI[] { FRAGMENTED, SEQUENTIAL }) {
+                final IndexInfo info = root.validateXMLResource(transaction, broker, docName, xml);
+                root.store(transaction, broker, info, xml, false);
+            }
+            transact.commit(transaction);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            broker.removeCollection(transaction, root);
+            transact.commit(transaction);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
@@ -0,0 +1,114 @@
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.collections.triggers.TriggerException;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.PermissionDeniedException;
+import org.exist.storage.journal.Lsn;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.sync.Sync;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Test;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.Optional;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores a document, takes a fuzzy checkpoint which leaves its pages in the cache,
+ * stores a second document and crashes. Recovery has to redo both documents,
+ * starting at the redo LSN of the checkpoint.
+ */
+public class FuzzyCheckpointRecoveryTest {
+
+    private final static XmldbURI FIRST = XmldbURI.create("first.xml");
+    private final static XmldbURI SECOND = XmldbURI.create("second.xml");
+
+    @Test
+    public void storeAndRead() throws Exception {
+        store();
+        BrokerPool.stopAll(false);
+        read();
+    }
+
+    private void store() throws DatabaseConfigurationException, EXistException, PermissionDeniedException, IOException,
+            TriggerException, LockException, SAXException {
+        BrokerPool.FORCE_CORRUPTION = false;
+        final BrokerPool pool = startDB();
+        final TransactionManager transact = pool.getTransactionManager();
+        assertTrue(transact.isFuzzyCheckpoint());
+
+        try(final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, transact, FIRST, "<first>checkpointed</first>");
+
+            pool.sync(broker, Sync.MAJOR_SYNC);
+            // the pages of the first document were not written by the checkpoint
+            assertNotEquals(Lsn.LSN_INVALID, pool.getCacheManager().getOldestDirtyLsn());
+
+            BrokerPool.FORCE_CORRUPTION = true;
+            store(broker, transact, SECOND, "<second>not checkpointed</second>");
+            transact.getJournal().flushToLog(true);
+        }
+    }
+
+    private void store(final DBBroker broker, final TransactionManager transact, final XmldbURI docName, final String xml)
+            throws EXistException, PermissionDeniedException, IOException, TriggerException, LockException, SAXException {
+        try(final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            assertNotNull(root);
+            broker.saveCollection(transaction, root);
+            final IndexInfo info = root.validateXMLResource(transaction, broker, docName, xml);
+            assertNotNull(info);
+            root.store(transaction, broker, info, xml, false);
+            transact.commit(transaction);
+        }
+    }
+
+    private void read() throws DatabaseConfigurationException, EXistException, PermissionDeniedException, SAXException {
+        BrokerPool.FORCE_CORRUPTION = false;
+        final BrokerPool pool = startDB();
+
+        try(final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final Serializer serializer = broker.getSerializer();
+            for (final XmldbURI docName : new XmldbURI[] { FIRST, SECOND }) {
+                serializer.reset();
+                final DocumentImpl doc = broker.getXMLResource(TestConstants.TEST_COLLECTION_URI.append(docName), Lock.READ_LOCK);
+                assertNotNull("Document " + docName + " should have been recovered", doc);
+                try {
+                    assertNotNull(serializer.serialize(doc));
+                } finally {
+                    doc.getUpdateLock().release(Lock.READ_LOCK);
+                }
+            }
+        }
+    }
+
+    private BrokerPool startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        config.setProperty(TransactionManager.PROPERTY_RECOVERY_FUZZY_CHECKPOINT, Boolean.TRUE);
+        // keep the dirty pages in the cache until the crash
+        config.setProperty(DefaultCacheManager.PROPERTY_BACKGROUND_WRITER_INTERVAL, 0);
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        BrokerPool.stopAll(false);
+        BrokerPool.FORCE_CORRUPTION = false;
+    }
+}
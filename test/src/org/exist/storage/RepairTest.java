@@ -0,0 +1,152 @@
+package org.exist.storage;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.CollectionConfigurationManager;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DefaultDocumentSet;
+import org.exist.dom.persistent.MutableDocumentSet;
+import org.exist.dom.QName;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.ConfigurationHelper;
+import org.exist.util.ValueOccurrences;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.exist.xquery.value.StringValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Repairing the database rebuilds the structural and the value index from scratch.
+ */
+public class RepairTest {
+
+    private final static String COLLECTION_CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <create qname=\"item\" type=\"xs:string\"/>" +
+        "       <create path=\"//item/@n\" type=\"xs:integer\"/>" +
+        "   </index>" +
+        "</collection>";
+
+    private final static String[] QUERIES = {
+        "count(collection('/db/test')//item)",
+        "count(collection('/db/test')/doc/section/item)",
+        "string-join(collection('/db/test')//item[@n = 7]/@id, ',')",
+        "string-join(collection('/db/test')//item[. = 'v13']/@id, ',')",
+        "string-join(for $s in collection('/db/test')//section[item/@n > 45] return $s/@id, ',')"
+    };
+
+    private final static int DOCUMENTS = 20;
+    private final static int ITEMS = 50;
+
+    private BrokerPool pool;
+    private MutableDocumentSet docs;
+
+    @Test
+    public void repair() throws Exception {
+        final List<String> expected = query();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            assertEquals(DOCUMENTS, occurrences(broker, "v13"));
+            broker.repair();
+            assertEquals(DOCUMENTS, occurrences(broker, "v13"));
+        }
+        assertEquals(expected, query());
+    }
+
+    private List<String> query() throws Exception {
+        final List<String> results = new ArrayList<>();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQuery xquery = pool.getXQueryService();
+            for (final String query : QUERIES) {
+                final Sequence result = xquery.execute(broker, query, null, AccessContext.TEST);
+                assertEquals(1, result.getItemCount());
+                results.add(result.itemAt(0).getStringValue());
+            }
+        }
+        return results;
+    }
+
+    private int occurrences(final DBBroker broker, final String value) {
+        final StringValue term = new StringValue(value);
+        int found = 0;
+        for (final ValueOccurrences occurrence : broker.getValueIndex().scanIndexKeys(docs, null,
+                new QName[] { new QName("item", "", "") }, term)) {
+            if (occurrence.getValue().compareTo(term) == 0) {
+                found += occurrence.getOccurrences();
+            }
+        }
+        return found;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Path confFile = ConfigurationHelper.lookup("conf.xml");
+        final Configuration config = new Configuration(confFile.toAbsolutePath().toString());
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            assertNotNull(root);
+            broker.saveCollection(transaction, root);
+            final CollectionConfigurationManager mgr = pool.getConfigurationManager();
+            mgr.addConfiguration(transaction, broker, root, COLLECTION_CONFIG);
+
+            docs = new DefaultDocumentSet();
+            for (int d = 0; d < DOCUMENTS; d++) {
+                final StringBuilder xml = new StringBuilder("<doc>");
+                for (int s = 0; s < ITEMS / 10; s++) {
+                    xml.append("<section id='s").append(d).append('-').append(s).append("'>");
+                    for (int i = s * 10; i < s * 10 + 10; i++) {
+                        xml.append("<item id='i").append(d).append('-').append(i).append("' n='")
+                            .append((d + i) % ITEMS).append("'>v").append(i).append("</item>");
+                    }
+                    xml.append("</section>");
+                }
+                xml.append("</doc>");
+                final IndexInfo info = root.validateXMLResource(transaction, broker,
+                    XmldbURI.create("doc" + d + ".xml"), xml.toString());
+                assertNotNull(info);
+                root.store(transaction, broker, info, xml.toString(), false);
+                docs.add(info.getDocument());
+            }
+            transact.commit(transaction);
+        }
+    }
+
+    @After
+    public void tearDown() throws EXistException {
+        try {
+            final TransactionManager transact = pool.getTransactionManager();
+            try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+                 final Txn transaction = transact.beginTransaction()) {
+                final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+                if (root != null) {
+                    broker.removeCollection(transaction, root);
+                }
+                transact.commit(transaction);
+            }
+        } catch (final Exception e) {
+            throw new EXistException(e);
+        } finally {
+            BrokerPool.stopAll(false);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package org.exist.storage.btree;
 
 import org.exist.EXistException;
 import org.exist.storage.BrokerPool;
+import org.exist.storage.DefaultCacheManager;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.lock.ReentrantReadWriteLock;
 import org.exist.util.*;
 import org.exist.xquery.TerminatedException;
 import org.exist.xquery.value.AtomicValue;
@@ -14,13 +17,18 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Low-level tests on the B+tree.
@@ -469,6 +477,229 @@ public class BTreeTest {
         }
     }
 
+    @Test
+    public void bulkLoad() throws Exception {
+        final BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file);
+        btree.create((short) -1);
+
+        final int keys = 20000;
+        final BTree.BulkLoader loader = btree.bulkLoad(0.7);
+        for (int i = 0; i < keys; i += 2) {
+            loader.add(new Value(key(i)), i);
+        }
+        try {
+            loader.add(new Value(key(0)), 0);
+            fail("keys out of order must be rejected");
+        } catch (final BTreeException e) {
+            // expected
+        }
+        loader.finish();
+        btree.flush();
+
+        for (int i = 0; i < keys; i++) {
+            assertEquals(i % 2 == 0 ? i : BTree.KEY_NOT_FOUND, btree.findValue(new Value(key(i))));
+        }
+        btree.query(new IndexQuery(IndexQuery.GEQ, new Value(key(0))), new StringIndexCallback());
+        assertEquals(keys / 2, count);
+
+        // the tree must remain updatable: fill the gaps
+        for (int i = 1; i < keys; i += 2) {
+            btree.addValue(new Value(key(i)), i);
+        }
+        for (int i = 0; i < keys; i++) {
+            assertEquals(i, btree.findValue(new Value(key(i))));
+        }
+
+        // a bulk load needs an empty tree
+        try {
+            btree.bulkLoad(BTree.DEFAULT_FILL_FACTOR);
+            fail("bulk load into a non-empty tree must be rejected");
+        } catch (final BTreeException e) {
+            // expected
+        }
+
+        // rebuilding the inner pages from the leaves must preserve all keys
+        btree.rebuild();
+        for (int i = 0; i < keys; i++) {
+            assertEquals(i, btree.findValue(new Value(key(i))));
+        }
+        btree.query(new IndexQuery(IndexQuery.GEQ, new Value(key(0))), new StringIndexCallback());
+        assertEquals(keys, count);
+        btree.closeAndRemove();
+    }
+
+    /**
+     * Readers run without the file lock while a writer inserts keys in
+     * random order, causing lots of splits. Every key the writer has inserted
+     * must be found by the readers.
+     */
+    @Test
+    public void optimisticReadsDuringInserts() throws Exception {
+        pool.getConfiguration().setProperty(DefaultCacheManager.PROPERTY_BTREE_CACHE_POLICY,
+                DefaultCacheManager.CACHE_POLICY_CONCURRENT);
+        final DefaultCacheManager cacheManager = new DefaultCacheManager(pool);
+        final Lock lock = new ReentrantReadWriteLock("test.dbx");
+        final BTree btree = new BTree(pool, (byte) 0, false, cacheManager, file) {
+            @Override
+            public Lock getLock() {
+                return lock;
+            }
+        };
+        btree.create((short) -1);
+
+        final int keys = 20000;
+        final int[] order = new int[keys];
+        for (int i = 0; i < keys; i++) {
+            order[i] = i;
+        }
+        final Random random = new Random(17);
+        for (int i = keys - 1; i > 0; i--) {
+            final int j = random.nextInt(i + 1);
+            final int t = order[i];
+            order[i] = order[j];
+            order[j] = t;
+        }
+
+        final AtomicInteger inserted = new AtomicInteger(0);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final Thread[] readers = new Thread[4];
+        for (int r = 0; r < readers.length; r++) {
+            final int seed = r;
+            readers[r] = new Thread(() -> {
+                final Random rnd = new Random(seed);
+                try {
+                    while (inserted.get() < keys && error.get() == null) {
+                        final int done = inserted.get();
+                        if (done == 0) {
+                            continue;
+                        }
+                        final int key = order[rnd.nextInt(done)];
+                        final long pointer = btree.findValue(new Value(key(key)));
+                        assertEquals("key " + key, key, pointer);
+
+                        // keys reported by a range scan must be in ascending order
+                        final AtomicReference<Value> last = new AtomicReference<>();
+                        btree.query(new IndexQuery(IndexQuery.GEQ, new Value(key(key))), (value, p) -> {
+                            if (last.get() != null) {
+                                assertTrue(last.get().compareTo(value) < 0);
+                            }
+                            last.set(value);
+                            return true;
+                        });
+                        assertNotNull(last.get());
+                    }
+                } catch (final Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            });
+            readers[r].start();
+        }
+
+        for (int i = 0; i < keys; i++) {
+            lock.acquire(Lock.WRITE_LOCK);
+            try {
+                btree.addValue(new Value(key(order[i])), order[i]);
+            } finally {
+                lock.release(Lock.WRITE_LOCK);
+            }
+            inserted.incrementAndGet();
+        }
+        for (final Thread reader : readers) {
+            reader.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        for (int i = 0; i < keys; i++) {
+            assertEquals(i, btree.findValue(new Value(key(i))));
+        }
+        btree.closeAndRemove();
+    }
+
+    /**
+     * Keys sharing a long prefix, as in the structural index, and differing in
+     * long suffixes: prefix compression and suffix truncation of the separators
+     * must reduce the number of pages, and the compressed pages must be readable
+     * after the file is reopened.
+     */
+    @Test
+    public void prefixCompression() throws Exception {
+        final String prefix = "/db/apps/collection/with/a/rather/long/path/";
+        final String suffix = "/followed/by/a/long/suffix/which/is/unique/per/key";
+        final int keys = 20000;
+        BTree btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file);
+        btree.create((short) -1);
+        final Random random = new Random(42);
+        final Set<Integer> added = new HashSet<>();
+        for (int i = 0; i < keys; i++) {
+            final int k = random.nextInt(keys * 10);
+            btree.addValue(new Value(prefix + key(k) + suffix), k);
+            added.add(k);
+        }
+        final TreeMetrics metrics = btree.treeStatistics();
+        final StringWriter writer = new StringWriter();
+        metrics.print(new PrintWriter(writer));
+        assertTrue(writer.toString(), metrics.getUncompressedLeafPages() > metrics.getLeafPages() * 3 / 2);
+        assertTrue(writer.toString(), metrics.getUncompressedInnerPages() > metrics.getInnerPages());
+        assertTrue(writer.toString(), metrics.getHeight() <= 3);
+        btree.close();
+
+        btree = new BTree(pool, (byte) 0, false, pool.getCacheManager(), file);
+        assertTrue(btree.open((short) -1));
+        for (final int k : added) {
+            assertEquals(k, btree.findValue(new Value(prefix + key(k) + suffix)));
+            // a truncated separator is not a key
+            assertEquals(BTree.KEY_NOT_FOUND, btree.findValue(new Value(prefix + key(k))));
+        }
+        btree.query(new IndexQuery(IndexQuery.TRUNC_RIGHT, new Value(prefix)), new StringIndexCallback());
+        assertEquals(added.size(), count);
+        btree.closeAndRemove();
+    }
+
+    @Test
+    public void upgradeFileFormat() throws Exception {
+        fileVersion = 1;
+        BTree btree = new VersionedBTree();
+        btree.create((short) -1);
+        btree.addValue(new Value(key(1)), 1);
+        btree.close();
+
+        fileVersion = 2;
+        btree = new VersionedBTree();
+        assertTrue(btree.open((short) 2, (short) 1));
+        assertEquals(2, btree.getFileHeader().getVersion());
+        assertEquals(1, btree.findValue(new Value(key(1))));
+        btree.close();
+
+        // the upgraded file is opened without migration
+        btree = new VersionedBTree();
+        assertTrue(btree.open((short) 2));
+        btree.closeAndRemove();
+    }
+
+    private short fileVersion = -1;
+
+    /**
+     * The version is read from the test, as it is needed while the
+     * file header is created by the constructor.
+     */
+    private class VersionedBTree extends BTree {
+
+        VersionedBTree() throws DBException {
+            super(pool, (byte) 0, false, pool.getCacheManager(), file);
+        }
+
+        @Override
+        public short getFileVersion() {
+            return fileVersion;
+        }
+    }
+
+    private static String key(final int i) {
+        return String.format("K%08d", i);
+    }
+
     private final class PrefixIndexCallback implements BTreeCallback {
 
         public PrefixIndexCallback() {
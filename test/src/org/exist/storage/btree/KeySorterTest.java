@@ -0,0 +1,76 @@
+package org.exist.storage.btree;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class KeySorterTest {
+
+    @Test
+    public void sortInMemory() throws Exception {
+        checkSort(new KeySorter(), 1000);
+    }
+
+    @Test
+    public void sortRuns() throws Exception {
+        // a run is written every few entries
+        checkSort(new KeySorter(4096), 5000);
+    }
+
+    @Test
+    public void unsignedKeys() throws Exception {
+        final KeySorter sorter = new KeySorter(100);
+        sorter.add(new byte[] { (byte) 0x80 }, new byte[] { 1 });
+        sorter.add(new byte[] { 0x7F, 0 }, new byte[] { 2 });
+        sorter.add(new byte[] { 0x7F }, new byte[] { 3 });
+        sorter.add(new byte[] { (byte) 0xFF }, new byte[] { 4 });
+        final List<Byte> values = new ArrayList<>();
+        final List<Value> keys = new ArrayList<>();
+        sorter.sort((key, v) -> {
+            keys.add(key);
+            values.add(v.get(0)[0]);
+        });
+        assertEquals(4, keys.size());
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+        }
+        assertEquals("[3, 2, 1, 4]", values.toString());
+    }
+
+    /**
+     * Add entries with random keys and check that the keys are returned in the
+     * order of the btree, with the values of equal keys in the order they were added.
+     */
+    private void checkSort(final KeySorter sorter, final int count) throws Exception {
+        final Random random = new Random(42);
+        final TreeMap<Value, List<byte[]>> expected = new TreeMap<>();
+        for (int i = 0; i < count; i++) {
+            final byte[] key = ("k" + random.nextInt(count / 3)).getBytes(UTF_8);
+            final byte[] value = String.valueOf(i).getBytes(UTF_8);
+            sorter.add(key, value);
+            expected.computeIfAbsent(new Value(key), k -> new ArrayList<>()).add(value);
+        }
+        assertEquals(count, sorter.getCount());
+
+        final List<Value> keys = new ArrayList<>(expected.keySet());
+        final int[] pos = { 0 };
+        sorter.sort((key, values) -> {
+            final Value expectedKey = keys.get(pos[0]++);
+            assertEquals(0, expectedKey.compareTo(key));
+            final List<byte[]> expectedValues = expected.get(expectedKey);
+            assertEquals(expectedValues.size(), values.size());
+            for (int i = 0; i < values.size(); i++) {
+                assertArrayEquals(expectedValues.get(i), values.get(i));
+            }
+        });
+        assertEquals(keys.size(), pos[0]);
+    }
+}
@@ -0,0 +1,81 @@
+package org.exist.storage.btree;
+
+import org.exist.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for the memory-mapped page I/O used by {@link Paged}.
+ */
+public class MappedPageFileTest {
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int SEGMENT_SIZE = 4 * PAGE_SIZE;
+
+    private Path file;
+    private RandomAccessFile raf;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("mapped", ".dbx");
+        raf = new RandomAccessFile(file.toFile(), "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        raf.close();
+        FileUtils.deleteQuietly(file);
+    }
+
+    @Test
+    public void growAndReadBack() throws IOException {
+        final MappedPageFile mapped = new MappedPageFile(raf.getChannel(), false, PAGE_SIZE, SEGMENT_SIZE);
+        final int pages = 3 * SEGMENT_SIZE / PAGE_SIZE + 1;
+        for (int i = 0; i < pages; i++) {
+            mapped.write((long) i * PAGE_SIZE, page(i));
+        }
+        // file must not be padded up to the next segment boundary
+        assertEquals((long) pages * PAGE_SIZE, raf.length());
+
+        // overwrite pages which are now served from a mapping
+        mapped.write(PAGE_SIZE, page(42));
+        for (int i = 0; i < pages; i++) {
+            final byte[] data = new byte[PAGE_SIZE];
+            assertEquals(PAGE_SIZE, mapped.read((long) i * PAGE_SIZE, data));
+            assertArrayEquals(page(i == 1 ? 42 : i), data);
+        }
+        mapped.close();
+
+        // the changes must be visible to plain file I/O
+        final byte[] data = new byte[PAGE_SIZE];
+        raf.seek(PAGE_SIZE);
+        raf.readFully(data);
+        assertArrayEquals(page(42), data);
+    }
+
+    @Test
+    public void readBeyondEnd() throws IOException {
+        final MappedPageFile mapped = new MappedPageFile(raf.getChannel(), false, PAGE_SIZE, SEGMENT_SIZE);
+        mapped.write(0, page(1));
+        final byte[] data = new byte[PAGE_SIZE];
+        assertEquals(-1, mapped.read(PAGE_SIZE, data));
+        assertArrayEquals(new byte[PAGE_SIZE], data);
+        mapped.close();
+    }
+
+    private static byte[] page(final int n) {
+        final byte[] data = new byte[PAGE_SIZE];
+        Arrays.fill(data, (byte) n);
+        return data;
+    }
+}
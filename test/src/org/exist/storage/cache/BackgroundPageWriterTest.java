@@ -0,0 +1,203 @@
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+import org.exist.storage.journal.Lsn;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.lock.ReentrantReadWriteLock;
+import org.exist.util.LockException;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BackgroundPageWriterTest {
+
+    private static final int CACHE_SIZE = 64;
+
+    @Test
+    public void writesAgedPages() {
+        final Cache cache = new GClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final BackgroundPageWriter writer = new BackgroundPageWriter(cache, new ReentrantReadWriteLock("test"),
+                null, 1000, 0.5);
+        final List<TestItem> items = addDirty(cache, 0, 10);
+
+        // below the dirty ratio: nothing is written in the first round
+        assertEquals(0, writer.writeOnce());
+        for (final TestItem item : items) {
+            assertTrue(item.isDirty());
+        }
+
+        // a page dirtied after the first round is not old enough yet
+        final TestItem young = addDirty(cache, 10, 1).get(0);
+        assertEquals(10, writer.writeOnce());
+        for (final TestItem item : items) {
+            assertFalse(item.isDirty());
+        }
+        assertTrue(young.isDirty());
+
+        assertEquals(1, writer.writeOnce());
+        assertFalse(young.isDirty());
+        assertEquals(11, writer.getPagesWritten());
+    }
+
+    @Test
+    public void writesOldestChangesFirst() {
+        final Cache cache = new GClockCache(CACHE_SIZE * 2, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final BackgroundPageWriter writer = new BackgroundPageWriter(cache, new ReentrantReadWriteLock("test"),
+                null, 1000, 0.4);
+        // half fill the cache with dirty pages, the LSNs in reverse order of the keys
+        final List<TestItem> items = new ArrayList<>();
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            final TestItem item = new TestItem(i, CACHE_SIZE - i);
+            cache.add(item);
+            items.add(item);
+        }
+        final TestItem unjournalled = new TestItem(CACHE_SIZE, Lsn.LSN_INVALID);
+        cache.add(unjournalled);
+
+        // bring the number of dirty pages down to 40% of the cache, starting with the smallest LSN
+        final int written = writer.writeOnce();
+        assertEquals(CACHE_SIZE + 1 - (int) (CACHE_SIZE * 2 * 0.4), written);
+        for (final TestItem item : items) {
+            assertEquals("page " + item.getKey(), item.lsn > written, item.isDirty());
+        }
+        assertTrue(unjournalled.isDirty());
+    }
+
+    @Test
+    public void skipsLockedFile() throws LockException {
+        final Cache cache = new GClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final Lock lock = new ReentrantReadWriteLock("test");
+        final BackgroundPageWriter writer = new BackgroundPageWriter(cache, lock, null, 1000, 0.0);
+        final List<TestItem> items = addDirty(cache, 0, 10);
+
+        final Thread owner = new Thread(() -> {
+            try {
+                lock.acquire(Lock.WRITE_LOCK);
+            } catch (final LockException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        owner.start();
+        try {
+            owner.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // the lock is still owned by the (terminated) thread
+        assertEquals(-1, writer.writeOnce());
+        for (final TestItem item : items) {
+            assertTrue(item.isDirty());
+        }
+    }
+
+    @Test
+    public void startAndStop() throws InterruptedException {
+        final Cache cache = new GClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.DATA_CACHE);
+        final BackgroundPageWriter writer = new BackgroundPageWriter(cache, new ReentrantReadWriteLock("test"),
+                null, 10, 0.0);
+        final List<TestItem> items = addDirty(cache, 0, 10);
+        writer.start();
+        try {
+            final long timeout = System.currentTimeMillis() + 10000;
+            while (cache.hasDirtyItems() && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+        } finally {
+            writer.stop();
+        }
+        for (final TestItem item : items) {
+            assertFalse(item.isDirty());
+        }
+    }
+
+    private static List<TestItem> addDirty(final Cache cache, final int first, final int count) {
+        final List<TestItem> items = new ArrayList<>();
+        for (int i = first; i < first + count; i++) {
+            final TestItem item = new TestItem(i, i + 1);
+            cache.add(item);
+            items.add(item);
+        }
+        return items;
+    }
+
+    private static class TestItem implements Cacheable {
+
+        private final long key;
+        private final long lsn;
+        private boolean dirty = true;
+        private int refCount = 0;
+        private int timestamp = 0;
+
+        TestItem(final long key, final long lsn) {
+            this.key = key;
+            this.lsn = lsn;
+        }
+
+        @Override
+        public long getKey() {
+            return key;
+        }
+
+        @Override
+        public int getReferenceCount() {
+            return refCount;
+        }
+
+        @Override
+        public int incReferenceCount() {
+            if (refCount < MAX_REF) {
+                refCount++;
+            }
+            return refCount;
+        }
+
+        @Override
+        public int decReferenceCount() {
+            return refCount > 0 ? --refCount : 0;
+        }
+
+        @Override
+        public void setReferenceCount(final int count) {
+            refCount = count;
+        }
+
+        @Override
+        public void setTimestamp(final int timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public int getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public boolean sync(final boolean syncJournal) {
+            if (dirty) {
+                dirty = false;
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public boolean allowUnload() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirty() {
+            return dirty;
+        }
+
+        @Override
+        public long getFirstDirtyLsn() {
+            return dirty ? lsn : Lsn.LSN_INVALID;
+        }
+    }
+}
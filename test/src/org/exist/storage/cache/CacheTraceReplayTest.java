@@ -0,0 +1,153 @@
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays page access traces against {@link ARCCache} and {@link GClockCache}
+ * and compares the resulting hit ratios.
+ *
+ * The traces mimic the access patterns seen on the B+-tree files: a small set of
+ * hot (inner) pages referenced by every lookup, mixed with the leaf pages. The
+ * "scan" traces additionally contain large sequential scans over pages which are
+ * read only once, as caused by a full collection scan or a reindex.
+ */
+public class CacheTraceReplayTest {
+
+    private static final int CACHE_SIZE = 256;
+
+    @Test
+    public void scanResistance() {
+        // a working set which fits into the cache, interrupted by scans four times the cache size
+        final long[] trace = hotSetWithScans(200, 0, 20000, 2000, 4 * CACHE_SIZE);
+        final double arc = replay(new ARCCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE), trace);
+        final double gclock = replay(new GClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE), trace);
+        final double lru = replay(new LRUCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE), trace);
+        assertTrue("ARC: " + arc + "; GClock: " + gclock, arc > gclock);
+        assertTrue("ARC: " + arc + "; LRU: " + lru, arc > lru);
+    }
+
+    @Test
+    public void skewedWithoutScans() {
+        final long[] trace = hotSetWithScans(64, 4096, 50000, 0, 0);
+        final double arc = replay(new ARCCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE), trace);
+        final double gclock = replay(new GClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE), trace);
+        assertTrue("ARC: " + arc + "; GClock: " + gclock, arc >= gclock * 0.95);
+    }
+
+    /**
+     * Replay a trace the way BTree accesses its cache: get followed by add.
+     *
+     * @return the hit ratio
+     */
+    private static double replay(final Cache cache, final long[] trace) {
+        for (final long key : trace) {
+            Cacheable item = cache.get(key);
+            if (item == null) {
+                item = new TestItem(key);
+            }
+            cache.add(item);
+        }
+        return cache.getHits() / (double) (cache.getHits() + cache.getFails());
+    }
+
+    /**
+     * Generate a trace with 80% of the lookups going to a set of hot pages,
+     * the remainder going to randomly chosen cold pages (or to the hot pages as well
+     * if there are no cold pages). Every
+     * <code>scanInterval</code> lookups, a scan reads <code>scanLength</code>
+     * new pages.
+     */
+    private static long[] hotSetWithScans(final int hotPages, final int coldPages, final int lookups,
+            final int scanInterval, final int scanLength) {
+        final Random random = new Random(42);
+        final int scans = scanInterval == 0 ? 0 : lookups / scanInterval;
+        final long[] trace = new long[lookups + scans * scanLength];
+        long nextScanPage = hotPages + coldPages;
+        int pos = 0;
+        for (int i = 0; i < lookups; i++) {
+            if (scanInterval > 0 && i > 0 && i % scanInterval == 0) {
+                for (int j = 0; j < scanLength; j++) {
+                    trace[pos++] = nextScanPage++;
+                }
+            }
+            if (coldPages == 0 || random.nextInt(10) < 8) {
+                trace[pos++] = random.nextInt(hotPages);
+            } else {
+                trace[pos++] = hotPages + random.nextInt(coldPages);
+            }
+        }
+        while (pos < trace.length) {
+            trace[pos++] = nextScanPage++;
+        }
+        return trace;
+    }
+
+    private static class TestItem implements Cacheable {
+
+        private final long key;
+        private int refCount = 0;
+        private int timestamp = 0;
+
+        TestItem(final long key) {
+            this.key = key;
+        }
+
+        @Override
+        public long getKey() {
+            return key;
+        }
+
+        @Override
+        public int getReferenceCount() {
+            return refCount;
+        }
+
+        @Override
+        public int incReferenceCount() {
+            if (refCount < MAX_REF) {
+                refCount++;
+            }
+            return refCount;
+        }
+
+        @Override
+        public int decReferenceCount() {
+            return refCount > 0 ? --refCount : 0;
+        }
+
+        @Override
+        public void setReferenceCount(final int count) {
+            refCount = count;
+        }
+
+        @Override
+        public void setTimestamp(final int timestamp) {
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public int getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public boolean sync(final boolean syncJournal) {
+            return false;
+        }
+
+        @Override
+        public boolean allowUnload() {
+            return true;
+        }
+
+        @Override
+        public boolean isDirty() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package org.exist.storage.cache;
+
+import org.exist.storage.CacheManager;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentGClockCacheTest {
+
+    private static final int CACHE_SIZE = 128;
+
+    @Test
+    public void addGetRemove() {
+        final ConcurrentGClockCache cache = new ConcurrentGClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE);
+        final TestItem item = new TestItem(1);
+        assertNull(cache.get(1));
+        cache.add(item);
+        assertSame(item, cache.get(1));
+        // adding an item twice must not take another slot
+        cache.add(item);
+        assertEquals(1, cache.getUsedBuffers());
+        cache.remove(item);
+        assertNull(cache.get(1));
+        assertEquals(0, cache.getUsedBuffers());
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getFails());
+    }
+
+    @Test
+    public void replacement() {
+        final ConcurrentGClockCache cache = new ConcurrentGClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE);
+        for (int i = 0; i < CACHE_SIZE * 4; i++) {
+            cache.add(new TestItem(i));
+        }
+        assertEquals(CACHE_SIZE, cache.getUsedBuffers());
+        int found = 0;
+        for (int i = 0; i < CACHE_SIZE * 4; i++) {
+            final Cacheable item = cache.get(i);
+            if (item != null) {
+                assertEquals(i, item.getKey());
+                found++;
+            }
+        }
+        assertEquals(CACHE_SIZE, found);
+    }
+
+    @Test
+    public void pinnedItemsAreNotEvicted() {
+        final ConcurrentGClockCache cache = new ConcurrentGClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE);
+        final TestItem pinned = new TestItem(0);
+        pinned.allowUnload = false;
+        cache.add(pinned);
+        for (int i = 1; i < CACHE_SIZE * 4; i++) {
+            cache.add(new TestItem(i));
+        }
+        assertSame(pinned, cache.get(0));
+    }
+
+    @Test
+    public void resize() {
+        final ConcurrentGClockCache cache = new ConcurrentGClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE);
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            cache.add(new TestItem(i));
+        }
+        cache.resize(CACHE_SIZE * 2);
+        assertEquals(CACHE_SIZE * 2, cache.getBuffers());
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            assertNotNull(cache.get(i));
+        }
+        cache.resize(CACHE_SIZE / 2);
+        assertEquals(0, cache.getUsedBuffers());
+        for (int i = 0; i < CACHE_SIZE; i++) {
+            cache.add(new TestItem(i));
+        }
+        assertEquals(CACHE_SIZE / 2, cache.getUsedBuffers());
+    }
+
+    /**
+     * Hammer the cache from several threads, mixing hits with misses which
+     * evict other pages. Every lookup must return the item for the requested key.
+     */
+    @Test
+    public void concurrentAccess() throws Exception {
+        final ConcurrentGClockCache cache = new ConcurrentGClockCache(CACHE_SIZE, 0.0, 1.0, CacheManager.BTREE_CACHE);
+        final int threads = 8;
+        final int lookups = 100000;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<Integer>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                final int seed = t;
+                results.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        final Random random = new Random(seed);
+                        int errors = 0;
+                        for (int i = 0; i < lookups; i++) {
+                            // 90% of the lookups go to a hot set which fits into the cache
+                            final long key = random.nextInt(10) < 9 ? random.nextInt(CACHE_SIZE / 2)
+                                    : CACHE_SIZE + random.nextInt(CACHE_SIZE * 4);
+                            Cacheable item = cache.get(key);
+                            if (item == null) {
+                                item = new TestItem(key);
+                            } else if (item.getKey() != key) {
+                                errors++;
+                            }
+                            cache.add(item);
+                        }
+                        return errors;
+                    }
+                }));
+            }
+            for (final Future<Integer> result : results) {
+                assertEquals(0, result.get().intValue());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(cache.getUsedBuffers() <= CACHE_SIZE);
+        assertEquals(threads * lookups, cache.getHits() + cache.getFails());
+        assertTrue("hits: " + cache.getHits(), cache.getHits() > cache.getFails());
+    }
+
+    private static class TestItem implements Cacheable {
+
+        private final long key;
+        private boolean allowUnload = true;
+
+        TestItem(final long key) {
+            this.key = key;
+        }
+
+        @Override
+        public long getKey() {
+            return key;
+        }
+
+        @Override
+        public int getReferenceCount() {
+            return 0;
+        }
+
+        @Override
+        public int incReferenceCount() {
+            return 0;
+        }
+
+        @Override
+        public int decReferenceCount() {
+            return 0;
+        }
+
+        @Override
+        public void setReferenceCount(final int count) {
+        }
+
+        @Override
+        public void setTimestamp(final int timestamp) {
+        }
+
+        @Override
+        public int getTimestamp() {
+            return 0;
+        }
+
+        @Override
+        public boolean sync(final boolean syncJournal) {
+            return false;
+        }
+
+        @Override
+        public boolean allowUnload() {
+            return allowUnload;
+        }
+
+        @Override
+        public boolean isDirty() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.exist.storage.cache;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OffHeapPageCacheTest {
+
+    private static final int PAGE_SIZE = 4096;
+
+    @Test
+    public void readWrite() {
+        final OffHeapPageCache cache = new OffHeapPageCache(OffHeapPageCache.SLAB_SIZE, PAGE_SIZE);
+        final int file1 = cache.registerFile();
+        final int file2 = cache.registerFile();
+        final byte[] buf = new byte[PAGE_SIZE];
+
+        assertFalse(cache.read(file1, 1, buf));
+        cache.write(file1, 1, page(1));
+        cache.write(file2, 1, page(2));
+        assertTrue(cache.read(file1, 1, buf));
+        assertArrayEquals(page(1), buf);
+        assertTrue(cache.read(file2, 1, buf));
+        assertArrayEquals(page(2), buf);
+
+        // overwrite existing page
+        cache.write(file1, 1, page(3));
+        assertTrue(cache.read(file1, 1, buf));
+        assertArrayEquals(page(3), buf);
+        assertEquals(2, cache.getUsedBuffers());
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getFails());
+
+        cache.removeFile(file1);
+        assertFalse(cache.read(file1, 1, buf));
+        assertTrue(cache.read(file2, 1, buf));
+    }
+
+    @Test
+    public void replacement() {
+        final OffHeapPageCache cache = new OffHeapPageCache(OffHeapPageCache.SLAB_SIZE, PAGE_SIZE);
+        final int file = cache.registerFile();
+        final int slots = cache.getBuffers();
+        for (int i = 0; i < slots * 2; i++) {
+            cache.write(file, i, page(i));
+        }
+        assertEquals(slots, cache.getUsedBuffers());
+        assertEquals(OffHeapPageCache.SLAB_SIZE, cache.getAllocatedMem());
+
+        final byte[] buf = new byte[PAGE_SIZE];
+        int found = 0;
+        for (int i = 0; i < slots * 2; i++) {
+            if (cache.read(file, i, buf)) {
+                assertArrayEquals(page(i), buf);
+                found++;
+            }
+        }
+        assertEquals(slots, found);
+    }
+
+    private static byte[] page(final int n) {
+        final byte[] data = new byte[PAGE_SIZE];
+        Arrays.fill(data, (byte) n);
+        return data;
+    }
+}
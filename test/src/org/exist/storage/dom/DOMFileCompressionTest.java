@@ -0,0 +1,128 @@
+package org.exist.storage.dom;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.serializers.Serializer;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Stores documents with long text nodes, which end up in overflow pages,
+ * and reads them back with compression switched on and off.
+ */
+public class DOMFileCompressionTest {
+
+    private final static XmldbURI COMPRESSED = XmldbURI.create("compressed.xml");
+    private final static XmldbURI UNCOMPRESSED = XmldbURI.create("uncompressed.xml");
+
+    private final static String XML;
+    static {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 200 * 1024; i++) {
+            text.append("Line ").append(i).append(" of a long text node which does not fit into a single page. ");
+        }
+        XML = "<text>" + text + "</text>";
+    }
+
+    @Test
+    public void compressedValuesNeedFewerPages() throws Exception {
+        final BrokerPool pool = startDB(DOMFile.COMPRESSION_DEFLATE);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, COMPRESSED);
+            final DocumentImpl doc = read(broker, COMPRESSED);
+            // the text node needs about 50 pages without compression
+            final int uncompressedPages = XML.length() / pool.getPageSize();
+            assertTrue("Expected less than " + uncompressedPages / 2 + " pages, got " + doc.getMetadata().getPageCount(),
+                    doc.getMetadata().getPageCount() < uncompressedPages / 2);
+        }
+    }
+
+    @Test
+    public void switchCompression() throws Exception {
+        BrokerPool pool = startDB(DOMFile.COMPRESSION_DEFLATE);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            store(broker, COMPRESSED);
+        }
+        BrokerPool.stopAll(false);
+
+        pool = startDB(DOMFile.COMPRESSION_NONE);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            read(broker, COMPRESSED);
+            store(broker, UNCOMPRESSED);
+        }
+        BrokerPool.stopAll(false);
+
+        pool = startDB(DOMFile.COMPRESSION_DEFLATE);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            read(broker, COMPRESSED);
+            read(broker, UNCOMPRESSED);
+        }
+    }
+
+    private void store(final DBBroker broker, final XmldbURI docName) throws Exception {
+        final TransactionManager transact = broker.getBrokerPool().getTransactionManager();
+        try (final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            assertNotNull(root);
+            broker.saveCollection(transaction, root);
+            final IndexInfo info = root.validateXMLResource(transaction, broker, docName, XML);
+            assertNotNull(info);
+            root.store(transaction, broker, info, XML, false);
+            transact.commit(transaction);
+        }
+    }
+
+    private DocumentImpl read(final DBBroker broker, final XmldbURI docName) throws Exception {
+        final DocumentImpl doc = broker.getXMLResource(TestConstants.TEST_COLLECTION_URI.append(docName), Lock.READ_LOCK);
+        assertNotNull(doc);
+        try {
+            final Serializer serializer = broker.getSerializer();
+            serializer.reset();
+            serializer.setProperty("indent", "no");
+            assertEquals(XML, serializer.serialize(doc));
+            return doc;
+        } finally {
+            doc.getUpdateLock().release(Lock.READ_LOCK);
+        }
+    }
+
+    private BrokerPool startDB(final String compression) throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        config.setProperty(DOMFile.PROPERTY_COMPRESSION, compression);
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final BrokerPool pool = BrokerPool.getInstance();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final TransactionManager transact = pool.getTransactionManager();
+            try (final Txn transaction = transact.beginTransaction()) {
+                final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+                if (root != null) {
+                    broker.removeCollection(transaction, root);
+                }
+                transact.commit(transaction);
+            }
+        }
+        BrokerPool.stopAll(false);
+    }
+}
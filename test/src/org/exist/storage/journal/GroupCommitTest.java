@@ -0,0 +1,150 @@
+package org.exist.storage.journal;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class GroupCommitTest {
+
+    private static final int THREADS = 8;
+    private static final int COMMITS = 50;
+
+    @Test
+    public void commitsShareSync() throws InterruptedException {
+        final AtomicLong written = new AtomicLong(0);
+        final AtomicLong durable = new AtomicLong(Lsn.LSN_INVALID);
+        final GroupCommit groupCommit = new GroupCommit(() -> {
+            final long lsn = written.get();
+            try {
+                Thread.sleep(2);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            durable.set(lsn);
+            return lsn;
+        }, 0, 64 * 1024);
+
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int j = 0; j < COMMITS; j++) {
+                        final long lsn;
+                        synchronized (written) {
+                            lsn = Lsn.create(1, (int) written.get() + 1);
+                            written.set(lsn);
+                        }
+                        groupCommit.awaitDurable(lsn);
+                        if (durable.get() < lsn) {
+                            failure.compareAndSet(null, "commit " + lsn + " returned before it was durable");
+                        }
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (final IOException e) {
+                    failure.compareAndSet(null, e.getMessage());
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(THREADS * COMMITS, groupCommit.getCommitCount());
+        assertTrue(groupCommit.getSyncCount() < THREADS * COMMITS);
+        assertTrue(groupCommit.getCommitsPerSync() > 1.0);
+        assertTrue(groupCommit.getMaxCommitsPerSync() > 1);
+    }
+
+    @Test
+    public void windowGroupsSequentialCommits() throws InterruptedException, IOException {
+        final AtomicLong written = new AtomicLong(0);
+        final GroupCommit groupCommit = new GroupCommit(written::get, 200, Integer.MAX_VALUE);
+
+        written.set(Lsn.create(1, 10));
+        final Thread first = new Thread(() -> {
+            try {
+                groupCommit.awaitDurable(Lsn.create(1, 10));
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        first.start();
+        Thread.sleep(50);
+        // arrives while the leader is still waiting for its window to pass
+        written.set(Lsn.create(1, 20));
+        groupCommit.awaitDurable(Lsn.create(1, 20));
+        first.join();
+
+        assertEquals(2, groupCommit.getCommitCount());
+        assertEquals(1, groupCommit.getSyncCount());
+        assertEquals(2, groupCommit.getMaxCommitsPerSync());
+    }
+
+    @Test
+    public void sizeEndsWindow() throws IOException {
+        final AtomicLong written = new AtomicLong(Lsn.create(1, 2000));
+        final GroupCommit groupCommit = new GroupCommit(written::get, 60000, 1024);
+        groupCommit.awaitDurable(Lsn.create(1, 2000));
+
+        // more than 1024 bytes pending: the leader must not wait for the window
+        written.set(Lsn.create(1, 5000));
+        final long start = System.currentTimeMillis();
+        groupCommit.awaitDurable(Lsn.create(1, 5000));
+        assertTrue(System.currentTimeMillis() - start < 30000);
+        assertEquals(2, groupCommit.getSyncCount());
+    }
+
+    @Test
+    public void failedSyncIsNotDurable() throws IOException {
+        final AtomicLong written = new AtomicLong(Lsn.create(1, 10));
+        final AtomicReference<IOException> error = new AtomicReference<>();
+        final GroupCommit groupCommit = new GroupCommit(() -> {
+            if (error.get() != null) {
+                throw error.get();
+            }
+            return written.get();
+        }, 0, 64 * 1024);
+        groupCommit.awaitDurable(Lsn.create(1, 10));
+
+        written.set(Lsn.create(1, 20));
+        error.set(new IOException("disk full"));
+        try {
+            groupCommit.awaitDurable(Lsn.create(1, 20));
+            fail("Commit returned although the sync failed");
+        } catch (final IOException e) {
+            assertSame(error.get(), e);
+        }
+
+        // data written since the last sync may be lost: later commits fail too
+        error.set(null);
+        written.set(Lsn.create(1, 30));
+        try {
+            groupCommit.awaitDurable(Lsn.create(1, 30));
+            fail("Commit returned after a failed sync");
+        } catch (final IOException e) {
+            assertEquals("disk full", e.getMessage());
+        }
+        // commits which were durable before the failure are still reported as durable
+        groupCommit.awaitDurable(Lsn.create(1, 10));
+        assertEquals(2, groupCommit.getSyncCount());
+    }
+}
@@ -0,0 +1,202 @@
+package org.exist.storage.journal;
+
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.util.Configuration;
+import org.exist.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+
+    private static final byte TEST_ENTRY = 0x7E;
+
+    static {
+        LogEntryTypes.addEntryType(TEST_ENTRY, TestLoggable::new);
+    }
+
+    private BrokerPool pool;
+    private Path dir;
+    private Journal journal;
+
+    @Test
+    public void compressedEntries() throws Exception {
+        final Journal journal = open(256, false);
+        final List<byte[]> written = writeEntries(journal, 200);
+        journal.flushToLog(true);
+
+        final Path file = journal.getFile(1);
+        // the compressible entries take far less space than their data
+        final long dataSize = written.stream().mapToLong(data -> data.length).sum();
+        assertTrue(Files.size(file) < dataSize / 2);
+        assertEntries(file, written);
+    }
+
+    @Test
+    public void preallocatedJournal() throws Exception {
+        final Journal journal = open(0, true);
+        final Path file = journal.getFile(1);
+        assertEquals(1024 * 1024, Files.size(file));
+
+        final List<byte[]> written = writeEntries(journal, 100);
+        journal.flushToLog(true);
+        assertEquals(1024 * 1024, Files.size(file));
+        assertEntries(file, written);
+    }
+
+    @Test
+    public void spareFileIsReused() throws Exception {
+        final Journal journal = open(0, true);
+        final Path spare = dir.resolve(Journal.SPARE_FILE);
+        // fill more than a megabyte, so the checkpoint switches files
+        writeEntries(journal, 800);
+        journal.checkpoint(1, true);
+        for (int i = 0; i < 100 && !Files.exists(spare); i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(Files.exists(spare));
+        assertFalse(Files.exists(journal.getFile(1)));
+        final Object spareKey = Files.readAttributes(spare, BasicFileAttributes.class).fileKey();
+
+        writeEntries(journal, 800);
+        journal.checkpoint(2, true);
+        // the spare file became the third journal
+        final Path file = journal.getFile(3);
+        assertEquals(spareKey, Files.readAttributes(file, BasicFileAttributes.class).fileKey());
+        final List<byte[]> written = writeEntries(journal, 10);
+        journal.flushToLog(true);
+
+        final JournalReader reader = new JournalReader(null, file, 3);
+        try {
+            for (final byte[] data : written) {
+                assertArrayEquals(data, ((TestLoggable) reader.nextEntry()).data);
+            }
+            assertNull(reader.nextEntry());
+        } finally {
+            reader.close();
+        }
+    }
+
+    private Journal open(final int compressThreshold, final boolean preallocate) throws Exception {
+        final Configuration config = pool.getConfiguration();
+        config.setProperty(Journal.PROPERTY_RECOVERY_JOURNAL_DIR, dir);
+        config.setProperty(Journal.PROPERTY_RECOVERY_SIZE_LIMIT, 1);
+        config.setProperty(Journal.PROPERTY_RECOVERY_COMPRESS_THRESHOLD, compressThreshold);
+        config.setProperty(Journal.PROPERTY_RECOVERY_PREALLOCATE, preallocate);
+        journal = new Journal(pool, dir);
+        journal.initialize();
+        journal.setCurrentFileNum(0);
+        journal.switchFiles();
+        return journal;
+    }
+
+    /**
+     * Write entries of different sizes. Every third entry is random data, which
+     * does not compress.
+     */
+    private static List<byte[]> writeEntries(final Journal journal, final int count) throws Exception {
+        final Random random = new Random(count);
+        final List<byte[]> written = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final byte[] data = new byte[random.nextInt(4000)];
+            if (i % 3 == 0) {
+                random.nextBytes(data);
+            } else {
+                Arrays.fill(data, (byte) i);
+            }
+            journal.writeToLog(new TestLoggable(i, data));
+            written.add(data);
+        }
+        return written;
+    }
+
+    private static void assertEntries(final Path file, final List<byte[]> written) throws Exception {
+        final JournalReader reader = new JournalReader(null, file, 1);
+        try {
+            for (int i = 0; i < written.size(); i++) {
+                final TestLoggable entry = (TestLoggable) reader.nextEntry();
+                assertEquals(i, entry.getTransactionId());
+                assertArrayEquals(written.get(i), entry.data);
+            }
+            assertNull(reader.nextEntry());
+
+            for (int i = written.size() - 1; i >= 0; i--) {
+                final TestLoggable entry = (TestLoggable) (i == written.size() - 1 ? reader.lastEntry() : reader.previousEntry());
+                assertEquals(i, entry.getTransactionId());
+                assertArrayEquals(written.get(i), entry.data);
+            }
+            assertNull(reader.previousEntry());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        pool = BrokerPool.getInstance();
+        dir = Paths.get(System.getProperty("exist.home", ".")).resolve("test/junit/journal");
+        FileUtils.deleteQuietly(dir);
+        Files.createDirectories(dir);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (journal != null) {
+            journal.shutdown(0, false);
+            journal.close();
+        }
+        BrokerPool.stopAll(false);
+        FileUtils.deleteQuietly(dir);
+        pool = null;
+    }
+
+    public static class TestLoggable extends AbstractLoggable {
+
+        private byte[] data;
+
+        public TestLoggable(final DBBroker broker, final long transactionId) {
+            super(TEST_ENTRY, transactionId);
+        }
+
+        public TestLoggable(final long transactionId, final byte[] data) {
+            super(TEST_ENTRY, transactionId);
+            this.data = data;
+        }
+
+        @Override
+        public void write(final ByteBuffer out) {
+            out.putShort((short) data.length);
+            out.put(data);
+        }
+
+        @Override
+        public void read(final ByteBuffer in) {
+            data = new byte[in.getShort()];
+            in.get(data);
+        }
+
+        @Override
+        public int getLogSize() {
+            return 2 + data.length;
+        }
+    }
+}
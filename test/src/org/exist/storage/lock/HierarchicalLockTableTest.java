@@ -0,0 +1,168 @@
+package org.exist.storage.lock;
+
+import org.exist.util.DeadlockException;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.exist.storage.lock.HierarchicalLockTable.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class HierarchicalLockTableTest {
+
+    private final static XmldbURI DB = XmldbURI.ROOT_COLLECTION_URI;
+    private final static XmldbURI APPS = XmldbURI.create("/db/apps");
+    private final static XmldbURI APP_A = XmldbURI.create("/db/apps/a");
+    private final static XmldbURI APP_A_DATA = XmldbURI.create("/db/apps/a/data");
+    private final static XmldbURI APP_B = XmldbURI.create("/db/apps/b");
+
+    private final HierarchicalLockTable table = new HierarchicalLockTable();
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void compatibility() throws Exception {
+        final boolean[][] expected = {
+            { true,  true,  true,  false },
+            { true,  true,  false, false },
+            { true,  false, true,  false },
+            { false, false, false, false }
+        };
+        for (int held = INTENTION_READ; held <= WRITE; held++) {
+            for (int requested = INTENTION_READ; requested <= WRITE; requested++) {
+                table.acquire(APPS, held);
+                final int mode = requested;
+                final boolean granted = executor.submit(() -> {
+                    final boolean attempt = table.attempt(APPS, mode);
+                    if (attempt) {
+                        table.release(APPS, mode);
+                    }
+                    return attempt;
+                }).get();
+                table.release(APPS, held);
+                assertEquals("held " + held + ", requested " + requested, expected[held][requested], granted);
+            }
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void disjointSubtrees() throws Exception {
+        table.acquire(APP_A, WRITE);
+        try {
+            assertTrue(executor.submit(() -> {
+                table.acquire(APP_B, WRITE);
+                table.release(APP_B, WRITE);
+                table.acquire(APPS, INTENTION_WRITE);
+                table.release(APPS, INTENTION_WRITE);
+                return true;
+            }).get(5, TimeUnit.SECONDS));
+
+            // the parent itself can't be locked
+            assertFalse(executor.submit(() -> table.attempt(APPS, READ)).get());
+        } finally {
+            table.release(APP_A, WRITE);
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void subtreeLockBlocksDescendants() throws Exception {
+        table.acquire(APP_A, WRITE);
+        final Future<Boolean> reader;
+        try {
+            // the owner of the subtree may lock inside of it
+            table.acquire(APP_A_DATA, READ);
+            table.release(APP_A_DATA, READ);
+
+            reader = executor.submit(() -> {
+                table.acquire(APP_A_DATA, INTENTION_READ);
+                table.release(APP_A_DATA, INTENTION_READ);
+                return true;
+            });
+            Thread.sleep(300);
+            assertFalse(reader.isDone());
+        } finally {
+            table.release(APP_A, WRITE);
+        }
+        assertTrue(reader.get(5, TimeUnit.SECONDS));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void readersShareSubtree() throws Exception {
+        table.acquire(APPS, READ);
+        try {
+            assertTrue(executor.submit(() -> {
+                table.acquire(APP_A, READ);
+                table.release(APP_A, READ);
+                return true;
+            }).get(5, TimeUnit.SECONDS));
+            assertFalse(executor.submit(() -> table.attempt(APP_A, INTENTION_WRITE)).get());
+            assertFalse(executor.submit(() -> table.attempt(DB, WRITE)).get());
+        } finally {
+            table.release(APPS, READ);
+        }
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void deadlock() throws Exception {
+        final CountDownLatch locked = new CountDownLatch(2);
+        final Future<Boolean> first = executor.submit(() -> lockBoth(APP_A, APP_B, locked));
+        final Future<Boolean> second = executor.submit(() -> lockBoth(APP_B, APP_A, locked));
+        // at least one of the threads gives up, both may if they detect the deadlock at the same time
+        final boolean firstLocked = first.get(10, TimeUnit.SECONDS);
+        final boolean secondLocked = second.get(10, TimeUnit.SECONDS);
+        assertFalse(firstLocked && secondLocked);
+        assertEquals(0, table.size());
+    }
+
+    private boolean lockBoth(final XmldbURI path1, final XmldbURI path2, final CountDownLatch locked) throws Exception {
+        table.acquire(path1, WRITE);
+        try {
+            locked.countDown();
+            locked.await();
+            try {
+                table.acquire(path2, WRITE);
+            } catch (final DeadlockException e) {
+                return false;
+            }
+            table.release(path2, WRITE);
+            return true;
+        } finally {
+            table.release(path1, WRITE);
+        }
+    }
+
+    @Test
+    public void interrupted() throws Exception {
+        table.acquire(APPS, WRITE);
+        try {
+            final Future<?> waiting = executor.submit(() -> {
+                table.acquire(APP_A, READ);
+                fail("Lock should not be granted");
+                return null;
+            });
+            Thread.sleep(100);
+            waiting.cancel(true);
+            Thread.sleep(300);
+        } finally {
+            table.release(APPS, WRITE);
+        }
+        assertEquals(0, table.size());
+    }
+}
@@ -0,0 +1,106 @@
+package org.exist.storage.lock;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Compares the throughput of {@link QueuedReadWriteLock} with {@link MultiReadReentrantLock},
+ * which it replaces for document locks, and the exclusive {@link ReentrantReadWriteLock}
+ * used for collections and files, at 1 to 64 threads.
+ *
+ * All threads share one lock and run a mix of read and write locks around a short
+ * critical section. Reported is the best of several runs in operations per millisecond.
+ *
+ * Not part of the regular test suite. The number of operations per run and the
+ * percentage of write locks can be set with the system properties
+ * <code>exist.lock.benchmark.operations</code> and <code>exist.lock.benchmark.writes</code>.
+ */
+public class LockBenchmark {
+
+    private static final int OPERATIONS = Integer.getInteger("exist.lock.benchmark.operations", 200000);
+    private static final int WRITE_PERCENTAGE = Integer.getInteger("exist.lock.benchmark.writes", 10);
+    private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+    private static final int RUNS = 3;
+
+    private volatile long sink = 0;
+
+    @Test
+    public void contention() throws Exception {
+        System.out.println(String.format("%d%% write locks, %d operations per run", WRITE_PERCENTAGE, OPERATIONS));
+        System.out.println(String.format("%8s %22s %22s %22s", "threads",
+                "MultiReadReentrantLock", "QueuedReadWriteLock", "ReentrantReadWriteLock"));
+        for (final int threads : THREADS) {
+            System.out.println(String.format("%8d %22.1f %22.1f %22.1f", threads,
+                    run(threads, MultiReadReentrantLock::new),
+                    run(threads, QueuedReadWriteLock::new),
+                    run(threads, ReentrantReadWriteLock::new)));
+        }
+        System.out.println("(" + sink + ")");
+    }
+
+    private double run(final int threads, final Function<Object, Lock> lockFactory) throws Exception {
+        double best = 0;
+        for (int r = 0; r < RUNS; r++) {
+            best = Math.max(best, throughput(threads, lockFactory.apply("benchmark")));
+        }
+        return best;
+    }
+
+    /**
+     * @return operations per millisecond
+     */
+    private double throughput(final int threads, final Lock lock) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final CyclicBarrier start = new CyclicBarrier(threads + 1);
+            final int operations = OPERATIONS / threads;
+            final List<Future<long[]>> futures = new ArrayList<>(threads);
+            for (int t = 0; t < threads; t++) {
+                final long seed = t;
+                futures.add(executor.submit(() -> {
+                    final Random random = new Random(seed);
+                    final boolean[] writes = new boolean[operations];
+                    for (int i = 0; i < operations; i++) {
+                        writes[i] = random.nextInt(100) < WRITE_PERCENTAGE;
+                    }
+                    start.await();
+                    final long begin = System.nanoTime();
+                    long sum = 0;
+                    for (int i = 0; i < operations; i++) {
+                        final int mode = writes[i] ? Lock.WRITE_LOCK : Lock.READ_LOCK;
+                        lock.acquire(mode);
+                        try {
+                            for (int j = 0; j < 20; j++) {
+                                sum += j * i;
+                            }
+                        } finally {
+                            lock.release(mode);
+                        }
+                    }
+                    return new long[] { begin, System.nanoTime(), sum };
+                }));
+            }
+            start.await();
+            long begin = Long.MAX_VALUE;
+            long end = 0;
+            for (final Future<long[]> future : futures) {
+                final long[] result = future.get();
+                begin = Math.min(begin, result[0]);
+                end = Math.max(end, result[1]);
+                sink += result[2];
+            }
+            final long time = end - begin;
+            return (double) operations * threads / (time / 1000000.0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
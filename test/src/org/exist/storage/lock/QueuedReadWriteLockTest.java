@@ -0,0 +1,203 @@
+package org.exist.storage.lock;
+
+import org.exist.util.DeadlockException;
+import org.exist.util.LockException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueuedReadWriteLockTest {
+
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void readersShare() throws Exception {
+        final QueuedReadWriteLock lock = new QueuedReadWriteLock("test");
+        lock.acquire(Lock.READ_LOCK);
+        assertTrue(executor.submit(() -> {
+            final boolean attempt = lock.attempt(Lock.READ_LOCK);
+            lock.release(Lock.READ_LOCK);
+            return attempt;
+        }).get());
+        assertFalse(executor.submit(() -> lock.attempt(Lock.WRITE_LOCK)).get());
+        lock.release(Lock.READ_LOCK);
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void writerExcludesOthers() throws Exception {
+        final QueuedReadWriteLock lock = new QueuedReadWriteLock("test");
+        lock.acquire(Lock.WRITE_LOCK);
+        assertTrue(lock.hasLock(Thread.currentThread()));
+        assertFalse(executor.submit(() -> lock.attempt(Lock.READ_LOCK)).get());
+        assertFalse(executor.submit(() -> lock.attempt(Lock.WRITE_LOCK)).get());
+
+        final Future<Boolean> reader = executor.submit(() -> {
+            lock.acquire(Lock.READ_LOCK);
+            lock.release(Lock.READ_LOCK);
+            return true;
+        });
+        Thread.sleep(100);
+        assertFalse(reader.isDone());
+        lock.release(Lock.WRITE_LOCK);
+        assertTrue(reader.get(5, TimeUnit.SECONDS));
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void reentrant() throws Exception {
+        final QueuedReadWriteLock lock = new QueuedReadWriteLock("test");
+        lock.acquire(Lock.WRITE_LOCK);
+        lock.acquire(Lock.WRITE_LOCK);
+        // the writer may read
+        lock.acquire(Lock.READ_LOCK);
+        lock.release(Lock.READ_LOCK);
+        lock.release(Lock.WRITE_LOCK);
+        assertEquals(Thread.currentThread(), lock.getWriteLockedThread());
+        lock.release(Lock.WRITE_LOCK);
+        assertEquals(null, lock.getWriteLockedThread());
+
+        // the only reader may write
+        lock.acquire(Lock.READ_LOCK);
+        lock.acquire(Lock.READ_LOCK);
+        assertTrue(lock.attempt(Lock.WRITE_LOCK));
+        lock.release(Lock.WRITE_LOCK);
+        lock.release(Lock.READ_LOCK, 2);
+        assertFalse(lock.hasLock());
+    }
+
+    @Test
+    public void writeStamp() throws Exception {
+        final QueuedReadWriteLock lock = new QueuedReadWriteLock("test");
+        final long stamp = lock.getWriteStamp();
+        assertEquals(0, stamp & 1);
+        lock.acquire(Lock.READ_LOCK);
+        lock.release(Lock.READ_LOCK);
+        assertEquals(stamp, lock.getWriteStamp());
+
+        lock.acquire(Lock.WRITE_LOCK);
+        assertEquals(1, lock.getWriteStamp() & 1);
+        // the writer does not wait for itself
+        assertEquals(lock.getWriteStamp(), lock.awaitWriteStamp(1000));
+        final Future<Long> waiting = executor.submit(() -> lock.awaitWriteStamp(5000));
+        Thread.sleep(100);
+        assertFalse(waiting.isDone());
+        lock.release(Lock.WRITE_LOCK);
+        final long after = waiting.get(5, TimeUnit.SECONDS);
+        assertEquals(0, after & 1);
+        assertNotEquals(stamp, after);
+    }
+
+    @Test
+    public void waitingWriterIsPreferred() throws Exception {
+        final QueuedReadWriteLock lock = new QueuedReadWriteLock("test");
+        lock.acquire(Lock.READ_LOCK);
+        final Future<Boolean> writer = executor.submit(() -> {
+            lock.acquire(Lock.WRITE_LOCK);
+            lock.release(Lock.WRITE_LOCK);
+            return true;
+        });
+        Thread.sleep(100);
+        assertTrue(lock.isLockedForWrite());
+        // a new reader has to wait for the writer, a nested read lock doesn't
+        final Future<Boolean> reader = executor.submit(() -> {
+            lock.acquire(Lock.READ_LOCK);
+            lock.release(Lock.READ_LOCK);
+            return true;
+        });
+        lock.acquire(Lock.READ_LOCK);
+        lock.release(Lock.READ_LOCK);
+        Thread.sleep(100);
+        assertFalse(reader.isDone());
+        lock.release(Lock.READ_LOCK);
+        assertTrue(writer.get(5, TimeUnit.SECONDS));
+        assertTrue(reader.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void deadlock() throws Exception {
+        final QueuedReadWriteLock lock1 = new QueuedReadWriteLock("lock1");
+        final QueuedReadWriteLock lock2 = new QueuedReadWriteLock("lock2");
+        final CountDownLatch locked = new CountDownLatch(2);
+        final Future<Boolean> first = executor.submit(() -> lockBoth(lock1, lock2, locked));
+        final Future<Boolean> second = executor.submit(() -> lockBoth(lock2, lock1, locked));
+        final boolean firstLocked = first.get(10, TimeUnit.SECONDS);
+        final boolean secondLocked = second.get(10, TimeUnit.SECONDS);
+        // the deadlock is detected and resolved, both threads may have been cancelled
+        assertFalse(firstLocked && secondLocked);
+        assertFalse(lock1.hasLock());
+        assertFalse(lock2.hasLock());
+    }
+
+    private boolean lockBoth(final Lock lock1, final Lock lock2, final CountDownLatch locked) throws LockException, InterruptedException {
+        lock1.acquire(Lock.WRITE_LOCK);
+        try {
+            locked.countDown();
+            locked.await();
+            try {
+                lock2.acquire(Lock.WRITE_LOCK);
+            } catch (final DeadlockException e) {
+                return false;
+            }
+            lock2.release(Lock.WRITE_LOCK);
+            return true;
+        } finally {
+            lock1.release(Lock.WRITE_LOCK);
+        }
+    }
+
+    @Test
+    public void readersBlockedByWriterDoNotBlockIt() throws Exception {
+        // the reader of lock1 waits for lock2, which is held by the thread wanting to write lock1
+        final QueuedReadWriteLock lock1 = new QueuedReadWriteLock("lock1");
+        final QueuedReadWriteLock lock2 = new QueuedReadWriteLock("lock2");
+        final CountDownLatch locked = new CountDownLatch(2);
+        final Future<Boolean> reader = executor.submit(() -> {
+            lock1.acquire(Lock.READ_LOCK);
+            try {
+                locked.countDown();
+                locked.await();
+                lock2.acquire(Lock.READ_LOCK);
+                lock2.release(Lock.READ_LOCK);
+            } finally {
+                lock1.release(Lock.READ_LOCK);
+            }
+            return true;
+        });
+        final Future<Boolean> writer = executor.submit(() -> {
+            lock2.acquire(Lock.WRITE_LOCK);
+            try {
+                locked.countDown();
+                locked.await();
+                Thread.sleep(100);
+                lock1.acquire(Lock.WRITE_LOCK);
+                lock1.release(Lock.WRITE_LOCK);
+            } finally {
+                lock2.release(Lock.WRITE_LOCK);
+            }
+            return true;
+        });
+        try {
+            assertTrue(writer.get(10, TimeUnit.SECONDS));
+            assertTrue(reader.get(10, TimeUnit.SECONDS));
+        } catch (final ExecutionException e) {
+            throw (Exception) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.exist.storage.lock;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.util.LockException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Queries in snapshot mode read documents without read locks and are
+ * evaluated again if a document was modified while they were running.
+ */
+public class SnapshotReadTest {
+
+    private final static XmldbURI DOC_NAME = XmldbURI.create("items.xml");
+    private final static String DOC_PATH = TestConstants.TEST_COLLECTION_URI.append(DOC_NAME).toString();
+    private final static int ITEMS = 100;
+
+    private BrokerPool pool;
+
+    @Test
+    public void writeInvalidatesSnapshot() throws Exception {
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final DocumentImpl doc = broker.getXMLResource(XmldbURI.create(DOC_PATH), Lock.READ_LOCK);
+            assertNotNull(doc);
+            doc.getUpdateLock().release(Lock.READ_LOCK);
+
+            final DocumentSnapshot snapshot = new DocumentSnapshot(100);
+            snapshot.add(doc);
+            assertEquals(1, snapshot.getDocumentCount());
+            assertTrue(snapshot.validate());
+
+            // a read lock does not invalidate the snapshot
+            doc.getUpdateLock().acquire(Lock.READ_LOCK);
+            doc.getUpdateLock().release(Lock.READ_LOCK);
+            assertTrue(snapshot.validate());
+
+            final Thread writer = new Thread(() -> {
+                try {
+                    doc.getUpdateLock().acquire(Lock.WRITE_LOCK);
+                    doc.getUpdateLock().release(Lock.WRITE_LOCK);
+                } catch (final LockException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            writer.start();
+            writer.join();
+            assertFalse(snapshot.validate());
+
+            snapshot.clear();
+            snapshot.add(doc);
+            assertTrue(snapshot.validate());
+        }
+    }
+
+    @Test
+    public void writerDoesNotWaitForSnapshotQuery() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // counts the items twice, with a pause in between
+            final Future<Sequence> query = executor.submit(() -> query(
+                    "declare option exist:snapshot 'yes';\n" +
+                    "let $before := count(doc('" + DOC_PATH + "')//item)\n" +
+                    "let $pause := util:wait(1000)\n" +
+                    "return ($before, count(doc('" + DOC_PATH + "')//item))"));
+            Thread.sleep(300);
+
+            final long start = System.currentTimeMillis();
+            query("update insert <item/> into doc('" + DOC_PATH + "')/items");
+            final long writeTime = System.currentTimeMillis() - start;
+            assertFalse("Query finished before the update", query.isDone());
+            assertTrue("Update took " + writeTime + "ms", writeTime < 1000);
+
+            // the first evaluation saw both versions of the document, the second one only the new one
+            final Sequence result = query.get(10, TimeUnit.SECONDS);
+            assertEquals(2, result.getItemCount());
+            assertEquals(String.valueOf(ITEMS + 1), result.itemAt(0).getStringValue());
+            assertEquals(String.valueOf(ITEMS + 1), result.itemAt(1).getStringValue());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void queryWithSideEffectsIsNotRepeated() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // stores a document while a writer modifies the document read by the query
+            final Future<Sequence> query = executor.submit(() -> query(
+                    "declare option exist:snapshot 'yes';\n" +
+                    "let $before := count(doc('" + DOC_PATH + "')//item)\n" +
+                    "let $stored := xmldb:store('" + TestConstants.TEST_COLLECTION_URI + "', 'log-' || util:uuid() || '.xml', <log/>)\n" +
+                    "let $pause := util:wait(1000)\n" +
+                    "return ($before, count(doc('" + DOC_PATH + "')//item))"));
+            Thread.sleep(300);
+            query("update insert <item/> into doc('" + DOC_PATH + "')/items");
+
+            final Sequence result = query.get(10, TimeUnit.SECONDS);
+            assertEquals(2, result.getItemCount());
+            // evaluated once, with read locks: the store is not repeated
+            final Sequence logs = query("count(collection('" + TestConstants.TEST_COLLECTION_URI + "')/log)");
+            assertEquals("1", logs.itemAt(0).getStringValue());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private Sequence query(final String query) throws Exception {
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQuery xquery = pool.getXQueryService();
+            return xquery.execute(broker, query, null, AccessContext.TEST);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        pool = startDB();
+        final StringBuilder xml = new StringBuilder("<items>");
+        for (int i = 0; i < ITEMS; i++) {
+            xml.append("<item n=\"").append(i).append("\"/>");
+        }
+        xml.append("</items>");
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+            assertNotNull(root);
+            broker.saveCollection(transaction, root);
+            final IndexInfo info = root.validateXMLResource(transaction, broker, DOC_NAME, xml.toString());
+            assertNotNull(info);
+            root.store(transaction, broker, info, xml.toString(), false);
+            transact.commit(transaction);
+        }
+    }
+
+    private BrokerPool startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+            if (root != null) {
+                broker.removeCollection(transaction, root);
+            }
+            transact.commit(transaction);
+        }
+        BrokerPool.stopAll(false);
+    }
+}
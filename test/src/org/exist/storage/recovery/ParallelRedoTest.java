@@ -0,0 +1,115 @@
+package org.exist.storage.recovery;
+
+import org.exist.storage.journal.AbstractLoggable;
+import org.exist.storage.journal.LogException;
+import org.exist.storage.journal.Loggable;
+import org.exist.storage.journal.Lsn;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ParallelRedoTest {
+
+    private static final byte[] FILES = { 0, 2, 3 };
+
+    @Test
+    public void keepsOrderPerFile() throws LogException {
+        final Map<Byte, List<Long>> redone = new ConcurrentHashMap<>();
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        final Map<Byte, List<Long>> expected = new HashMap<>();
+        try (final ParallelRedo redo = new ParallelRedo(fileId -> null)) {
+            for (int i = 1; i <= 3000; i++) {
+                final byte fileId = FILES[i % FILES.length];
+                final long lsn = Lsn.create(1, i);
+                expected.computeIfAbsent(fileId, k -> new ArrayList<>()).add(lsn);
+                redo.redo(new TestLoggable(fileId, lsn, entry -> {
+                    redone.computeIfAbsent(entry.getFileId(), k -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(entry.getLsn());
+                    threads.add(Thread.currentThread().getName());
+                }));
+            }
+            redo.barrier();
+            assertEquals(3000, redo.getRedoCount());
+        }
+        assertEquals(expected, redone);
+        // one worker per file
+        assertEquals(FILES.length, threads.size());
+    }
+
+    @Test
+    public void unboundEntryIsBarrier() throws LogException {
+        final List<Long> redone = Collections.synchronizedList(new ArrayList<>());
+        try (final ParallelRedo redo = new ParallelRedo(fileId -> null)) {
+            for (int i = 1; i <= 1000; i++) {
+                redo.redo(new TestLoggable(FILES[i % FILES.length], Lsn.create(1, i), entry -> redone.add(entry.getLsn())));
+            }
+            final int[] seen = new int[1];
+            redo.redo(new TestLoggable(Loggable.NO_FILE, Lsn.create(1, 1001), entry -> seen[0] = redone.size()));
+            assertEquals(1000, seen[0]);
+        }
+    }
+
+    @Test
+    public void failureIsReported() {
+        try (final ParallelRedo redo = new ParallelRedo(fileId -> null)) {
+            redo.redo(new TestLoggable((byte) 3, Lsn.create(1, 1), entry -> {
+                throw new IllegalStateException("page not found");
+            }));
+            redo.barrier();
+            fail("redo should have failed");
+        } catch (final LogException e) {
+            assertTrue(e.getMessage().contains("page not found"));
+        }
+    }
+
+    private interface RedoAction {
+        void redo(TestLoggable entry);
+    }
+
+    private static class TestLoggable extends AbstractLoggable {
+
+        private final byte fileId;
+        private final RedoAction action;
+
+        TestLoggable(final byte fileId, final long lsn, final RedoAction action) {
+            super((byte) 0, 1);
+            this.fileId = fileId;
+            this.action = action;
+            setLsn(lsn);
+        }
+
+        @Override
+        public byte getFileId() {
+            return fileId;
+        }
+
+        @Override
+        public void redo() throws LogException {
+            action.redo(this);
+        }
+
+        @Override
+        public void write(final ByteBuffer out) {
+        }
+
+        @Override
+        public void read(final ByteBuffer in) {
+        }
+
+        @Override
+        public int getLogSize() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.exist.storage.recovery;
+
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.FileUtils;
+import org.exist.xmldb.XmldbURI;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Measures crash recovery with and without parallel redo.
+ *
+ * A crash journal is generated once by storing documents without ever writing
+ * the data files, then the database directory is restored from a copy before
+ * each run, so both runs recover the same journal.
+ *
+ * Not part of the regular test suite. The number of documents can be set with
+ * the system property <code>exist.recovery.benchmark.documents</code>.
+ */
+public class RecoveryBenchmark {
+
+    private static final int DOCUMENTS = Integer.getInteger("exist.recovery.benchmark.documents", 500);
+    private static final int ELEMENTS = 200;
+
+    @Test
+    public void redo() throws Exception {
+        final Path snapshot = Files.createTempDirectory("exist-recovery-benchmark");
+        try {
+            final Path dataDir = generateCrashJournal();
+            copy(dataDir, snapshot);
+
+            final long serial = recover(false);
+            copy(snapshot, dataDir);
+            final long parallel = recover(true);
+
+            System.out.println("Recovery of " + DOCUMENTS + " documents: serial redo " + serial +
+                    "ms, parallel redo " + parallel + "ms");
+        } finally {
+            FileUtils.deleteQuietly(snapshot);
+        }
+    }
+
+    private Path generateCrashJournal() throws Exception {
+        BrokerPool.FORCE_CORRUPTION = false;
+        final BrokerPool pool = startDB(true);
+        final Path dataDir = (Path) pool.getConfiguration().getProperty(BrokerPool.PROPERTY_DATA_DIR);
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            // nothing stored below will be written to the data files
+            BrokerPool.FORCE_CORRUPTION = true;
+            for (int i = 0; i < DOCUMENTS; i++) {
+                try (final Txn transaction = transact.beginTransaction()) {
+                    final Collection root = broker.getOrCreateCollection(transaction, TestConstants.TEST_COLLECTION_URI);
+                    broker.saveCollection(transaction, root);
+                    final String xml = generateDocument(i);
+                    final IndexInfo info = root.validateXMLResource(transaction, broker, documentName(i), xml);
+                    root.store(transaction, broker, info, xml, false);
+                    transact.commit(transaction);
+                }
+            }
+            transact.getJournal().flushToLog(true);
+        }
+        BrokerPool.stopAll(false);
+        BrokerPool.FORCE_CORRUPTION = false;
+        return dataDir;
+    }
+
+    private long recover(final boolean parallelRedo) throws Exception {
+        final long start = System.currentTimeMillis();
+        final BrokerPool pool = startDB(parallelRedo);
+        final long time = System.currentTimeMillis() - start;
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+            assertNotNull(root);
+            assertEquals(DOCUMENTS, root.getDocumentCount(broker));
+        }
+        BrokerPool.stopAll(false);
+        return time;
+    }
+
+    private static XmldbURI documentName(final int i) {
+        return XmldbURI.create("doc" + i + ".xml");
+    }
+
+    private static String generateDocument(final int i) {
+        final StringBuilder xml = new StringBuilder("<doc id=\"").append(i).append("\">");
+        for (int j = 0; j < ELEMENTS; j++) {
+            xml.append("<item n=\"").append(j).append("\"><name>item ").append(i).append('.').append(j)
+                .append("</name><value>").append(i * ELEMENTS + j).append("</value></item>");
+        }
+        return xml.append("</doc>").toString();
+    }
+
+    private static void copy(final Path from, final Path to) throws IOException {
+        final List<Path> files;
+        try (final Stream<Path> stream = Files.list(from)) {
+            files = stream.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        try (final Stream<Path> stream = Files.list(to)) {
+            for (final Path old : stream.filter(Files::isRegularFile).collect(Collectors.toList())) {
+                Files.delete(old);
+            }
+        }
+        for (final Path file : files) {
+            Files.copy(file, to.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private BrokerPool startDB(final boolean parallelRedo) throws Exception {
+        final Configuration config = new Configuration();
+        config.setProperty(RecoveryManager.PROPERTY_RECOVERY_PARALLEL_REDO, parallelRedo);
+        BrokerPool.configure(1, 5, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() {
+        BrokerPool.stopAll(false);
+        BrokerPool.FORCE_CORRUPTION = false;
+    }
+}
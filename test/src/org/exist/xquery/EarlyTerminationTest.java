@@ -0,0 +1,176 @@
+package org.exist.xquery;
+
+import org.exist.dom.QName;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.xmldb.DatabaseInstanceManager;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.value.IntegerValue;
+import org.exist.xquery.value.Sequence;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.XPathQueryService;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Consumers which only need the first items of a sequence stop the evaluation
+ * of the expression producing it. The items after the ones needed raise an
+ * error, so a test fails if they are computed.
+ */
+public class EarlyTerminationTest {
+
+    private static XPathQueryService service;
+    private static Collection root = null;
+    private static Database database = null;
+
+    @Test
+    public void head() throws XMLDBException {
+        assertQuery(new String[] { "1" },
+            "head(for $i in 1 to 10 return if ($i > 1) then error() else $i)");
+    }
+
+    @Test
+    public void exists() throws XMLDBException {
+        assertQuery(new String[] { "true" },
+            "exists(for $i in 1 to 10 return if ($i > 1) then error() else $i)");
+        assertQuery(new String[] { "false" },
+            "empty(for $i in 1 to 10 return if ($i > 1) then error() else $i)");
+    }
+
+    @Test
+    public void positionalPredicate() throws XMLDBException {
+        assertQuery(new String[] { "2" },
+            "(for $i in 1 to 10 return if ($i > 2) then error() else $i)[2]");
+        assertQuery(new String[] { "1", "2", "3" },
+            "(for $i in 1 to 10 return if ($i > 3) then error() else $i)[position() le 3]");
+        assertQuery(new String[] { "1", "2" },
+            "(for $i in 1 to 10 return if ($i > 2) then error() else $i)[position() < 3]");
+        assertQuery(new String[] { "a" },
+            "('a', 'b', error())[1]");
+    }
+
+    @Test
+    public void subsequence() throws XMLDBException {
+        assertQuery(new String[] { "2", "3", "4" },
+            "subsequence(for $i in 1 to 10 return if ($i > 4) then error() else $i, 2, 3)");
+        assertQuery(new String[] { "1" },
+            "subsequence(for $i in 1 to 10 return if ($i > 1) then error() else $i, 0, 2)");
+        assertQuery(new String[] { "9", "10" },
+            "subsequence(for $i in 1 to 10 return $i, 9)");
+    }
+
+    @Test
+    public void nestedClauses() throws XMLDBException {
+        assertQuery(new String[] { "2" },
+            "head(for $i in 1 to 10 where $i mod 2 = 0 return if ($i > 2) then error() else $i)");
+        assertQuery(new String[] { "4" },
+            "(for $i in 1 to 10 let $j := $i * 2 return if ($i > 2) then error() else $j)[2]");
+        assertQuery(new String[] { "11", "12" },
+            "(for $i in 1 to 3, $j in 1 to 3 return if ($i > 1 or $j > 2) then error() else $i * 10 + $j)[position() le 2]");
+        assertQuery(new String[] { "1", "2" },
+            "(for $i in 1 to 3 return (($i, error())[1], $i + 1))[position() le 2]");
+    }
+
+    @Test
+    public void orderByEvaluatesAll() throws XMLDBException {
+        assertQuery(new String[] { "5" },
+            "head(for $i in 1 to 5 order by $i descending return $i)");
+        assertQuery(new String[] { "4", "3" },
+            "(for $i in 1 to 5 order by $i descending return $i)[position() = (2, 3)]");
+    }
+
+    @Test
+    public void orderByWithLimit() throws XMLDBException {
+        assertQuery(new String[] { "1", "3", "3" },
+            "(for $i in (5, 3, 9, 1, 7, 3) order by $i return $i)[position() le 3]");
+        assertQuery(new String[] { "2", "5", "8", "1" },
+            "(for $i in 1 to 10 order by $i mod 3 descending return $i)[position() le 4]");
+        assertQuery(new String[] { "1", "3", "5" },
+            "(for $i in 1 to 6 order by (if ($i mod 2 = 0) then () else $i) empty greatest return $i)[position() le 3]");
+        assertQuery(new String[] { "2", "4", "6" },
+            "(for $i in 1 to 6 order by (if ($i mod 2 = 0) then () else $i) empty least return $i)[position() le 3]");
+        assertQuery(new String[] { "20" },
+            "head(for $i in (4, 2, 8) order by $i return $i * 10)");
+        assertQuery(new String[] { "1", "10", "2" },
+            "(for $i in (3, 1, 2) order by $i return ($i, $i * 10))[position() le 3]");
+        assertQuery(new String[] { "33", "23", "32" },
+            "(for $i in 1 to 3, $j in 1 to 3 order by $i * $j descending, $i return $i * 10 + $j)[position() le 3]");
+        assertQuery(new String[] { "98", "97" },
+            "subsequence(for $i in 1 to 100 order by -$i return $i, 3, 2)");
+        assertQuery(new String[] { "1", "1" },
+            "for $k in 1 to 2 return (for $i in (3, 1, 2) order by $i return $i)[1]");
+    }
+
+    /**
+     * With a limit, the order by clause keeps no more than limit items and returns
+     * nothing to the enclosing for clause, so the memory used does not grow with
+     * the number of items sorted.
+     */
+    @Test
+    public void orderByWithLimitKeepsOnlyLimitItems() throws Exception {
+        final BrokerPool pool = BrokerPool.getInstance();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQueryContext context = new XQueryContext(pool, AccessContext.TEST);
+            final CompiledXQuery compiled = pool.getXQueryService().compile(broker, context,
+                "for $i in 1 to 1000 order by $i descending return $i");
+            Expression expr = (Expression) compiled;
+            while (expr instanceof PathExpr) {
+                expr = ((PathExpr) expr).getExpression(0);
+            }
+            final OrderByClause orderBy = (OrderByClause) ((ForExpr) expr).getReturnExpression();
+
+            final LocalVariable mark = context.markLocalVariables(false);
+            try {
+                final LocalVariable var = context.declareVariableBinding(new LocalVariable(new QName("i", "")));
+                orderBy.setLimit(3);
+                for (int i = 1; i <= 1000; i++) {
+                    var.setValue(new IntegerValue(i));
+                    assertTrue(orderBy.eval(null, null).isEmpty());
+                    assertTrue(orderBy.orderedResult.getItemCount() <= 3);
+                }
+            } finally {
+                context.popLocalVariables(mark);
+            }
+            final Sequence result = orderBy.postEval(Sequence.EMPTY_SEQUENCE);
+            assertEquals(3, result.getItemCount());
+            assertEquals("1000", result.itemAt(0).getStringValue());
+            assertEquals("998", result.itemAt(2).getStringValue());
+        }
+    }
+
+    private void assertQuery(final String[] expected, final String query) throws XMLDBException {
+        final ResourceSet result = service.query(query);
+        assertEquals(query, expected.length, result.getSize());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(query, expected[i], result.getResource(i).getContent().toString());
+        }
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        final Class<?> cl = Class.forName("org.exist.xmldb.DatabaseImpl");
+        database = (Database) cl.newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+        root = DatabaseManager.getCollection(XmldbURI.LOCAL_DB, "admin", "");
+        service = (XPathQueryService) root.getService("XQueryService", "1.0");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        DatabaseManager.deregisterDatabase(database);
+        final DatabaseInstanceManager dim = (DatabaseInstanceManager) root.getService("DatabaseInstanceManager", "1.0");
+        dim.shutdown();
+    }
+}
@@ -0,0 +1,210 @@
+package org.exist.xquery;
+
+import org.exist.xmldb.DatabaseInstanceManager;
+import org.exist.xmldb.XQueryService;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.pragmas.HashJoin;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.CompiledExpression;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.CollectionManagementService;
+import org.xmldb.api.modules.XMLResource;
+import org.xmldb.api.modules.XPathQueryService;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Joins rewritten into a hash join by the optimizer return the same
+ * result as without optimization. The expression dump shows if a join was
+ * rewritten.
+ */
+public class HashJoinTest {
+
+    private final static String OPTIMIZE = "declare option exist:optimize 'enable=yes'; ";
+    private final static String NO_OPTIMIZE = "declare option exist:optimize 'enable=no'; ";
+
+    private final static String ORDERS = "collection('/db/join-test')//order";
+    private final static String CUSTOMERS = "collection('/db/join-test')//customer";
+
+    private static XPathQueryService service;
+    private static Collection root = null;
+    private static Collection test = null;
+    private static Database database = null;
+
+    @Test
+    public void stringKeys() throws XMLDBException {
+        assertJoin("for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where $a/@cust = $c/@id " +
+            "return $a/@nr || ':' || $c/name");
+        assertJoin("for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where $c/@id = $a/@cust " +
+            "return $a/@nr || ':' || $c/name");
+        assertJoin("for $a in " + ORDERS + " for $c in " + CUSTOMERS + " where string($c/@id) = string($a/@cust) " +
+            "return <pair>{$a/@nr, $c/name}</pair>");
+    }
+
+    @Test
+    public void numericKeys() throws XMLDBException {
+        // untyped values compared to numbers
+        assertJoin("for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where $a/@amount = xs:integer($c/@num) * 10 " +
+            "return $a/@nr || ':' || $c/@num");
+        assertSameResult("for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where number($a/@amount) = $c/@num * 10.0 " +
+            "return $a/@nr || ':' || $c/@num");
+        assertSameResult("for $a in (1, 2.0, 3e0, 0, -0e0), $c in " + CUSTOMERS + " where $a = $c/@num " +
+            "return $a || ':' || $c/@id");
+    }
+
+    @Test
+    public void multipleKeys() throws XMLDBException {
+        // general comparisons are true if any pair of values is equal
+        assertJoin("for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where $a/item/@cust = $c/@id " +
+            "return $a/@nr || ':' || $c/@id");
+        assertSameResult("for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where $a/@cust = ($c/@id, $c/@alias) " +
+            "return $a/@nr || ':' || $c/@id");
+        assertJoin("for $c in " + CUSTOMERS + ", $a in " + ORDERS + " where $a/@cust = $c/@id and $a/@amount > 20 " +
+            "return $c/@id || ':' || $a/@nr");
+    }
+
+    @Test
+    public void otherKeys() throws XMLDBException {
+        // keys of other types are not hashed
+        assertSameResult("for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where xs:date($a/@date) = xs:date($c/@since) " +
+            "return $a/@nr || ':' || $c/@id");
+        // strings which are equal in the default collation may have different hash codes
+        final String query = "for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where $a/@cust = $c/@alias " +
+            "return $a/@nr || ':' || $c/@id";
+        final String collation = "declare default collation 'http://exist-db.org/collation?lang=en&amp;strength=primary'; ";
+        final List<String> expected = query(collation + NO_OPTIMIZE + query);
+        assertEquals(query, expected, query(collation + OPTIMIZE + query));
+        assertTrue(expected.size() > query(OPTIMIZE + query).size());
+    }
+
+    @Test
+    public void outerVariables() throws XMLDBException {
+        // the hash table has to be built again for every evaluation of the outer for clause
+        assertSameResult("for $n in 1 to 4 return <r>{for $a in " + ORDERS + ", $c in " + CUSTOMERS + "[@num <= $n] " +
+            "where $a/@cust = $c/@id return $a/@nr || ':' || $c/@id}</r>");
+        assertSameResult("declare function local:join($n) { for $a in " + ORDERS + ", $c in " + CUSTOMERS + "[@num > $n] " +
+            "where $a/@cust = $c/@id return $a/@nr || ':' || $c/@id }; local:join(1), local:join(3), local:join(1)");
+    }
+
+    @Test
+    public void notRewritten() throws XMLDBException {
+        // the inner sequence depends on the outer variable
+        assertNoJoin("for $a in " + ORDERS + ", $c in $a/item where $a/@cust = $c/@cust return $a/@nr || ':' || $c/@cust");
+        // positional variable and allowing empty
+        assertNoJoin("for $a in " + ORDERS + ", $c at $p in " + CUSTOMERS + " where $a/@cust = $c/@id return $a/@nr || ':' || $p");
+        assertNoJoin("for $a in " + ORDERS + ", $c allowing empty in " + CUSTOMERS + " where $a/@cust = $c/@id " +
+            "return $a/@nr || ':' || $c/@id");
+    }
+
+    @Test
+    public void errorInKey() throws XMLDBException {
+        try {
+            service.query(OPTIMIZE + "for $a in " + ORDERS + ", $c in " + CUSTOMERS + " where $a/@cust = exactly-one($c/foo) return 1");
+        } catch (final XMLDBException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("exactly-one"));
+            return;
+        }
+        throw new AssertionError("error not reported");
+    }
+
+    /**
+     * Check that the optimizer rewrites the query into a hash join and that
+     * the result does not change.
+     */
+    private void assertJoin(final String query) throws XMLDBException {
+        assertTrue("not rewritten: " + query, isRewritten(OPTIMIZE + query));
+        assertFalse(query, isRewritten(NO_OPTIMIZE + query));
+        assertSameResult(query);
+    }
+
+    /**
+     * Check that the optimizer does not rewrite the query and that the result does not change.
+     */
+    private void assertNoJoin(final String query) throws XMLDBException {
+        assertFalse("rewritten: " + query, isRewritten(OPTIMIZE + query));
+        assertSameResult(query);
+    }
+
+    /**
+     * @return true if the compiled query contains a hash join
+     */
+    private boolean isRewritten(final String query) throws XMLDBException {
+        final XQueryService xquery = (XQueryService) service;
+        final CompiledExpression compiled = xquery.compile(query);
+        final StringWriter writer = new StringWriter();
+        xquery.dump(compiled, writer);
+        return writer.toString().contains(HashJoin.HASH_JOIN_PRAGMA.getStringValue());
+    }
+
+    private void assertSameResult(final String query) throws XMLDBException {
+        final List<String> expected = query(NO_OPTIMIZE + query);
+        final List<String> result = query(OPTIMIZE + query);
+        assertTrue(query, !expected.isEmpty());
+        assertEquals(query, expected, result);
+    }
+
+    private List<String> query(final String query) throws XMLDBException {
+        final ResourceSet result = service.query(query);
+        final List<String> items = new ArrayList<>((int) result.getSize());
+        for (int i = 0; i < result.getSize(); i++) {
+            items.add(result.getResource(i).getContent().toString());
+        }
+        return items;
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        final Class<?> cl = Class.forName("org.exist.xmldb.DatabaseImpl");
+        database = (Database) cl.newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+        root = DatabaseManager.getCollection(XmldbURI.LOCAL_DB, "admin", "");
+
+        final CollectionManagementService mgmt = (CollectionManagementService) root.getService("CollectionManagementService", "1.0");
+        test = mgmt.createCollection("join-test");
+        final StringBuilder customers = new StringBuilder("<customers>");
+        for (int c = 0; c < 8; c++) {
+            customers.append("<customer id='c").append(c).append("' alias='C").append(c % 3)
+                .append("' num='").append(c % 5).append("' since='2016-01-0").append(c % 4 + 1).append("'>")
+                .append("<name>Customer ").append(c).append("</name></customer>");
+        }
+        customers.append("</customers>");
+        store("customers.xml", customers.toString());
+        final StringBuilder orders = new StringBuilder("<orders>");
+        for (int o = 0; o < 30; o++) {
+            orders.append("<order nr='").append(o).append("' cust='").append(o % 3 == 0 ? "C" : "c").append(o % 10)
+                .append("' amount='").append(o % 6 * 10).append("' date='2016-01-0").append(o % 7 + 1).append("'>")
+                .append("<item cust='c").append(o % 4).append("'/><item cust='c").append(o % 9).append("'/></order>");
+        }
+        orders.append("</orders>");
+        store("orders.xml", orders.toString());
+        service = (XPathQueryService) root.getService("XQueryService", "1.0");
+    }
+
+    private static void store(final String name, final String content) throws XMLDBException {
+        final XMLResource resource = (XMLResource) test.createResource(name, "XMLResource");
+        resource.setContent(content);
+        test.storeResource(resource);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        final CollectionManagementService mgmt = (CollectionManagementService) root.getService("CollectionManagementService", "1.0");
+        mgmt.removeCollection("join-test");
+        DatabaseManager.deregisterDatabase(database);
+        final DatabaseInstanceManager dim = (DatabaseInstanceManager) root.getService("DatabaseInstanceManager", "1.0");
+        dim.shutdown();
+    }
+}
@@ -0,0 +1,177 @@
+package org.exist.xquery;
+
+import org.exist.storage.BrokerPool;
+import org.exist.xmldb.DatabaseInstanceManager;
+import org.exist.xmldb.XmldbURI;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.CollectionManagementService;
+import org.xmldb.api.modules.XMLResource;
+import org.xmldb.api.modules.XPathQueryService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * A for expression marked with (# exist:parallel #) returns the same result
+ * as without the pragma.
+ */
+public class ParallelFLWORTest {
+
+    private static XPathQueryService service;
+    private static Collection root = null;
+    private static Collection test = null;
+    private static Database database = null;
+
+    @Test
+    public void atomicValues() throws XMLDBException {
+        assertSameResult("for $i in 1 to 100 return $i * 2");
+        assertSameResult("for $i in 1 to 20, $j in 1 to 3 return $i * 10 + $j");
+        assertSameResult("for $s in ('a', 'b', 'c') return upper-case($s)");
+    }
+
+    @Test
+    public void closure() throws XMLDBException {
+        assertSameResult("let $factor := 3 return %s",
+            "for $i in 1 to 100 let $j := $i * $factor where $j mod 2 = 0 return $j");
+        assertSameResult("declare variable $offset := 10; %s",
+            "for $i in 1 to 100 return $i + $offset");
+    }
+
+    @Test
+    public void constructedNodes() throws XMLDBException {
+        assertSameResult("for $i in 1 to 50 return <item n='{$i}'>{$i * $i}</item>");
+        assertSameResult("let $data := <data>{for $i in 1 to 30 return <v>{$i}</v>}</data> return %s",
+            "for $v in $data/v return $v/text() + 1");
+    }
+
+    @Test
+    public void storedDocuments() throws XMLDBException {
+        assertSameResult("for $r in collection('/db/parallel-test')//record return string($r/@id)");
+        assertSameResult("for $r in collection('/db/parallel-test')//record where $r/value > 20 return $r/value/string()");
+        assertSameResult("for $r in collection('/db/parallel-test')//record return <copy>{$r/value}</copy>");
+    }
+
+    @Test
+    public void errorIsRaised() throws XMLDBException {
+        try {
+            service.query("(# exist:parallel #) { for $i in 1 to 100 return if ($i = 77) then error(xs:QName('local:err'), 'fail') else $i }");
+            fail("Error not reported");
+        } catch (final XMLDBException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("fail"));
+        }
+    }
+
+    @Test
+    public void sequentialFallback() throws XMLDBException {
+        assertSameResult("for $i in 1 to 20 order by $i descending return $i");
+        assertSameResult("for $i at $p in 1 to 20 return $i * $p");
+        assertSameResult("declare function local:f($i) { $i + 1 }; %s",
+            "for $i in 1 to 20 return local:f($i)");
+        assertSameResult("let $f := function($i) { $i + 1 } return %s",
+            "for $i in 1 to 20 return $f($i)");
+        assertSameResult("1 to 5");
+    }
+
+    @Test
+    public void concurrentQueriesShareWorkers() throws Exception {
+        final int workers = BrokerPool.getInstance().getParallelExecutor().getThreads();
+        final ExecutorService clients = Executors.newFixedThreadPool(8);
+        try {
+            final List<Future<ResourceSet>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(clients.submit(() -> service.query(
+                    "(# exist:parallel #) { for $r in collection('/db/parallel-test')//record " +
+                    "return (util:wait(10), string($r/@id)) }")));
+            }
+            for (final Future<ResourceSet> result : results) {
+                assertEquals(50, result.get(60, TimeUnit.SECONDS).getSize());
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+        assertTrue(parallelThreads().size() <= workers);
+    }
+
+    private static List<Thread> parallelThreads() {
+        final List<Thread> threads = new ArrayList<>();
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("exist-xquery-parallel-")) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+
+    private void assertSameResult(final String expr) throws XMLDBException {
+        assertSameResult("%s", expr);
+    }
+
+    /**
+     * Evaluate the query with and without the pragma around the given expression
+     * and compare the results.
+     */
+    private void assertSameResult(final String query, final String expr) throws XMLDBException {
+        final ResourceSet expected = service.query(String.format(query, "(" + expr + ")"));
+        final ResourceSet result = service.query(String.format(query, "(# exist:parallel #) { " + expr + " }"));
+        assertEquals(expr, expected.getSize(), result.getSize());
+        for (int i = 0; i < expected.getSize(); i++) {
+            assertEquals(expr, expected.getResource(i).getContent().toString(), result.getResource(i).getContent().toString());
+        }
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        final Class<?> cl = Class.forName("org.exist.xmldb.DatabaseImpl");
+        database = (Database) cl.newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+        root = DatabaseManager.getCollection(XmldbURI.LOCAL_DB, "admin", "");
+        BrokerPool.getInstance().getConfiguration().setProperty(XQueryContext.PROPERTY_PARALLELISM, 4);
+
+        final CollectionManagementService mgmt = (CollectionManagementService) root.getService("CollectionManagementService", "1.0");
+        test = mgmt.createCollection("parallel-test");
+        for (int d = 0; d < 5; d++) {
+            final StringBuilder doc = new StringBuilder("<records>");
+            for (int r = 0; r < 10; r++) {
+                doc.append("<record id='r").append(d).append('-').append(r).append("'><value>")
+                    .append(d * 10 + r).append("</value></record>");
+            }
+            doc.append("</records>");
+            final XMLResource resource = (XMLResource) test.createResource("records" + d + ".xml", "XMLResource");
+            resource.setContent(doc.toString());
+            test.storeResource(resource);
+        }
+        service = (XPathQueryService) root.getService("XQueryService", "1.0");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        final CollectionManagementService mgmt = (CollectionManagementService) root.getService("CollectionManagementService", "1.0");
+        mgmt.removeCollection("parallel-test");
+        DatabaseManager.deregisterDatabase(database);
+        final DatabaseInstanceManager dim = (DatabaseInstanceManager) root.getService("DatabaseInstanceManager", "1.0");
+        dim.shutdown();
+
+        // the worker threads are stopped with the database
+        for (final Thread thread : parallelThreads()) {
+            thread.join(10000);
+            assertFalse(thread.getName(), thread.isAlive());
+        }
+    }
+}
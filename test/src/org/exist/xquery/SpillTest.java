@@ -0,0 +1,220 @@
+package org.exist.xquery;
+
+import org.exist.xmldb.DatabaseInstanceManager;
+import org.exist.xmldb.IndexQueryService;
+import org.exist.xmldb.XmldbURI;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmldb.api.DatabaseManager;
+import org.xmldb.api.base.Collection;
+import org.xmldb.api.base.Database;
+import org.xmldb.api.base.ResourceSet;
+import org.xmldb.api.base.XMLDBException;
+import org.xmldb.api.modules.CollectionManagementService;
+import org.xmldb.api.modules.XMLResource;
+import org.xmldb.api.modules.XPathQueryService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * "order by" and "group by" return the same result if they write
+ * to temporary files once the spill threshold is reached.
+ */
+public class SpillTest {
+
+    private final static String SPILL = "declare option exist:spill-threshold '7'; ";
+
+    private final static String FT_CONFIG =
+        "<collection xmlns=\"http://exist-db.org/collection-config/1.0\">" +
+        "   <index>" +
+        "       <lucene>" +
+        "           <text qname=\"p\"/>" +
+        "       </lucene>" +
+        "   </index>" +
+        "</collection>";
+
+    /** number of paragraphs matching the full text query */
+    private final static int FT_HITS = 40;
+
+    private static XPathQueryService service;
+    private static Collection root = null;
+    private static Collection test = null;
+    private static Collection fullText = null;
+    private static Database database = null;
+
+    @Test
+    public void orderByAtomicValues() throws XMLDBException {
+        assertSameResult("for $i in 1 to 500 order by ($i * 7919) mod 500 descending, $i return $i");
+        assertSameResult("for $i in 1 to 100 order by $i mod 3, $i * -1 return ($i, string($i), $i * 1.5, xs:double($i) div 3)");
+        assertSameResult("for $i in 1 to 100 order by string($i) return xs:date('2000-01-01') + xs:dayTimeDuration('P' || $i || 'D')");
+        assertSameResult("for $i in 1 to 100 order by $i mod 10 return xs:untypedAtomic('u' || $i)");
+    }
+
+    @Test
+    public void orderByEmptyKeys() throws XMLDBException {
+        assertSameResult("for $i in 1 to 100 order by (if ($i mod 5 = 0) then () else $i mod 7) empty least, $i return $i");
+        assertSameResult("for $i in 1 to 100 order by (if ($i mod 5 = 0) then () else $i mod 7) empty greatest return $i");
+        assertSameResult("for $i in 1 to 100 order by (if ($i mod 3 = 0) then xs:double('NaN') else $i mod 7) descending return $i");
+    }
+
+    @Test
+    public void orderByStoredNodes() throws XMLDBException {
+        assertSameResult("for $r in collection('/db/spill-test')//record order by number($r/value) mod 7, $r/@id descending return $r");
+        assertSameResult("for $r in collection('/db/spill-test')//record order by $r/value descending return string($r/@id)");
+        assertSameResult("for $d in collection('/db/spill-test') order by document-uri($d) descending return $d/records/record[1]");
+    }
+
+    @Test
+    public void orderByInMemory() throws XMLDBException {
+        // constructed nodes and QNames are never written to temporary files
+        assertSameResult("for $i in 1 to 100 order by $i mod 9, $i return <item>{$i}</item>");
+        assertSameResult("for $i in 1 to 100 order by $i mod 9, $i return if ($i > 50) then <item>{$i}</item> else $i");
+        assertSameResult("for $i in 1 to 100 order by $i mod 9 return xs:QName('local:a' || $i)");
+    }
+
+    @Test
+    public void nestedOrderBy() throws XMLDBException {
+        assertSameResult("for $a in 1 to 5 return <list>{for $i in 1 to 50 order by $i mod $a, -$i return $i}</list>");
+        assertSameResult("for $a in 1 to 5 for $i in 1 to 20 order by $i mod 4, $a descending return $a * 100 + $i");
+    }
+
+    @Test
+    public void groupByAtomicValues() throws XMLDBException {
+        assertSameResult("for $i in 1 to 500 let $k := $i mod 17 group by $k order by $k " +
+            "return <g k='{$k}' count='{count($i)}'>{string-join($i ! string(), ',')}</g>");
+        assertSameResult("for $i in 1 to 200 let $k := $i mod 3 let $l := $i mod 5 group by $k, $l order by $k, $l " +
+            "return <g k='{$k}' l='{$l}'>{sum($i)}</g>");
+        assertSameResult("for $i in 1 to 200 let $k := if ($i mod 4 = 0) then () else string($i mod 3) group by $k order by $k " +
+            "return <g k='{$k}'>{string-join($i ! string(), ',')}</g>");
+        assertSameUnorderedResult("for $i in 1 to 300 let $k := $i mod 23 group by $k " +
+            "return $k || ':' || string-join($i ! string(), ',')");
+    }
+
+    @Test
+    public void groupByStoredNodes() throws XMLDBException {
+        assertSameResult("for $r in collection('/db/spill-test')//record let $k := $r/value mod 4 group by $k order by $k " +
+            "return <g k='{$k}'>{string-join($r/@id, ',')}</g>");
+        assertSameUnorderedResult("for $r in collection('/db/spill-test')//record group by $k := substring($r/@id, 1, 2) " +
+            "return $k || ':' || string-join($r/value, ',')");
+    }
+
+    @Test
+    public void groupByInMemory() throws XMLDBException {
+        assertSameResult("for $i in 1 to 100 let $n := <n>{$i}</n> group by $k := $i mod 5 order by $k " +
+            "return <g>{$n}</g>");
+        // the last tuples can not be written to temporary files
+        assertSameResult("for $i in 1 to 100 let $n := if ($i > 90) then <n>{$i}</n> else $i group by $k := $i mod 5 order by $k " +
+            "return <g>{$n}</g>");
+    }
+
+    @Test
+    public void fullTextMatches() throws XMLDBException {
+        // nodes with full text matches are kept in memory, so highlighting and scores still work
+        final String hits = "collection('/db/spill-ft')//p[ft:query(., 'apple')]";
+        assertSameResult("for $h in " + hits + " order by $h/@n descending return util:expand($h)");
+        assertSameResult("for $h in " + hits + " order by $h/@n return ft:score($h)");
+        assertSameResult("for $h in " + hits + " group by $k := $h/@n mod 3 order by $k " +
+            "return <g k='{$k}'>{util:expand($h)}</g>");
+
+        final List<String> ordered = query(SPILL + "for $h in " + hits + " order by $h/@n descending return util:expand($h)");
+        assertEquals(FT_HITS, ordered.size());
+        for (final String p : ordered) {
+            assertTrue(p, p.contains("<exist:match"));
+        }
+        final List<String> grouped = query(SPILL + "for $h in " + hits + " group by $k := $h/@n mod 3 " +
+            "return count(util:expand($h)//exist:match)");
+        int matches = 0;
+        for (final String count : grouped) {
+            matches += Integer.parseInt(count);
+        }
+        assertEquals(FT_HITS, matches);
+    }
+
+    @Test
+    public void invalidOption() {
+        try {
+            service.query("declare option exist:spill-threshold 'many'; 1");
+            fail("Invalid option not reported");
+        } catch (final XMLDBException e) {
+            // expected
+        }
+    }
+
+    private void assertSameResult(final String query) throws XMLDBException {
+        final List<String> expected = query(query);
+        final List<String> result = query(SPILL + query);
+        assertEquals(query, expected, result);
+    }
+
+    private void assertSameUnorderedResult(final String query) throws XMLDBException {
+        final List<String> expected = query(query);
+        final List<String> result = query(SPILL + query);
+        Collections.sort(expected);
+        Collections.sort(result);
+        assertEquals(query, expected, result);
+    }
+
+    private List<String> query(final String query) throws XMLDBException {
+        final ResourceSet result = service.query(query);
+        final List<String> items = new ArrayList<>((int) result.getSize());
+        for (int i = 0; i < result.getSize(); i++) {
+            items.add(result.getResource(i).getContent().toString());
+        }
+        return items;
+    }
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        final Class<?> cl = Class.forName("org.exist.xmldb.DatabaseImpl");
+        database = (Database) cl.newInstance();
+        database.setProperty("create-database", "true");
+        DatabaseManager.registerDatabase(database);
+        root = DatabaseManager.getCollection(XmldbURI.LOCAL_DB, "admin", "");
+
+        final CollectionManagementService mgmt = (CollectionManagementService) root.getService("CollectionManagementService", "1.0");
+        test = mgmt.createCollection("spill-test");
+        for (int d = 0; d < 5; d++) {
+            final StringBuilder doc = new StringBuilder("<records>");
+            for (int r = 0; r < 10; r++) {
+                doc.append("<record id='r").append(d).append('-').append(r).append("'><value>")
+                    .append((d * 13 + r * 7) % 50).append("</value></record>");
+            }
+            doc.append("</records>");
+            final XMLResource resource = (XMLResource) test.createResource("records" + d + ".xml", "XMLResource");
+            resource.setContent(doc.toString());
+            test.storeResource(resource);
+        }
+
+        fullText = mgmt.createCollection("spill-ft");
+        final IndexQueryService idxConf = (IndexQueryService) fullText.getService("IndexQueryService", "1.0");
+        idxConf.configureCollection(FT_CONFIG);
+        final StringBuilder doc = new StringBuilder("<text>");
+        for (int i = 0; i < FT_HITS * 2; i++) {
+            doc.append("<p n='").append(i).append("'>")
+                .append(i % 2 == 0 ? "an apple a day" : "a pear").append(' ').append(i).append("</p>");
+        }
+        doc.append("</text>");
+        final XMLResource resource = (XMLResource) fullText.createResource("text.xml", "XMLResource");
+        resource.setContent(doc.toString());
+        fullText.storeResource(resource);
+
+        service = (XPathQueryService) root.getService("XQueryService", "1.0");
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        final CollectionManagementService mgmt = (CollectionManagementService) root.getService("CollectionManagementService", "1.0");
+        mgmt.removeCollection("spill-test");
+        mgmt.removeCollection("spill-ft");
+        DatabaseManager.deregisterDatabase(database);
+        final DatabaseInstanceManager dim = (DatabaseInstanceManager) root.getService("DatabaseInstanceManager", "1.0");
+        dim.shutdown();
+    }
+}
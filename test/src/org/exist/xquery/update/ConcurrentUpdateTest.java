@@ -0,0 +1,153 @@
+package org.exist.xquery.update;
+
+import org.exist.EXistException;
+import org.exist.collections.Collection;
+import org.exist.collections.IndexInfo;
+import org.exist.dom.persistent.DocumentImpl;
+import org.exist.security.xacml.AccessContext;
+import org.exist.storage.BrokerPool;
+import org.exist.storage.DBBroker;
+import org.exist.storage.lock.Lock;
+import org.exist.storage.txn.TransactionManager;
+import org.exist.storage.txn.Txn;
+import org.exist.test.TestConstants;
+import org.exist.util.Configuration;
+import org.exist.util.DatabaseConfigurationException;
+import org.exist.xmldb.XmldbURI;
+import org.exist.xquery.XQuery;
+import org.exist.xquery.value.Sequence;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * XQuery updates only lock the documents they modify, so updates
+ * to different documents do not wait for each other.
+ */
+public class ConcurrentUpdateTest {
+
+    private final static XmldbURI COLLECTION_A = TestConstants.TEST_COLLECTION_URI.append("a");
+    private final static XmldbURI COLLECTION_B = TestConstants.TEST_COLLECTION_URI.append("b");
+    private final static String DOC_A = COLLECTION_A.append("data.xml").toString();
+    private final static String DOC_B = COLLECTION_B.append("data.xml").toString();
+
+    private BrokerPool pool;
+
+    @Test
+    public void waitingUpdateDoesNotBlockOthers() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            // keep document A read locked, so an update of A has to wait for its write lock
+            final DocumentImpl docA = broker.getXMLResource(XmldbURI.create(DOC_A), Lock.READ_LOCK);
+            assertNotNull(docA);
+            final Future<Sequence> updateA;
+            try {
+                updateA = executor.submit(() -> query("update insert <item/> into doc('" + DOC_A + "')/items"));
+                Thread.sleep(200);
+                assertFalse(updateA.isDone());
+
+                // an update of B does not wait for the update of A
+                final Future<Sequence> updateB =
+                        executor.submit(() -> query("update insert <item/> into doc('" + DOC_B + "')/items"));
+                updateB.get(10, TimeUnit.SECONDS);
+                assertFalse(updateA.isDone());
+            } finally {
+                docA.getUpdateLock().release(Lock.READ_LOCK);
+            }
+            updateA.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals("1", query("count(doc('" + DOC_A + "')//item)").getStringValue());
+        assertEquals("1", query("count(doc('" + DOC_B + "')//item)").getStringValue());
+    }
+
+    @Test
+    public void updatesOfBothDocuments() throws Exception {
+        final int threads = 8;
+        final int updates = 20;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                // half of the threads name the documents in reverse order
+                final String targets = t % 2 == 0 ?
+                        "(doc('" + DOC_A + "')/items, doc('" + DOC_B + "')/items)" :
+                        "(doc('" + DOC_B + "')/items, doc('" + DOC_A + "')/items)";
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < updates; i++) {
+                        query("for $items in " + targets + " return update insert <item/> into $items");
+                        query("update insert <item/> into " + targets);
+                    }
+                    return null;
+                }));
+            }
+            for (final Future<?> future : futures) {
+                future.get(60, TimeUnit.SECONDS);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        final String expected = String.valueOf(threads * updates * 2);
+        assertEquals(expected, query("count(doc('" + DOC_A + "')//item)").getStringValue());
+        assertEquals(expected, query("count(doc('" + DOC_B + "')//item)").getStringValue());
+    }
+
+    private Sequence query(final String query) throws Exception {
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()))) {
+            final XQuery xquery = pool.getXQueryService();
+            return xquery.execute(broker, query, null, AccessContext.TEST);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        pool = startDB();
+        final String xml = "<items/>";
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = transact.beginTransaction()) {
+            for (final XmldbURI uri : new XmldbURI[] { COLLECTION_A, COLLECTION_B }) {
+                final Collection collection = broker.getOrCreateCollection(transaction, uri);
+                assertNotNull(collection);
+                broker.saveCollection(transaction, collection);
+                final IndexInfo info = collection.validateXMLResource(transaction, broker, XmldbURI.create("data.xml"), xml);
+                assertNotNull(info);
+                collection.store(transaction, broker, info, xml, false);
+            }
+            transact.commit(transaction);
+        }
+    }
+
+    private BrokerPool startDB() throws DatabaseConfigurationException, EXistException {
+        final Configuration config = new Configuration();
+        BrokerPool.configure(1, 10, config);
+        return BrokerPool.getInstance();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        final TransactionManager transact = pool.getTransactionManager();
+        try (final DBBroker broker = pool.get(Optional.of(pool.getSecurityManager().getSystemSubject()));
+             final Txn transaction = transact.beginTransaction()) {
+            final Collection root = broker.getCollection(TestConstants.TEST_COLLECTION_URI);
+            if (root != null) {
+                broker.removeCollection(transaction, root);
+            }
+            transact.commit(transaction);
+        }
+        BrokerPool.stopAll(false);
+    }
+}